@@ -94,6 +94,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Supplier;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -110,7 +111,8 @@ import java.util.zip.ZipFile;
  *
  * <ol>
  *   <li>{@link #mergeManifestsForApplication(File, List, List, String, String, int, String, String,
- *       String, Integer, String, String, String, ManifestMerger2.MergeType, Map, List, File)}
+ *       String, Integer, String, String, String, ManifestMerger2.MergeType, Map, List, File,
+ *       File)}
  *   <li>{@link #mergeManifestsForTestVariant(String, String, String, String, String, Boolean,
  *       Boolean, String, File, List, Map, File, File)}
  *   <li>{@link #processResources(Aapt, AaptPackageConfig.Builder, boolean)}
@@ -445,7 +447,8 @@ public class AndroidBuilder {
             ManifestMerger2.MergeType mergeType,
             Map<String, Object> placeHolders,
             @NonNull List<Invoker.Feature> optionalFeatures,
-            @Nullable File reportFile) {
+            @Nullable File reportFile,
+            @Nullable File mergedLibrariesFile) {
 
         try {
 
@@ -459,7 +462,9 @@ public class AndroidBuilder {
                                     optionalFeatures.toArray(
                                             new Invoker.Feature[optionalFeatures.size()]))
                             .setMergeReportFile(reportFile)
-                            .setFeatureName(featureName);
+                            .setFeatureName(featureName)
+                            .withExecutor(ForkJoinPool.commonPool())
+                            .setMergedLibrariesFile(mergedLibrariesFile);
 
             if (mergeType == ManifestMerger2.MergeType.APPLICATION) {
                 manifestMergerInvoker.withFeatures(Invoker.Feature.REMOVE_TOOLS_DECLARATIONS);
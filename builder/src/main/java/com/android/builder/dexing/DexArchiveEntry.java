@@ -19,19 +19,33 @@ package com.android.builder.dexing;
 import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
 
 /**
  * A single DEX file in a dex archive. It is uniquely identified with {@link #relativePathInArchive}
  * within a single {@link DexArchive}.
+ *
+ * <p>The content of the DEX file is either held on the heap, or it is a slice of a memory-mapped
+ * dex archive (see {@link MappedDexArchiveReader}). Clients that can consume a {@link ByteBuffer}
+ * should use {@link #getDexFileContentBuffer()}, which never copies the content.
  */
 public final class DexArchiveEntry {
 
-    @NonNull private final byte[] dexFileContent;
+    @NonNull private final ByteBuffer dexFileContent;
     @NonNull private final String relativePathInArchive;
 
     public DexArchiveEntry(@NonNull byte[] dexFileContent, @NonNull String relativePathInArchive) {
+        this(ByteBuffer.wrap(dexFileContent), relativePathInArchive);
+    }
+
+    /**
+     * Creates an entry whose content is the remaining content of the specified buffer. The buffer
+     * must not be modified after the entry has been created.
+     */
+    public DexArchiveEntry(
+            @NonNull ByteBuffer dexFileContent, @NonNull String relativePathInArchive) {
         this.relativePathInArchive = relativePathInArchive;
-        this.dexFileContent = dexFileContent;
+        this.dexFileContent = dexFileContent.slice();
     }
 
     /**
@@ -48,10 +62,29 @@ public final class DexArchiveEntry {
                 + SdkConstants.DOT_CLASS;
     }
 
-    /** Returns content of this DEX file. */
+    /**
+     * Returns content of this DEX file. If the content is not held on the heap, it is copied into
+     * a new array.
+     */
     @NonNull
     public byte[] getDexFileContent() {
-        return dexFileContent;
+        if (dexFileContent.hasArray()
+                && dexFileContent.arrayOffset() == 0
+                && dexFileContent.array().length == dexFileContent.capacity()) {
+            return dexFileContent.array();
+        }
+        byte[] content = new byte[dexFileContent.capacity()];
+        dexFileContent.duplicate().get(content);
+        return content;
+    }
+
+    /**
+     * Returns content of this DEX file without copying it. The returned buffer is positioned at
+     * the start of the content, and it is independent of buffers returned by other invocations.
+     */
+    @NonNull
+    public ByteBuffer getDexFileContentBuffer() {
+        return dexFileContent.duplicate();
     }
 
     /**
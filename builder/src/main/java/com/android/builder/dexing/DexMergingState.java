@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dexing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assignment of DEX files from dex archives to the merged DEX files, as written by the previous
+ * invocation of {@link DxDexArchiveMerger#mergeNativeMultidexIncrementally(Iterable, Path, Path)}.
+ *
+ * <p>Every merged DEX file is described by a {@link Bucket}, containing the DEX files that were
+ * merged into it, and the number of field and method references it has. DEX files are identified
+ * by the path of the dex archive and their relative path in it, and their content is identified by
+ * the SHA-1 signature from the DEX header, so detecting changes does not require parsing them.
+ */
+final class DexMergingState {
+
+    /** Content of a single merged DEX file. */
+    static final class Bucket {
+
+        /** DEX files merged in this bucket, in merging order, mapped to their signatures. */
+        @NonNull private final ImmutableMap<String, byte[]> entries;
+
+        private final int fieldRefs;
+        private final int methodRefs;
+        private final long outputSize;
+        private final long outputTimestamp;
+
+        Bucket(
+                @NonNull Map<String, byte[]> entries,
+                int fieldRefs,
+                int methodRefs,
+                long outputSize,
+                long outputTimestamp) {
+            this.entries = ImmutableMap.copyOf(entries);
+            this.fieldRefs = fieldRefs;
+            this.methodRefs = methodRefs;
+            this.outputSize = outputSize;
+            this.outputTimestamp = outputTimestamp;
+        }
+
+        @NonNull
+        ImmutableMap<String, byte[]> getEntries() {
+            return entries;
+        }
+
+        int getFieldRefs() {
+            return fieldRefs;
+        }
+
+        int getMethodRefs() {
+            return methodRefs;
+        }
+
+        /**
+         * Returns if the merged DEX file is the one written by the previous invocation, by
+         * comparing its size and timestamp.
+         */
+        boolean isOutputUpToDate(@NonNull Path output) throws IOException {
+            return Files.isRegularFile(output)
+                    && Files.size(output) == outputSize
+                    && Files.getLastModifiedTime(output).toMillis() == outputTimestamp;
+        }
+    }
+
+    @VisibleForTesting static final int MAGIC = 0x44584d53;
+    @VisibleForTesting static final int VERSION = 1;
+
+    /** Offset and size of the SHA-1 signature in the DEX file header. */
+    private static final int SIGNATURE_OFFSET = 12;
+    private static final int SIGNATURE_SIZE = 20;
+
+    @NonNull private final ImmutableList<Bucket> buckets;
+
+    DexMergingState(@NonNull List<Bucket> buckets) {
+        this.buckets = ImmutableList.copyOf(buckets);
+    }
+
+    /** Returns the buckets, in the order of the merged DEX files. */
+    @NonNull
+    ImmutableList<Bucket> getBuckets() {
+        return buckets;
+    }
+
+    /** Returns the key identifying the DEX file across invocations. */
+    @NonNull
+    static String getKey(@NonNull Path dexArchive, @NonNull DexArchiveEntry entry) {
+        return dexArchive.toString() + '!' + entry.getRelativePathInArchive();
+    }
+
+    /** Returns the signature of the DEX file, as stored in its header. */
+    @NonNull
+    static byte[] getSignature(@NonNull DexArchiveEntry entry) {
+        ByteBuffer content = entry.getDexFileContentBuffer();
+        byte[] signature = new byte[SIGNATURE_SIZE];
+        content.position(SIGNATURE_OFFSET);
+        content.get(signature);
+        return signature;
+    }
+
+    /**
+     * Reads the state from the specified file. Returns {@code null} if the file does not exist, is
+     * truncated, or was not written by this version of the merger.
+     */
+    @Nullable
+    static DexMergingState read(@NonNull Path file) throws IOException {
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            int bucketCount = in.readInt();
+            ImmutableList.Builder<Bucket> buckets = ImmutableList.builder();
+            for (int i = 0; i < bucketCount; i++) {
+                int fieldRefs = in.readInt();
+                int methodRefs = in.readInt();
+                long outputSize = in.readLong();
+                long outputTimestamp = in.readLong();
+                int entryCount = in.readInt();
+                ImmutableMap.Builder<String, byte[]> entries = ImmutableMap.builder();
+                for (int j = 0; j < entryCount; j++) {
+                    String key = in.readUTF();
+                    byte[] signature = new byte[SIGNATURE_SIZE];
+                    in.readFully(signature);
+                    entries.put(key, signature);
+                }
+                buckets.add(
+                        new Bucket(
+                                entries.build(),
+                                fieldRefs,
+                                methodRefs,
+                                outputSize,
+                                outputTimestamp));
+            }
+            return new DexMergingState(buckets.build());
+        } catch (NoSuchFileException | EOFException e) {
+            // no state, or it was only partially written
+            return null;
+        }
+    }
+
+    void write(@NonNull Path file) throws IOException {
+        try (DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(buckets.size());
+            for (Bucket bucket : buckets) {
+                out.writeInt(bucket.fieldRefs);
+                out.writeInt(bucket.methodRefs);
+                out.writeLong(bucket.outputSize);
+                out.writeLong(bucket.outputTimestamp);
+                out.writeInt(bucket.entries.size());
+                for (Map.Entry<String, byte[]> entry : bucket.entries.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.write(entry.getValue());
+                }
+            }
+        }
+    }
+}
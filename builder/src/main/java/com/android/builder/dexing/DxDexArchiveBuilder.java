@@ -29,17 +29,17 @@ import com.android.dx.util.ByteArrayAnnotatedOutput;
 import com.android.ide.common.blame.parser.DexParser;
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.Iterator;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import java.util.stream.Stream;
 
 class DxDexArchiveBuilder extends DexArchiveBuilder {
 
-    private static final Logger LOGGER = Logger.getLogger(DxDexArchiveBuilder.class.getName());
+    /**
+     * Number of class files that are read ahead while dexing, see {@link
+     * ReadAheadClassFileReader}.
+     */
+    private static final int READ_AHEAD_WINDOW = 4;
 
     private final DexArchiveBuilderConfig config;
-    @Nullable private byte[] inStorage;
     @Nullable private DexFile.Storage outStorage;
 
     public DxDexArchiveBuilder(DexArchiveBuilderConfig config) {
@@ -50,43 +50,28 @@ class DxDexArchiveBuilder extends DexArchiveBuilder {
     public void convert(
             @NonNull Stream<ClassFileEntry> input, @NonNull Path output, boolean isIncremental)
             throws DexArchiveBuilderException {
-        Iterator<ClassFileEntry> iterator = input.iterator();
-        if (!iterator.hasNext()) {
-            return;
-        }
         outStorage =
                 config.getOutBufferSize() > 0
                         ? new DexFile.Storage(new byte[config.getOutBufferSize()])
                         : null;
-        inStorage = config.getInBufferSize() > 0 ? new byte[config.getInBufferSize()] : null;
-        ClassFileEntry classFileEntry = null;
-        try (DexArchive outputDexArchive = DexArchives.fromInput(output)) {
-            while (iterator.hasNext()) {
-                classFileEntry = iterator.next();
-                ByteArray byteArray;
-                if (inStorage == null) {
-                    byteArray = new ByteArray(classFileEntry.readAllBytes());
-                } else {
-                    if (classFileEntry.getSize() > inStorage.length) {
-                        if (LOGGER.isLoggable(Level.FINER)) {
-                            LOGGER.log(
-                                    Level.FINER,
-                                    "File too big "
-                                            + classFileEntry.getSize()
-                                            + " : "
-                                            + classFileEntry.getRelativePath()
-                                            + " vs "
-                                            + inStorage.length);
-                        }
-                        inStorage = new byte[(int) classFileEntry.getSize()];
-                    }
-                    int readBytes = classFileEntry.readAllBytes(inStorage);
-                    byteArray = new ByteArray(inStorage, 0, readBytes);
+        ReadAheadClassFileReader reader =
+                new ReadAheadClassFileReader(input, READ_AHEAD_WINDOW, config.getInBufferSize());
+        try {
+            ReadAheadClassFileReader.ClassFileContent content = reader.next();
+            if (content == null) {
+                return;
+            }
+            try (DexArchive outputDexArchive = DexArchives.fromInput(output)) {
+                while (content != null) {
+                    ByteArray byteArray = new ByteArray(content.getBytes(), 0, content.getLength());
+                    dex(content.getEntry().getRelativePath(), byteArray, outputDexArchive);
+                    content = reader.next();
                 }
-                dex(classFileEntry.getRelativePath(), byteArray, outputDexArchive);
             }
         } catch (RuntimeException | IOException e) {
-            throw getExceptionToRethrow(e, classFileEntry);
+            throw getExceptionToRethrow(e, reader.getCurrentEntry());
+        } finally {
+            reader.close();
         }
     }
 
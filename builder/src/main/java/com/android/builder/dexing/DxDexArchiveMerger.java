@@ -20,9 +20,12 @@ import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.dex.Dex;
+import com.android.dex.DexFormat;
 import com.android.dx.command.dexer.DxContext;
 import com.android.dx.merge.DexMerger;
+import com.android.utils.FileUtils;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Verify;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -31,10 +34,14 @@ import com.google.common.collect.Sets;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -140,6 +147,185 @@ public final class DxDexArchiveMerger implements DexArchiveMerger {
         }
     }
 
+    /**
+     * Merges all DEX files from the dex archives into DEX file(s) in native multidex mode, while
+     * keeping the assignment of DEX files to the merged DEX files stable across invocations.
+     *
+     * <p>The assignment, and the number of references in every merged DEX file, are stored in the
+     * specified state file. On the next invocation, only merged DEX files containing changed or
+     * removed DEX files are merged again, and new DEX files are added to them if they fit.
+     * Remaining new DEX files are added to the last merged DEX file if it has room for them, or to
+     * new merged DEX files. Merged DEX files that are not affected are not written again, so they
+     * do not have to be updated in the APK.
+     *
+     * <p>Unlike {@link #mergeDexArchives(Iterable, Path, Path, DexingType)}, this method manages
+     * the content of the output directory itself, and returns once all DEX files are written.
+     */
+    public void mergeNativeMultidexIncrementally(
+            @NonNull Iterable<Path> inputs, @NonNull Path outputDir, @NonNull Path stateFile)
+            throws DexArchiveMergerException {
+        try {
+            DexMergingState previousState = DexMergingState.read(stateFile);
+            // if merging fails from now on, the next invocation should merge everything again
+            Files.deleteIfExists(stateFile);
+            if (previousState == null) {
+                FileUtils.cleanOutputDir(outputDir.toFile());
+            } else {
+                Files.createDirectories(outputDir);
+            }
+
+            Map<String, DexArchiveEntry> entries = new LinkedHashMap<>();
+            for (Path archivePath : Ordering.natural().sortedCopy(inputs)) {
+                for (DexArchiveEntry entry :
+                        DexArchives.getEntriesFromSingleArchive(archivePath)) {
+                    entries.put(DexMergingState.getKey(archivePath, entry), entry);
+                }
+            }
+
+            List<PlannedBucket> buckets = planBuckets(previousState, entries, outputDir);
+
+            // merged DEX files are loaded until the first missing one, so move the last buckets
+            // to the ones that became empty
+            int i = 0;
+            while (i < buckets.size()) {
+                if (!buckets.get(i).entries.isEmpty()) {
+                    i++;
+                    continue;
+                }
+                PlannedBucket last = buckets.remove(buckets.size() - 1);
+                if (i < buckets.size()) {
+                    buckets.set(i, last);
+                }
+            }
+
+            for (i = 0; i < buckets.size(); i++) {
+                PlannedBucket bucket = buckets.get(i);
+                Path dexOutput = outputDir.resolve(getDexFileName(i));
+                if (bucket.strategy == null && !dexOutput.equals(bucket.previousOutput)) {
+                    Files.move(
+                            Verify.verifyNotNull(bucket.previousOutput),
+                            dexOutput,
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            int previousCount = previousState != null ? previousState.getBuckets().size() : 0;
+            for (i = buckets.size(); i < previousCount; i++) {
+                Files.deleteIfExists(outputDir.resolve(getDexFileName(i)));
+            }
+
+            List<ForkJoinTask<Void>> subTasks = new ArrayList<>();
+            for (i = 0; i < buckets.size(); i++) {
+                ReferenceCountMergingStrategy strategy = buckets.get(i).strategy;
+                if (strategy != null) {
+                    subTasks.add(
+                            submitForMerging(
+                                    strategy.getAllDexToMerge(),
+                                    outputDir.resolve(getDexFileName(i))));
+                }
+            }
+            subTasks.forEach(ForkJoinTask::join);
+
+            List<DexMergingState.Bucket> state = new ArrayList<>(buckets.size());
+            for (i = 0; i < buckets.size(); i++) {
+                PlannedBucket bucket = buckets.get(i);
+                Path dexOutput = outputDir.resolve(getDexFileName(i));
+                state.add(
+                        new DexMergingState.Bucket(
+                                bucket.entries,
+                                bucket.getFieldRefCount(),
+                                bucket.getMethodRefCount(),
+                                Files.size(dexOutput),
+                                Files.getLastModifiedTime(dexOutput).toMillis()));
+            }
+            new DexMergingState(state).write(stateFile);
+        } catch (IOException e) {
+            throw new DexArchiveMergerException(e);
+        }
+    }
+
+    /**
+     * Assigns DEX files to buckets, starting from the assignment from the previous invocation. The
+     * returned buckets might be empty, if all of their DEX files were removed.
+     */
+    @NonNull
+    private static List<PlannedBucket> planBuckets(
+            @Nullable DexMergingState previousState,
+            @NonNull Map<String, DexArchiveEntry> entries,
+            @NonNull Path outputDir)
+            throws IOException, DexArchiveMergerException {
+        List<PlannedBucket> buckets = new ArrayList<>();
+        Set<String> assigned = new HashSet<>();
+        if (previousState != null) {
+            List<DexMergingState.Bucket> previousBuckets = previousState.getBuckets();
+            for (int i = 0; i < previousBuckets.size(); i++) {
+                DexMergingState.Bucket previous = previousBuckets.get(i);
+                PlannedBucket bucket =
+                        new PlannedBucket(previous, outputDir.resolve(getDexFileName(i)));
+                for (Map.Entry<String, byte[]> previousEntry : previous.getEntries().entrySet()) {
+                    DexArchiveEntry entry = entries.get(previousEntry.getKey());
+                    if (entry != null
+                            && Arrays.equals(
+                                    previousEntry.getValue(),
+                                    DexMergingState.getSignature(entry))) {
+                        bucket.entries.put(previousEntry.getKey(), previousEntry.getValue());
+                        assigned.add(previousEntry.getKey());
+                    }
+                }
+                if (bucket.entries.size() != previous.getEntries().size()
+                        || !previous.isOutputUpToDate(
+                                Verify.verifyNotNull(bucket.previousOutput))) {
+                    bucket.reopen(entries);
+                }
+                buckets.add(bucket);
+            }
+        }
+
+        for (Map.Entry<String, DexArchiveEntry> entry : entries.entrySet()) {
+            if (assigned.contains(entry.getKey())) {
+                continue;
+            }
+            Dex dex = Dex.create(entry.getValue().getDexFileContentBuffer());
+            findBucket(buckets, dex, entries)
+                    .entries
+                    .put(entry.getKey(), DexMergingState.getSignature(entry.getValue()));
+        }
+        return buckets;
+    }
+
+    /**
+     * Finds the bucket for a new DEX file, and adds it to the bucket's merging strategy. Buckets
+     * that are merged again anyway are preferred, so that unchanged DEX files are not rewritten.
+     */
+    @NonNull
+    private static PlannedBucket findBucket(
+            @NonNull List<PlannedBucket> buckets,
+            @NonNull Dex dex,
+            @NonNull Map<String, DexArchiveEntry> entries)
+            throws DexArchiveMergerException {
+        for (PlannedBucket bucket : buckets) {
+            if (bucket.strategy != null && bucket.strategy.tryToAddForMerging(dex)) {
+                return bucket;
+            }
+        }
+
+        PlannedBucket last = buckets.isEmpty() ? null : Iterables.getLast(buckets);
+        if (last != null && last.strategy == null && last.hasRoomFor(dex)) {
+            last.reopen(entries);
+            if (Verify.verifyNotNull(last.strategy).tryToAddForMerging(dex)) {
+                return last;
+            }
+        }
+
+        PlannedBucket bucket = new PlannedBucket(null, null);
+        bucket.reopen(entries);
+        if (!Verify.verifyNotNull(bucket.strategy).tryToAddForMerging(dex)) {
+            throw new DexArchiveMergerException(
+                    "A single DEX file from a dex archive has more than 64K references.");
+        }
+        buckets.add(bucket);
+        return bucket;
+    }
+
     /**
      * Merge all DEX files from the dex archives. They need to fit into a single DEX file.
      *
@@ -161,7 +347,7 @@ public final class DxDexArchiveMerger implements DexArchiveMerger {
                                     List<DexArchiveEntry> entries = dexArchive.getFiles();
                                     List<Dex> dexes = new ArrayList<>(entries.size());
                                     for (DexArchiveEntry e : entries) {
-                                        dexes.add(new Dex(e.getDexFileContent()));
+                                        dexes.add(Dex.create(e.getDexFileContentBuffer()));
                                     }
 
                                     dexesFromArchives.put(dexArchive.getRootPath(), dexes);
@@ -226,7 +412,7 @@ public final class DxDexArchiveMerger implements DexArchiveMerger {
 
         while (entries.hasNext()) {
             DexArchiveEntry entry = entries.next();
-            Dex dex = new Dex(entry.getDexFileContent());
+            Dex dex = Dex.create(entry.getDexFileContentBuffer());
 
             if (dexingType == DexingType.LEGACY_MULTIDEX) {
                 // check if this should go to the main dex
@@ -272,11 +458,67 @@ public final class DxDexArchiveMerger implements DexArchiveMerger {
     }
 
     @NonNull
-    private String getDexFileName(int classesDexIndex) {
+    private static String getDexFileName(int classesDexIndex) {
         if (classesDexIndex == 0) {
             return SdkConstants.FN_APK_CLASSES_DEX;
         } else {
             return String.format(SdkConstants.FN_APK_CLASSES_N_DEX, (classesDexIndex + 1));
         }
     }
+
+    /** A merged DEX file, while assigning DEX files for incremental merging. */
+    private static final class PlannedBucket {
+
+        /** The bucket from the previous invocation, or {@code null} if this is a new one. */
+        @Nullable private final DexMergingState.Bucket previous;
+        /** The merged DEX file written by the previous invocation. */
+        @Nullable private final Path previousOutput;
+        /** DEX files in this bucket, mapped to their signatures. */
+        @NonNull private final Map<String, byte[]> entries = new LinkedHashMap<>();
+        /** Set once this bucket has to be merged again. */
+        @Nullable private ReferenceCountMergingStrategy strategy;
+
+        PlannedBucket(
+                @Nullable DexMergingState.Bucket previous, @Nullable Path previousOutput) {
+            this.previous = previous;
+            this.previousOutput = previousOutput;
+        }
+
+        /**
+         * Marks this bucket to be merged again, by adding its current DEX files to a new merging
+         * strategy.
+         */
+        void reopen(@NonNull Map<String, DexArchiveEntry> allEntries) {
+            strategy = new ReferenceCountMergingStrategy();
+            strategy.startNewDex();
+            for (String key : entries.keySet()) {
+                Dex dex = Dex.create(allEntries.get(key).getDexFileContentBuffer());
+                // a subset of the DEX files that were merged before always fits
+                Verify.verify(strategy.tryToAddForMerging(dex), "Unable to re-add %s", key);
+            }
+        }
+
+        /**
+         * Returns if the DEX file fits in this unchanged bucket, assuming none of its references
+         * are already in the bucket.
+         */
+        boolean hasRoomFor(@NonNull Dex dex) {
+            int maxRefs = DexFormat.MAX_MEMBER_IDX + 1;
+            return previous != null
+                    && previous.getFieldRefs() + dex.fieldIds().size() <= maxRefs
+                    && previous.getMethodRefs() + dex.methodIds().size() <= maxRefs;
+        }
+
+        int getFieldRefCount() {
+            return strategy != null
+                    ? strategy.getFieldRefCount()
+                    : Verify.verifyNotNull(previous).getFieldRefs();
+        }
+
+        int getMethodRefCount() {
+            return strategy != null
+                    ? strategy.getMethodRefCount()
+                    : Verify.verifyNotNull(previous).getMethodRefs();
+        }
+    }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dexing;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the entries of a .jar dex archive without copying their contents onto the heap.
+ *
+ * <p>Dex archives written by {@link NonIncrementalJarDexArchive} store all of their entries
+ * uncompressed, so the content of every entry is a contiguous region of the .jar file. This reader
+ * maps the whole file into memory once, locates the entries by parsing the zip central directory,
+ * and returns {@link DexArchiveEntry} instances backed by slices of the {@link MappedByteBuffer}.
+ *
+ * <p>Only plain (non-zip64) archives whose entries are all stored are supported. For any other
+ * archive, {@link #readEntries(Path)} returns {@code null} and the caller should fall back to
+ * reading the entries through {@link java.util.zip.ZipFile}.
+ *
+ * <p>Mapped files cannot be deleted on Windows until the mapping is garbage collected, which would
+ * break incremental builds that delete dex archives, so mapping is disabled on Windows.
+ */
+final class MappedDexArchiveReader {
+
+    private static final int END_OF_CENTRAL_DIR_SIGNATURE = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIR_SIZE = 22;
+    private static final int MAX_ZIP_COMMENT_SIZE = 0xffff;
+
+    private static final int CENTRAL_DIR_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_DIR_HEADER_SIZE = 46;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    private static final int METHOD_STORED = 0;
+
+    /** Whether dex archives can be memory-mapped on the current platform. */
+    static final boolean MAPPING_SUPPORTED =
+            SdkConstants.currentPlatform() != SdkConstants.PLATFORM_WINDOWS;
+
+    private MappedDexArchiveReader() {}
+
+    /**
+     * Returns all entries of the specified .jar dex archive, backed by a read-only memory mapping
+     * of the file, in the order of the central directory. Returns {@code null} if the archive
+     * cannot be mapped, because it is a zip64 archive or because it contains compressed entries.
+     */
+    @Nullable
+    static List<DexArchiveEntry> readEntries(@NonNull Path jar) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(jar, StandardOpenOption.READ)) {
+            if (channel.size() < END_OF_CENTRAL_DIR_SIZE || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            // the mapping stays valid after the channel is closed
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+        int endOfCentralDir = findEndOfCentralDirectory(mapped);
+        if (endOfCentralDir < 0) {
+            return null;
+        }
+        int entryCount = Short.toUnsignedInt(mapped.getShort(endOfCentralDir + 10));
+        long centralDirOffset = Integer.toUnsignedLong(mapped.getInt(endOfCentralDir + 16));
+        if (entryCount == 0xffff || centralDirOffset >= endOfCentralDir) {
+            // zip64 archive, or a corrupted one
+            return null;
+        }
+
+        List<DexArchiveEntry> entries = new ArrayList<>(entryCount);
+        int headerOffset = (int) centralDirOffset;
+        for (int i = 0; i < entryCount; i++) {
+            if (headerOffset + CENTRAL_DIR_HEADER_SIZE > endOfCentralDir
+                    || mapped.getInt(headerOffset) != CENTRAL_DIR_HEADER_SIGNATURE) {
+                return null;
+            }
+            int method = Short.toUnsignedInt(mapped.getShort(headerOffset + 10));
+            long compressedSize = Integer.toUnsignedLong(mapped.getInt(headerOffset + 20));
+            long size = Integer.toUnsignedLong(mapped.getInt(headerOffset + 24));
+            int nameLength = Short.toUnsignedInt(mapped.getShort(headerOffset + 28));
+            int extraLength = Short.toUnsignedInt(mapped.getShort(headerOffset + 30));
+            int commentLength = Short.toUnsignedInt(mapped.getShort(headerOffset + 32));
+            long localHeaderOffset = Integer.toUnsignedLong(mapped.getInt(headerOffset + 42));
+            if (method != METHOD_STORED || compressedSize != size) {
+                return null;
+            }
+
+            String name = readName(mapped, headerOffset + CENTRAL_DIR_HEADER_SIZE, nameLength);
+            ByteBuffer content = sliceContent(mapped, localHeaderOffset, size, centralDirOffset);
+            if (content == null) {
+                return null;
+            }
+            entries.add(new DexArchiveEntry(content, name));
+
+            headerOffset += CENTRAL_DIR_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the offset of the end of central directory record, or -1 if it cannot be found. The
+     * record is at the end of the file, followed by an optional comment of up to 64K.
+     */
+    private static int findEndOfCentralDirectory(@NonNull ByteBuffer buffer) {
+        int last = buffer.limit() - END_OF_CENTRAL_DIR_SIZE;
+        int first = Math.max(0, last - MAX_ZIP_COMMENT_SIZE);
+        for (int offset = last; offset >= first; offset--) {
+            if (buffer.getInt(offset) == END_OF_CENTRAL_DIR_SIGNATURE
+                    && offset
+                                    + END_OF_CENTRAL_DIR_SIZE
+                                    + Short.toUnsignedInt(buffer.getShort(offset + 20))
+                            == buffer.limit()) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a slice of the buffer containing the data of the entry whose local header is at the
+     * specified offset, or {@code null} if the local header is invalid.
+     */
+    @Nullable
+    private static ByteBuffer sliceContent(
+            @NonNull ByteBuffer buffer, long localHeaderOffset, long size, long centralDirOffset) {
+        if (localHeaderOffset + LOCAL_HEADER_SIZE > centralDirOffset
+                || buffer.getInt((int) localHeaderOffset) != LOCAL_HEADER_SIGNATURE) {
+            return null;
+        }
+        // name and extra field lengths of the local header may differ from the central directory
+        int nameLength = Short.toUnsignedInt(buffer.getShort((int) localHeaderOffset + 26));
+        int extraLength = Short.toUnsignedInt(buffer.getShort((int) localHeaderOffset + 28));
+        long dataStart = localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+        if (dataStart + size > centralDirOffset) {
+            return null;
+        }
+
+        ByteBuffer content = buffer.duplicate();
+        content.position((int) dataStart);
+        content.limit((int) (dataStart + size));
+        return content.slice();
+    }
+
+    @NonNull
+    private static String readName(@NonNull ByteBuffer buffer, int offset, int length) {
+        byte[] name = new byte[length];
+        ByteBuffer nameBuffer = buffer.duplicate();
+        nameBuffer.position(offset);
+        nameBuffer.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+}
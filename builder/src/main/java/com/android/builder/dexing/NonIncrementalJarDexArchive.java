@@ -95,10 +95,22 @@ final class NonIncrementalJarDexArchive implements DexArchive {
         throw new UnsupportedOperationException("Not implemented");
     }
 
+    /**
+     * Returns all entries of this archive. If possible, the archive is memory-mapped and the
+     * entries are backed by the mapping, so their contents are not copied onto the heap (see
+     * {@link MappedDexArchiveReader}).
+     */
     @NonNull
     @Override
     public List<DexArchiveEntry> getFiles() throws IOException {
         Preconditions.checkNotNull(readOnlyZipFile, "Archive is not readable : %s", targetPath);
+        if (MappedDexArchiveReader.MAPPING_SUPPORTED) {
+            List<DexArchiveEntry> mappedEntries = MappedDexArchiveReader.readEntries(targetPath);
+            if (mappedEntries != null) {
+                return mappedEntries;
+            }
+        }
+
         List<DexArchiveEntry> dexEntries = new ArrayList<>();
         Enumeration<? extends ZipEntry> entries = readOnlyZipFile.entries();
         while (entries.hasMoreElements()) {
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dexing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Reads the content of class file entries on a background thread, while the caller is processing
+ * the entries that were already read. The background threads are shared by all readers, and there
+ * are at most as many as available processors; a reader that does not get a thread right away
+ * starts reading once another reader is done.
+ *
+ * <p>At most {@code windowSize} entries are held in memory, including the one being processed by
+ * the caller. Their content is stored in a fixed set of buffers that are handed back to the reader
+ * once the caller moves on to the next entry, so the memory used does not depend on the number of
+ * entries. If the reader gets too far ahead, it blocks until the caller catches up.
+ *
+ * <p>Entries are returned in the order of the input stream. This class is not thread-safe, {@link
+ * #next()} should be invoked from a single thread.
+ */
+final class ReadAheadClassFileReader implements Closeable {
+
+    /** Contents of a class file entry, valid until the next invocation of {@link #next()}. */
+    static final class ClassFileContent {
+
+        @Nullable private ClassFileEntry entry;
+        @Nullable private byte[] bytes;
+        private int length;
+        @Nullable private Throwable failure;
+
+        private ClassFileContent(int bufferSize) {
+            this.bytes = bufferSize > 0 ? new byte[bufferSize] : null;
+        }
+
+        @NonNull
+        ClassFileEntry getEntry() {
+            return Preconditions.checkNotNull(entry);
+        }
+
+        /** Returns the buffer with the content, of which {@link #getLength()} bytes are valid. */
+        @NonNull
+        byte[] getBytes() {
+            return Preconditions.checkNotNull(bytes);
+        }
+
+        int getLength() {
+            return length;
+        }
+    }
+
+    /** Marks the end of input. */
+    private static final ClassFileContent END = new ClassFileContent(0);
+
+    /** Threads reading the entries, shared by all readers. Idle threads are stopped. */
+    @NonNull private static final ThreadPoolExecutor readerExecutor = createReaderExecutor();
+
+    @NonNull private final BlockingQueue<ClassFileContent> free;
+    @NonNull private final BlockingQueue<ClassFileContent> filled;
+    private final boolean reuseBuffers;
+    /** Whether reading has started on a reader thread, or was cancelled before it started. */
+    @NonNull private final AtomicBoolean started = new AtomicBoolean();
+    /** Released once reading has started and then stopped. */
+    @NonNull private final CountDownLatch stopped = new CountDownLatch(1);
+    @NonNull private final Future<?> readerTask;
+
+    @Nullable private ClassFileContent current;
+    private boolean finished;
+
+    /**
+     * Starts reading the specified entries.
+     *
+     * @param entries entries to read, consumed on the reader thread
+     * @param windowSize maximum number of entries in memory, including the one being processed
+     * @param bufferSize initial size of the buffers used to read entries, 0 to allocate a new
+     *     array for every entry
+     */
+    ReadAheadClassFileReader(
+            @NonNull Stream<ClassFileEntry> entries, int windowSize, int bufferSize) {
+        Preconditions.checkArgument(windowSize > 0, "Window size must be positive.");
+        this.free = new ArrayBlockingQueue<>(windowSize);
+        // one more slot for the END marker or the failure
+        this.filled = new ArrayBlockingQueue<>(windowSize + 1);
+        this.reuseBuffers = bufferSize > 0;
+        for (int i = 0; i < windowSize; i++) {
+            free.add(new ClassFileContent(bufferSize));
+        }
+
+        Iterator<ClassFileEntry> iterator = entries.iterator();
+        readerTask =
+                readerExecutor.submit(
+                        () -> {
+                            if (!started.compareAndSet(false, true)) {
+                                return;
+                            }
+                            try {
+                                readAll(iterator);
+                            } finally {
+                                stopped.countDown();
+                            }
+                        });
+    }
+
+    /**
+     * Returns the next entry, or {@code null} if all entries have been returned. The content
+     * returned by the previous invocation is no longer valid after this method is invoked.
+     *
+     * @throws IOException if reading the entry failed, or the calling thread was interrupted
+     */
+    @Nullable
+    ClassFileContent next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        if (current != null) {
+            free.add(current);
+            current = null;
+        }
+
+        ClassFileContent content;
+        try {
+            content = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading class files.");
+        }
+
+        if (content == END) {
+            finished = true;
+            return null;
+        }
+        current = content;
+        if (content.failure != null) {
+            finished = true;
+            Throwables.throwIfInstanceOf(content.failure, IOException.class);
+            Throwables.throwIfUnchecked(content.failure);
+            throw new RuntimeException(content.failure);
+        }
+        return content;
+    }
+
+    /**
+     * Returns the entry that was last returned by {@link #next()}, or failed to be read. It is used
+     * to report errors.
+     */
+    @Nullable
+    ClassFileEntry getCurrentEntry() {
+        return current != null ? current.entry : null;
+    }
+
+    /**
+     * Stops reading, and waits for the reader thread to stop using the input, so that the input
+     * can be closed by the caller.
+     */
+    @Override
+    public void close() {
+        finished = true;
+        if (!started.compareAndSet(false, true)) {
+            readerTask.cancel(true);
+            Uninterruptibles.awaitUninterruptibly(stopped);
+        } else {
+            // reading never started, and never will
+            readerTask.cancel(false);
+        }
+    }
+
+    @NonNull
+    private static ThreadPoolExecutor createReaderExecutor() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        threads,
+                        threads,
+                        1,
+                        TimeUnit.MINUTES,
+                        new LinkedBlockingQueue<>(),
+                        new ThreadFactoryBuilder()
+                                .setDaemon(true)
+                                .setNameFormat("class-file-reader-%d")
+                                .build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private void readAll(@NonNull Iterator<ClassFileEntry> iterator) {
+        try {
+            while (iterator.hasNext()) {
+                ClassFileEntry entry = iterator.next();
+                ClassFileContent content = free.take();
+                content.entry = entry;
+                try {
+                    read(entry, content);
+                } catch (IOException | RuntimeException e) {
+                    content.failure = e;
+                    filled.put(content);
+                    return;
+                }
+                filled.put(content);
+            }
+            filled.put(END);
+        } catch (InterruptedException e) {
+            // cancelled by the consumer, nothing to report
+        } catch (RuntimeException e) {
+            // failed while iterating the input
+            ClassFileContent content = new ClassFileContent(0);
+            content.failure = e;
+            filled.offer(content);
+        }
+    }
+
+    private void read(@NonNull ClassFileEntry entry, @NonNull ClassFileContent content)
+            throws IOException {
+        if (!reuseBuffers) {
+            content.bytes = entry.readAllBytes();
+            content.length = content.bytes.length;
+            return;
+        }
+
+        long size = entry.getSize();
+        if (size > content.getBytes().length) {
+            content.bytes = new byte[Math.toIntExact(size)];
+        }
+        content.length = entry.readAllBytes(content.getBytes());
+    }
+}
@@ -64,6 +64,16 @@ public class ReferenceCountMergingStrategy implements DexMergingStrategy {
         return ImmutableList.copyOf(currentDexes);
     }
 
+    /** Returns the number of unique field references in the DEX files added so far. */
+    public int getFieldRefCount() {
+        return fieldRefs.size();
+    }
+
+    /** Returns the number of unique method references in the DEX files added so far. */
+    public int getMethodRefCount() {
+        return methodRefs.size();
+    }
+
     private boolean tryAddFields(@NonNull Dex dexFile) {
         List<FieldId> fieldIds = dexFile.fieldIds();
         Set<FieldEvaluated> fieldsEvaluated = new HashSet<>(fieldIds.size());
@@ -119,7 +119,7 @@ public class FileCacheByPath {
      * @return the unique key
      */
     @NonNull
-    private static String key(@NonNull File f) {
+    static String key(@NonNull File f) {
         String absolutePath = f.getAbsolutePath();
         byte[] sha1Sum = Hashing.sha1().hashString(absolutePath, Charsets.UTF_8).asBytes();
         return new String(Base64.encodeBase64(sha1Sum), Charsets.US_ASCII).replaceAll("/", "_");
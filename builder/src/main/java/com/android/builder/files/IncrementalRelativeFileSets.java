@@ -229,6 +229,102 @@ public final class IncrementalRelativeFileSets {
         return ImmutableMap.copyOf(result);
     }
 
+    /**
+     * Computes the incremental relative file set that results from comparing a zip file with a
+     * possibly existing index of its previous version. This is the same as
+     * {@link #fromZip(File, FileCacheByPath, Set)}, except that only the index of the previous
+     * version of the zip is needed, rather than a copy of it.
+     *
+     * @param zip the zip file to read, must be a valid, existing zip file
+     * @param cache the cache where to find the index of the old version of the zip
+     * @param cacheUpdates receives all runnables that will update the cache; running all runnables
+     * placed in this set will ensure that a second invocation of this method reports no changes
+     * @return the file set
+     * @throws IOException failed to read the zip file or its index
+     */
+    @NonNull
+    public static ImmutableMap<RelativeFile, FileStatus> fromZip(
+            @NonNull File zip,
+            @NonNull ZipIndexCache cache,
+            @NonNull Set<Runnable> cacheUpdates) throws IOException {
+        ImmutableMap<String, ZipIndexCache.Entry> oldIndex = cache.get(zip);
+        if (oldIndex == null) {
+            /*
+             * No old index in cache. If the zip also doesn't exist, report all empty.
+             */
+            if (!zip.isFile()) {
+                return ImmutableMap.of();
+            }
+
+            ImmutableMap<String, ZipIndexCache.Entry> newIndex = ZipIndexCache.index(zip);
+            cacheUpdates.add(IOExceptionRunnable.asRunnable(() -> cache.add(zip, newIndex)));
+            return fromPaths(zip, newIndex.keySet(), FileStatus.NEW);
+        }
+
+        if (!zip.isFile()) {
+            /*
+             * Zip does not exist, but a cached index does. This means the zip was deleted
+             * and all entries are removed.
+             */
+            cacheUpdates.add(IOExceptionRunnable.asRunnable(() -> cache.remove(zip)));
+            return fromPaths(zip, oldIndex.keySet(), FileStatus.REMOVED);
+        }
+
+        /*
+         * We have both a new zip and the index of the old one. Compare both.
+         */
+        ImmutableMap<String, ZipIndexCache.Entry> newIndex = ZipIndexCache.index(zip);
+        Map<RelativeFile, FileStatus> result = Maps.newHashMap();
+        for (Map.Entry<String, ZipIndexCache.Entry> entry : newIndex.entrySet()) {
+            ZipIndexCache.Entry oldEntry = oldIndex.get(entry.getKey());
+            if (oldEntry == null) {
+                result.put(toRelativeFile(zip, entry.getKey()), FileStatus.NEW);
+            } else if (!oldEntry.equals(entry.getValue())) {
+                result.put(toRelativeFile(zip, entry.getKey()), FileStatus.CHANGED);
+            }
+        }
+
+        for (String path : oldIndex.keySet()) {
+            if (!newIndex.containsKey(path)) {
+                result.put(toRelativeFile(zip, path), FileStatus.REMOVED);
+            }
+        }
+
+        cacheUpdates.add(IOExceptionRunnable.asRunnable(() -> cache.add(zip, newIndex)));
+        return ImmutableMap.copyOf(result);
+    }
+
+    /**
+     * Builds an incremental relative file set with the given paths of files in a zip.
+     *
+     * @param zip the zip file
+     * @param paths the paths of the files in the zip
+     * @param status the status to set the files to
+     * @return the file set
+     */
+    @NonNull
+    private static ImmutableMap<RelativeFile, FileStatus> fromPaths(
+            @NonNull File zip, @NonNull Set<String> paths, @NonNull FileStatus status) {
+        ImmutableMap.Builder<RelativeFile, FileStatus> builder = ImmutableMap.builder();
+        for (String path : paths) {
+            builder.put(toRelativeFile(zip, path), status);
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Creates the relative file for a file in a zip.
+     *
+     * @param zip the zip file
+     * @param path the path of the file in the zip
+     * @return the relative file
+     */
+    @NonNull
+    private static RelativeFile toRelativeFile(@NonNull File zip, @NonNull String path) {
+        return new RelativeFile(zip, new File(zip, FileUtils.toSystemDependentPath(path)));
+    }
+
     /**
      * Computes the incremental relative file set that is the union of all provided sets. If a
      * relative file exists in more than one set, one of the files will exist in the union set,
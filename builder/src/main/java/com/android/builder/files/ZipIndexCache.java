@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.files;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.apkzlib.zip.CentralDirectoryHeader;
+import com.android.apkzlib.zip.StoredEntry;
+import com.android.apkzlib.zip.StoredEntryType;
+import com.android.apkzlib.zip.ZFile;
+import com.android.utils.FileUtils;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+/**
+ * Cache of the entries of zip files, stored based on the path of the zip files. This is similar
+ * to {@link FileCacheByPath}, but rather than keeping a copy of each zip file, only the name, CRC
+ * and size of the files in the zip are kept. This is enough to find which files have changed in a
+ * zip file, see {@link IncrementalRelativeFileSets#fromZip(File, ZipIndexCache, java.util.Set)},
+ * and is a lot smaller than the zip file.
+ *
+ * <pre>
+ * File cacheDir = ... // some directory.
+ * ZipIndexCache cache = new ZipIndexCache(cacheDir);
+ *
+ * File a = new File(...); // some zip file in the filesystem.
+ * cache.add(a);
+ *
+ * // Modify file "a".
+ * Map&lt;String, ZipIndexCache.Entry&gt; b = cache.get(a); // "b" will describe the files
+ *                                                      // of "a" before being modified.
+ * </pre>
+ */
+public class ZipIndexCache {
+
+    /** Version of the format of the index files, written at their start. */
+    private static final int VERSION = 1;
+
+    /**
+     * The directory where the cache exists.
+     */
+    @NonNull
+    private final File directory;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param directory the directory where the cache is stored
+     */
+    public ZipIndexCache(@NonNull File directory) {
+        Preconditions.checkArgument(
+                directory.isDirectory(), directory.getAbsolutePath() + "!.isDirectory()");
+
+        this.directory = directory;
+    }
+
+    /**
+     * Adds the index of a zip file to the cache, replacing any index of a zip that had the exact
+     * same absolute path.
+     *
+     * @param zip the zip file to add
+     * @throws IOException failed to read the zip file or to write the index into the cache
+     */
+    public void add(@NonNull File zip) throws IOException {
+        Preconditions.checkArgument(zip.isFile(), "!zip.isFile()");
+
+        add(zip, index(zip));
+    }
+
+    /**
+     * Adds the index of a zip file to the cache, replacing any index of a zip that had the exact
+     * same absolute path.
+     *
+     * @param zip the zip file
+     * @param index the index of the zip file, as computed by {@link #index(File)}
+     * @throws IOException failed to write the index into the cache
+     */
+    void add(@NonNull File zip, @NonNull Map<String, Entry> index) throws IOException {
+        if (!directory.isDirectory()) {
+            FileUtils.mkdirs(directory);
+        }
+
+        File indexFile = new File(directory, FileCacheByPath.key(zip));
+        File tmpFile = new File(directory, indexFile.getName() + ".tmp");
+        try (DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(VERSION);
+            out.writeInt(index.size());
+            for (Map.Entry<String, Entry> entry : index.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().getCrc32());
+                out.writeLong(entry.getValue().getSize());
+            }
+        }
+
+        Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Obtains the cached index of the zip file with the given path.
+     *
+     * @param zip the path
+     * @return a mapping from the path of all files in the zip to their CRC and size, {@code null}
+     * if there is no index in the cache that corresponds to the given file
+     * @throws IOException failed to read the index
+     */
+    @Nullable
+    public ImmutableMap<String, Entry> get(@NonNull File zip) throws IOException {
+        File indexFile = new File(directory, FileCacheByPath.key(zip));
+        if (!indexFile.isFile()) {
+            return null;
+        }
+
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            int version = in.readInt();
+            if (version != VERSION) {
+                return null;
+            }
+
+            int count = in.readInt();
+            ImmutableMap.Builder<String, Entry> builder = ImmutableMap.builder();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long crc32 = in.readLong();
+                long size = in.readLong();
+                builder.put(path, new Entry(crc32, size));
+            }
+
+            return builder.build();
+        }
+    }
+
+    /**
+     * Checks whether the cache has an index of the zip file with the given path, without reading
+     * the index.
+     *
+     * @param zip the path
+     * @return has the cache an index for the given file?
+     */
+    public boolean contains(@NonNull File zip) {
+        return new File(directory, FileCacheByPath.key(zip)).isFile();
+    }
+
+    /**
+     * Removes any cached index of the given path.
+     *
+     * @param zip the path
+     * @throws IOException failed to remove the index
+     */
+    public void remove(@NonNull File zip) throws IOException {
+        File toRemove = new File(directory, FileCacheByPath.key(zip));
+        if (toRemove.exists()) {
+            FileUtils.delete(toRemove);
+        }
+    }
+
+    /**
+     * Clears the cache.
+     *
+     * @throws IOException failed to clear the cache
+     */
+    public void clear() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File f : files) {
+            if (f.isFile()) {
+                FileUtils.delete(f);
+            }
+        }
+    }
+
+    /**
+     * Reads the central directory of a zip file and computes its index. Only files are part of
+     * the index, directory entries are ignored.
+     *
+     * @param zip the zip file to read, must be a valid, existing zip file
+     * @return a mapping from the path of all files in the zip to their CRC and size
+     * @throws IOException failed to read the zip file
+     */
+    @NonNull
+    public static ImmutableMap<String, Entry> index(@NonNull File zip) throws IOException {
+        ImmutableMap.Builder<String, Entry> builder = ImmutableMap.builder();
+        try (ZFile zipReader = new ZFile(zip)) {
+            for (StoredEntry entry : zipReader.entries()) {
+                if (entry.getType() == StoredEntryType.FILE) {
+                    CentralDirectoryHeader header = entry.getCentralDirectoryHeader();
+                    builder.put(
+                            header.getName(),
+                            new Entry(header.getCrc32(), header.getUncompressedSize()));
+                }
+            }
+        }
+
+        return builder.build();
+    }
+
+    /** CRC and size of a file in a zip. */
+    public static final class Entry {
+
+        private final long crc32;
+
+        private final long size;
+
+        Entry(long crc32, long size) {
+            this.crc32 = crc32;
+            this.size = size;
+        }
+
+        /**
+         * Obtains the CRC32 of the file.
+         *
+         * @return the CRC32
+         */
+        public long getCrc32() {
+            return crc32;
+        }
+
+        /**
+         * Obtains the uncompressed size of the file.
+         *
+         * @return the size
+         */
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) obj;
+            return crc32 == other.crc32 && size == other.size;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(crc32, size);
+        }
+    }
+}
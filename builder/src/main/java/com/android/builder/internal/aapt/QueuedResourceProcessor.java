@@ -78,7 +78,7 @@ public abstract class QueuedResourceProcessor implements ResourceProcessor {
 
         processingRequests =
                 new WorkQueue<>(
-                        logger, queueThreadContext, "queued-resource-processor", processToUse, 0);
+                        logger, queueThreadContext, "queued-resource-processor", processToUse);
     }
 
     protected void waitForAll(int key) throws InterruptedException {
@@ -16,6 +16,7 @@
 
 package com.android.builder.internal.aapt.v2;
 
+import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.builder.internal.aapt.AaptPackageConfig;
@@ -24,6 +25,7 @@ import com.android.builder.internal.aapt.QueuedResourceProcessor;
 import com.android.builder.png.AaptProcess;
 import com.android.builder.tasks.Job;
 import com.android.builder.tasks.JobContext;
+import com.android.builder.tasks.JobPriority;
 import com.android.builder.tasks.Task;
 import com.android.ide.common.internal.ResourceCompilationException;
 import com.android.ide.common.internal.ResourceProcessor;
@@ -147,7 +149,7 @@ public class Aapt2QueuedResourceProcessor extends QueuedResourceProcessor {
             synchronized (outstandingJobs) {
                 outstandingJobs.computeIfAbsent(key, k -> new ConcurrentLinkedQueue<>());
             }
-            processingRequests.push(aaptProcessJob);
+            processingRequests.push(aaptProcessJob, getCompilePriority(request));
         } catch (InterruptedException e) {
             // Restore the interrupted status
             Thread.currentThread().interrupt();
@@ -208,7 +210,8 @@ public class Aapt2QueuedResourceProcessor extends QueuedResourceProcessor {
             synchronized (outstandingJobs) {
                 outstandingJobs.computeIfAbsent(key, k -> new ConcurrentLinkedQueue<>());
             }
-            processingRequests.push(aaptProcessJob);
+            // linking is on the critical path, as it waits for all resources to be compiled
+            processingRequests.push(aaptProcessJob, JobPriority.HIGH);
         } catch (InterruptedException e) {
             // Restore the interrupted status
             Thread.currentThread().interrupt();
@@ -217,6 +220,18 @@ public class Aapt2QueuedResourceProcessor extends QueuedResourceProcessor {
         return result;
     }
 
+    /**
+     * Returns the priority of a compile request. PNG files are crunched when compiled, which is
+     * slow and not needed to generate R classes, so they are compiled after other resources.
+     */
+    @NonNull
+    private static JobPriority getCompilePriority(@NonNull CompileResourceRequest request) {
+        if (request.getInput().getName().endsWith(SdkConstants.DOT_PNG)) {
+            return JobPriority.LOW;
+        }
+        return JobPriority.NORMAL;
+    }
+
     public static void invalidateProcess(@NonNull String aaptLocation) {
         Creator.INSTANCE.invalidateProcessor(aaptLocation);
     }
@@ -77,8 +77,9 @@ public final class IncrementalFileMerger {
             mergeChangedInputs(inputs, output, state, newState);
         }
 
-        inputs.forEach(IncrementalFileMergerInput::close);
+        // Close the output first, as it may still read from the inputs until it is closed.
         output.close();
+        inputs.forEach(IncrementalFileMergerInput::close);
 
         return newState.build();
     }
@@ -17,12 +17,20 @@
 package com.android.builder.merge;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Closer;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 /**
@@ -107,4 +115,187 @@ public final class IncrementalFileMergerOutputs {
             }
         };
     }
+
+    /**
+     * Creates a new output that merges files using the provided algorithm and writes the merged
+     * file using the provided writer, like {@link #fromAlgorithmAndWriter(StreamMergeAlgorithm,
+     * MergeOutputWriter)}, but merges the files in parallel.
+     *
+     * <p>Reading the inputs and running the algorithm for each path is done in the given pool,
+     * with the merged files kept in memory until they are written. The writer is only used from
+     * the thread using the output, and receives the files in the same order as they were given
+     * to the output. All files are written when the output is closed, so the inputs must not be
+     * closed before the output, and must support opening paths from several threads.
+     *
+     * @param algorithm the algorithm to merge files (not used for files that are removed)
+     * @param writer the writer that builds the output
+     * @param forkJoinPool the pool where files are merged
+     * @return the output
+     */
+    @NonNull
+    public static IncrementalFileMergerOutput fromAlgorithmAndWriter(
+            @NonNull StreamMergeAlgorithm algorithm,
+            @NonNull MergeOutputWriter writer,
+            @NonNull ForkJoinPool forkJoinPool) {
+        return new ParallelAlgorithmWriterOutput(algorithm, writer, forkJoinPool);
+    }
+
+    /**
+     * Output merging files in a pool, and writing them in order. See
+     * {@link #fromAlgorithmAndWriter(StreamMergeAlgorithm, MergeOutputWriter, ForkJoinPool)}.
+     */
+    private static final class ParallelAlgorithmWriterOutput
+            implements IncrementalFileMergerOutput {
+
+        @NonNull private final StreamMergeAlgorithm algorithm;
+        @NonNull private final MergeOutputWriter writer;
+        @NonNull private final ForkJoinPool forkJoinPool;
+
+        /**
+         * Maximum number of merged files waiting to be written; limits how much memory is used by
+         * the merged files.
+         */
+        private final int maxPendingWrites;
+
+        /** Changes to write, in the order they were made. */
+        @NonNull private final Deque<PendingWrite> pendingWrites = new ArrayDeque<>();
+
+        ParallelAlgorithmWriterOutput(
+                @NonNull StreamMergeAlgorithm algorithm,
+                @NonNull MergeOutputWriter writer,
+                @NonNull ForkJoinPool forkJoinPool) {
+            this.algorithm = algorithm;
+            this.writer = writer;
+            this.forkJoinPool = forkJoinPool;
+            this.maxPendingWrites = 4 * forkJoinPool.getParallelism();
+        }
+
+        @Override
+        public void open() {
+            writer.open();
+        }
+
+        @Override
+        public void close() {
+            try {
+                writePending(0);
+            } finally {
+                pendingWrites.forEach(PendingWrite::cancel);
+                pendingWrites.clear();
+                writer.close();
+            }
+        }
+
+        @Override
+        public void remove(@NonNull String path) {
+            add(new PendingWrite(path, null, false));
+        }
+
+        @Override
+        public void create(
+                @NonNull String path, @NonNull List<IncrementalFileMergerInput> inputs) {
+            add(new PendingWrite(path, submitMerge(path, inputs), false));
+        }
+
+        @Override
+        public void update(
+                @NonNull String path,
+                @NonNull List<String> prevInputNames,
+                @NonNull List<IncrementalFileMergerInput> inputs) {
+            add(new PendingWrite(path, submitMerge(path, inputs), true));
+        }
+
+        /**
+         * Adds a change to write, and writes the oldest changes if there are too many merged
+         * files waiting to be written.
+         */
+        private void add(@NonNull PendingWrite write) {
+            pendingWrites.addLast(write);
+            writePending(maxPendingWrites);
+        }
+
+        /** Writes the oldest changes, until there are at most {@code max} changes pending. */
+        private void writePending(int max) {
+            while (pendingWrites.size() > max) {
+                pendingWrites.removeFirst().write(writer);
+            }
+        }
+
+        @NonNull
+        private Future<byte[]> submitMerge(
+                @NonNull String path, @NonNull List<IncrementalFileMergerInput> inputs) {
+            ImmutableList<IncrementalFileMergerInput> inputsCopy = ImmutableList.copyOf(inputs);
+            return forkJoinPool.submit(
+                    () -> {
+                        try (Closer closer = Closer.create()) {
+                            List<InputStream> inStreams =
+                                    inputsCopy
+                                            .stream()
+                                            .map(i -> i.openPath(path))
+                                            .collect(Collectors.toList());
+                            InputStream mergedStream =
+                                    algorithm.merge(path, ImmutableList.copyOf(inStreams), closer);
+                            return ByteStreams.toByteArray(mergedStream);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+        }
+    }
+
+    /** A change to write to a {@link MergeOutputWriter}. */
+    private static final class PendingWrite {
+
+        @NonNull private final String path;
+
+        /** The merged file, {@code null} if the file is removed. */
+        @Nullable private final Future<byte[]> data;
+
+        /** Whether the file replaces an existing one. */
+        private final boolean replace;
+
+        PendingWrite(@NonNull String path, @Nullable Future<byte[]> data, boolean replace) {
+            this.path = path;
+            this.data = data;
+            this.replace = replace;
+        }
+
+        /** Writes the change, waiting for the file to be merged if needed. */
+        void write(@NonNull MergeOutputWriter writer) {
+            if (data == null) {
+                writer.remove(path);
+                return;
+            }
+
+            byte[] bytes;
+            try {
+                bytes = data.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    throw new RuntimeException(cause);
+                }
+            }
+
+            if (replace) {
+                writer.replace(path, new ByteArrayInputStream(bytes));
+            } else {
+                writer.create(path, new ByteArrayInputStream(bytes));
+            }
+        }
+
+        /** Cancels the merge of the file, if it has not been written. */
+        void cancel() {
+            if (data != null) {
+                data.cancel(true);
+            }
+        }
+    }
 }
@@ -17,14 +17,22 @@
 package com.android.builder.merge;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import java.io.Serializable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -34,20 +42,23 @@ import java.util.Set;
  * incremental merge can be performed afterwards. An initial state (for a full merge) can be
  * build using {@link #IncrementalFileMergerState()}.
  *
- * <p>States are serializable so they can be persisted across invocations of merge operations. They
- * are also immutable. The incremental merger will build new instances using {@link Builder}.
+ * <p>States can be written with {@link #write(OutputStream)} and read with
+ * {@link #read(InputStream)} so they can be persisted across invocations of merge operations.
+ * They are also immutable. The incremental merger will build new instances using
+ * {@link Builder}, which only records the paths that change.
  *
  * <p>Users of the incremental merger will generally not need to use anything from the state,
  * except providing it to invocations of
  * {@link IncrementalFileMerger#merge(List, IncrementalFileMergerOutput,
  * IncrementalFileMergerState)}. Therefore, this class is mostly opaque.
  */
-public final class IncrementalFileMergerState implements Serializable {
+public final class IncrementalFileMergerState {
 
     /**
-     * Version for serialization.
+     * Version of the format written by {@link #write(OutputStream)}. It does not start like the
+     * Java serialization stream used by older versions.
      */
-    private static final long serialVersionUID = 1;
+    private static final int VERSION = 0x4D530001;
 
     /**
      * Names of all inputs to merge, in order.
@@ -56,19 +67,38 @@ public final class IncrementalFileMergerState implements Serializable {
     private final ImmutableList<String> inputNames;
 
     /**
-     * Maps OS-independent paths to the names of the input sets that were used to construct the
-     * merged output.
+     * All OS-independent paths that have been merged, sorted.
      */
     @NonNull
-    private final ImmutableMap<String, ImmutableList<String>> origin;
+    private final String[] paths;
+
+    /**
+     * Names of the inputs that contributed to any path, each one appearing once. The inputs of
+     * the paths are stored as indexes in this array.
+     */
+    @NonNull
+    private final String[] originNames;
+
+    /**
+     * Where the inputs of each of {@link #paths} start in {@link #origin}. The inputs of the path
+     * at index {@code i} are at indexes {@code originStarts[i]} (inclusive) to
+     * {@code originStarts[i + 1]} (exclusive) of {@link #origin}.
+     */
+    @NonNull
+    private final int[] originStarts;
+
+    /**
+     * Indexes in {@link #originNames} of the names of the input sets that were used to construct
+     * the merged output of each path, see {@link #originStarts}.
+     */
+    @NonNull
+    private final int[] origin;
 
     /**
      * Maps an input set name to all OS-independent paths to whom it contributed inputs for. This
-     * map can be build from {@link #origin}: its key are all different values of all lists in the
-     * value set of {@link #origin}. For each key in {@link #byInput}, its values are all keys
-     * in {@link #origin} whose value contains the key.
-     *
-     * <p>However, for performance reasons, this is precomputed.
+     * map can be build from the origin of the paths: its keys are all the different names of the
+     * inputs of all paths. For each key in {@link #byInput}, its values are all paths whose inputs
+     * contain the key.
      *
      * <p>For example, if we have a structure of:
      * <pre>
@@ -81,7 +111,7 @@ public final class IncrementalFileMergerState implements Serializable {
      *   - path3
      * </pre>
      *
-     * <p>{@link #origin} would contain:
+     * <p>The origin of the paths would be:
      * <pre>
      * path1 -> input1, input2
      * path2 -> input1
@@ -93,46 +123,42 @@ public final class IncrementalFileMergerState implements Serializable {
      * input1 -> path1, path2
      * input2 -> path1, path3
      * </pre>
+     *
+     * <p>This is only needed when inputs change, so it is computed the first time it is used.
      */
-    @NonNull
-    private final ImmutableMap<String, ImmutableSet<String>> byInput;
+    @Nullable
+    private ImmutableMap<String, ImmutableSet<String>> byInput;
 
     /**
      * Creates a new, empty, state. This is useful to create a full build as a full build is an
      * incremental build from zero.
      */
     public IncrementalFileMergerState() {
-        inputNames = ImmutableList.of();
-        origin = ImmutableMap.of();
-        byInput = ImmutableMap.of();
+        this(ImmutableList.of(), new String[0], new String[0], new int[] {0}, new int[0]);
     }
 
     /**
-     * Creates a new state copying provided data. This is invoked from the {@link Builder}.
+     * Creates a new state with the provided data. This is invoked from the {@link Builder} and
+     * from {@link #read(InputStream)}.
      *
      * @param inputNames the names of the inputs for the merge
-     * @param origin maps OS-independent paths to the names of the inputs that contributed to the
-     *     merged output path
-     * @param byInput maps input names to all OS-independent paths that it contains
+     * @param paths all OS-independent paths, sorted
+     * @param originNames the names of the inputs that contributed to the paths
+     * @param originStarts where the inputs of each path start in {@code origin}, followed by the
+     *     length of {@code origin}
+     * @param origin the indexes in {@code originNames} of the inputs of all paths
      */
-    IncrementalFileMergerState(
-            @NonNull List<String> inputNames,
-            @NonNull Map<String, List<String>> origin,
-            @NonNull Map<String, Set<String>> byInput) {
-
-        ImmutableMap.Builder<String, ImmutableList<String>> originBuilder = ImmutableMap.builder();
-        for (Map.Entry<String, List<String>> e : origin.entrySet()) {
-            originBuilder.put(e.getKey(), ImmutableList.copyOf(e.getValue()));
-        }
-
-        ImmutableMap.Builder<String, ImmutableSet<String>> byInputBuilder = ImmutableMap.builder();
-        for (Map.Entry<String, Set<String>> e : byInput.entrySet()) {
-            byInputBuilder.put(e.getKey(), ImmutableSet.copyOf(e.getValue()));
-        }
-
-        this.inputNames = ImmutableList.copyOf(inputNames);
-        this.origin = originBuilder.build();
-        this.byInput = byInputBuilder.build();
+    private IncrementalFileMergerState(
+            @NonNull ImmutableList<String> inputNames,
+            @NonNull String[] paths,
+            @NonNull String[] originNames,
+            @NonNull int[] originStarts,
+            @NonNull int[] origin) {
+        this.inputNames = inputNames;
+        this.paths = paths;
+        this.originNames = originNames;
+        this.originStarts = originStarts;
+        this.origin = origin;
     }
 
     /**
@@ -154,14 +180,30 @@ public final class IncrementalFileMergerState implements Serializable {
      */
     @NonNull
     ImmutableList<String> inputsFor(@NonNull String path) {
-        ImmutableList<String> names = origin.get(path);
-        if (names == null) {
+        int index = Arrays.binarySearch(paths, path);
+        if (index < 0) {
             return ImmutableList.of();
         } else {
-            return names;
+            return inputsAt(index);
         }
     }
 
+    /**
+     * Obtains the names of the inputs that contributed to the path at the given index.
+     *
+     * @param index the index of the path in {@link #paths}
+     * @return the list of names of inputs
+     */
+    @NonNull
+    private ImmutableList<String> inputsAt(int index) {
+        ImmutableList.Builder<String> builder = ImmutableList.builder();
+        for (int i = originStarts[index]; i < originStarts[index + 1]; i++) {
+            builder.add(originNames[origin[i]]);
+        }
+
+        return builder.build();
+    }
+
     /**
      * Obtains the set of all OS-independent paths that correspond to an input.
      *
@@ -170,6 +212,10 @@ public final class IncrementalFileMergerState implements Serializable {
      */
     @NonNull
     ImmutableSet<String> filesOf(@NonNull String name) {
+        if (byInput == null) {
+            byInput = computeByInput();
+        }
+
         ImmutableSet<String> files = byInput.get(name);
         if (files == null) {
             return ImmutableSet.of();
@@ -179,41 +225,239 @@ public final class IncrementalFileMergerState implements Serializable {
     }
 
     /**
-     * Builder used to create a {@link IncrementalFileMergerState}.
+     * Computes {@link #byInput} from the origin of the paths.
+     *
+     * @return the paths of each input
+     */
+    @NonNull
+    private ImmutableMap<String, ImmutableSet<String>> computeByInput() {
+        List<ImmutableSet.Builder<String>> builders = new ArrayList<>(originNames.length);
+        for (int i = 0; i < originNames.length; i++) {
+            builders.add(ImmutableSet.builder());
+        }
+
+        for (int p = 0; p < paths.length; p++) {
+            for (int i = originStarts[p]; i < originStarts[p + 1]; i++) {
+                builders.get(origin[i]).add(paths[p]);
+            }
+        }
+
+        ImmutableMap.Builder<String, ImmutableSet<String>> builder = ImmutableMap.builder();
+        for (int i = 0; i < originNames.length; i++) {
+            builder.put(originNames[i], builders.get(i).build());
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Writes the state. The state is written in a compact binary format: the names of the
+     * inputs are written once, and the paths, which are sorted, are written as the length of the
+     * prefix they share with the previous path, followed by the rest of the path.
+     *
+     * @param out the stream to write to; it is not closed
+     * @throws IOException failed to write the state
+     */
+    public void write(@NonNull OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(VERSION);
+
+        writeVarInt(data, inputNames.size());
+        for (String name : inputNames) {
+            data.writeUTF(name);
+        }
+
+        writeVarInt(data, originNames.length);
+        for (String name : originNames) {
+            data.writeUTF(name);
+        }
+
+        writeVarInt(data, paths.length);
+        String previous = "";
+        for (int p = 0; p < paths.length; p++) {
+            String path = paths[p];
+            int prefix = commonPrefixLength(previous, path);
+            writeVarInt(data, prefix);
+            data.writeUTF(path.substring(prefix));
+            previous = path;
+
+            writeVarInt(data, originStarts[p + 1] - originStarts[p]);
+            for (int i = originStarts[p]; i < originStarts[p + 1]; i++) {
+                writeVarInt(data, origin[i]);
+            }
+        }
+
+        data.flush();
+    }
+
+    /**
+     * Reads a state written by {@link #write(OutputStream)}.
+     *
+     * @param in the stream to read from; it is not closed
+     * @return the state
+     * @throws IOException failed to read the state, or the data is not a state written by
+     *     {@link #write(OutputStream)}
+     */
+    @NonNull
+    public static IncrementalFileMergerState read(@NonNull InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        int version = data.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unknown merge state format " + Integer.toHexString(version));
+        }
+
+        int inputNameCount = readVarInt(data);
+        ImmutableList.Builder<String> inputNames = ImmutableList.builder();
+        for (int i = 0; i < inputNameCount; i++) {
+            inputNames.add(data.readUTF());
+        }
+
+        String[] originNames = new String[readVarInt(data)];
+        for (int i = 0; i < originNames.length; i++) {
+            originNames[i] = data.readUTF();
+        }
+
+        String[] paths = new String[readVarInt(data)];
+        int[] originStarts = new int[paths.length + 1];
+        int[] origin = new int[paths.length];
+        int originLength = 0;
+        String previous = "";
+        for (int p = 0; p < paths.length; p++) {
+            int prefix = readVarInt(data);
+            if (prefix > previous.length()) {
+                throw new IOException("Invalid merge state");
+            }
+            paths[p] = previous.substring(0, prefix) + data.readUTF();
+            previous = paths[p];
+
+            int count = readVarInt(data);
+            if (originLength + count > origin.length) {
+                origin = Arrays.copyOf(origin, Math.max(2 * origin.length, originLength + count));
+            }
+            for (int i = 0; i < count; i++) {
+                int nameIndex = readVarInt(data);
+                if (nameIndex >= originNames.length) {
+                    throw new IOException("Invalid merge state");
+                }
+                origin[originLength++] = nameIndex;
+            }
+            originStarts[p + 1] = originLength;
+        }
+
+        return new IncrementalFileMergerState(
+                inputNames.build(),
+                paths,
+                originNames,
+                originStarts,
+                Arrays.copyOf(origin, originLength));
+    }
+
+    /**
+     * Computes the length of the common prefix of two strings.
+     *
+     * @param a the first string
+     * @param b the second string
+     * @return the number of characters both strings start with
+     */
+    private static int commonPrefixLength(@NonNull String a, @NonNull String b) {
+        int max = Math.min(a.length(), b.length());
+        int length = 0;
+        while (length < max && a.charAt(length) == b.charAt(length)) {
+            length++;
+        }
+
+        return length;
+    }
+
+    /**
+     * Writes a non-negative integer using 7 bits per byte, so small values use a single byte.
+     *
+     * @param out the stream to write to
+     * @param value the value to write
+     * @throws IOException failed to write
+     */
+    private static void writeVarInt(@NonNull DataOutputStream out, int value) throws IOException {
+        Preconditions.checkArgument(value >= 0, "value < 0");
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.writeByte(value);
+    }
+
+    /**
+     * Reads an integer written by {@link #writeVarInt(DataOutputStream, int)}.
+     *
+     * @param in the stream to read from
+     * @return the value
+     * @throws IOException failed to read
+     */
+    private static int readVarInt(@NonNull DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IOException("Invalid merge state");
+                }
+                return value;
+            }
+        }
+
+        throw new IOException("Invalid merge state");
+    }
+
+    /**
+     * Builder used to create a {@link IncrementalFileMergerState}. The builder starts from an
+     * existing state and only records the paths that change, so the cost of an incremental merge
+     * does not depend on the number of paths that are not changed.
      */
     static class Builder {
 
         /**
-         * Mutable version of {@link IncrementalFileMergerState#inputNames}.
+         * The state the builder started from.
          */
         @NonNull
-        private List<String> inputNames;
+        private final IncrementalFileMergerState base;
 
-        /** Mutable version of {@link IncrementalFileMergerState#origin}. */
-        @NonNull private Map<String, List<String>> origin;
+        /**
+         * Names of all inputs to merge, in order.
+         */
+        @NonNull
+        private List<String> inputNames;
 
         /**
-         * Mutable version of {@link IncrementalFileMergerState#byInput}.
+         * Names of the inputs of the paths that changed since {@link #base}. A path that was
+         * removed maps to an empty list.
          */
         @NonNull
-        private Map<String, Set<String>> byInput;
+        private final Map<String, List<String>> changedOrigin = new HashMap<>();
 
         /**
-         * Creates a new builder, cloning an existing state as a starting point.
+         * Creates a new builder, using an existing state as a starting point.
          *
-         * @param state the state to clone
+         * @param state the starting state
          */
         Builder(@NonNull IncrementalFileMergerState state) {
+            base = state;
             inputNames = new ArrayList<>(state.inputNames);
+        }
 
-            origin = new HashMap<>();
-            for (Map.Entry<String, ImmutableList<String>> e : state.origin.entrySet()) {
-                origin.put(e.getKey(), new ArrayList<>(e.getValue()));
-            }
-
-            byInput = new HashMap<>();
-            for (Map.Entry<String, ImmutableSet<String>> e : state.byInput.entrySet()) {
-                byInput.put(e.getKey(), new HashSet<>(e.getValue()));
+        /**
+         * Obtains the names of the inputs of a path in the builder.
+         *
+         * @param path the path
+         * @return the names of the inputs, an empty list if the path does not exist
+         */
+        @NonNull
+        private List<String> inputsFor(@NonNull String path) {
+            List<String> names = changedOrigin.get(path);
+            if (names == null) {
+                return base.inputsFor(path);
+            } else {
+                return names;
             }
         }
 
@@ -229,22 +473,22 @@ public final class IncrementalFileMergerState implements Serializable {
             /*
              * Search for removed input names and remove all known files associated with them.
              */
-            for (Iterator<String> it = byInput.keySet().iterator(); it.hasNext(); ) {
-                String in = it.next();
-                if (!inputNames.contains(in)) {
-                    Set<String> paths = byInput.get(in);
-                    for (String p : paths) {
-                        List<String> inputs = origin.get(p);
-                        int idx = inputs.indexOf(in);
-                        assert idx >= 0;
-                        if (inputs.size() == 1) {
-                            origin.remove(p);
-                        } else {
-                            inputs.remove(idx);
-                        }
-                    }
+            Set<String> knownNames = new HashSet<>(Arrays.asList(base.originNames));
+            changedOrigin.values().forEach(knownNames::addAll);
+            for (String in : knownNames) {
+                if (inputNames.contains(in)) {
+                    continue;
+                }
 
-                    it.remove();
+                Set<String> paths = new HashSet<>(base.filesOf(in));
+                paths.addAll(changedOrigin.keySet());
+                for (String p : paths) {
+                    List<String> inputs = inputsFor(p);
+                    if (inputs.contains(in)) {
+                        List<String> newInputs = new ArrayList<>(inputs);
+                        newInputs.remove(in);
+                        changedOrigin.put(p, newInputs);
+                    }
                 }
             }
         }
@@ -255,18 +499,9 @@ public final class IncrementalFileMergerState implements Serializable {
          * @param path the path to remove; it may not exist in the state
          */
         void remove(@NonNull String path) {
-            List<String> names = origin.get(path);
-            if (names == null) {
-                return;
-            }
-
-            for (String n : names) {
-                Set<String> files = byInput.get(n);
-                assert files != null;
-                files.remove(path);
+            if (!inputsFor(path).isEmpty()) {
+                changedOrigin.put(path, ImmutableList.of());
             }
-
-            origin.remove(path);
         }
 
         /**
@@ -276,15 +511,9 @@ public final class IncrementalFileMergerState implements Serializable {
          * @param names the names of the inputs used to build the output
          */
         void set(@NonNull String path, @NonNull List<String> names) {
-            remove(path);
-
             assert inputNames.containsAll(names);
 
-            origin.put(path, new ArrayList<>(names));
-            for (String n : names) {
-                Set<String> files = byInput.computeIfAbsent(n, k -> new HashSet<>());
-                files.add(path);
-            }
+            changedOrigin.put(path, ImmutableList.copyOf(names));
         }
 
         /**
@@ -294,7 +523,112 @@ public final class IncrementalFileMergerState implements Serializable {
          */
         @NonNull
         IncrementalFileMergerState build() {
-            return new IncrementalFileMergerState(inputNames, origin, byInput);
+            String[] changedPaths = changedOrigin.keySet().toArray(new String[0]);
+            Arrays.sort(changedPaths);
+
+            int maxPaths = base.paths.length + changedPaths.length;
+            List<String> paths = new ArrayList<>(maxPaths);
+            int[] originStarts = new int[maxPaths + 1];
+            int[] origin = new int[base.origin.length];
+            int originLength = 0;
+            List<String> originNames = new ArrayList<>();
+            Map<String, Integer> originNameIndexes = new HashMap<>();
+
+            /*
+             * The inputs of the paths that did not change are copied from the base state, only
+             * the indexes of their names need to be translated.
+             */
+            int[] baseNameIndexes = new int[base.originNames.length];
+            Arrays.fill(baseNameIndexes, -1);
+
+            int b = 0;
+            int c = 0;
+            while (b < base.paths.length || c < changedPaths.length) {
+                int cmp;
+                if (b == base.paths.length) {
+                    cmp = 1;
+                } else if (c == changedPaths.length) {
+                    cmp = -1;
+                } else {
+                    cmp = base.paths[b].compareTo(changedPaths[c]);
+                }
+
+                String path;
+                int count;
+                if (cmp < 0) {
+                    path = base.paths[b];
+                    count = base.originStarts[b + 1] - base.originStarts[b];
+                } else {
+                    path = changedPaths[c];
+                    count = changedOrigin.get(path).size();
+                }
+
+                if (count > 0) {
+                    if (originLength + count > origin.length) {
+                        origin =
+                                Arrays.copyOf(
+                                        origin,
+                                        Math.max(2 * origin.length, originLength + count));
+                    }
+
+                    if (cmp < 0) {
+                        for (int i = base.originStarts[b]; i < base.originStarts[b + 1]; i++) {
+                            int baseIndex = base.origin[i];
+                            if (baseNameIndexes[baseIndex] < 0) {
+                                baseNameIndexes[baseIndex] =
+                                        indexOf(
+                                                base.originNames[baseIndex],
+                                                originNames,
+                                                originNameIndexes);
+                            }
+                            origin[originLength++] = baseNameIndexes[baseIndex];
+                        }
+                    } else {
+                        for (String name : changedOrigin.get(path)) {
+                            origin[originLength++] =
+                                    indexOf(name, originNames, originNameIndexes);
+                        }
+                    }
+
+                    paths.add(path);
+                    originStarts[paths.size()] = originLength;
+                }
+
+                if (cmp <= 0) {
+                    b++;
+                }
+                if (cmp >= 0) {
+                    c++;
+                }
+            }
+
+            return new IncrementalFileMergerState(
+                    ImmutableList.copyOf(inputNames),
+                    paths.toArray(new String[0]),
+                    originNames.toArray(new String[0]),
+                    Arrays.copyOf(originStarts, paths.size() + 1),
+                    Arrays.copyOf(origin, originLength));
+        }
+
+        /**
+         * Obtains the index of a name in the names of the inputs of the new state, adding it if
+         * needed.
+         *
+         * @param name the name
+         * @param names the names of the inputs of the new state
+         * @param indexes the index of each of {@code names}
+         * @return the index of the name
+         */
+        private static int indexOf(
+                @NonNull String name,
+                @NonNull List<String> names,
+                @NonNull Map<String, Integer> indexes) {
+            return indexes.computeIfAbsent(
+                    name,
+                    n -> {
+                        names.add(n);
+                        return names.size() - 1;
+                    });
         }
     }
 }
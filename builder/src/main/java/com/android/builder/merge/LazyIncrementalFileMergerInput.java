@@ -28,6 +28,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Closer;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -189,7 +190,11 @@ public class LazyIncrementalFileMergerInput implements IncrementalFileMergerInpu
             assert entry != null;
 
             try {
-                return entry.open();
+                // Read the entry while holding the zip's lock, as paths may be opened from several
+                // threads, see IncrementalFileMergerOutputs.
+                synchronized (zf) {
+                    return new ByteArrayInputStream(entry.read());
+                }
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
             }
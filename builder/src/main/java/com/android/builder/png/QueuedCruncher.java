@@ -22,6 +22,7 @@ import com.android.builder.internal.aapt.AaptQueueThreadContext;
 import com.android.builder.internal.aapt.QueuedResourceProcessor;
 import com.android.builder.tasks.Job;
 import com.android.builder.tasks.JobContext;
+import com.android.builder.tasks.JobPriority;
 import com.android.builder.tasks.Task;
 import com.android.ide.common.internal.ResourceCompilationException;
 import com.android.ide.common.internal.ResourceProcessor;
@@ -137,7 +138,8 @@ public class QueuedCruncher extends QueuedResourceProcessor {
             synchronized (outstandingJobs) {
                 outstandingJobs.computeIfAbsent(key, k -> new ConcurrentLinkedQueue<>());
             }
-            processingRequests.push(aaptProcessJob);
+            // crunching is never on the critical path of the build
+            processingRequests.push(aaptProcessJob, JobPriority.LOW);
         } catch (InterruptedException e) {
             // Restore the interrupted status
             Thread.currentThread().interrupt();
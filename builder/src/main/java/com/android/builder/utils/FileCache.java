@@ -25,17 +25,38 @@ import com.google.common.base.Joiner;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Maps;
 import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
 
 /**
  * A cache for already-created files/directories.
@@ -54,6 +75,11 @@ import java.util.concurrent.atomic.AtomicInteger;
  * will be less synchronization overhead. However, if the cache may be accessed by more than one
  * process at a time, the client must configure the cache with {@code MULTI_PROCESS} locking scope.
  *
+ * <p>With {@code SINGLE_PROCESS} locking scope, locks are held in memory and no lock files are
+ * created. Threads querying a cache entry that another thread is creating wait for the creation to
+ * complete and then read the cache entry at the same time, instead of acquiring the cache entry's
+ * WRITE lock one after another.
+ *
  * <p>In any case, synchronization takes effect only for the same cache (i.e., threads/processes
  * accessing different caches are not synchronized). Also, the client must access the cache via
  * {@code FileCache}'s API; otherwise, the previous concurrency guarantees will not hold.
@@ -74,6 +100,13 @@ import java.util.concurrent.atomic.AtomicInteger;
  * <p>If a cache entry exists but is found to be corrupted, the cache entry will be deleted and
  * recreated.
  *
+ * <p>By default, the cache grows without bounds and can only be cleaned up by deleting it entirely
+ * (see {@link #delete()}). Alternatively, the client can construct a size-bounded cache (see {@link
+ * #getInstanceWithMultiProcessLocking(File, long)}). A size-bounded cache shards its cache entries
+ * into subdirectories named after the first characters of their keys, records the last time each
+ * cache entry was accessed, and evicts the least recently used cache entries in the background
+ * once the total size of the cache exceeds the given budget.
+ *
  * <p>This class is thread-safe.
  */
 @Immutable
@@ -95,17 +128,110 @@ public class FileCache {
         SINGLE_PROCESS
     }
 
+    /** Value of {@link #maxSizeInBytes} indicating that the cache is not size-bounded. */
+    private static final long UNBOUNDED = -1;
+
+    /**
+     * The number of leading characters of a cache entry's key that are used to name the shard
+     * directory containing the cache entry in a size-bounded cache.
+     */
+    private static final int SHARD_NAME_LENGTH = 2;
+
+    /**
+     * The minimum time since the last access to a cache entry before the cache entry can be
+     * evicted. A cached file returned by {@link #createFileInCacheIfAbsent(Inputs,
+     * ExceptionConsumer)} is read by the client after the locks have been released, so recently
+     * used cache entries must not be evicted while a build may still be reading them.
+     */
+    private static final long EVICTION_GRACE_PERIOD_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Name of the file storing the hashes of the input files (see {@link FileHashIndex}) inside the
+     * cache directory. Regular files are never mistaken for cache entries.
+     */
+    @NonNull private static final String HASH_INDEX_FILE_NAME = "file-hashes.bin";
+
+    /**
+     * The maximum number of input files whose hashes are kept in the hash index of a cache. An
+     * entry takes about 200 bytes.
+     */
+    private static final int MAX_HASH_INDEX_ENTRIES = 20_000;
+
+    /**
+     * Single background thread shared by all caches to evict cache entries and write the hash
+     * indices, so that this work never delays the clients of the cache.
+     */
+    @NonNull
+    private static final ExecutorService backgroundExecutor =
+            Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("file-cache-background-%d")
+                            .build());
+
+    /** Canonical cache directories that currently have an eviction scheduled or running. */
+    @NonNull
+    private static final Set<File> cacheDirectoriesPendingEviction = ConcurrentHashMap.newKeySet();
+
+    /**
+     * In-memory locks used by caches with {@code SINGLE_PROCESS} locking scope, keyed by the
+     * normalized path of the cache directory or cache entry directory they guard (see {@link
+     * #getInProcessLockKey(File)}). The locks are weakly referenced so that the table does not grow
+     * with the number of cache entries. The read and write views of a {@link ReentrantReadWriteLock}
+     * do not reference the lock itself, so callers must keep a strong reference to the {@link
+     * ReadWriteLock} (not just to one of its views) for as long as the lock is held; otherwise the
+     * lock could be collected and replaced while it is held (see {@link
+     * #doActionWithInProcessLock(ReadWriteLock, boolean, File, ExceptionFunction)}).
+     */
+    @NonNull
+    private static final LoadingCache<String, ReadWriteLock> inProcessLocks =
+            CacheBuilder.newBuilder()
+                    .weakValues()
+                    .build(CacheLoader.from(key -> new ReentrantReadWriteLock()));
+
+    /**
+     * Cache entries that are being created by a thread of the current process in a cache with
+     * {@code SINGLE_PROCESS} locking scope, keyed the same way as {@link #inProcessLocks}.
+     */
+    @NonNull
+    private static final ConcurrentMap<String, PendingCreation> pendingCreations =
+            new ConcurrentHashMap<>();
+
     @NonNull private final File cacheDirectory;
 
+    /** The normalized path of the cache directory, computed when it is first needed. */
+    @Nullable private volatile String canonicalCacheDirectoryPath;
+
     @NonNull private final LockingScope lockingScope;
 
+    /** The size budget of the cache in bytes, or {@link #UNBOUNDED}. */
+    private final long maxSizeInBytes;
+
+    /**
+     * Estimated total size of the cache in bytes, or a negative value if it is not yet known. The
+     * estimate is computed by an eviction and then updated as new cache entries are created.
+     */
+    @NonNull private final AtomicLong estimatedSizeInBytes = new AtomicLong(-1);
+
+    /** The hashes of the input files of this cache. */
+    @NonNull private final FileHashIndex hashIndex;
+
+    /** Whether a write of {@link #hashIndex} is scheduled but has not started yet. */
+    @NonNull private final AtomicBoolean hashIndexWritePending = new AtomicBoolean(false);
+
     // Additional fields used for testing only
     @NonNull private final AtomicInteger missCount = new AtomicInteger(0);
     @NonNull private final AtomicInteger hitCount = new AtomicInteger(0);
+    @NonNull private final AtomicInteger evictionCount = new AtomicInteger(0);
 
-    private FileCache(@NonNull File cacheDirectory, @NonNull LockingScope lockingScope) {
+    private FileCache(
+            @NonNull File cacheDirectory, @NonNull LockingScope lockingScope, long maxSizeInBytes) {
         this.cacheDirectory = cacheDirectory;
         this.lockingScope = lockingScope;
+        this.maxSizeInBytes = maxSizeInBytes;
+        this.hashIndex =
+                new FileHashIndex(
+                        new File(cacheDirectory, HASH_INDEX_FILE_NAME), MAX_HASH_INDEX_ENTRIES);
     }
 
     /**
@@ -132,7 +258,28 @@ public class FileCache {
      */
     @NonNull
     public static FileCache getInstanceWithMultiProcessLocking(@NonNull File cacheDirectory) {
-        return new FileCache(cacheDirectory, LockingScope.MULTI_PROCESS);
+        return new FileCache(cacheDirectory, LockingScope.MULTI_PROCESS, UNBOUNDED);
+    }
+
+    /**
+     * Returns a size-bounded {@code FileCache} instance where synchronization takes effect for
+     * threads both within the same process and across different processes.
+     *
+     * <p>When the total size of the cache exceeds the given budget, the least recently used cache
+     * entries are evicted in the background until the cache fits within the budget again. Cache
+     * entries that have been accessed recently are never evicted, so the budget is a soft limit.
+     *
+     * <p>See {@link #getInstanceWithMultiProcessLocking(File)} for more details on locking.
+     *
+     * @param cacheDirectory the cache directory, which may not yet exist
+     * @param maxSizeInBytes the size budget of the cache in bytes, must be positive
+     * @see #getInstanceWithMultiProcessLocking(File)
+     */
+    @NonNull
+    public static FileCache getInstanceWithMultiProcessLocking(
+            @NonNull File cacheDirectory, long maxSizeInBytes) {
+        Preconditions.checkArgument(maxSizeInBytes > 0, "Cache size budget must be positive");
+        return new FileCache(cacheDirectory, LockingScope.MULTI_PROCESS, maxSizeInBytes);
     }
 
     /**
@@ -151,7 +298,25 @@ public class FileCache {
      */
     @NonNull
     public static FileCache getInstanceWithSingleProcessLocking(@NonNull File cacheDirectory) {
-        return new FileCache(cacheDirectory, LockingScope.SINGLE_PROCESS);
+        return new FileCache(cacheDirectory, LockingScope.SINGLE_PROCESS, UNBOUNDED);
+    }
+
+    /**
+     * Returns a size-bounded {@code FileCache} instance where synchronization takes effect for
+     * threads within the same process but not for threads across different processes.
+     *
+     * <p>See {@link #getInstanceWithMultiProcessLocking(File, long)} for more details on the size
+     * budget and {@link #getInstanceWithSingleProcessLocking(File)} for more details on locking.
+     *
+     * @param cacheDirectory the cache directory, which may not yet exist
+     * @param maxSizeInBytes the size budget of the cache in bytes, must be positive
+     * @see #getInstanceWithSingleProcessLocking(File)
+     */
+    @NonNull
+    public static FileCache getInstanceWithSingleProcessLocking(
+            @NonNull File cacheDirectory, long maxSizeInBytes) {
+        Preconditions.checkArgument(maxSizeInBytes > 0, "Cache size budget must be positive");
+        return new FileCache(cacheDirectory, LockingScope.SINGLE_PROCESS, maxSizeInBytes);
     }
 
     @NonNull
@@ -384,73 +549,124 @@ public class FileCache {
         // In this method, we use two levels of locking: A READ lock on the cache directory and a
         // READ or WRITE lock on the cache entry directory.
         try {
+            // Guard the cache entry directory with an WRITE lock so that only one thread/process
+            // can write to it
+            ExceptionFunction<File, QueryResult> createCacheEntry =
+                    sameCacheEntryDir -> {
+                        // Check the cache entry again as it might have been changed by another
+                        // thread/process since the last time we checked it.
+                        QueryResult result = checkCacheEntry(inputs, cacheEntryDir);
+
+                        // If the cache entry is HIT, run the given action and return immediately
+                        if (result.getQueryEvent().equals(QueryEvent.HIT)) {
+                            hitCount.incrementAndGet();
+                            recordAccess(cacheEntryDir);
+                            actionIfCacheHit.call();
+                            return result;
+                        }
+
+                        // If the cache entry is CORRUPTED, delete the cache entry
+                        if (result.getQueryEvent().equals(QueryEvent.CORRUPTED)) {
+                            FileUtils.deletePath(cacheEntryDir);
+                        }
+
+                        // If the cache entry is MISSED or CORRUPTED, create or recreate the cache
+                        // entry
+                        missCount.incrementAndGet();
+                        FileUtils.mkdirs(cacheEntryDir);
+
+                        // The following method to create the cache entry's contents might be
+                        // canceled abruptly due to an exception (or maybe a sudden process kill or
+                        // power outage). However, if it happens, we don't roll back and delete the
+                        // cache entry directory immediately because (1) the corrupted contents may
+                        // provide important clues for debugging, and (2) the next time the cache is
+                        // used, it will detect that the cache entry is corrupted and will delete
+                        // and recreate the cache entry anyway.
+                        actionIfCacheMissedOrCorrupted.call();
+
+                        // Write the inputs to the inputs file for diagnostic purposes. We also use
+                        // it to check whether a cache entry is corrupted or not.
+                        Files.asCharSink(getInputsFile(cacheEntryDir), StandardCharsets.UTF_8)
+                                .write(inputs.toString());
+
+                        if (isSizeBounded()) {
+                            recordAccess(cacheEntryDir);
+                            onCacheEntryCreated(getDirectorySize(cacheEntryDir));
+                        }
+
+                        return result;
+                    };
+
             // Guard the cache directory with a READ lock so that other threads/processes can read
             // or write to the cache at the same time but cannot delete the cache while it is being
             // read/written to. (Further locking within the cache will make sure multiple
             // threads/processes can read but cannot write to the same cache entry at the same
             // time.)
-            return getSynchronizedFile(cacheDirectory).read(sameCacheDirectory -> {
-                // Create (or recreate) the cache directory since it may not exist or might have
-                // been deleted. The following method call is thread-safe and process-safe.
-                FileUtils.mkdirs(cacheDirectory);
-
-                // Guard the cache entry directory with a READ lock so that multiple
-                // threads/processes can read it at the same time
-                QueryResult queryResult = getSynchronizedFile(cacheEntryDir).read(
-                        (sameCacheEntryDir) -> {
-                            QueryResult result = checkCacheEntry(inputs, cacheEntryDir);
-                            // If the cache entry is HIT, run the given action
-                            if (result.getQueryEvent().equals(QueryEvent.HIT)) {
-                                hitCount.incrementAndGet();
-                                actionIfCacheHit.call();
+            return readLocked(
+                    cacheDirectory,
+                    sameCacheDirectory -> {
+                        // Create (or recreate) the cache directory (and the shard directory if the
+                        // cache is size-bounded) since it may not exist or might have been deleted.
+                        // The following method call is thread-safe and process-safe.
+                        FileUtils.mkdirs(cacheEntryDir.getParentFile());
+
+                        while (true) {
+                            // Guard the cache entry directory with a READ lock so that multiple
+                            // threads/processes can read it at the same time
+                            QueryResult queryResult =
+                                    readLocked(
+                                            cacheEntryDir,
+                                            sameCacheEntryDir -> {
+                                                QueryResult result =
+                                                        checkCacheEntry(inputs, cacheEntryDir);
+                                                // If the cache entry is HIT, run the given action
+                                                if (result.getQueryEvent()
+                                                        .equals(QueryEvent.HIT)) {
+                                                    hitCount.incrementAndGet();
+                                                    recordAccess(cacheEntryDir);
+                                                    actionIfCacheHit.call();
+                                                }
+                                                return result;
+                                            });
+                            // If the cache entry is HIT, return immediately
+                            if (queryResult.getQueryEvent().equals(QueryEvent.HIT)) {
+                                return queryResult;
+                            }
+                            if (lockingScope == LockingScope.MULTI_PROCESS) {
+                                return writeLocked(cacheEntryDir, createCacheEntry);
                             }
-                            return result;
-                        });
-                // If the cache entry is HIT, return immediately
-                if (queryResult.getQueryEvent().equals(QueryEvent.HIT)) {
-                    return queryResult;
-                }
-
-                // Guard the cache entry directory with an WRITE lock so that only one
-                // thread/process can write to it
-                return getSynchronizedFile(cacheEntryDir).write(sameCacheEntryDir -> {
-                    // Check the cache entry again as it might have been changed by another
-                    // thread/process since the last time we checked it.
-                    QueryResult result = checkCacheEntry(inputs, cacheEntryDir);
-
-                    // If the cache entry is HIT, run the given action and return immediately
-                    if (result.getQueryEvent().equals(QueryEvent.HIT)) {
-                        hitCount.incrementAndGet();
-                        actionIfCacheHit.call();
-                        return result;
-                    }
-
-                    // If the cache entry is CORRUPTED, delete the cache entry
-                    if (result.getQueryEvent().equals(QueryEvent.CORRUPTED)) {
-                        FileUtils.deletePath(cacheEntryDir);
-                    }
 
-                    // If the cache entry is MISSED or CORRUPTED, create or recreate the cache entry
-                    missCount.incrementAndGet();
-                    FileUtils.mkdirs(cacheEntryDir);
-
-                    // The following method to create the cache entry's contents might be canceled
-                    // abruptly due to an exception (or maybe a sudden process kill or power
-                    // outage). However, if it happens, we don't roll back and delete the cache
-                    // entry directory immediately because (1) the corrupted contents may provide
-                    // important clues for debugging, and (2) the next time the cache is used, it
-                    // will detect that the cache entry is corrupted and will delete and recreate
-                    // the cache entry anyway.
-                    actionIfCacheMissedOrCorrupted.call();
-
-                    // Write the inputs to the inputs file for diagnostic purposes. We also use it
-                    // to check whether a cache entry is corrupted or not.
-                    Files.asCharSink(getInputsFile(cacheEntryDir), StandardCharsets.UTF_8)
-                            .write(inputs.toString());
-
-                    return result;
-                });
-            });
+                            // With SINGLE_PROCESS locking scope, if another thread is already
+                            // creating the cache entry, wait for it to finish and check the cache
+                            // entry again under a READ lock, instead of queuing for the WRITE lock.
+                            // This way, the threads waiting for the same cache entry can then copy
+                            // it at the same time.
+                            String key = getInProcessLockKey(cacheEntryDir);
+                            PendingCreation creation = new PendingCreation();
+                            PendingCreation pendingCreation =
+                                    pendingCreations.putIfAbsent(key, creation);
+                            if (pendingCreation != null) {
+                                // If the cache entry is being created by this very thread (i.e.,
+                                // the file creator is trying to create its own cache entry),
+                                // waiting for the creation to finish would block forever.
+                                Preconditions.checkState(
+                                        pendingCreation.owner != Thread.currentThread(),
+                                        "Cache entry "
+                                                + cacheEntryDir.getAbsolutePath()
+                                                + " is already being created by this thread");
+                                // The future never completes exceptionally. If the other thread
+                                // failed to create the cache entry, this thread will try again.
+                                pendingCreation.done.join();
+                                continue;
+                            }
+                            try {
+                                return writeLocked(cacheEntryDir, createCacheEntry);
+                            } finally {
+                                pendingCreations.remove(key, creation);
+                                creation.done.complete(null);
+                            }
+                        }
+                    });
         } catch (ExecutionException exception) {
             // We need to figure out whether the exception comes from the file creator (i.e., a
             // FileCreatorException was thrown). If so, we rethrow the ExecutionException;
@@ -489,10 +705,12 @@ public class FileCache {
 
         try {
             QueryResult queryResult =
-                    getSynchronizedFile(cacheDirectory).read(
+                    readLocked(
+                            cacheDirectory,
                             sameCacheDirectory -> {
-                                FileUtils.mkdirs(cacheDirectory);
-                                return getSynchronizedFile(getCacheEntryDir(inputs)).read(
+                                FileUtils.mkdirs(getCacheEntryDir(inputs).getParentFile());
+                                return readLocked(
+                                        getCacheEntryDir(inputs),
                                         (cacheEntryDir) -> checkCacheEntry(inputs, cacheEntryDir));
                             });
             return queryResult.getQueryEvent().equals(QueryEvent.HIT);
@@ -566,10 +784,19 @@ public class FileCache {
      * cached file/directory and possibly some other info files. The cache entry directory is unique
      * to the given list of inputs (different lists of inputs correspond to different cache entry
      * directories).
+     *
+     * <p>If the cache is size-bounded, the cache entry directory is located inside a shard
+     * directory named after the first characters of the key, so that no single directory has to
+     * hold all of the cache entries.
      */
     @NonNull
     private File getCacheEntryDir(@NonNull Inputs inputs) {
-        return new File(cacheDirectory, inputs.getKey());
+        String key = inputs.getKey();
+        if (isSizeBounded()) {
+            return new File(new File(cacheDirectory, key.substring(0, SHARD_NAME_LENGTH)), key);
+        } else {
+            return new File(cacheDirectory, key);
+        }
     }
 
     /** Returns the path of the cached output file/directory inside the cache entry directory. */
@@ -587,6 +814,15 @@ public class FileCache {
         return new File(cacheEntryDir, "inputs");
     }
 
+    /**
+     * Returns the path of a last-access file inside the cache entry directory, whose timestamp
+     * records the last time the cache entry was accessed (only used if the cache is size-bounded).
+     */
+    @NonNull
+    private static File getLastAccessFile(@NonNull File cacheEntryDir) {
+        return new File(cacheEntryDir, "last-access");
+    }
+
     /**
      * Returns the path of the cached output file/directory that is unique to the given list of
      * inputs (different lists of inputs correspond to different cached files/directories).
@@ -630,12 +866,12 @@ public class FileCache {
         }
 
         try {
-            getSynchronizedFile(cacheDirectory)
-                    .write(
-                            sameCacheDirectory -> {
-                                FileUtils.deletePath(cacheDirectory);
-                                return null;
-                            });
+            writeLocked(
+                    cacheDirectory,
+                    sameCacheDirectory -> {
+                        FileUtils.deletePath(cacheDirectory);
+                        return null;
+                    });
         } catch (ExecutionException exception) {
             // We need to figure out whether the exception comes from the deletion action. If so, we
             // rethrow the exception as an IOException; otherwise, we rethrow the exception as a
@@ -649,28 +885,397 @@ public class FileCache {
         }
     }
 
+    /** Returns {@code true} if this cache evicts cache entries to stay within a size budget. */
+    private boolean isSizeBounded() {
+        return maxSizeInBytes != UNBOUNDED;
+    }
+
     /**
-     * Returns a {@link SynchronizedFile} to synchronize access to the given file/directory.
+     * Records that the given cache entry has just been accessed if the cache is size-bounded. The
+     * cache entry directory should have been guarded with a READ or WRITE lock when this method is
+     * invoked. (Concurrent readers may update the timestamp at the same time, which is harmless.)
+     */
+    private void recordAccess(@NonNull File cacheEntryDir) throws IOException {
+        if (!isSizeBounded()) {
+            return;
+        }
+        File lastAccessFile = getLastAccessFile(cacheEntryDir);
+        if (!lastAccessFile.setLastModified(System.currentTimeMillis())) {
+            Files.touch(lastAccessFile);
+        }
+    }
+
+    /**
+     * Returns the last time the given cache entry was accessed. Cache entries created before the
+     * cache became size-bounded do not have a last-access file, in which case the time the inputs
+     * file was written is used instead.
+     */
+    private static long getLastAccessTime(@NonNull File cacheEntryDir) {
+        long lastAccessTime = getLastAccessFile(cacheEntryDir).lastModified();
+        if (lastAccessTime == 0) {
+            lastAccessTime = getInputsFile(cacheEntryDir).lastModified();
+        }
+        if (lastAccessTime == 0) {
+            lastAccessTime = cacheEntryDir.lastModified();
+        }
+        return lastAccessTime;
+    }
+
+    /**
+     * Updates the estimated size of the cache after a cache entry of the given size was created,
+     * and schedules an eviction if the cache may have exceeded its size budget.
+     */
+    private void onCacheEntryCreated(long cacheEntrySizeInBytes) {
+        long estimatedSize = estimatedSizeInBytes.get();
+        if (estimatedSize >= 0) {
+            estimatedSize = estimatedSizeInBytes.addAndGet(cacheEntrySizeInBytes);
+        }
+        // An unknown size (negative value) also requires an eviction to compute it
+        if (estimatedSize < 0 || estimatedSize > maxSizeInBytes) {
+            scheduleEviction();
+        }
+    }
+
+    /**
+     * Schedules an eviction on the background eviction thread, unless an eviction for the same
+     * physical cache directory is already pending.
+     */
+    private void scheduleEviction() {
+        File canonicalCacheDirectory;
+        try {
+            canonicalCacheDirectory = cacheDirectory.getCanonicalFile();
+        } catch (IOException e) {
+            // The eviction will be attempted again when the next cache entry is created
+            return;
+        }
+        if (!cacheDirectoriesPendingEviction.add(canonicalCacheDirectory)) {
+            return;
+        }
+        backgroundExecutor.execute(
+                () -> {
+                    try {
+                        evictLeastRecentlyUsedEntries(
+                                System.currentTimeMillis() - EVICTION_GRACE_PERIOD_MILLIS);
+                    } catch (IOException | RuntimeException ignored) {
+                        // Eviction is best effort, a failure only means that the cache temporarily
+                        // exceeds its size budget. The next eviction will try again.
+                    } finally {
+                        cacheDirectoriesPendingEviction.remove(canonicalCacheDirectory);
+                    }
+                });
+    }
+
+    /**
+     * Returns the hash of the given input file's contents, reusing the hash computed by this
+     * process or a previous one if the file has not changed since (see {@link FileHashIndex}).
+     */
+    @NonNull
+    private String getFileHash(@NonNull File file) throws IOException {
+        String hash = hashIndex.getFileHash(file);
+        if (hashIndex.isModified()) {
+            scheduleHashIndexWrite();
+        }
+        return hash;
+    }
+
+    /**
+     * Schedules writing the hash index on the background thread, unless a write is already
+     * pending. The cache directory is guarded with a READ lock so that the cache cannot be deleted
+     * while the index file is written. The index file is not written if the cache directory does
+     * not exist, as the hashes are only useful together with the cache entries.
+     */
+    private void scheduleHashIndexWrite() {
+        if (!hashIndexWritePending.compareAndSet(false, true)) {
+            return;
+        }
+        backgroundExecutor.execute(
+                () -> {
+                    hashIndexWritePending.set(false);
+                    if (lockingScope == LockingScope.MULTI_PROCESS
+                            && !FileUtils.parentDirExists(cacheDirectory)) {
+                        return;
+                    }
+                    try {
+                        readLocked(
+                                cacheDirectory,
+                                sameCacheDirectory -> {
+                                    if (cacheDirectory.isDirectory()) {
+                                        try {
+                                            hashIndex.write();
+                                        } catch (IOException ignored) {
+                                            // The index is only an optimization, the hashes
+                                            // will be computed again if needed
+                                        }
+                                    }
+                                    return null;
+                                });
+                    } catch (ExecutionException | RuntimeException ignored) {
+                        // Writing is best effort, the hashes will be computed again if needed
+                    }
+                });
+    }
+
+    /**
+     * Evicts the least recently used cache entries until the total size of the cache is within its
+     * size budget. Cache entries accessed after the given time are never evicted.
+     *
+     * <p>The cache directory is guarded with a READ lock so that the cache cannot be deleted while
+     * the eviction is running, and each evicted cache entry directory is guarded with a WRITE lock
+     * so that it cannot be evicted while another thread/process is reading or writing to it.
+     *
+     * <p>With {@code MULTI_PROCESS} locking scope, the lock files of the evicted cache entries are
+     * then deleted under a WRITE lock on the cache directory (the same way {@link #delete()} deletes
+     * them). Deleting a lock file while only its own lock is held is not safe, as another process
+     * may already be waiting on that lock file while a third process creates a new one.
+     *
+     * @param evictableBeforeTime only cache entries last accessed before this time (in
+     *     milliseconds since the epoch) can be evicted
+     */
+    @VisibleForTesting
+    void evictLeastRecentlyUsedEntries(long evictableBeforeTime) throws IOException {
+        Preconditions.checkState(isSizeBounded(), "Cache is not size-bounded");
+        if (lockingScope == LockingScope.MULTI_PROCESS) {
+            if (!FileUtils.parentDirExists(cacheDirectory)) {
+                return;
+            }
+        }
+
+        List<File> evictedCacheEntries = new ArrayList<>();
+        try {
+            readLocked(
+                    cacheDirectory,
+                    sameCacheDirectory -> {
+                        if (!cacheDirectory.isDirectory()) {
+                            estimatedSizeInBytes.set(0);
+                            return null;
+                        }
+
+                        List<CacheEntryInfo> cacheEntries = listCacheEntries();
+                        long totalSize = 0;
+                        for (CacheEntryInfo cacheEntry : cacheEntries) {
+                            totalSize += cacheEntry.sizeInBytes;
+                        }
+
+                        cacheEntries.sort(
+                                Comparator.comparingLong(
+                                        cacheEntry -> cacheEntry.lastAccessTime));
+                        for (CacheEntryInfo cacheEntry : cacheEntries) {
+                            if (totalSize <= maxSizeInBytes
+                                    || cacheEntry.lastAccessTime >= evictableBeforeTime) {
+                                break;
+                            }
+                            if (evictCacheEntry(cacheEntry.dir, evictableBeforeTime)) {
+                                totalSize -= cacheEntry.sizeInBytes;
+                                evictedCacheEntries.add(cacheEntry.dir);
+                            }
+                        }
+
+                        estimatedSizeInBytes.set(totalSize);
+                        return null;
+                    });
+
+            if (lockingScope == LockingScope.MULTI_PROCESS && !evictedCacheEntries.isEmpty()) {
+                writeLocked(
+                        cacheDirectory,
+                        sameCacheDirectory -> {
+                            for (File cacheEntryDir : evictedCacheEntries) {
+                                // The cache entry may have been created again in the meantime
+                                if (!cacheEntryDir.exists()) {
+                                    FileUtils.deleteIfExists(
+                                            SynchronizedFile.getLockFile(cacheEntryDir));
+                                }
+                            }
+                            return null;
+                        });
+            }
+        } catch (ExecutionException exception) {
+            for (Throwable exceptionInCausalChain : Throwables.getCausalChain(exception)) {
+                if (exceptionInCausalChain instanceof IOException) {
+                    throw new IOException(exception);
+                }
+            }
+            throw new RuntimeException(exception);
+        }
+    }
+
+    /**
+     * Returns the cache entries found in the cache directory. Both sharded cache entries and cache
+     * entries located directly in the cache directory (created before the cache became
+     * size-bounded) are returned. Lock files and other regular files are ignored.
+     */
+    @NonNull
+    private List<CacheEntryInfo> listCacheEntries() {
+        List<CacheEntryInfo> cacheEntries = new ArrayList<>();
+        File[] topLevelDirs = cacheDirectory.listFiles(File::isDirectory);
+        if (topLevelDirs == null) {
+            return cacheEntries;
+        }
+        for (File topLevelDir : topLevelDirs) {
+            if (topLevelDir.getName().length() == SHARD_NAME_LENGTH) {
+                File[] shardedEntryDirs = topLevelDir.listFiles(File::isDirectory);
+                if (shardedEntryDirs != null) {
+                    for (File cacheEntryDir : shardedEntryDirs) {
+                        addCacheEntry(cacheEntries, cacheEntryDir);
+                    }
+                }
+            } else {
+                addCacheEntry(cacheEntries, topLevelDir);
+            }
+        }
+        return cacheEntries;
+    }
+
+    private static void addCacheEntry(
+            @NonNull List<CacheEntryInfo> cacheEntries, @NonNull File cacheEntryDir) {
+        try {
+            cacheEntries.add(new CacheEntryInfo(cacheEntryDir));
+        } catch (IOException ignored) {
+            // The cache entry is being created or deleted by another thread/process (we don't hold
+            // its lock while listing), so it is not a candidate for eviction anyway.
+        }
+    }
+
+    /**
+     * Deletes the given cache entry under a WRITE lock, unless it has been accessed again since it
+     * was selected for eviction.
+     *
+     * @return {@code true} if the cache entry was deleted
+     */
+    private boolean evictCacheEntry(@NonNull File cacheEntryDir, long evictableBeforeTime)
+            throws ExecutionException {
+        return writeLocked(
+                cacheEntryDir,
+                sameCacheEntryDir -> {
+                    if (!cacheEntryDir.exists()
+                            || getLastAccessTime(cacheEntryDir) >= evictableBeforeTime) {
+                        return false;
+                    }
+                    FileUtils.deletePath(cacheEntryDir);
+                    evictionCount.incrementAndGet();
+                    return true;
+                });
+    }
+
+    /** Returns the total size of the regular files inside the given directory. */
+    private static long getDirectorySize(@NonNull File dir) throws IOException {
+        try (Stream<Path> paths = java.nio.file.Files.walk(dir.toPath())) {
+            return paths.map(Path::toFile).filter(File::isFile).mapToLong(File::length).sum();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Executes an action that reads the given file/directory under a READ lock.
      *
      * @param fileToSynchronize the file/directory whose access will be synchronized, which may not
      *     yet exist. If the cache is configured with {@code MULTI_PROCESS} locking scope, as
      *     required by {@link SynchronizedFile}, the parent directory of the file/directory being
      *     synchronized must exist.
      */
-    @NonNull
-    private SynchronizedFile getSynchronizedFile(@NonNull File fileToSynchronize) {
+    private <V> V readLocked(
+            @NonNull File fileToSynchronize, @NonNull ExceptionFunction<File, V> action)
+            throws ExecutionException {
         if (lockingScope == LockingScope.MULTI_PROCESS) {
-            Preconditions.checkArgument(
-                    FileUtils.parentDirExists(fileToSynchronize),
-                    "Parent directory of "
-                            + fileToSynchronize.getAbsolutePath()
-                            + " does not exist");
-            return SynchronizedFile.getInstanceWithMultiProcessLocking(fileToSynchronize);
+            return getSynchronizedFile(fileToSynchronize).read(action);
         } else {
-            return SynchronizedFile.getInstanceWithSingleProcessLocking(fileToSynchronize);
+            return doActionWithInProcessLock(
+                    getInProcessLock(fileToSynchronize), false, fileToSynchronize, action);
         }
     }
 
+    /**
+     * Executes an action that writes to the given file/directory under a WRITE lock.
+     *
+     * @see #readLocked(File, ExceptionFunction)
+     */
+    private <V> V writeLocked(
+            @NonNull File fileToSynchronize, @NonNull ExceptionFunction<File, V> action)
+            throws ExecutionException {
+        if (lockingScope == LockingScope.MULTI_PROCESS) {
+            return getSynchronizedFile(fileToSynchronize).write(action);
+        } else {
+            return doActionWithInProcessLock(
+                    getInProcessLock(fileToSynchronize), true, fileToSynchronize, action);
+        }
+    }
+
+    /**
+     * Returns a {@link SynchronizedFile} to synchronize access to the given file/directory across
+     * processes. The parent directory of the file/directory being synchronized must exist.
+     */
+    @NonNull
+    private static SynchronizedFile getSynchronizedFile(@NonNull File fileToSynchronize) {
+        Preconditions.checkArgument(
+                FileUtils.parentDirExists(fileToSynchronize),
+                "Parent directory of " + fileToSynchronize.getAbsolutePath() + " does not exist");
+        return SynchronizedFile.getInstanceWithMultiProcessLocking(fileToSynchronize);
+    }
+
+    /**
+     * Executes an action with an in-memory lock, wrapping any exception thrown by the action in an
+     * {@link ExecutionException} (the same way {@link SynchronizedFile} does).
+     *
+     * <p>The lock is unlocked through the given {@link ReadWriteLock} rather than through a view
+     * obtained up front, so that the {@code ReadWriteLock} stays strongly reachable (and therefore
+     * stays in {@link #inProcessLocks}) until the action has finished.
+     */
+    private static <V> V doActionWithInProcessLock(
+            @NonNull ReadWriteLock readWriteLock,
+            boolean write,
+            @NonNull File fileToSynchronize,
+            @NonNull ExceptionFunction<File, V> action)
+            throws ExecutionException {
+        getLock(readWriteLock, write).lock();
+        try {
+            return action.accept(fileToSynchronize);
+        } catch (Exception exception) {
+            throw new ExecutionException(exception);
+        } finally {
+            getLock(readWriteLock, write).unlock();
+        }
+    }
+
+    @NonNull
+    private static Lock getLock(@NonNull ReadWriteLock readWriteLock, boolean write) {
+        return write ? readWriteLock.writeLock() : readWriteLock.readLock();
+    }
+
+    /**
+     * Returns the in-memory lock guarding the given file/directory, which is either the cache
+     * directory or a file/directory inside it. A strong reference to the returned lock must be
+     * kept while it is held so that it is not garbage-collected.
+     */
+    @NonNull
+    private ReadWriteLock getInProcessLock(@NonNull File fileToSynchronize) {
+        return inProcessLocks.getUnchecked(getInProcessLockKey(fileToSynchronize));
+    }
+
+    /**
+     * Returns the key identifying the given file/directory in {@link #inProcessLocks} and {@link
+     * #pendingCreations}. Only the cache directory is normalized (once per {@code FileCache}
+     * instance), so computing the key of a cache entry does not require any I/O.
+     */
+    @NonNull
+    private String getInProcessLockKey(@NonNull File fileToSynchronize) {
+        String cacheDirectoryPath = cacheDirectory.getPath();
+        String path = fileToSynchronize.getPath();
+        Preconditions.checkArgument(
+                path.startsWith(cacheDirectoryPath),
+                path + " is not located in the cache directory " + cacheDirectoryPath);
+
+        String canonicalPath = canonicalCacheDirectoryPath;
+        if (canonicalPath == null) {
+            try {
+                canonicalPath = cacheDirectory.getCanonicalPath();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            canonicalCacheDirectoryPath = canonicalPath;
+        }
+        return canonicalPath + path.substring(cacheDirectoryPath.length());
+    }
+
     @VisibleForTesting
     int getMisses() {
         return missCount.get();
@@ -681,12 +1286,21 @@ public class FileCache {
         return hitCount.get();
     }
 
+    @VisibleForTesting
+    int getEvictions() {
+        return evictionCount.get();
+    }
+
     @Override
     public String toString() {
-        return MoreObjects.toStringHelper(this)
-                .add("cacheDirectory", cacheDirectory)
-                .add("lockingScope", lockingScope)
-                .toString();
+        MoreObjects.ToStringHelper helper =
+                MoreObjects.toStringHelper(this)
+                        .add("cacheDirectory", cacheDirectory)
+                        .add("lockingScope", lockingScope);
+        if (isSizeBounded()) {
+            helper.add("maxSizeInBytes", maxSizeInBytes);
+        }
+        return helper.toString();
     }
 
     /**
@@ -713,6 +1327,32 @@ public class FileCache {
         }
     }
 
+    /** Snapshot of a cache entry's size and last access time, taken when selecting evictions. */
+    private static final class CacheEntryInfo {
+
+        @NonNull private final File dir;
+
+        private final long sizeInBytes;
+
+        private final long lastAccessTime;
+
+        CacheEntryInfo(@NonNull File dir) throws IOException {
+            this.dir = dir;
+            this.sizeInBytes = getDirectorySize(dir);
+            this.lastAccessTime = getLastAccessTime(dir);
+        }
+    }
+
+    /** A cache entry being created by a thread of the current process. */
+    private static final class PendingCreation {
+
+        /** The thread creating the cache entry. */
+        @NonNull private final Thread owner = Thread.currentThread();
+
+        /** Completes once the creation has finished (successfully or not). */
+        @NonNull private final CompletableFuture<Void> done = new CompletableFuture<>();
+    }
+
     /**
      * Checked exception thrown when the file creator callback function aborts due to an {@link
      * Exception}. This class is a private sub-class of {@link ExecutionException} and is used to
@@ -768,6 +1408,8 @@ public class FileCache {
 
             @NonNull private final Command command;
 
+            @Nullable private final FileCache fileCache;
+
             @NonNull
             private final LinkedHashMap<String, String> parameters = Maps.newLinkedHashMap();
 
@@ -778,7 +1420,21 @@ public class FileCache {
              *     usually corresponds to a Gradle task)
              */
             public Builder(@NonNull Command command) {
+                this(command, null);
+            }
+
+            /**
+             * Creates a {@link Builder} instance to construct an {@link Inputs} object for the
+             * given cache. The hashes of the input files are reused if the files have not changed
+             * since they were last hashed for that cache (see {@link FileHashIndex}).
+             *
+             * @param command the command that identifies a file creator callback function (which
+             *     usually corresponds to a Gradle task)
+             * @param fileCache the cache the inputs are used with, if any
+             */
+            public Builder(@NonNull Command command, @Nullable FileCache fileCache) {
                 this.command = command;
+                this.fileCache = fileCache;
             }
 
             /**
@@ -839,8 +1495,11 @@ public class FileCache {
 
             /** Returns the hash of the file's contents. */
             @NonNull
-            private static String getFileHash(@NonNull File file) {
+            private String getFileHash(@NonNull File file) {
                 try {
+                    if (fileCache != null) {
+                        return fileCache.getFileHash(file);
+                    }
                     return Files.asByteSource(file).hash(Hashing.sha256()).toString();
                 } catch (IOException e) {
                     throw new UncheckedIOException(e);
@@ -912,6 +1571,9 @@ public class FileCache {
 
         /** Fix stack frames. */
         FIX_STACK_FRAMES,
+
+        /** Index the class headers and member signatures of a jar. */
+        INDEX_CLASS_HEADERS,
     }
 
     /**
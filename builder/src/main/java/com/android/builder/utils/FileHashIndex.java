@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.utils;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Index of the hashes of the contents of regular files, used by {@link FileCache.Inputs.Builder}
+ * to avoid re-reading input files that have not changed since they were last hashed.
+ *
+ * <p>A hash is reused if the path, size, timestamp, and file key (the inode on file systems that
+ * have them) of the file are the same as when it was hashed. Files modified within {@link
+ * #TIMESTAMP_GRANULARITY_MILLIS} before they are hashed are not indexed, as a write right after
+ * hashing them may not change their timestamp.
+ *
+ * <p>Each {@link FileCache} owns an index holding the hashes of its own input files, which is
+ * persisted to an index file inside the cache directory so that it survives across processes. The
+ * index keeps at most a given number of entries, dropping the least recently used ones. The index
+ * file is loaded the first time a hash is requested and written by the owning cache (see {@link
+ * #write()}). It is only an optimization: if it is missing, corrupted, or written concurrently by
+ * another process, hashes are computed again.
+ *
+ * <p>This class is thread-safe.
+ */
+final class FileHashIndex {
+
+    /** Hashed attributes of a file. */
+    private static final class Entry {
+
+        private final long size;
+        private final long lastModified;
+        @NonNull private final String fileKey;
+        @NonNull private final String hash;
+
+        Entry(long size, long lastModified, @NonNull String fileKey, @NonNull String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            this.hash = hash;
+        }
+
+        boolean matches(@NonNull BasicFileAttributes attributes) {
+            return size == attributes.size()
+                    && lastModified == attributes.lastModifiedTime().toMillis()
+                    && fileKey.equals(getFileKey(attributes));
+        }
+    }
+
+    @VisibleForTesting static final int MAGIC = 0x46484958;
+    @VisibleForTesting static final int VERSION = 1;
+
+    /**
+     * Coarsest timestamp granularity of the supported file systems (FAT has 2-second timestamps).
+     */
+    @VisibleForTesting static final long TIMESTAMP_GRANULARITY_MILLIS = 2000;
+
+    @NonNull private final File indexFile;
+
+    private final int maxEntries;
+
+    /** Returns the current time in milliseconds since the epoch. */
+    @NonNull private final LongSupplier clock;
+
+    /** Entries keyed by the absolute path of the files, evicted in least recently used order. */
+    @NonNull private final Cache<String, Entry> entries;
+
+    @NonNull private final AtomicBoolean loaded = new AtomicBoolean(false);
+
+    /** Whether entries were added since the index file was last written. */
+    @NonNull private final AtomicBoolean modified = new AtomicBoolean(false);
+
+    // Additional field used for testing only
+    @NonNull private final AtomicInteger hashCount = new AtomicInteger(0);
+
+    /**
+     * Creates an index persisted to the given index file, which does not need to exist.
+     *
+     * @param indexFile the file the index is loaded from and written to
+     * @param maxEntries the maximum number of entries kept in memory and in the index file
+     */
+    FileHashIndex(@NonNull File indexFile, int maxEntries) {
+        this(indexFile, maxEntries, System::currentTimeMillis);
+    }
+
+    @VisibleForTesting
+    FileHashIndex(@NonNull File indexFile, int maxEntries, @NonNull LongSupplier clock) {
+        this.indexFile = indexFile;
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+        this.entries = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+    }
+
+    /** Returns the SHA-256 hash of the file's contents, as a hexadecimal string. */
+    @NonNull
+    String getFileHash(@NonNull File file) throws IOException {
+        if (loaded.compareAndSet(false, true)) {
+            try {
+                load();
+            } catch (IOException | RuntimeException ignored) {
+                // The index file is only an optimization, the hashes will be computed again
+            }
+        }
+
+        String path = file.getAbsolutePath();
+        BasicFileAttributes attributes =
+                java.nio.file.Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        Entry entry = entries.getIfPresent(path);
+        if (entry != null && entry.matches(attributes)) {
+            return entry.hash;
+        }
+
+        // Take the time before reading the file, so that a write racing with the read is detected
+        long hashTime = clock.getAsLong();
+        String hash = Files.asByteSource(file).hash(Hashing.sha256()).toString();
+        hashCount.incrementAndGet();
+
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if (lastModified < hashTime - TIMESTAMP_GRANULARITY_MILLIS) {
+            entries.put(
+                    path,
+                    new Entry(attributes.size(), lastModified, getFileKey(attributes), hash));
+            modified.set(true);
+        } else {
+            entries.invalidate(path);
+        }
+        return hash;
+    }
+
+    /** Returns {@code true} if entries were added since the index file was last written. */
+    boolean isModified() {
+        return modified.get();
+    }
+
+    /**
+     * Adds the entries of the index file to this index. Entries already in this index take
+     * precedence, as they may have been computed after the index file was written. Invalid index
+     * files are ignored.
+     */
+    private void load() throws IOException {
+        try (DataInputStream in =
+                new DataInputStream(
+                        new BufferedInputStream(
+                                java.nio.file.Files.newInputStream(indexFile.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int entryCount = in.readInt();
+            for (int i = 0; i < Math.min(entryCount, maxEntries); i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                String fileKey = in.readUTF();
+                String hash = in.readUTF();
+                entries.asMap().putIfAbsent(path, new Entry(size, lastModified, fileKey, hash));
+            }
+        } catch (NoSuchFileException | EOFException e) {
+            // no index, or it was only partially written
+        }
+    }
+
+    /**
+     * Writes the entries of this index to the index file. Entries of files that no longer exist
+     * are dropped.
+     *
+     * <p>The index file is written to a uniquely named temporary file first and then moved, so
+     * that other processes never read a partially written index file, even if they write it
+     * concurrently. The caller must make sure that the
+     * directory containing the index file exists and is not deleted while it is being written.
+     */
+    void write() throws IOException {
+        // Clear the flag first, so that entries added while writing are written again later
+        modified.set(false);
+        entries.asMap().keySet().removeIf(path -> !new File(path).isFile());
+
+        Path tmpFile =
+                java.nio.file.Files.createTempFile(
+                        indexFile.getParentFile().toPath(), indexFile.getName(), ".tmp");
+        try {
+            try (DataOutputStream out =
+                    new DataOutputStream(
+                            new BufferedOutputStream(
+                                    java.nio.file.Files.newOutputStream(tmpFile)))) {
+                // Take a snapshot, as entries may be added concurrently
+                Map<String, Entry> snapshot = ImmutableMap.copyOf(entries.asMap());
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Entry> mapEntry : snapshot.entrySet()) {
+                    Entry entry = mapEntry.getValue();
+                    out.writeUTF(mapEntry.getKey());
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.lastModified);
+                    out.writeUTF(entry.fileKey);
+                    out.writeUTF(entry.hash);
+                }
+            }
+            try {
+                java.nio.file.Files.move(
+                        tmpFile,
+                        indexFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                java.nio.file.Files.move(
+                        tmpFile, indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            // Only left behind if writing or moving it failed
+            java.nio.file.Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    @NonNull
+    private static String getFileKey(@NonNull BasicFileAttributes attributes) {
+        // The file key is not available on all platforms (e.g., Windows)
+        Object fileKey = attributes.fileKey();
+        return fileKey != null ? fileKey.toString() : "";
+    }
+
+    @VisibleForTesting
+    int getHashCount() {
+        return hashCount.get();
+    }
+
+    @VisibleForTesting
+    long getEntryCount() {
+        return entries.size();
+    }
+
+    @Nullable
+    @VisibleForTesting
+    String getIndexedHash(@NonNull File file) {
+        Entry entry = entries.getIfPresent(file.getAbsolutePath());
+        return entry != null ? entry.hash : null;
+    }
+}
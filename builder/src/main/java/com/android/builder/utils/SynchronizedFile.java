@@ -160,10 +160,7 @@ public final class SynchronizedFile {
                 FileUtils.parentDirExists(fileToSynchronize),
                 "Parent directory of " + fileToSynchronize.getAbsolutePath() + " does not exist");
 
-        File lockFile =
-                new File(
-                        fileToSynchronize.getParent(),
-                        fileToSynchronize.getName() + LOCK_FILE_EXTENSION);
+        File lockFile = getLockFile(fileToSynchronize);
         Preconditions.checkArgument(
                 !lockFile.exists() || (lockFile.isFile() && lockFile.length() == 0),
                 "Unexpected lock file found: "
@@ -241,10 +238,7 @@ public final class SynchronizedFile {
             throws ExecutionException {
         // Use a lock file that is unique to the (physical) file being synchronized (note that
         // fileToSynchronize has already been normalized earlier)
-        File lockFile =
-                new File(
-                        fileToSynchronize.getParent(),
-                        fileToSynchronize.getName() + LOCK_FILE_EXTENSION);
+        File lockFile = getLockFile(fileToSynchronize);
 
         // ReadWriteProcessLock does not require the lock file to be normalized since internally it
         // will normalize it. Plus, fileToSynchronize, and therefore lockFile, are already
@@ -275,6 +269,17 @@ public final class SynchronizedFile {
         }
     }
 
+    /**
+     * Returns the lock file used to synchronize access to the given file/directory across
+     * processes, which is located next to it.
+     */
+    @NonNull
+    static File getLockFile(@NonNull File fileToSynchronize) {
+        return new File(
+                fileToSynchronize.getParentFile(),
+                fileToSynchronize.getName() + LOCK_FILE_EXTENSION);
+    }
+
     /** Executes an action that accesses the file with single-process locking. */
     private <V> V doActionWithSingleProcessLocking(
             @NonNull LockingType lockingType, @NonNull ExceptionFunction<File, V> action)
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dexing;
+
+import static com.android.testutils.truth.MoreTruth.assertThat;
+
+import com.android.dx.command.dexer.DxContext;
+import com.android.testutils.TestUtils;
+import com.android.testutils.apk.Dex;
+import com.android.utils.FileUtils;
+import com.google.common.collect.ImmutableList;
+import com.google.common.truth.Truth;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for {@link DxDexArchiveMerger#mergeNativeMultidexIncrementally(Iterable, Path, Path)}. */
+public class DxDexArchiveMergerIncrementalTest {
+
+    @ClassRule public static TemporaryFolder allTestsTemporaryFolder = new TemporaryFolder();
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static Path bigDexArchive;
+
+    private Path bigArchive;
+    private DxDexArchiveMerger merger;
+    private Path output;
+    private Path stateFile;
+
+    @BeforeClass
+    public static void createBigDexArchive() throws Exception {
+        Path inputRoot = allTestsTemporaryFolder.getRoot().toPath().resolve("big_class");
+        DexArchiveTestUtil.createClassWithMethodDescriptors(inputRoot, "BigClass", 65524);
+        bigDexArchive = allTestsTemporaryFolder.getRoot().toPath().resolve("big_dex_archive");
+        DexArchiveTestUtil.convertClassesToDexArchive(inputRoot, bigDexArchive);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // copied so that it is sorted before other inputs
+        bigArchive = temporaryFolder.getRoot().toPath().resolve("0_big");
+        FileUtils.copyDirectory(bigDexArchive.toFile(), bigArchive.toFile());
+
+        merger =
+                new DxDexArchiveMerger(
+                        new DxContext(System.out, System.err), ForkJoinPool.commonPool());
+        output = temporaryFolder.getRoot().toPath().resolve("output");
+        stateFile = temporaryFolder.getRoot().toPath().resolve("state.bin");
+    }
+
+    @Test
+    public void testUnchangedDexFilesNotWritten() throws Exception {
+        Path fstArchive = createArchive("fst", "A");
+        Path sndArchive = createArchive("snd", "B");
+        List<Path> inputs = ImmutableList.of(bigArchive, fstArchive, sndArchive);
+
+        merger.mergeNativeMultidexIncrementally(inputs, output, stateFile);
+        assertThat(new Dex(output.resolve("classes.dex")))
+                .containsExactlyClassesIn(DexArchiveTestUtil.getDexClasses("BigClass"));
+        assertThat(new Dex(output.resolve("classes2.dex")))
+                .containsExactlyClassesIn(DexArchiveTestUtil.getDexClasses("A", "B"));
+        long bigDexTimestamp = Files.getLastModifiedTime(output.resolve("classes.dex")).toMillis();
+
+        TestUtils.waitForFileSystemTick();
+        Path changedArchive = createArchive("snd_changed", "B", "C");
+        merger.mergeNativeMultidexIncrementally(
+                ImmutableList.of(bigArchive, fstArchive, changedArchive), output, stateFile);
+
+        Truth.assertThat(Files.getLastModifiedTime(output.resolve("classes.dex")).toMillis())
+                .isEqualTo(bigDexTimestamp);
+        assertThat(new Dex(output.resolve("classes2.dex")))
+                .containsExactlyClassesIn(DexArchiveTestUtil.getDexClasses("A", "B", "C"));
+        assertThat(output.resolve("classes3.dex")).doesNotExist();
+    }
+
+    @Test
+    public void testRemovedDexFiles() throws Exception {
+        Path fstArchive = createArchive("fst", "A");
+        merger.mergeNativeMultidexIncrementally(
+                ImmutableList.of(bigArchive, fstArchive), output, stateFile);
+        assertThat(output.resolve("classes2.dex")).exists();
+
+        merger.mergeNativeMultidexIncrementally(ImmutableList.of(fstArchive), output, stateFile);
+
+        // merged DEX files have to be numbered without gaps
+        assertThat(new Dex(output.resolve("classes.dex")))
+                .containsExactlyClassesIn(DexArchiveTestUtil.getDexClasses("A"));
+        assertThat(output.resolve("classes2.dex")).doesNotExist();
+    }
+
+    @Test
+    public void testInvalidState() throws Exception {
+        Path fstArchive = createArchive("fst", "A");
+        Files.createDirectories(output);
+        Files.write(output.resolve("classes5.dex"), new byte[] {0});
+        Files.write(stateFile, new byte[] {1, 2, 3});
+
+        merger.mergeNativeMultidexIncrementally(ImmutableList.of(fstArchive), output, stateFile);
+
+        assertThat(new Dex(output.resolve("classes.dex")))
+                .containsExactlyClassesIn(DexArchiveTestUtil.getDexClasses("A"));
+        assertThat(output.resolve("classes5.dex")).doesNotExist();
+        Truth.assertThat(DexMergingState.read(stateFile).getBuckets()).hasSize(1);
+    }
+
+    /** Creates a dex archive with classes that do not fit in the same DEX as the big class. */
+    private Path createArchive(String name, String... classes) throws Exception {
+        Path inputRoot = temporaryFolder.getRoot().toPath().resolve(name + "_classes");
+        for (String className : classes) {
+            DexArchiveTestUtil.createClassWithMethodDescriptors(inputRoot, className, 10);
+        }
+        Path dexArchive = temporaryFolder.getRoot().toPath().resolve(name);
+        DexArchiveTestUtil.convertClassesToDexArchive(inputRoot, dexArchive);
+        return dexArchive;
+    }
+}
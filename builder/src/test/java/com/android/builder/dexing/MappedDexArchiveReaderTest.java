@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dexing;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.annotations.NonNull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for {@link MappedDexArchiveReader}. */
+public class MappedDexArchiveReaderTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testReadsStoredEntries() throws IOException {
+        Path jar = temporaryFolder.getRoot().toPath().resolve("archive.jar");
+        try (DexArchive archive = DexArchives.fromInput(jar)) {
+            addFile(archive, "test/A.dex", "content of A");
+            addFile(archive, "test/B.dex", "");
+            addFile(archive, "test/sub/C.dex", "content of C");
+        }
+
+        List<DexArchiveEntry> entries = MappedDexArchiveReader.readEntries(jar);
+
+        assertThat(entries).isNotNull();
+        assertThat(entries).hasSize(3);
+        assertEntry(entries.get(0), "test/A.dex", "content of A");
+        assertEntry(entries.get(1), "test/B.dex", "");
+        assertEntry(entries.get(2), "test/sub/C.dex", "content of C");
+    }
+
+    @Test
+    public void testMatchesZipFileReading() throws IOException {
+        Path jar = temporaryFolder.getRoot().toPath().resolve("archive.jar");
+        try (DexArchive archive = DexArchives.fromInput(jar)) {
+            for (int i = 0; i < 100; i++) {
+                addFile(archive, "test/A" + i + ".dex", "content of A" + i);
+            }
+        }
+
+        List<DexArchiveEntry> mapped = MappedDexArchiveReader.readEntries(jar);
+        assertThat(mapped).isNotNull();
+
+        List<DexArchiveEntry> read = DexArchives.getEntriesFromSingleArchive(jar);
+        assertThat(read).hasSize(mapped.size());
+        for (int i = 0; i < mapped.size(); i++) {
+            assertThat(mapped.get(i).getRelativePathInArchive())
+                    .isEqualTo(read.get(i).getRelativePathInArchive());
+            assertThat(mapped.get(i).getDexFileContent())
+                    .isEqualTo(read.get(i).getDexFileContent());
+        }
+    }
+
+    @Test
+    public void testCompressedEntriesAreNotMapped() throws IOException {
+        Path jar = temporaryFolder.getRoot().toPath().resolve("compressed.jar");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(jar))) {
+            zip.putNextEntry(new ZipEntry("test/A.dex"));
+            zip.write("content of A".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+
+        assertThat(MappedDexArchiveReader.readEntries(jar)).isNull();
+
+        // reading the archive still works, by falling back to inflating the entries
+        List<DexArchiveEntry> entries = DexArchives.getEntriesFromSingleArchive(jar);
+        assertThat(entries).hasSize(1);
+        assertEntry(entries.get(0), "test/A.dex", "content of A");
+    }
+
+    @Test
+    public void testBufferIsNotShared() throws IOException {
+        DexArchiveEntry entry =
+                new DexArchiveEntry("content".getBytes(StandardCharsets.UTF_8), "A.dex");
+
+        ByteBuffer first = entry.getDexFileContentBuffer();
+        first.get(new byte[3]);
+
+        assertThat(first.position()).isEqualTo(3);
+        assertThat(entry.getDexFileContentBuffer().position()).isEqualTo(0);
+    }
+
+    private static void addFile(
+            @NonNull DexArchive archive, @NonNull String path, @NonNull String content)
+            throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        archive.addFile(path, bytes, 0, bytes.length);
+    }
+
+    private static void assertEntry(
+            @NonNull DexArchiveEntry entry, @NonNull String path, @NonNull String content) {
+        assertThat(entry.getRelativePathInArchive()).isEqualTo(path);
+        assertThat(new String(entry.getDexFileContent(), StandardCharsets.UTF_8))
+                .isEqualTo(content);
+
+        ByteBuffer buffer = entry.getDexFileContentBuffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertThat(new String(bytes, StandardCharsets.UTF_8)).isEqualTo(content);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dexing;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.android.annotations.NonNull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.junit.Test;
+
+/** Tests for {@link ReadAheadClassFileReader}. */
+public class ReadAheadClassFileReaderTest {
+
+    @Test
+    public void testEntriesReadInOrder() throws IOException {
+        List<ClassFileEntry> entries =
+                IntStream.range(0, 100)
+                        .mapToObj(i -> new InMemoryEntry("C" + i + ".class", i % 10 + 1))
+                        .collect(Collectors.toList());
+
+        for (int bufferSize : new int[] {0, 4}) {
+            List<String> read = new ArrayList<>();
+            try (ReadAheadClassFileReader reader =
+                    new ReadAheadClassFileReader(entries.stream(), 3, bufferSize)) {
+                ReadAheadClassFileReader.ClassFileContent content;
+                while ((content = reader.next()) != null) {
+                    InMemoryEntry entry = (InMemoryEntry) content.getEntry();
+                    assertThat(content.getLength()).isEqualTo(entry.content.length);
+                    assertThat(Arrays.copyOf(content.getBytes(), content.getLength()))
+                            .isEqualTo(entry.content);
+                    read.add(entry.getRelativePath());
+                }
+                assertThat(reader.next()).isNull();
+            }
+            assertThat(read)
+                    .containsExactlyElementsIn(
+                            entries.stream()
+                                    .map(ClassFileEntry::getRelativePath)
+                                    .collect(Collectors.toList()))
+                    .inOrder();
+        }
+    }
+
+    @Test
+    public void testReadAheadIsBounded() throws Exception {
+        AtomicInteger readCount = new AtomicInteger();
+        Stream<ClassFileEntry> entries =
+                IntStream.range(0, 100)
+                        .mapToObj(
+                                i ->
+                                        new InMemoryEntry("C" + i + ".class", 1) {
+                                            @Override
+                                            public int readAllBytes(byte[] bytes)
+                                                    throws IOException {
+                                                readCount.incrementAndGet();
+                                                return super.readAllBytes(bytes);
+                                            }
+                                        });
+
+        try (ReadAheadClassFileReader reader = new ReadAheadClassFileReader(entries, 2, 16)) {
+            assertThat(reader.next()).isNotNull();
+            // give the reader thread a chance to read as much as it is allowed to
+            Thread.sleep(100);
+            // the window holds the entry being processed, and one entry read ahead
+            assertThat(readCount.get()).isAtMost(2);
+        }
+    }
+
+    @Test
+    public void testMoreReadersThanThreads() throws IOException {
+        // more readers than reader threads, closed in reverse order without reading everything
+        List<ReadAheadClassFileReader> readers = new ArrayList<>();
+        for (int i = 0; i < Runtime.getRuntime().availableProcessors() * 2 + 1; i++) {
+            readers.add(
+                    new ReadAheadClassFileReader(
+                            IntStream.range(0, 100)
+                                    .mapToObj(j -> new InMemoryEntry("C" + j + ".class", 1)),
+                            2,
+                            16));
+        }
+        for (int i = readers.size() - 1; i >= 0; i--) {
+            readers.get(i).close();
+        }
+
+        try (ReadAheadClassFileReader reader =
+                new ReadAheadClassFileReader(Stream.of(new InMemoryEntry("A.class", 1)), 2, 16)) {
+            assertThat(reader.next().getEntry().getRelativePath()).isEqualTo("A.class");
+            assertThat(reader.next()).isNull();
+        }
+    }
+
+    @Test
+    public void testReadFailure() throws IOException {
+        InMemoryEntry broken =
+                new InMemoryEntry("Broken.class", 1) {
+                    @Override
+                    public int readAllBytes(byte[] bytes) throws IOException {
+                        throw new IOException("Unable to read");
+                    }
+                };
+        Stream<ClassFileEntry> entries =
+                Stream.of(new InMemoryEntry("A.class", 1), broken, new InMemoryEntry("B.class", 1));
+
+        try (ReadAheadClassFileReader reader = new ReadAheadClassFileReader(entries, 2, 16)) {
+            assertThat(reader.next().getEntry().getRelativePath()).isEqualTo("A.class");
+            try {
+                reader.next();
+                fail("Expected IOException");
+            } catch (IOException e) {
+                assertThat(e.getMessage()).isEqualTo("Unable to read");
+            }
+            assertThat(reader.getCurrentEntry()).isSameAs(broken);
+            assertThat(reader.next()).isNull();
+        }
+    }
+
+    private static class InMemoryEntry implements ClassFileEntry {
+
+        @NonNull private final String path;
+        @NonNull private final byte[] content;
+
+        InMemoryEntry(@NonNull String path, int size) {
+            this.path = path;
+            this.content = new byte[size];
+            Arrays.fill(content, (byte) path.hashCode());
+        }
+
+        @Override
+        public String name() {
+            return path;
+        }
+
+        @Override
+        public long getSize() {
+            return content.length;
+        }
+
+        @Override
+        public String getRelativePath() {
+            return path;
+        }
+
+        @Override
+        public byte[] readAllBytes() throws IOException {
+            return content.clone();
+        }
+
+        @Override
+        public int readAllBytes(byte[] bytes) throws IOException {
+            System.arraycopy(content, 0, bytes, 0, content.length);
+            return content.length;
+        }
+    }
+}
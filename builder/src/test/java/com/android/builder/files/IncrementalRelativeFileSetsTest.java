@@ -436,4 +436,71 @@ public class IncrementalRelativeFileSetsTest {
         m = IncrementalRelativeFileSets.fromZip(foo, cache, updates);
         assertEquals(0, m.size());
     }
+
+    @Test
+    public void makingFromIndexCacheDeletedZip() throws Exception {
+        File cacheDir = temporaryFolder.newFolder();
+        ZipIndexCache cache = new ZipIndexCache(cacheDir);
+
+        File foo = new File(temporaryFolder.getRoot(), "foo");
+        try (ZFile zffooz = new ZFile(foo)) {
+            zffooz.add("f0z", new ByteArrayInputStream(new byte[0]));
+            zffooz.add("f1z", new ByteArrayInputStream(new byte[0]));
+        }
+
+        cache.add(foo);
+        FileUtils.delete(foo);
+
+        Set<Runnable> updates = new HashSet<>();
+        ImmutableMap<RelativeFile, FileStatus> m =
+                IncrementalRelativeFileSets.fromZip(foo, cache, updates);
+        assertEquals(2, m.size());
+
+        RelativeFile f0z = new RelativeFile(foo, new File(foo, "f0z"));
+        assertEquals(FileStatus.REMOVED, m.get(f0z));
+
+        RelativeFile f1z = new RelativeFile(foo, new File(foo, "f1z"));
+        assertEquals(FileStatus.REMOVED, m.get(f1z));
+
+        updates.forEach(Runnable::run);
+        m = IncrementalRelativeFileSets.fromZip(foo, cache, updates);
+        assertEquals(0, m.size());
+    }
+
+    @Test
+    public void makingFromIndexCacheUpdatedZip() throws Exception {
+        File cacheDir = temporaryFolder.newFolder();
+        ZipIndexCache cache = new ZipIndexCache(cacheDir);
+
+        File foo = new File(temporaryFolder.getRoot(), "foo");
+        try (ZFile zffooz = new ZFile(foo)) {
+            zffooz.add("f0z/", new ByteArrayInputStream(new byte[0]));
+            zffooz.add("f0z/a", new ByteArrayInputStream(new byte[0]));
+            zffooz.add("f1z", new ByteArrayInputStream(new byte[0]));
+            zffooz.add("f2z", new ByteArrayInputStream(new byte[0]));
+        }
+
+        Set<Runnable> updates = new HashSet<>();
+        ImmutableMap<RelativeFile, FileStatus> m =
+                IncrementalRelativeFileSets.fromZip(foo, cache, updates);
+        assertEquals(3, m.size());
+        updates.forEach(Runnable::run);
+        updates.clear();
+
+        try (ZFile zffooz = new ZFile(foo)) {
+            zffooz.add("f0z/a", new ByteArrayInputStream(new byte[] {1, 2, 3}));
+            zffooz.add("f3z", new ByteArrayInputStream(new byte[0]));
+            zffooz.get("f2z").delete();
+        }
+
+        m = IncrementalRelativeFileSets.fromZip(foo, cache, updates);
+        assertEquals(3, m.size());
+        assertEquals(FileStatus.CHANGED, m.get(new RelativeFile(foo, new File(foo, "f0z/a"))));
+        assertEquals(FileStatus.NEW, m.get(new RelativeFile(foo, new File(foo, "f3z"))));
+        assertEquals(FileStatus.REMOVED, m.get(new RelativeFile(foo, new File(foo, "f2z"))));
+
+        updates.forEach(Runnable::run);
+        m = IncrementalRelativeFileSets.fromZip(foo, cache, updates);
+        assertEquals(0, m.size());
+    }
 }
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.apkzlib.zip.ZFile;
+import com.android.utils.FileUtils;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Random;
+import java.util.zip.CRC32;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link ZipIndexCache}.
+ */
+public class ZipIndexCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File cacheDir;
+
+    private ZipIndexCache cache;
+
+    @Before
+    public void before() throws Exception {
+        cacheDir = temporaryFolder.newFolder("cache");
+        cache = new ZipIndexCache(cacheDir);
+    }
+
+    private File makeZip(String name, byte[] contents) throws Exception {
+        File zip = new File(temporaryFolder.getRoot(), name);
+        try (ZFile zf = new ZFile(zip)) {
+            zf.add("dir/", new ByteArrayInputStream(new byte[0]));
+            zf.add("dir/a", new ByteArrayInputStream(contents));
+            zf.add("b", new ByteArrayInputStream(new byte[0]));
+        }
+
+        return zip;
+    }
+
+    private static long crc32(byte[] contents) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(contents);
+        return crc32.getValue();
+    }
+
+    @Test
+    public void addAndFindIndex() throws Exception {
+        byte[] contents = new byte[] {1, 2, 3};
+        File zip = makeZip("foo.jar", contents);
+
+        cache.add(zip);
+        ImmutableMap<String, ZipIndexCache.Entry> index = cache.get(zip);
+        assertNotNull(index);
+        assertEquals(ImmutableSet.of("dir/a", "b"), index.keySet());
+        assertEquals(crc32(contents), index.get("dir/a").getCrc32());
+        assertEquals(contents.length, index.get("dir/a").getSize());
+        assertEquals(0, index.get("b").getSize());
+    }
+
+    @Test
+    public void getNonAddedIndex() throws Exception {
+        File zip = makeZip("foo.jar", new byte[0]);
+
+        assertNull(cache.get(zip));
+    }
+
+    @Test
+    public void addedIndexDoesNotRequireOriginal() throws Exception {
+        File zip = makeZip("foo.jar", new byte[] {1, 2, 3});
+
+        cache.add(zip);
+        ImmutableMap<String, ZipIndexCache.Entry> index = ZipIndexCache.index(zip);
+        FileUtils.delete(zip);
+
+        assertEquals(index, cache.get(zip));
+    }
+
+    @Test
+    public void containsAddedAndRemovedIndex() throws Exception {
+        File zip = makeZip("foo.jar", new byte[] {1, 2, 3});
+        assertFalse(cache.contains(zip));
+
+        cache.add(zip);
+        assertTrue(cache.contains(zip));
+
+        cache.remove(zip);
+        assertFalse(cache.contains(zip));
+    }
+
+    @Test
+    public void replaceIndex() throws Exception {
+        File zip = makeZip("foo.jar", new byte[] {1, 2, 3});
+        cache.add(zip);
+
+        FileUtils.delete(zip);
+        makeZip("foo.jar", new byte[] {4, 5});
+        cache.add(zip);
+
+        ImmutableMap<String, ZipIndexCache.Entry> index = cache.get(zip);
+        assertNotNull(index);
+        assertEquals(crc32(new byte[] {4, 5}), index.get("dir/a").getCrc32());
+        assertEquals(2, index.get("dir/a").getSize());
+    }
+
+    @Test
+    public void indexIsSmallerThanZip() throws Exception {
+        byte[] contents = new byte[10_000];
+        new Random().nextBytes(contents);
+        File zip = makeZip("foo.jar", contents);
+        cache.add(zip);
+
+        File[] indexFiles = cacheDir.listFiles();
+        assertNotNull(indexFiles);
+        assertEquals(1, indexFiles.length);
+        assertTrue(indexFiles[0].length() < zip.length());
+    }
+
+    @Test
+    public void unknownVersionIgnored() throws Exception {
+        File zip = makeZip("foo.jar", new byte[0]);
+        cache.add(zip);
+
+        File[] indexFiles = cacheDir.listFiles();
+        assertNotNull(indexFiles);
+        Files.write(new byte[] {0, 0, 0, 0}, indexFiles[0]);
+        assertNull(cache.get(zip));
+    }
+
+    @Test
+    public void clearCache() throws Exception {
+        File zip = makeZip("foo.jar", new byte[0]);
+        cache.add(zip);
+        assertNotNull(cache.get(zip));
+
+        cache.clear();
+        assertNull(cache.get(zip));
+    }
+
+    @Test
+    public void removeCachedIndex() throws Exception {
+        File zip = makeZip("foo.jar", new byte[0]);
+        cache.add(zip);
+        assertNotNull(cache.get(zip));
+
+        cache.remove(zip);
+        assertNull(cache.get(zip));
+    }
+
+    @Test
+    public void cachedDirectoryDeletedBeforeAdd() throws Exception {
+        File zip = makeZip("foo.jar", new byte[0]);
+        FileUtils.deletePath(cacheDir);
+        cache.add(zip);
+
+        assertNotNull(cache.get(zip));
+    }
+}
@@ -30,6 +30,7 @@ import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 import org.junit.Test;
 
@@ -176,4 +177,54 @@ public class IncrementalFileMergerOutputsTest {
         assertArrayEquals(new byte[] { 9, 8 }, algFrom.get(0).get(0));
         assertArrayEquals(new byte[] { 8, 9 }, algFrom.get(0).get(1));
     }
+
+    @Test
+    public void parallelAlgorithmWriterKeepsOrder() throws Exception {
+        IncrementalFileMergerTestInput i0 = new IncrementalFileMergerTestInput("in0");
+        IncrementalFileMergerTestInput i1 = new IncrementalFileMergerTestInput("in1");
+        for (int i = 0; i < 100; i++) {
+            i0.add("/f" + i);
+            i0.setData("/f" + i, new byte[] {(byte) i});
+            i1.add("/f" + i);
+            i1.setData("/f" + i, new byte[] {(byte) -i});
+        }
+
+        ForkJoinPool forkJoinPool = new ForkJoinPool(4);
+        IncrementalFileMergerOutput parallelOut =
+                IncrementalFileMergerOutputs.fromAlgorithmAndWriter(
+                        StreamMergeAlgorithms.pickFirst(), writer, forkJoinPool);
+
+        i0.open();
+        i1.open();
+        parallelOut.open();
+        for (int i = 0; i < 100; i++) {
+            if (i % 10 == 0) {
+                parallelOut.remove("/r" + i);
+            } else if (i % 2 == 0) {
+                parallelOut.update("/f" + i, ImmutableList.of("in0"), ImmutableList.of(i0, i1));
+            } else {
+                parallelOut.create("/f" + i, ImmutableList.of(i0, i1));
+            }
+        }
+        parallelOut.close();
+        i1.close();
+        i0.close();
+        forkJoinPool.shutdown();
+
+        assertEquals(10, removes.size());
+        assertEquals(50, creates.size());
+        assertEquals(40, replaces.size());
+        for (int i = 0; i < 50; i++) {
+            int f = 2 * i + 1;
+            assertEquals("/f" + f, creates.get(i));
+            assertArrayEquals(new byte[] {(byte) f}, createsData.get(i));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals("/r" + (10 * i), removes.get(i));
+        }
+        assertEquals("/f2", replaces.get(0));
+        assertArrayEquals(new byte[] {2}, replacesData.get(0));
+        assertEquals(1, opens.size());
+        assertEquals(1, closes.size());
+    }
 }
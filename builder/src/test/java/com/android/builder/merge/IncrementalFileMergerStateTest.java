@@ -17,8 +17,12 @@
 package com.android.builder.merge;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
 
 import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import org.junit.Test;
 
 /** Test cases for {@link IncrementalFileMergerState}. */
@@ -71,4 +75,42 @@ public class IncrementalFileMergerStateTest {
         assertThat(fourthState.inputsFor("path2")).containsExactly("input1");
         assertThat(fourthState.inputsFor("path3")).hasSize(0);
     }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        IncrementalFileMergerState.Builder builder =
+                new IncrementalFileMergerState.Builder(new IncrementalFileMergerState());
+        builder.setInputNames(ImmutableList.of("input1", "input2", "input3"));
+        builder.set("META-INF/a", ImmutableList.of("input1", "input2"));
+        builder.set("META-INF/b", ImmutableList.of("input2"));
+        builder.set("META-INF/b\u00e9\ud83d\ude00", ImmutableList.of("input1"));
+        builder.set("path", ImmutableList.of("input2", "input1"));
+        IncrementalFileMergerState state = builder.build();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        state.write(out);
+        IncrementalFileMergerState read =
+                IncrementalFileMergerState.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertThat(read.getInputNames()).containsExactly("input1", "input2", "input3").inOrder();
+        assertThat(read.inputsFor("META-INF/a")).containsExactly("input1", "input2").inOrder();
+        assertThat(read.inputsFor("META-INF/b")).containsExactly("input2");
+        assertThat(read.inputsFor("META-INF/b\u00e9\ud83d\ude00")).containsExactly("input1");
+        assertThat(read.inputsFor("path")).containsExactly("input2", "input1").inOrder();
+        assertThat(read.inputsFor("META-INF/c")).isEmpty();
+        assertThat(read.filesOf("input1"))
+                .containsExactly("META-INF/a", "META-INF/b\u00e9\ud83d\ude00", "path");
+        assertThat(read.filesOf("input2")).containsExactly("META-INF/a", "META-INF/b", "path");
+        assertThat(read.filesOf("input3")).isEmpty();
+    }
+
+    @Test
+    public void testReadInvalidState() throws Exception {
+        try {
+            IncrementalFileMergerState.read(new ByteArrayInputStream(new byte[] {1, 2, 3, 4}));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
 }
@@ -26,6 +26,7 @@ import com.android.repository.Revision;
 import com.android.testutils.concurrency.ConcurrencyTester;
 import com.android.utils.FileUtils;
 import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
 import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
@@ -34,7 +35,13 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import org.junit.Before;
 import org.junit.Rule;
@@ -683,6 +690,30 @@ public class FileCacheTest {
         assertThat(fileCache.getCacheDirectory().list()).isEmpty();
     }
 
+    @Test
+    public void testCreateFileInCacheIfAbsent_FileCreatorCreatesSameCacheEntry()
+            throws Exception {
+        FileCache fileCache = FileCache.getInstanceWithSingleProcessLocking(cacheDir);
+        FileCache.Inputs inputs =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("file", "input")
+                        .build();
+
+        // Creating the same cache entry from within its own file creator must fail instead of
+        // waiting forever for the creation to finish
+        try {
+            fileCache.createFileInCacheIfAbsent(
+                    inputs,
+                    (outputFile) ->
+                            fileCache.createFileInCacheIfAbsent(
+                                    inputs, (sameOutputFile) -> fail("unexpected creation")));
+            fail("expected ExecutionException");
+        } catch (ExecutionException exception) {
+            assertThat(Throwables.getRootCause(exception))
+                    .isInstanceOf(IllegalStateException.class);
+        }
+    }
+
     @Test
     public void testCacheEntryExists() throws Exception {
         FileCache fileCache = FileCache.getInstanceWithSingleProcessLocking(cacheDir);
@@ -831,6 +862,56 @@ public class FileCacheTest {
                 FileCache.getInstanceWithSingleProcessLocking(temporaryFolder.newFolder()));
     }
 
+    @Test
+    public void testCreateFile_MultiThreads_SingleProcessLocking_SameCacheDirectoryManyQueries()
+            throws Exception {
+        // Use different paths to the same cache directory, the queries must still be synchronized
+        FileCache[] fileCaches = {
+            FileCache.getInstanceWithSingleProcessLocking(cacheDir),
+            FileCache.getInstanceWithSingleProcessLocking(
+                    new File(new File(cacheDir, ".."), cacheDir.getName()))
+        };
+        FileCache.Inputs inputs =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("file", "input")
+                        .build();
+        AtomicInteger creatorInvocations = new AtomicInteger(0);
+
+        int queryCount = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(queryCount);
+        try {
+            List<Future<?>> queries = new ArrayList<>();
+            for (int i = 0; i < queryCount; i++) {
+                FileCache fileCache = fileCaches[i % fileCaches.length];
+                File outputFile = new File(outputDir, "output" + i);
+                queries.add(
+                        executor.submit(
+                                () -> {
+                                    fileCache.createFile(
+                                            outputFile,
+                                            inputs,
+                                            () -> {
+                                                creatorInvocations.incrementAndGet();
+                                                writeStringToFile("Some text", outputFile);
+                                            });
+                                    return null;
+                                }));
+            }
+            for (Future<?> query : queries) {
+                query.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(creatorInvocations.get()).isEqualTo(1);
+        assertThat(fileCaches[0].getMisses() + fileCaches[1].getMisses()).isEqualTo(1);
+        assertThat(fileCaches[0].getHits() + fileCaches[1].getHits()).isEqualTo(queryCount - 1);
+        for (int i = 0; i < queryCount; i++) {
+            assertThat(new File(outputDir, "output" + i)).hasContents("Some text");
+        }
+    }
+
     @Test
     public void testCreateFile_MultiThreads_MultiProcessLocking_SameInputDifferentOutputs()
             throws IOException {
@@ -1152,6 +1233,129 @@ public class FileCacheTest {
         }
     }
 
+    @Test
+    public void testSizeBoundedCache_EntriesAreSharded() throws Exception {
+        FileCache fileCache = FileCache.getInstanceWithSingleProcessLocking(cacheDir, 1024);
+        FileCache.Inputs inputs =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("file", "input")
+                        .build();
+
+        File cachedFile =
+                fileCache
+                        .createFileInCacheIfAbsent(
+                                inputs, (outputFile) -> writeStringToFile("Some text", outputFile))
+                        .getCachedFile();
+        assertNotNull(cachedFile);
+        assertThat(cachedFile).hasContents("Some text");
+        assertThat(cachedFile).isEqualTo(fileCache.getFileInCache(inputs));
+        assertThat(cachedFile.getParentFile().getName()).isEqualTo(inputs.getKey());
+        assertThat(cachedFile.getParentFile().getParentFile().getName())
+                .isEqualTo(inputs.getKey().substring(0, 2));
+        assertThat(new File(cachedFile.getParentFile(), "last-access")).exists();
+        assertThat(fileCache.cacheEntryExists(inputs)).isTrue();
+    }
+
+    @Test
+    public void testSizeBoundedCache_EvictsLeastRecentlyUsedEntries() throws Exception {
+        // Each cache entry contains an output file of 100 bytes plus an inputs file of about 25
+        // bytes, so only two entries fit within the budget
+        FileCache fileCache = FileCache.getInstanceWithSingleProcessLocking(cacheDir, 350);
+        String content = Strings.repeat("x", 100);
+        long startTime = System.currentTimeMillis();
+        FileCache.Inputs[] inputs = new FileCache.Inputs[4];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] =
+                    new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                            .putString("file", "input" + i)
+                            .build();
+            File cachedFile =
+                    fileCache
+                            .createFileInCacheIfAbsent(
+                                    inputs[i],
+                                    (outputFile) -> writeStringToFile(content, outputFile))
+                            .getCachedFile();
+            assertNotNull(cachedFile);
+            // Make the access times distinct, with the first entry being the oldest. The entries
+            // stay within the grace period of background evictions.
+            File lastAccessFile = new File(cachedFile.getParentFile(), "last-access");
+            assertThat(lastAccessFile.setLastModified(startTime - 600_000 + 1000 * i)).isTrue();
+        }
+
+        // Access the first entry again so that the second entry becomes the least recently used
+        File outputFile = new File(outputDir, "output");
+        fileCache.createFile(outputFile, inputs[0], () -> fail("Cache should be hit"));
+        assertThat(outputFile).hasContents(content);
+
+        fileCache.evictLeastRecentlyUsedEntries(Long.MAX_VALUE);
+
+        assertThat(fileCache.getEvictions()).isEqualTo(2);
+        assertThat(fileCache.cacheEntryExists(inputs[0])).isTrue();
+        assertThat(fileCache.cacheEntryExists(inputs[1])).isFalse();
+        assertThat(fileCache.cacheEntryExists(inputs[2])).isFalse();
+        assertThat(fileCache.cacheEntryExists(inputs[3])).isTrue();
+    }
+
+    @Test
+    public void testSizeBoundedCache_RecentlyUsedEntriesAreNotEvicted() throws Exception {
+        FileCache fileCache = FileCache.getInstanceWithSingleProcessLocking(cacheDir, 1);
+        FileCache.Inputs inputs =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("file", "input")
+                        .build();
+        fileCache.createFileInCacheIfAbsent(
+                inputs, (outputFile) -> writeStringToFile("Some text", outputFile));
+
+        // The entry was just accessed, so it is within the grace period and must be kept even
+        // though the cache exceeds its budget
+        fileCache.evictLeastRecentlyUsedEntries(System.currentTimeMillis() - 60_000);
+
+        assertThat(fileCache.getEvictions()).isEqualTo(0);
+        assertThat(fileCache.cacheEntryExists(inputs)).isTrue();
+    }
+
+    @Test
+    public void testSizeBoundedCache_EvictsUnshardedEntries() throws Exception {
+        FileCache.Inputs inputs =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("file", "input")
+                        .build();
+        FileCache.getInstanceWithSingleProcessLocking(cacheDir)
+                .createFileInCacheIfAbsent(
+                        inputs, (outputFile) -> writeStringToFile("Some text", outputFile));
+        assertThat(new File(cacheDir, inputs.getKey())).isDirectory();
+
+        FileCache fileCache = FileCache.getInstanceWithSingleProcessLocking(cacheDir, 1);
+        fileCache.evictLeastRecentlyUsedEntries(Long.MAX_VALUE);
+
+        assertThat(fileCache.getEvictions()).isEqualTo(1);
+        assertThat(new File(cacheDir, inputs.getKey())).doesNotExist();
+    }
+
+    @Test
+    public void testSizeBoundedCache_EvictionDeletesLockFiles() throws Exception {
+        FileCache fileCache = FileCache.getInstanceWithMultiProcessLocking(cacheDir, 1);
+        FileCache.Inputs inputs =
+                new FileCache.Inputs.Builder(FileCache.Command.TEST)
+                        .putString("file", "input")
+                        .build();
+        File cachedFile =
+                fileCache
+                        .createFileInCacheIfAbsent(
+                                inputs, (outputFile) -> writeStringToFile("Some text", outputFile))
+                        .getCachedFile();
+        assertNotNull(cachedFile);
+        File cacheEntryDir = cachedFile.getParentFile();
+        File lockFile = new File(cacheEntryDir.getParentFile(), cacheEntryDir.getName() + ".lock");
+        assertThat(lockFile).exists();
+
+        fileCache.evictLeastRecentlyUsedEntries(Long.MAX_VALUE);
+
+        assertThat(fileCache.getEvictions()).isEqualTo(1);
+        assertThat(cacheEntryDir).doesNotExist();
+        assertThat(lockFile).doesNotExist();
+    }
+
     @Test
     public void testInputsGetKey() throws IOException {
         File inputDir = temporaryFolder.newFolder();
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.android.annotations.NonNull;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for {@link FileHashIndex}. */
+public class FileHashIndexTest {
+
+    /** The time at which the files are hashed, as seen by the index. */
+    private static final long NOW = 1_500_000_000_000L;
+
+    /** A timestamp old enough for the files to be indexed. */
+    private static final long OLD_TIMESTAMP = NOW - 60_000;
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testUnchangedFileNotRehashed() throws IOException {
+        FileHashIndex index = createIndex();
+        File file = createFile("foo.jar", "Foo", OLD_TIMESTAMP);
+
+        assertThat(index.getFileHash(file)).isEqualTo(sha256("Foo"));
+        assertThat(index.getFileHash(file)).isEqualTo(sha256("Foo"));
+        assertThat(index.getHashCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testChangedFileRehashed() throws IOException {
+        FileHashIndex index = createIndex();
+        File file = createFile("foo.jar", "Foo", OLD_TIMESTAMP);
+        assertThat(index.getFileHash(file)).isEqualTo(sha256("Foo"));
+
+        // Same size, different timestamp
+        Files.write("Bar", file, StandardCharsets.UTF_8);
+        assertThat(file.setLastModified(OLD_TIMESTAMP + FileHashIndex.TIMESTAMP_GRANULARITY_MILLIS))
+                .isTrue();
+        assertThat(index.getFileHash(file)).isEqualTo(sha256("Bar"));
+        assertThat(index.getHashCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testRecentlyModifiedFileNotIndexed() throws IOException {
+        FileHashIndex index = createIndex();
+        File file =
+                createFile(
+                        "foo.jar", "Foo", NOW - FileHashIndex.TIMESTAMP_GRANULARITY_MILLIS + 1000);
+
+        // The file could be written again without changing its timestamp
+        assertThat(index.getFileHash(file)).isEqualTo(sha256("Foo"));
+        assertThat(index.getIndexedHash(file)).isNull();
+        assertThat(index.getFileHash(file)).isEqualTo(sha256("Foo"));
+        assertThat(index.getHashCount()).isEqualTo(2);
+        assertThat(index.isModified()).isFalse();
+    }
+
+    @Test
+    public void testIndexPersisted() throws IOException {
+        File indexFile = new File(temporaryFolder.getRoot(), "index.bin");
+        File file = createFile("foo.jar", "Foo", OLD_TIMESTAMP);
+        File deletedFile = createFile("bar.jar", "Bar", OLD_TIMESTAMP);
+
+        FileHashIndex index = new FileHashIndex(indexFile, 10, () -> NOW);
+        index.getFileHash(file);
+        index.getFileHash(deletedFile);
+        assertThat(index.isModified()).isTrue();
+        assertThat(deletedFile.delete()).isTrue();
+        index.write();
+        assertThat(index.isModified()).isFalse();
+
+        FileHashIndex newIndex = new FileHashIndex(indexFile, 10, () -> NOW);
+        assertThat(newIndex.getFileHash(file)).isEqualTo(sha256("Foo"));
+        assertThat(newIndex.getHashCount()).isEqualTo(0);
+        assertThat(newIndex.getIndexedHash(deletedFile)).isNull();
+    }
+
+    @Test
+    public void testIndexSizeBounded() throws IOException {
+        File indexFile = new File(temporaryFolder.getRoot(), "index.bin");
+        FileHashIndex index = new FileHashIndex(indexFile, 2, () -> NOW);
+        for (int i = 0; i < 5; i++) {
+            index.getFileHash(createFile("foo" + i + ".jar", "Foo" + i, OLD_TIMESTAMP));
+        }
+        assertThat(index.getEntryCount()).isAtMost(2L);
+        index.write();
+
+        FileHashIndex newIndex = new FileHashIndex(indexFile, 2, () -> NOW);
+        newIndex.getFileHash(createFile("bar.jar", "Bar", OLD_TIMESTAMP));
+        assertThat(newIndex.getEntryCount()).isAtMost(2L);
+    }
+
+    @Test
+    public void testInvalidIndexFileIgnored() throws IOException {
+        File indexFile = new File(temporaryFolder.getRoot(), "index.bin");
+        Files.write(new byte[] {1, 2, 3}, indexFile);
+        File file = createFile("foo.jar", "Foo", OLD_TIMESTAMP);
+
+        FileHashIndex index = new FileHashIndex(indexFile, 10, () -> NOW);
+        assertThat(index.getFileHash(file)).isEqualTo(sha256("Foo"));
+        assertThat(index.getHashCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testFailedWriteLeavesNoTemporaryFile() throws IOException {
+        // The index file cannot be replaced by the temporary file
+        File indexFile = temporaryFolder.newFolder("index.bin");
+        assertThat(new File(indexFile, "foo").createNewFile()).isTrue();
+        File file = createFile("foo.jar", "Foo", OLD_TIMESTAMP);
+
+        FileHashIndex index = new FileHashIndex(indexFile, 10, () -> NOW);
+        index.getFileHash(file);
+        try {
+            index.write();
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+        assertThat(temporaryFolder.getRoot().list())
+                .asList()
+                .containsExactly("index.bin", "foo.jar");
+    }
+
+    @NonNull
+    private FileHashIndex createIndex() {
+        return new FileHashIndex(new File(temporaryFolder.getRoot(), "index.bin"), 10, () -> NOW);
+    }
+
+    /** Creates a file with the given contents and timestamp. */
+    @NonNull
+    private File createFile(@NonNull String name, @NonNull String content, long lastModified)
+            throws IOException {
+        File file = temporaryFolder.newFile(name);
+        Files.write(content, file, StandardCharsets.UTF_8);
+        assertThat(file.setLastModified(lastModified)).isTrue();
+        return file;
+    }
+
+    @NonNull
+    private static String sha256(@NonNull String content) {
+        return Hashing.sha256().hashString(content, StandardCharsets.UTF_8).toString();
+    }
+}
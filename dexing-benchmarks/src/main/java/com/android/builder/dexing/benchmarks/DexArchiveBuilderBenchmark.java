@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dexing.benchmarks;
+
+import com.android.builder.dexing.ClassFileInput;
+import com.android.builder.dexing.ClassFileInputs;
+import com.android.builder.dexing.DexArchiveBuilder;
+import com.android.builder.dexing.DexerTool;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures converting a jar of class files to a dex archive, with dx and d8. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class DexArchiveBuilderBenchmark {
+
+    @Param({"DX", "D8"})
+    public DexerTool dexerTool;
+
+    @Param({"1000"})
+    public int classCount;
+
+    @Param({"20"})
+    public int methodsPerClass;
+
+    @Param({"5"})
+    public int fieldsPerClass;
+
+    private Path tmpDir;
+    private Path classesJar;
+    private Path outputRoot;
+    private DexArchiveBuilder dexArchiveBuilder;
+    private int outputCount;
+
+    @Setup(Level.Trial)
+    public void createInputs() throws IOException {
+        tmpDir = SyntheticInputs.createTempDirectory();
+        classesJar = tmpDir.resolve("classes.jar");
+        SyntheticInputs.writeClassesJar(classesJar, classCount, methodsPerClass, fieldsPerClass);
+        dexArchiveBuilder = SyntheticInputs.createDexArchiveBuilder(dexerTool);
+    }
+
+    @Setup(Level.Iteration)
+    public void createOutputRoot() throws IOException {
+        outputRoot = Files.createDirectories(tmpDir.resolve("output"));
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteOutputs() throws IOException {
+        SyntheticInputs.delete(outputRoot);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteInputs() throws IOException {
+        SyntheticInputs.delete(tmpDir);
+    }
+
+    @Benchmark
+    public Path buildDexArchive() throws IOException {
+        // Write to a new dex archive every time, so that entries are never replaced.
+        Path dexArchive = Files.createDirectories(outputRoot.resolve("dex" + outputCount++));
+        try (ClassFileInput input = ClassFileInputs.fromPath(classesJar)) {
+            dexArchiveBuilder.convert(input.entries(path -> true), dexArchive, false);
+        }
+        return dexArchive;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dexing.benchmarks;
+
+import com.android.builder.dexing.DexArchiveMerger;
+import com.android.builder.dexing.DexArchiveMergerException;
+import com.android.builder.dexing.DexMergerTool;
+import com.android.builder.dexing.DexingType;
+import com.android.dx.command.dexer.DxContext;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures merging dex archives into native multidex output, with dx and d8. The inputs are split
+ * into several dex archives, like the per-scope archives produced by the dex archive builder
+ * transform.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class DexArchiveMergerBenchmark {
+
+    private static final int MIN_SDK_VERSION = 21;
+
+    @Param({"DX", "D8"})
+    public DexMergerTool dexMergerTool;
+
+    @Param({"4"})
+    public int archiveCount;
+
+    @Param({"1000"})
+    public int classesPerArchive;
+
+    @Param({"20"})
+    public int methodsPerClass;
+
+    @Param({"5"})
+    public int fieldsPerClass;
+
+    private Path tmpDir;
+    private List<Path> dexArchives;
+    private Path outputRoot;
+    private int outputCount;
+
+    @Setup(Level.Trial)
+    public void createInputs() throws IOException {
+        tmpDir = SyntheticInputs.createTempDirectory();
+        dexArchives = new ArrayList<>(archiveCount);
+        for (int i = 0; i < archiveCount; i++) {
+            Path classesJar = tmpDir.resolve("classes" + i + ".jar");
+            SyntheticInputs.writeClassesJar(
+                    classesJar, classesPerArchive, methodsPerClass, fieldsPerClass);
+            Path dexArchive = tmpDir.resolve("archive" + i);
+            SyntheticInputs.convertToDexArchive(classesJar, dexArchive);
+            dexArchives.add(dexArchive);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void createOutputRoot() throws IOException {
+        outputRoot = Files.createDirectories(tmpDir.resolve("output"));
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteOutputs() throws IOException {
+        SyntheticInputs.delete(outputRoot);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteInputs() throws IOException {
+        SyntheticInputs.delete(tmpDir);
+    }
+
+    @Benchmark
+    public Path mergeDexArchives() throws IOException, DexArchiveMergerException {
+        Path outputDir = Files.createDirectories(outputRoot.resolve("merged" + outputCount++));
+        createMerger().mergeDexArchives(dexArchives, outputDir, null, DexingType.NATIVE_MULTIDEX);
+        return outputDir;
+    }
+
+    private DexArchiveMerger createMerger() {
+        switch (dexMergerTool) {
+            case DX:
+                return DexArchiveMerger.createDxDexMerger(
+                        new DxContext(System.out, System.err), ForkJoinPool.commonPool());
+            case D8:
+                return DexArchiveMerger.createD8DexMerger(System.err, MIN_SDK_VERSION, true);
+            default:
+                throw new IllegalArgumentException("Unknown merger " + dexMergerTool);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dexing.benchmarks;
+
+import com.android.builder.dexing.DexMergingStrategy;
+import com.android.builder.dexing.NaiveDexMergingStrategy;
+import com.android.builder.dexing.ReferenceCountMergingStrategy;
+import com.android.dex.Dex;
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures splitting dex files into buckets that fit in a single dex file, the same way {@link
+ * com.android.builder.dexing.DxDexArchiveMerger} does before merging each bucket.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class DexMergingStrategyBenchmark {
+
+    /** The {@link DexMergingStrategy} implementations to compare. */
+    public enum Strategy {
+        REFERENCE_COUNT,
+        NAIVE,
+    }
+
+    @Param({"REFERENCE_COUNT", "NAIVE"})
+    public Strategy strategy;
+
+    @Param({"5000"})
+    public int classCount;
+
+    @Param({"20"})
+    public int methodsPerClass;
+
+    @Param({"5"})
+    public int fieldsPerClass;
+
+    private List<Dex> dexFiles;
+
+    @Setup(Level.Trial)
+    public void createInputs() throws IOException {
+        Path tmpDir = SyntheticInputs.createTempDirectory();
+        try {
+            Path classesJar = tmpDir.resolve("classes.jar");
+            SyntheticInputs.writeClassesJar(
+                    classesJar, classCount, methodsPerClass, fieldsPerClass);
+            Path dexArchive = tmpDir.resolve("archive");
+            SyntheticInputs.convertToDexArchive(classesJar, dexArchive);
+
+            dexFiles = new ArrayList<>(classCount);
+            for (Path dexFile : SyntheticInputs.getDexFiles(dexArchive)) {
+                dexFiles.add(new Dex(Files.readAllBytes(dexFile)));
+            }
+        } finally {
+            SyntheticInputs.delete(tmpDir);
+        }
+    }
+
+    /** Returns the number of buckets, i.e. the number of dex files the merger would produce. */
+    @Benchmark
+    public int bucketDexFiles() {
+        DexMergingStrategy mergingStrategy = createMergingStrategy();
+        mergingStrategy.startNewDex();
+        int buckets = 1;
+        for (Dex dexFile : dexFiles) {
+            if (!mergingStrategy.tryToAddForMerging(dexFile)) {
+                mergingStrategy.startNewDex();
+                buckets++;
+                Preconditions.checkState(
+                        mergingStrategy.tryToAddForMerging(dexFile),
+                        "Dex file does not fit in an empty bucket.");
+            }
+        }
+        return buckets;
+    }
+
+    private DexMergingStrategy createMergingStrategy() {
+        switch (strategy) {
+            case REFERENCE_COUNT:
+                return new ReferenceCountMergingStrategy();
+            case NAIVE:
+                return new NaiveDexMergingStrategy();
+            default:
+                throw new IllegalArgumentException("Unknown strategy " + strategy);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dexing.benchmarks;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.builder.dexing.ClassFileInput;
+import com.android.builder.dexing.ClassFileInputs;
+import com.android.builder.dexing.DexArchiveBuilder;
+import com.android.builder.dexing.DexArchiveBuilderConfig;
+import com.android.builder.dexing.DexerTool;
+import com.android.dx.command.dexer.DxContext;
+import com.android.utils.FileUtils;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Generates the inputs used by the benchmarks, similar to the classes of the {@code manymethods}
+ * test project.
+ *
+ * <p>Every generated class has the same number of static fields and methods. Every method reads a
+ * field and calls a method of the next class, so dex files of neighbouring classes share field and
+ * method references, like the classes of a real app do.
+ */
+final class SyntheticInputs {
+
+    /** Size of the buffers used by dx, same as the default of the dex archive builder transform. */
+    private static final int BUFFER_SIZE = 100 * 1024;
+
+    private static final int MIN_SDK_VERSION = 21;
+
+    private SyntheticInputs() {
+        // empty
+    }
+
+    /** Writes a jar containing {@code classCount} generated classes. */
+    static void writeClassesJar(
+            @NonNull Path jar, int classCount, int methodsPerClass, int fieldsPerClass)
+            throws IOException {
+        Files.createDirectories(jar.getParent());
+        try (ZipOutputStream zip =
+                new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(jar)))) {
+            for (int i = 0; i < classCount; i++) {
+                zip.putNextEntry(new ZipEntry(getClassName(i) + SdkConstants.DOT_CLASS));
+                zip.write(generateClass(i, classCount, methodsPerClass, fieldsPerClass));
+                zip.closeEntry();
+            }
+        }
+    }
+
+    /** Converts all classes from the given jar, and writes them to a dex archive using dx. */
+    static void convertToDexArchive(@NonNull Path classesJar, @NonNull Path dexArchive)
+            throws IOException {
+        Files.createDirectories(dexArchive);
+        try (ClassFileInput input = ClassFileInputs.fromPath(classesJar)) {
+            createDexArchiveBuilder(DexerTool.DX)
+                    .convert(input.entries(path -> true), dexArchive, false);
+        }
+    }
+
+    @NonNull
+    static DexArchiveBuilder createDexArchiveBuilder(@NonNull DexerTool dexerTool) {
+        switch (dexerTool) {
+            case DX:
+                DexArchiveBuilderConfig config =
+                        new DexArchiveBuilderConfig(
+                                new DxContext(System.out, System.err),
+                                true,
+                                BUFFER_SIZE,
+                                MIN_SDK_VERSION,
+                                DexerTool.DX,
+                                BUFFER_SIZE,
+                                false);
+                return DexArchiveBuilder.createDxDexBuilder(config);
+            case D8:
+                return DexArchiveBuilder.createD8DexBuilder(MIN_SDK_VERSION, true);
+            default:
+                throw new IllegalArgumentException("Unknown dexer " + dexerTool);
+        }
+    }
+
+    /** Returns all the dex files in the given dex archive directory, in a stable order. */
+    @NonNull
+    static List<Path> getDexFiles(@NonNull Path dexArchive) throws IOException {
+        try (Stream<Path> files = Files.walk(dexArchive)) {
+            return files.filter(path -> path.toString().endsWith(SdkConstants.DOT_DEX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /** Creates a new temporary directory, to be deleted with {@link #delete(Path)}. */
+    @NonNull
+    static Path createTempDirectory() throws IOException {
+        return Files.createTempDirectory("dexing-benchmark");
+    }
+
+    static void delete(@NonNull Path path) throws IOException {
+        FileUtils.deletePath(path.toFile());
+    }
+
+    @NonNull
+    private static String getClassName(int index) {
+        return "bench/Class" + index;
+    }
+
+    @NonNull
+    private static byte[] generateClass(
+            int index, int classCount, int methodsPerClass, int fieldsPerClass) {
+        String className = getClassName(index);
+        String nextClassName = getClassName((index + 1) % classCount);
+
+        ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        classWriter.visit(
+                Opcodes.V1_7,
+                Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER,
+                className,
+                null,
+                "java/lang/Object",
+                null);
+
+        for (int i = 0; i < fieldsPerClass; i++) {
+            classWriter
+                    .visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "field" + i, "I", null, null)
+                    .visitEnd();
+        }
+
+        MethodVisitor constructor =
+                classWriter.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        constructor.visitCode();
+        constructor.visitVarInsn(Opcodes.ALOAD, 0);
+        constructor.visitMethodInsn(
+                Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        constructor.visitInsn(Opcodes.RETURN);
+        constructor.visitMaxs(0, 0);
+        constructor.visitEnd();
+
+        for (int i = 0; i < methodsPerClass; i++) {
+            MethodVisitor method =
+                    classWriter.visitMethod(
+                            Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "method" + i, "()V", null, null);
+            method.visitCode();
+            if (fieldsPerClass > 0) {
+                method.visitFieldInsn(
+                        Opcodes.GETSTATIC, nextClassName, "field" + (i % fieldsPerClass), "I");
+                method.visitInsn(Opcodes.POP);
+            }
+            method.visitMethodInsn(Opcodes.INVOKESTATIC, nextClassName, "method" + i, "()V", false);
+            method.visitInsn(Opcodes.RETURN);
+            method.visitMaxs(0, 0);
+            method.visitEnd();
+        }
+
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+}
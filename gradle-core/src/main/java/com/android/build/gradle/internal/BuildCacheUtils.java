@@ -19,7 +19,9 @@ package com.android.build.gradle.internal;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
+import com.android.build.gradle.internal.scope.TransformGlobalScope;
 import com.android.build.gradle.options.BooleanOption;
+import com.android.build.gradle.options.LongOption;
 import com.android.build.gradle.options.ProjectOptions;
 import com.android.build.gradle.options.StringOption;
 import com.android.builder.utils.FileCache;
@@ -44,6 +46,7 @@ public final class BuildCacheUtils {
      * Returns a {@link FileCache} instance representing the build cache if the build cache is
      * enabled, or null if it is disabled. If enabled, the build cache directory is set to a
      * user-defined directory, or a default directory if the user-defined directory is not provided.
+     * If the user has set a size budget for the build cache, the returned cache is size-bounded.
      *
      * @throws RuntimeException if the ".android" directory does not exist or the build cache cannot
      *     be created
@@ -72,6 +75,21 @@ public final class BuildCacheUtils {
                 rootProjectFile, projectOptions, defaultBuildCacheDirSupplier);
     }
 
+    /**
+     * Returns the build cache to use for intermediate artifacts (e.g., pre-dexed or desugared
+     * libraries), or null if the build cache or the caching of intermediate artifacts is disabled.
+     */
+    @Nullable
+    public static FileCache getUserIntermediatesCache(@NonNull TransformGlobalScope globalScope) {
+        if (globalScope
+                .getProjectOptions()
+                .get(BooleanOption.ENABLE_INTERMEDIATE_ARTIFACTS_CACHE)) {
+            return globalScope.getBuildCache();
+        } else {
+            return null;
+        }
+    }
+
     @Nullable
     @VisibleForTesting
     static FileCache doCreateBuildCacheIfEnabled(
@@ -80,10 +98,17 @@ public final class BuildCacheUtils {
             @NonNull Supplier<File> defaultBuildCacheDirSupplier) {
         if (projectOptions.get(BooleanOption.ENABLE_BUILD_CACHE)) {
             String buildCacheDirOverride = projectOptions.get(StringOption.BUILD_CACHE_DIR);
-            return FileCache.getInstanceWithMultiProcessLocking(
+            File buildCacheDir =
                     buildCacheDirOverride != null
                             ? rootProjectFile.apply(buildCacheDirOverride)
-                            : defaultBuildCacheDirSupplier.get());
+                            : defaultBuildCacheDirSupplier.get();
+            Long maxSizeInMB = projectOptions.get(LongOption.BUILD_CACHE_MAX_SIZE_IN_MB);
+            if (maxSizeInMB != null && maxSizeInMB > 0) {
+                return FileCache.getInstanceWithMultiProcessLocking(
+                        buildCacheDir, maxSizeInMB * 1024 * 1024);
+            } else {
+                return FileCache.getInstanceWithMultiProcessLocking(buildCacheDir);
+            }
         } else {
             return null;
         }
@@ -2407,13 +2407,7 @@ public abstract class TaskManager {
 
     @Nullable
     private FileCache getUserIntermediatesCache() {
-        if (globalScope
-                .getProjectOptions()
-                .get(BooleanOption.ENABLE_INTERMEDIATE_ARTIFACTS_CACHE)) {
-            return globalScope.getBuildCache();
-        } else {
-            return null;
-        }
+        return BuildCacheUtils.getUserIntermediatesCache(globalScope);
     }
 
     /** Creates the pre-dexing task if needed, and task for producing the final DEX file(s). */
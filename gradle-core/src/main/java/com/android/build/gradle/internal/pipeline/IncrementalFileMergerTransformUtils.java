@@ -26,10 +26,10 @@ import com.android.build.api.transform.QualifiedContent;
 import com.android.build.api.transform.Status;
 import com.android.build.api.transform.TransformInput;
 import com.android.build.api.transform.TransformInvocation;
-import com.android.builder.files.FileCacheByPath;
 import com.android.builder.files.IncrementalRelativeFileSets;
 import com.android.builder.files.RelativeFile;
 import com.android.builder.files.RelativeFiles;
+import com.android.builder.files.ZipIndexCache;
 import com.android.builder.merge.IncrementalFileMergerInput;
 import com.android.builder.merge.LazyIncrementalFileMergerInput;
 import com.android.builder.merge.LazyIncrementalFileMergerInputs;
@@ -38,12 +38,13 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Utilities to use transforms with the {@link com.android.builder.merge.IncrementalFileMerger}.
@@ -58,7 +59,7 @@ public final class IncrementalFileMergerTransformUtils {
      * incremental information.
      *
      * @param jarInput the jar input
-     * @param zipCache the zip cache; the cache will not be modified
+     * @param zipCache the cache of the zip indexes; the cache will not be modified
      * @param cacheUpdate will receive actions to update the cache for the next iteration
      * @param contentMap if not {@code null}, receives a mapping from all generated inputs to
      * {@link QualifiedContent} they came from
@@ -67,20 +68,35 @@ public final class IncrementalFileMergerTransformUtils {
     @NonNull
     public static IncrementalFileMergerInput toIncrementalInput(
             @NonNull JarInput jarInput,
-            @NonNull FileCacheByPath zipCache,
+            @NonNull ZipIndexCache zipCache,
             @NonNull List<Runnable> cacheUpdate,
             @Nullable Map<IncrementalFileMergerInput, QualifiedContent> contentMap) {
         File jarFile = jarInput.getFile();
-        if (jarFile.isFile()) {
-            cacheUpdate.add(IOExceptionRunnable.asRunnable(() -> zipCache.add(jarFile)));
-        } else {
-            cacheUpdate.add(IOExceptionRunnable.asRunnable(() -> zipCache.remove(jarFile)));
-        }
+
+        /*
+         * Computing the updates indexes the jar, so the updates of the cache found while
+         * computing them are reused. The jar is only indexed again if the updates were never
+         * computed.
+         */
+        Set<Runnable> zipCacheUpdates = Sets.newConcurrentHashSet();
+        cacheUpdate.add(
+                IOExceptionRunnable.asRunnable(
+                        () -> {
+                            if (!zipCacheUpdates.isEmpty()) {
+                                zipCacheUpdates.forEach(Runnable::run);
+                            } else if (!jarFile.isFile()) {
+                                zipCache.remove(jarFile);
+                            } else if (jarInput.getStatus() != Status.NOTCHANGED
+                                    || !zipCache.contains(jarFile)) {
+                                zipCache.add(jarFile);
+                            }
+                        }));
 
         IncrementalFileMergerInput input =
                 new LazyIncrementalFileMergerInput(
                         jarFile.getAbsolutePath(),
-                        new CachedSupplier<>(() -> computeUpdates(jarInput, zipCache)),
+                        new CachedSupplier<>(
+                                () -> computeUpdates(jarInput, zipCache, zipCacheUpdates)),
                         new CachedSupplier<>(() -> computeFiles(jarInput)));
         if (contentMap != null) {
             contentMap.put(input, jarInput);
@@ -122,7 +138,7 @@ public final class IncrementalFileMergerTransformUtils {
      * contain incremental information. All files will be reported as new.
      *
      * @param jarInput the jar input
-     * @param zipCache the zip cache; the cache will not be modified
+     * @param zipCache the cache of the zip indexes; the cache will not be modified
      * @param cacheUpdate will receive actions to update the cache for the next iteration
      * @param contentMap if not {@code null}, receives a mapping from all generated inputs to
      * {@link QualifiedContent} they came from
@@ -131,7 +147,7 @@ public final class IncrementalFileMergerTransformUtils {
     @Nullable
     public static IncrementalFileMergerInput toNonIncrementalInput(
             @NonNull JarInput jarInput,
-            @NonNull FileCacheByPath zipCache,
+            @NonNull ZipIndexCache zipCache,
             @NonNull List<Runnable> cacheUpdate,
             @Nullable Map<IncrementalFileMergerInput, QualifiedContent> contentMap) {
         File jarFile = jarInput.getFile();
@@ -187,32 +203,48 @@ public final class IncrementalFileMergerTransformUtils {
      * Computes all updates in a {@link JarInput}.
      *
      * @param jarInput the jar input
-     * @param zipCache the cache of zip files; the cache will not be modified
+     * @param zipCache the cache of the zip indexes; the cache will not be modified
+     * @param cacheUpdates receives the actions to update the cache with the index of the jar
      * @return a mapping from all files that have changed to the type of change
      */
     @NonNull
     private static ImmutableMap<RelativeFile, FileStatus> computeUpdates(
             @NonNull JarInput jarInput,
-            @NonNull FileCacheByPath zipCache) {
+            @NonNull ZipIndexCache zipCache,
+            @NonNull Set<Runnable> cacheUpdates) {
         try {
             switch (jarInput.getStatus()) {
                 case ADDED:
+                    if (zipCache.contains(jarInput.getFile())) {
+                        /*
+                         * Stale index of an older jar with the same path, all files are new.
+                         */
+                        return IncrementalRelativeFileSets.fromZip(
+                                jarInput.getFile(),
+                                FileStatus.NEW);
+                    }
+
                     return IncrementalRelativeFileSets.fromZip(
                             jarInput.getFile(),
-                            FileStatus.NEW);
+                            zipCache,
+                            cacheUpdates);
                 case REMOVED:
-                    File cached = zipCache.get(jarInput.getFile());
-                    if (cached == null) {
+                    ImmutableMap<RelativeFile, FileStatus> removed =
+                            IncrementalRelativeFileSets.fromZip(
+                                    jarInput.getFile(),
+                                    zipCache,
+                                    cacheUpdates);
+                    if (cacheUpdates.isEmpty()) {
                         throw new RuntimeException("File '" + jarInput.getFile() + "' was "
                                 + "deleted, but previous version not found in cache");
                     }
 
-                    return IncrementalRelativeFileSets.fromZip(cached, FileStatus.REMOVED);
+                    return removed;
                 case CHANGED:
                     return IncrementalRelativeFileSets.fromZip(
                             jarInput.getFile(),
                             zipCache,
-                            new HashSet<>());
+                            cacheUpdates);
                 case NOTCHANGED:
                     return ImmutableMap.of();
                 default:
@@ -284,7 +316,7 @@ public final class IncrementalFileMergerTransformUtils {
      * method assumes the input contains incremental information.
      *
      * @param transformInput the transform input
-     * @param zipCache the zip cache; the cache will not be modified
+     * @param zipCache the cache of the zip indexes; the cache will not be modified
      * @param cacheUpdates receives updates to the cache
      * @param contentMap if not {@code null}, receives a mapping from all generated inputs to
      * {@link QualifiedContent} they came from
@@ -293,7 +325,7 @@ public final class IncrementalFileMergerTransformUtils {
     @NonNull
     public static ImmutableList<IncrementalFileMergerInput> toIncrementalInput(
             @NonNull TransformInput transformInput,
-            @NonNull FileCacheByPath zipCache,
+            @NonNull ZipIndexCache zipCache,
             @NonNull List<Runnable> cacheUpdates,
             @Nullable Map<IncrementalFileMergerInput, QualifiedContent> contentMap) {
         ImmutableList.Builder<IncrementalFileMergerInput> builder = ImmutableList.builder();
@@ -316,7 +348,7 @@ public final class IncrementalFileMergerTransformUtils {
      * as new.
      *
      * @param transformInput the transform input
-     * @param zipCache the zip cache; the cache will not be modified
+     * @param zipCache the cache of the zip indexes; the cache will not be modified
      * @param cacheUpdates receives updates to the cache
      * @param contentMap if not {@code null}, receives a mapping from all generated inputs to
      * {@link QualifiedContent} they came from
@@ -325,7 +357,7 @@ public final class IncrementalFileMergerTransformUtils {
     @NonNull
     public static ImmutableList<IncrementalFileMergerInput> toNonIncrementalInput(
             @NonNull TransformInput transformInput,
-            @NonNull FileCacheByPath zipCache,
+            @NonNull ZipIndexCache zipCache,
             @NonNull List<Runnable> cacheUpdates,
             @Nullable Map<IncrementalFileMergerInput, QualifiedContent> contentMap) {
         ImmutableList.Builder<IncrementalFileMergerInput> builder = ImmutableList.builder();
@@ -354,7 +386,7 @@ public final class IncrementalFileMergerTransformUtils {
      * files in the input will be reported in the incremental input, including those inside zips.
      *
      * @param transformInvocation the transform invocation
-     * @param zipCache the zip cache; the cache will not be modified
+     * @param zipCache the cache of the zip indexes; the cache will not be modified
      * @param cacheUpdates receives updates to the cache
      * @param full is this a full build? If not, then it is an incremental build; in full builds
      * the output is not cleaned, it is the responsibility of the caller to ensure the output
@@ -369,7 +401,7 @@ public final class IncrementalFileMergerTransformUtils {
     @NonNull
     public static ImmutableList<IncrementalFileMergerInput> toInput(
             @NonNull TransformInvocation transformInvocation,
-            @NonNull FileCacheByPath zipCache,
+            @NonNull ZipIndexCache zipCache,
             @NonNull List<Runnable> cacheUpdates,
             boolean full,
             @Nullable Map<IncrementalFileMergerInput, QualifiedContent> contentMap) {
@@ -20,6 +20,7 @@ import static com.android.build.gradle.shrinker.AbstractShrinker.logTime;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.build.api.transform.DirectoryInput;
 import com.android.build.api.transform.JarInput;
 import com.android.build.api.transform.QualifiedContent;
@@ -29,20 +30,22 @@ import com.android.build.api.transform.TransformException;
 import com.android.build.api.transform.TransformInput;
 import com.android.build.api.transform.TransformInvocation;
 import com.android.build.api.transform.TransformOutputProvider;
+import com.android.build.gradle.internal.BuildCacheUtils;
 import com.android.build.gradle.internal.PostprocessingFeatures;
 import com.android.build.gradle.internal.pipeline.TransformManager;
 import com.android.build.gradle.internal.scope.VariantScope;
 import com.android.build.gradle.shrinker.AbstractShrinker.CounterSet;
+import com.android.build.gradle.shrinker.CompactShrinkerGraph;
 import com.android.build.gradle.shrinker.DependencyType;
 import com.android.build.gradle.shrinker.FullRunShrinker;
 import com.android.build.gradle.shrinker.IncrementalShrinker;
-import com.android.build.gradle.shrinker.JavaSerializationShrinkerGraph;
 import com.android.build.gradle.shrinker.ProguardConfig;
 import com.android.build.gradle.shrinker.ProguardParserKeepRules;
 import com.android.build.gradle.shrinker.ShrinkerLogger;
 import com.android.build.gradle.shrinker.parser.ProguardFlags;
 import com.android.build.gradle.shrinker.parser.UnsupportedFlagsHandler;
 import com.android.build.gradle.shrinker.tracing.Trace;
+import com.android.builder.utils.FileCache;
 import com.android.ide.common.internal.WaitableExecutor;
 import com.android.utils.Pair;
 import com.google.common.annotations.VisibleForTesting;
@@ -76,6 +79,7 @@ public class BuiltInShrinkerTransform extends ProguardConfigurable {
     private static final Logger logger = LoggerFactory.getLogger(BuiltInShrinkerTransform.class);
 
     private final Set<File> platformJars;
+    @Nullable private final FileCache userCache;
     private final File incrementalDir;
     private final List<String> addtionalLines;
 
@@ -83,6 +87,7 @@ public class BuiltInShrinkerTransform extends ProguardConfigurable {
         super(scope);
         this.platformJars = ImmutableSet.copyOf(
                 scope.getGlobalScope().getAndroidBuilder().getBootClasspath(true));
+        this.userCache = BuildCacheUtils.getUserIntermediatesCache(scope.getGlobalScope());
         this.incrementalDir = scope.getIncrementalDir(scope.getTaskName(NAME));
         this.addtionalLines = Lists.newArrayList();
     }
@@ -142,10 +147,11 @@ public class BuiltInShrinkerTransform extends ProguardConfigurable {
         FullRunShrinker<String> shrinker =
                 new FullRunShrinker<>(
                         WaitableExecutor.useGlobalSharedThreadPool(),
-                        JavaSerializationShrinkerGraph.empty(incrementalDir),
+                        CompactShrinkerGraph.empty(incrementalDir),
                         platformJars,
                         shrinkerLogger,
-                        flags.getBytecodeVersion());
+                        flags.getBytecodeVersion(),
+                        userCache);
 
         // Only save state if incremental mode is enabled.
         boolean saveState = this.isIncremental();
@@ -240,10 +246,7 @@ public class BuiltInShrinkerTransform extends ProguardConfigurable {
             @NonNull TransformOutputProvider output) throws IOException {
         try {
             Stopwatch stopwatch = Stopwatch.createStarted();
-            JavaSerializationShrinkerGraph graph =
-                    JavaSerializationShrinkerGraph.readFromDir(
-                            incrementalDir,
-                            this.getClass().getClassLoader());
+            CompactShrinkerGraph graph = CompactShrinkerGraph.readFromDir(incrementalDir);
             logTime("loading state", stopwatch);
 
             ProguardFlags proguardFlags = getProguardFlags();
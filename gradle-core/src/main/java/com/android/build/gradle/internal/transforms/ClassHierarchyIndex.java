@@ -0,0 +1,796 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.transforms;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.builder.utils.FileCache;
+import com.google.common.base.Verify;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Index of the classes of a classpath, built by only reading the headers of the class files (name,
+ * super class, interfaces and access flags) and the signatures of their fields and methods with
+ * ASM. Unlike a class loader, no classes are defined in the JVM to resolve types. It is shared by
+ * the transforms and tasks that need to know about the classes of the dependencies and of the
+ * platform, like {@link FixStackFramesTransform}, {@link InstantRunTransform} and the built-in
+ * shrinker.
+ *
+ * <p>The headers of the classes in a jar are cached by the path, size and timestamp of the jar,
+ * and shared by all the indexes created in the same JVM, so jars like android.jar are only read
+ * once. If a {@link FileCache} is given, the headers are also stored in it by the hash of the
+ * contents of the jar, so they are not read again by the next Gradle daemons either. The classes
+ * of directories are read when they are looked up, as they usually change between builds.
+ * Optionally (see {@link #createWithRuntimeClasses}), classes not found in the classpath are
+ * looked up in the class files of the JVM running the build, as the parent of a class loader
+ * would.
+ *
+ * <p>Instances are thread-safe.
+ */
+public final class ClassHierarchyIndex {
+
+    /** Version of the format of the headers stored in a {@link FileCache}. */
+    private static final int VERSION = 0x43480001;
+
+    /** The headers of the classes in jars, by the path and attributes of the jars. */
+    @NonNull
+    private static final Cache<String, ImmutableMap<String, ClassHeader>> jarHeaders =
+            CacheBuilder.newBuilder().softValues().build();
+
+    /** The functions looking up a header in each of the classpath entries, in classpath order. */
+    @NonNull private final ImmutableList<Function<String, ClassHeader>> classpath;
+
+    /**
+     * The headers of the classes of the JVM running the build that were looked up, or {@code null}
+     * if classes are not looked up in the JVM. They are kept with the index, so classes that are
+     * not found are not remembered for longer than the index is used.
+     */
+    @Nullable private final Map<String, Optional<ClassHeader>> runtimeHeaders;
+
+    private ClassHierarchyIndex(
+            @NonNull ImmutableList<Function<String, ClassHeader>> classpath,
+            boolean lookUpRuntimeClasses) {
+        this.classpath = classpath;
+        this.runtimeHeaders = lookUpRuntimeClasses ? new ConcurrentHashMap<>() : null;
+    }
+
+    /**
+     * Creates the index of a classpath.
+     *
+     * @param classpath the jars and directories of the classpath, in order; entries that do not
+     *     exist are ignored
+     * @return the index
+     * @throws IOException failed to read the classpath
+     */
+    @NonNull
+    public static ClassHierarchyIndex create(@NonNull Iterable<File> classpath)
+            throws IOException {
+        return create(classpath, null);
+    }
+
+    /**
+     * Creates the index of a classpath.
+     *
+     * @param classpath the jars and directories of the classpath, in order; entries that do not
+     *     exist are ignored
+     * @param cache the cache storing the headers of the classes of the jars, if any
+     * @return the index
+     * @throws IOException failed to read the classpath
+     */
+    @NonNull
+    public static ClassHierarchyIndex create(
+            @NonNull Iterable<File> classpath, @Nullable FileCache cache) throws IOException {
+        return create(classpath, cache, false);
+    }
+
+    /**
+     * Creates the index of a classpath, looking up the classes not found in the classpath in the
+     * JVM running the build. This is only suitable when the classpath may be incomplete and falling
+     * back to the classes of the JVM is harmless, like when computing stack frames.
+     *
+     * @param classpath the jars and directories of the classpath, in order; entries that do not
+     *     exist are ignored
+     * @param cache the cache storing the headers of the classes of the jars, if any
+     * @return the index
+     * @throws IOException failed to read the classpath
+     */
+    @NonNull
+    public static ClassHierarchyIndex createWithRuntimeClasses(
+            @NonNull Iterable<File> classpath, @Nullable FileCache cache) throws IOException {
+        return create(classpath, cache, true);
+    }
+
+    @NonNull
+    private static ClassHierarchyIndex create(
+            @NonNull Iterable<File> classpath,
+            @Nullable FileCache cache,
+            boolean lookUpRuntimeClasses)
+            throws IOException {
+        ImmutableList.Builder<Function<String, ClassHeader>> builder = ImmutableList.builder();
+        for (File file : classpath) {
+            if (file.isFile()) {
+                builder.add(getJarHeaders(file, cache)::get);
+            } else if (file.isDirectory()) {
+                builder.add(new DirectoryHeaders(file.toPath())::get);
+            }
+        }
+
+        return new ClassHierarchyIndex(builder.build(), lookUpRuntimeClasses);
+    }
+
+    /**
+     * Obtains the header of a class.
+     *
+     * @param internalName the internal name of the class, e.g. {@code java/lang/Object}
+     * @return the header, {@code null} if the class cannot be found
+     * @throws UncheckedIOException failed to read the class from a directory
+     */
+    @Nullable
+    public ClassHeader getHeader(@NonNull String internalName) {
+        for (Function<String, ClassHeader> headers : classpath) {
+            ClassHeader header = headers.apply(internalName);
+            if (header != null) {
+                return header;
+            }
+        }
+
+        if (runtimeHeaders == null) {
+            return null;
+        }
+        return runtimeHeaders
+                .computeIfAbsent(internalName, ClassHierarchyIndex::readRuntimeHeader)
+                .orElse(null);
+    }
+
+    /**
+     * Checks if a type can be assigned from another one, like {@link Class#isAssignableFrom}.
+     *
+     * @param type the internal name of the type
+     * @param subType the internal name of the type that may be assigned to {@code type}
+     * @return whether {@code subType} is {@code type} or one of its sub types
+     * @throws IllegalArgumentException {@code subType} or one of its super types cannot be found
+     */
+    public boolean isAssignableFrom(@NonNull String type, @NonNull String subType) {
+        Set<String> visited = new HashSet<>();
+        Deque<String> toVisit = new ArrayDeque<>();
+        toVisit.add(subType);
+        while (!toVisit.isEmpty()) {
+            String current = toVisit.removeFirst();
+            if (current.equals(type)) {
+                return true;
+            }
+
+            if (visited.add(current)) {
+                ClassHeader header = getExistingHeader(current);
+                if (header.getSuperName() != null) {
+                    toVisit.add(header.getSuperName());
+                }
+                toVisit.addAll(header.getInterfaces());
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Computes the common super class of two types, in the same way as
+     * {@link org.objectweb.asm.ClassWriter#getCommonSuperClass(String, String)} does using
+     * classes loaded in the JVM.
+     *
+     * @param type1 the internal name of the first type
+     * @param type2 the internal name of the second type
+     * @return the internal name of the common super class
+     * @throws IllegalArgumentException one of the types or their super types cannot be found
+     */
+    @NonNull
+    public String getCommonSuperClass(@NonNull String type1, @NonNull String type2) {
+        ClassHeader c = getExistingHeader(type1);
+        ClassHeader d = getExistingHeader(type2);
+        if (isAssignableFrom(type1, type2)) {
+            return type1;
+        }
+        if (isAssignableFrom(type2, type1)) {
+            return type2;
+        }
+        if (c.isInterface() || d.isInterface()) {
+            return "java/lang/Object";
+        }
+
+        String superName = type1;
+        do {
+            superName = getExistingHeader(superName).getSuperName();
+            if (superName == null) {
+                return "java/lang/Object";
+            }
+        } while (!isAssignableFrom(superName, type2));
+        return superName;
+    }
+
+    @NonNull
+    private ClassHeader getExistingHeader(@NonNull String internalName) {
+        ClassHeader header = getHeader(internalName);
+        if (header == null) {
+            throw new IllegalArgumentException("Class " + internalName + " not found.");
+        }
+        return header;
+    }
+
+    /**
+     * Obtains the headers of the classes in a jar, reading the jar if they are not in the
+     * in-memory cache nor in the given cache. The contents of the jar are only hashed if the
+     * headers are not in the in-memory cache and a cache is given.
+     *
+     * @param jar the jar
+     * @param cache the cache storing the headers of the classes of the jars, if any
+     * @return the headers, by internal name of the classes
+     * @throws IOException failed to read the jar
+     */
+    @NonNull
+    public static ImmutableMap<String, ClassHeader> getJarHeaders(
+            @NonNull File jar, @Nullable FileCache cache) throws IOException {
+        File canonicalJar = jar.getCanonicalFile();
+        BasicFileAttributes attributes =
+                Files.readAttributes(canonicalJar.toPath(), BasicFileAttributes.class);
+        String key =
+                canonicalJar.getPath()
+                        + File.pathSeparator
+                        + attributes.size()
+                        + File.pathSeparator
+                        + attributes.lastModifiedTime().toMillis()
+                        + File.pathSeparator
+                        + attributes.fileKey();
+        try {
+            return jarHeaders.get(key, () -> loadJarHeaders(canonicalJar, cache));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    @NonNull
+    private static ImmutableMap<String, ClassHeader> loadJarHeaders(
+            @NonNull File jar, @Nullable FileCache cache) throws Exception {
+        if (cache == null) {
+            return readJarHeaders(jar);
+        }
+
+        FileCache.Inputs inputs =
+                new FileCache.Inputs.Builder(FileCache.Command.INDEX_CLASS_HEADERS, cache)
+                        .putFile("jar", jar, FileCache.FileProperties.HASH)
+                        .putLong("version", VERSION)
+                        .build();
+
+        AtomicReference<ImmutableMap<String, ClassHeader>> createdHeaders =
+                new AtomicReference<>();
+        FileCache.QueryResult result =
+                cache.createFileInCacheIfAbsent(
+                        inputs,
+                        file -> {
+                            ImmutableMap<String, ClassHeader> headers = readJarHeaders(jar);
+                            writeHeaders(headers, file);
+                            createdHeaders.set(headers);
+                        });
+        if (createdHeaders.get() != null) {
+            return createdHeaders.get();
+        }
+
+        try {
+            return readHeaders(Verify.verifyNotNull(result.getCachedFile()));
+        } catch (IOException e) {
+            // The cached headers cannot be used, read the jar instead.
+            return readJarHeaders(jar);
+        }
+    }
+
+    @NonNull
+    private static ImmutableMap<String, ClassHeader> readJarHeaders(@NonNull File jar)
+            throws IOException {
+        Map<String, ClassHeader> headers = new HashMap<>();
+        try (ZipFile zipFile = new ZipFile(jar)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.getName().endsWith(SdkConstants.DOT_CLASS)) {
+                    try (InputStream in = zipFile.getInputStream(entry)) {
+                        ClassHeader header = readHeader(in);
+                        if (header != null) {
+                            headers.putIfAbsent(header.getName(), header);
+                        }
+                    }
+                }
+            }
+        }
+
+        return ImmutableMap.copyOf(headers);
+    }
+
+    /**
+     * Reads the header of a class file. Files that cannot be parsed are ignored, like a class
+     * loader would not find them.
+     *
+     * @return the header, {@code null} if the file cannot be parsed
+     */
+    @Nullable
+    private static ClassHeader readHeader(@NonNull InputStream classFile) throws IOException {
+        ClassReader reader;
+        try {
+            reader = new ClassReader(classFile);
+        } catch (RuntimeException e) {
+            return null;
+        }
+
+        HeaderVisitor visitor = new HeaderVisitor();
+        reader.accept(
+                visitor, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return visitor.getHeader();
+    }
+
+    @NonNull
+    private static Optional<ClassHeader> readRuntimeHeader(@NonNull String internalName) {
+        ClassLoader classLoader = ClassLoader.getSystemClassLoader();
+        try (InputStream in =
+                classLoader.getResourceAsStream(internalName + SdkConstants.DOT_CLASS)) {
+            if (in == null) {
+                return Optional.empty();
+            }
+            return Optional.ofNullable(readHeader(in));
+        } catch (IOException | RuntimeException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Writes the headers of classes to a file. The strings are written once in a table, and
+     * referred to by their index in the table.
+     */
+    @VisibleForTesting
+    static void writeHeaders(
+            @NonNull ImmutableMap<String, ClassHeader> headers, @NonNull File file)
+            throws IOException {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        Function<String, Integer> index = s -> strings.computeIfAbsent(s, k -> strings.size());
+        for (ClassHeader header : headers.values()) {
+            index.apply(header.getName());
+            if (header.getSuperName() != null) {
+                index.apply(header.getSuperName());
+            }
+            header.getInterfaces().forEach(index::apply);
+            header.getAnnotations().forEach(index::apply);
+            for (MemberHeader member : Iterables.concat(header.getFields(), header.getMethods())) {
+                index.apply(member.getName());
+                index.apply(member.getDesc());
+                member.getAnnotations().forEach(index::apply);
+            }
+        }
+
+        try (DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(VERSION);
+            out.writeInt(strings.size());
+            for (String string : strings.keySet()) {
+                out.writeUTF(string);
+            }
+
+            out.writeInt(headers.size());
+            for (ClassHeader header : headers.values()) {
+                out.writeInt(strings.get(header.getName()));
+                String superName = header.getSuperName();
+                out.writeInt(superName == null ? -1 : strings.get(superName));
+                out.writeInt(header.getAccess());
+                writeStrings(out, header.getInterfaces(), strings);
+                writeStrings(out, header.getAnnotations(), strings);
+                writeMembers(out, header.getFields(), strings);
+                writeMembers(out, header.getMethods(), strings);
+            }
+        }
+    }
+
+    private static void writeMembers(
+            @NonNull DataOutputStream out,
+            @NonNull List<MemberHeader> members,
+            @NonNull Map<String, Integer> strings)
+            throws IOException {
+        out.writeInt(members.size());
+        for (MemberHeader member : members) {
+            out.writeInt(strings.get(member.getName()));
+            out.writeInt(strings.get(member.getDesc()));
+            out.writeInt(member.getAccess());
+            writeStrings(out, member.getAnnotations(), strings);
+        }
+    }
+
+    private static void writeStrings(
+            @NonNull DataOutputStream out,
+            @NonNull List<String> values,
+            @NonNull Map<String, Integer> strings)
+            throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            out.writeInt(strings.get(value));
+        }
+    }
+
+    /** Reads the headers of classes written by {@link #writeHeaders(ImmutableMap, File)}. */
+    @NonNull
+    @VisibleForTesting
+    static ImmutableMap<String, ClassHeader> readHeaders(@NonNull File file)
+            throws IOException {
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unsupported class header index: " + file);
+            }
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readUTF();
+            }
+
+            int count = in.readInt();
+            ImmutableMap.Builder<String, ClassHeader> headers = ImmutableMap.builder();
+            for (int i = 0; i < count; i++) {
+                String name = strings[in.readInt()];
+                int superIndex = in.readInt();
+                int access = in.readInt();
+                List<String> interfaces = readStrings(in, strings);
+                List<String> annotations = readStrings(in, strings);
+                List<MemberHeader> fields = readMembers(in, strings);
+                List<MemberHeader> methods = readMembers(in, strings);
+                headers.put(
+                        name,
+                        new ClassHeader(
+                                name,
+                                superIndex == -1 ? null : strings[superIndex],
+                                interfaces,
+                                access,
+                                annotations,
+                                fields,
+                                methods));
+            }
+            return headers.build();
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid class header index: " + file, e);
+        }
+    }
+
+    @NonNull
+    private static ImmutableList<MemberHeader> readMembers(
+            @NonNull DataInputStream in, @NonNull String[] strings) throws IOException {
+        int count = in.readInt();
+        ImmutableList.Builder<MemberHeader> members = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            String name = strings[in.readInt()];
+            String desc = strings[in.readInt()];
+            int access = in.readInt();
+            members.add(new MemberHeader(name, desc, access, readStrings(in, strings)));
+        }
+        return members.build();
+    }
+
+    @NonNull
+    private static ImmutableList<String> readStrings(
+            @NonNull DataInputStream in, @NonNull String[] strings) throws IOException {
+        int count = in.readInt();
+        ImmutableList.Builder<String> values = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            values.add(strings[in.readInt()]);
+        }
+        return values.build();
+    }
+
+    /** The headers of the classes of a directory, read when they are first looked up. */
+    private static final class DirectoryHeaders {
+
+        @NonNull private final Path dir;
+        @NonNull private final Map<String, Optional<ClassHeader>> headers =
+                new ConcurrentHashMap<>();
+
+        DirectoryHeaders(@NonNull Path dir) {
+            this.dir = dir;
+        }
+
+        @Nullable
+        ClassHeader get(@NonNull String internalName) {
+            return headers.computeIfAbsent(internalName, this::read).orElse(null);
+        }
+
+        @NonNull
+        private Optional<ClassHeader> read(@NonNull String internalName) {
+            Path classFile = dir.resolve(internalName + SdkConstants.DOT_CLASS);
+            if (!Files.isRegularFile(classFile)) {
+                return Optional.empty();
+            }
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(classFile))) {
+                // Check the name, as the file system may not be case sensitive.
+                return Optional.ofNullable(readHeader(in))
+                        .filter(header -> header.getName().equals(internalName));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /** {@link ClassVisitor} building the {@link ClassHeader} of the visited class. */
+    private static final class HeaderVisitor extends ClassVisitor {
+
+        private String name;
+        private String superName;
+        private List<String> interfaces;
+        private int access;
+        @NonNull private final List<String> annotations = new ArrayList<>();
+        @NonNull private final List<MemberHeader> fields = new ArrayList<>();
+        @NonNull private final List<MemberHeader> methods = new ArrayList<>();
+
+        HeaderVisitor() {
+            super(Opcodes.ASM5);
+        }
+
+        @Override
+        public void visit(
+                int version,
+                int access,
+                String name,
+                String signature,
+                String superName,
+                String[] interfaces) {
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = ImmutableList.copyOf(interfaces);
+            this.access = access;
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            annotations.add(Type.getType(desc).getInternalName());
+            return null;
+        }
+
+        @Override
+        public FieldVisitor visitField(
+                int access, String name, String desc, String signature, Object value) {
+            List<String> memberAnnotations = new ArrayList<>();
+            return new FieldVisitor(Opcodes.ASM5) {
+                @Override
+                public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                    memberAnnotations.add(Type.getType(desc).getInternalName());
+                    return null;
+                }
+
+                @Override
+                public void visitEnd() {
+                    fields.add(new MemberHeader(name, desc, access, memberAnnotations));
+                }
+            };
+        }
+
+        @Override
+        public MethodVisitor visitMethod(
+                int access, String name, String desc, String signature, String[] exceptions) {
+            List<String> memberAnnotations = new ArrayList<>();
+            return new MethodVisitor(Opcodes.ASM5) {
+                @Override
+                public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                    memberAnnotations.add(Type.getType(desc).getInternalName());
+                    return null;
+                }
+
+                @Override
+                public void visitEnd() {
+                    methods.add(new MemberHeader(name, desc, access, memberAnnotations));
+                }
+            };
+        }
+
+        @NonNull
+        ClassHeader getHeader() {
+            return new ClassHeader(
+                    name, superName, interfaces, access, annotations, fields, methods);
+        }
+    }
+
+    /** The header of a class file, with the signatures of its members. */
+    public static final class ClassHeader {
+
+        @NonNull private final String name;
+        @Nullable private final String superName;
+        @NonNull private final ImmutableList<String> interfaces;
+        private final int access;
+        @NonNull private final ImmutableList<String> annotations;
+        @NonNull private final ImmutableList<MemberHeader> fields;
+        @NonNull private final ImmutableList<MemberHeader> methods;
+
+        ClassHeader(
+                @NonNull String name,
+                @Nullable String superName,
+                @NonNull List<String> interfaces,
+                int access,
+                @NonNull List<String> annotations,
+                @NonNull List<MemberHeader> fields,
+                @NonNull List<MemberHeader> methods) {
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = ImmutableList.copyOf(interfaces);
+            this.access = access;
+            this.annotations = ImmutableList.copyOf(annotations);
+            this.fields = ImmutableList.copyOf(fields);
+            this.methods = ImmutableList.copyOf(methods);
+        }
+
+        /** Returns the internal name of the class. */
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        /** Returns the internal name of the super class, {@code null} for java/lang/Object. */
+        @Nullable
+        public String getSuperName() {
+            return superName;
+        }
+
+        /** Returns the internal names of the interfaces implemented by the class. */
+        @NonNull
+        public ImmutableList<String> getInterfaces() {
+            return interfaces;
+        }
+
+        /** Returns the access flags of the class. */
+        public int getAccess() {
+            return access;
+        }
+
+        public boolean isInterface() {
+            return (access & Opcodes.ACC_INTERFACE) != 0;
+        }
+
+        /** Returns the internal names of the annotations of the class. */
+        @NonNull
+        public ImmutableList<String> getAnnotations() {
+            return annotations;
+        }
+
+        @NonNull
+        public ImmutableList<MemberHeader> getFields() {
+            return fields;
+        }
+
+        @NonNull
+        public ImmutableList<MemberHeader> getMethods() {
+            return methods;
+        }
+
+        /**
+         * Returns a new {@link ClassNode} with the header of the class and the signatures of its
+         * members, but without code nor annotations.
+         */
+        @NonNull
+        public ClassNode toClassNode() {
+            ClassNode node = new ClassNode();
+            node.name = name;
+            node.superName = superName;
+            node.access = access;
+            //noinspection unchecked ASM API
+            node.interfaces.addAll(interfaces);
+            for (MemberHeader field : fields) {
+                //noinspection unchecked ASM API
+                node.fields.add(
+                        new FieldNode(
+                                field.getAccess(), field.getName(), field.getDesc(), null, null));
+            }
+            for (MemberHeader method : methods) {
+                //noinspection unchecked ASM API
+                node.methods.add(
+                        new MethodNode(
+                                method.getAccess(),
+                                method.getName(),
+                                method.getDesc(),
+                                null,
+                                null));
+            }
+            return node;
+        }
+    }
+
+    /** The signature of a field or of a method. */
+    public static final class MemberHeader {
+
+        @NonNull private final String name;
+        @NonNull private final String desc;
+        private final int access;
+        @NonNull private final ImmutableList<String> annotations;
+
+        MemberHeader(
+                @NonNull String name,
+                @NonNull String desc,
+                int access,
+                @NonNull List<String> annotations) {
+            this.name = name;
+            this.desc = desc;
+            this.access = access;
+            this.annotations = ImmutableList.copyOf(annotations);
+        }
+
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        /** Returns the descriptor of the field or of the method. */
+        @NonNull
+        public String getDesc() {
+            return desc;
+        }
+
+        public int getAccess() {
+            return access;
+        }
+
+        /** Returns the internal names of the annotations of the member. */
+        @NonNull
+        public ImmutableList<String> getAnnotations() {
+            return annotations;
+        }
+    }
+}
@@ -422,7 +422,7 @@ public class DesugarTransform extends Transform {
             throws Exception {
         if (cache != null) {
             try {
-                FileCache.Inputs cacheKey = getBuildCacheInputs(input, minSdk);
+                FileCache.Inputs cacheKey = getBuildCacheInputs(cache, input, minSdk);
                 if (cache.cacheEntryExists(cacheKey)) {
                     FileCache.QueryResult result =
                             cache.createFile(
@@ -492,10 +492,10 @@ public class DesugarTransform extends Transform {
     }
 
     @NonNull
-    private static FileCache.Inputs getBuildCacheInputs(@NonNull Path input, int minSdkVersion)
-            throws IOException {
+    private static FileCache.Inputs getBuildCacheInputs(
+            @NonNull FileCache cache, @NonNull Path input, int minSdkVersion) throws IOException {
         FileCache.Inputs.Builder buildCacheInputs =
-                new FileCache.Inputs.Builder(FileCache.Command.DESUGAR_LIBRARY);
+                new FileCache.Inputs.Builder(FileCache.Command.DESUGAR_LIBRARY, cache);
 
         buildCacheInputs
                 .putFile(
@@ -88,7 +88,7 @@ class DexArchiveBuilderCacheHandler {
 
         FileCache.Inputs buildCacheInputs =
                 DexArchiveBuilderCacheHandler.getBuildCacheInputs(
-                        input.getFile(), dexOptions, dexer, minSdkVersion, isDebuggable);
+                        cache, input.getFile(), dexOptions, dexer, minSdkVersion, isDebuggable);
         return cache.cacheEntryExists(buildCacheInputs)
                 ? cache.getFileInCache(buildCacheInputs)
                 : null;
@@ -104,7 +104,12 @@ class DexArchiveBuilderCacheHandler {
             if (cache != null) {
                 FileCache.Inputs buildCacheInputs =
                         DexArchiveBuilderCacheHandler.getBuildCacheInputs(
-                                input.getFile(), dexOptions, dexer, minSdkVersion, isDebuggable);
+                                cache,
+                                input.getFile(),
+                                dexOptions,
+                                dexer,
+                                minSdkVersion,
+                                isDebuggable);
                 FileCache.QueryResult result =
                         cache.createFileInCacheIfAbsent(
                                 buildCacheInputs,
@@ -211,6 +216,7 @@ class DexArchiveBuilderCacheHandler {
      */
     @NonNull
     public static FileCache.Inputs getBuildCacheInputs(
+            @NonNull FileCache cache,
             @NonNull File inputFile,
             @NonNull DexOptions dexOptions,
             @NonNull DexerTool dexerTool,
@@ -220,7 +226,8 @@ class DexArchiveBuilderCacheHandler {
         // To use the cache, we need to specify all the inputs that affect the outcome of a pre-dex
         // (see DxDexKey for an exhaustive list of these inputs)
         FileCache.Inputs.Builder buildCacheInputs =
-                new FileCache.Inputs.Builder(FileCache.Command.PREDEX_LIBRARY_TO_DEX_ARCHIVE);
+                new FileCache.Inputs.Builder(
+                        FileCache.Command.PREDEX_LIBRARY_TO_DEX_ARCHIVE, cache);
 
         buildCacheInputs
                 .putFile(
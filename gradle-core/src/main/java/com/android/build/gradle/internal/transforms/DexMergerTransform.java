@@ -37,6 +37,8 @@ import com.android.build.gradle.internal.pipeline.TransformManager;
 import com.android.builder.core.ErrorReporter;
 import com.android.builder.dexing.DexMergerTool;
 import com.android.builder.dexing.DexingType;
+import com.android.builder.dexing.DxDexArchiveMerger;
+import com.android.dx.command.dexer.DxContext;
 import com.android.ide.common.blame.Message;
 import com.android.ide.common.blame.ParsingProcessOutputHandler;
 import com.android.ide.common.blame.parser.DexParser;
@@ -89,7 +91,8 @@ import org.gradle.api.file.FileCollection;
  * external libraries rarely change, and native multidex mode on android L does not support more
  * than 100 DEX files (see <a href="http://b.android.com/233093">http://b.android.com/233093</a>).
  * This means that in the incremental case, if the a dex archive of an external library has changed,
- * we will re-merge all external libraries again. If a dex archive of other type of input has
+ * we will re-merge all external libraries again. When using dx, only the DEX files that contain
+ * changed external libraries are written again. If a dex archive of other type of input has
  * changed, we will re-merge only that dex archive. For Android L, due to previously mentioned dex
  * file number limit, we might merge all directory inputs and all non-external jar inputs in two
  * separate dex merger invocations (see {@link #shouldMergeInputsForNative(Collection, Collection)}.
@@ -104,6 +107,9 @@ public class DexMergerTransform extends Transform {
     // dex files will be needed for the external dependencies.
     @VisibleForTesting public static final int EXTERNAL_DEPS_DEX_FILES = 50;
 
+    /** Name of the file in the temporary dir, storing the merging state of external libraries. */
+    private static final String EXTERNAL_LIBS_MERGING_STATE = "externalLibsMerging.bin";
+
     @NonNull private final DexingType dexingType;
     @Nullable private final FileCollection mainDexListFile;
     @NonNull private final DexMergerTool dexMerger;
@@ -214,6 +220,7 @@ public class DexMergerTransform extends Transform {
                                 transformInvocation.getInputs(),
                                 output,
                                 outputProvider,
+                                transformInvocation.getContext().getTemporaryDir(),
                                 transformInvocation.isIncremental());
             } else {
                 mergeTasks =
@@ -287,6 +294,7 @@ public class DexMergerTransform extends Transform {
             @NonNull Collection<TransformInput> inputs,
             @NonNull ProcessOutput output,
             @NonNull TransformOutputProvider outputProvider,
+            @NonNull File temporaryDir,
             boolean isIncremental)
             throws IOException {
 
@@ -314,7 +322,9 @@ public class DexMergerTransform extends Transform {
             }
         }
 
-        subTasks.addAll(processExternalJars(output, outputProvider, isIncremental, externalLibs));
+        subTasks.addAll(
+                processExternalJars(
+                        output, outputProvider, temporaryDir, isIncremental, externalLibs));
         return subTasks.build();
     }
 
@@ -526,10 +536,17 @@ public class DexMergerTransform extends Transform {
         return subTasks.build();
     }
 
+    /**
+     * All external libraries are merged together. When using dx, DEX files are assigned to the
+     * same merged DEX files as in the previous build, and only merged DEX files containing changed
+     * libraries are written again (see {@link
+     * DxDexArchiveMerger#mergeNativeMultidexIncrementally(Iterable, Path, Path)}).
+     */
     @NonNull
     private List<ForkJoinTask<Void>> processExternalJars(
             @NonNull ProcessOutput output,
             @NonNull TransformOutputProvider outputProvider,
+            @NonNull File temporaryDir,
             boolean isIncremental,
             List<JarInput> externalLibs)
             throws IOException {
@@ -541,16 +558,27 @@ public class DexMergerTransform extends Transform {
         if (!isIncremental
                 || externalLibs.stream().anyMatch(i -> i.getStatus() != Status.NOTCHANGED)) {
             // if non-incremental, or inputs have changed, merge again
-            FileUtils.cleanOutputDir(externalLibsOutput);
-            Iterable<Path> externalLibsToMerge =
+            List<Path> externalLibsToMerge =
                     externalLibs
                             .stream()
                             .filter(i -> i.getStatus() != Status.REMOVED)
                             .map(input -> input.getFile().toPath())
                             .collect(Collectors.toList());
-            if (!Iterables.isEmpty(externalLibsToMerge)) {
+            if (dexMerger == DexMergerTool.DX && !externalLibsToMerge.isEmpty()) {
+                File stateFile = new File(temporaryDir, EXTERNAL_LIBS_MERGING_STATE);
+                if (!isIncremental) {
+                    FileUtils.deleteIfExists(stateFile);
+                }
                 subTasks.add(
-                        submitForMerging(output, externalLibsOutput, externalLibsToMerge, null));
+                        submitForIncrementalMerging(
+                                output, externalLibsOutput, externalLibsToMerge, stateFile));
+            } else {
+                FileUtils.cleanOutputDir(externalLibsOutput);
+                if (!externalLibsToMerge.isEmpty()) {
+                    subTasks.add(
+                            submitForMerging(
+                                    output, externalLibsOutput, externalLibsToMerge, null));
+                }
             }
         }
 
@@ -587,6 +615,34 @@ public class DexMergerTransform extends Transform {
         return forkJoinPool.submit(callable);
     }
 
+    /**
+     * Add a native multidex merging task to the queue of tasks, that reuses the merged DEX files
+     * written by the previous build when possible. Only dx supports this.
+     *
+     * @param output the process output that dx will output to.
+     * @param dexOutputDir the directory to output dexes to
+     * @param dexArchives the dex archive inputs
+     * @param stateFile file storing the assignment of DEX files to the merged DEX files
+     * @return the {@link ForkJoinTask} instance for the submission.
+     */
+    @NonNull
+    private ForkJoinTask<Void> submitForIncrementalMerging(
+            @NonNull ProcessOutput output,
+            @NonNull File dexOutputDir,
+            @NonNull Iterable<Path> dexArchives,
+            @NonNull File stateFile) {
+        DxDexArchiveMerger merger =
+                new DxDexArchiveMerger(
+                        new DxContext(output.getStandardOutput(), output.getErrorOutput()),
+                        forkJoinPool);
+        return forkJoinPool.submit(
+                () -> {
+                    merger.mergeNativeMultidexIncrementally(
+                            dexArchives, dexOutputDir.toPath(), stateFile.toPath());
+                    return null;
+                });
+    }
+
     @NonNull
     private File getDexOutputLocation(
             @NonNull TransformOutputProvider outputProvider,
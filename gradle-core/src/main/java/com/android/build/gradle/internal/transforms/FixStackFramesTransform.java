@@ -50,9 +50,6 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLClassLoader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
@@ -76,7 +73,7 @@ import org.objectweb.asm.ClassWriter;
  *
  * <p>This transform will load all class files from all external jars, and will use ASM to
  * recalculate the stack frames information. In order to obtain new stack frames, types need to be
- * resolved.
+ * resolved. This is done with a {@link ClassHierarchyIndex}, so no classes are loaded in the JVM.
  *
  * <p>This transform requires external libraries as inputs, and all other scope types are
  * referenced. Reason is that loading a class from an external jar, might depend on loading a class
@@ -86,44 +83,26 @@ import org.objectweb.asm.ClassWriter;
  */
 public class FixStackFramesTransform extends Transform {
 
-    /** ASM class writer that uses specified class loader to resolve types. */
+    /** ASM class writer that uses the specified class hierarchy index to resolve types. */
     private static class FixFramesVisitor extends ClassWriter {
 
-        @NonNull private final URLClassLoader classLoader;
+        @NonNull private final ClassHierarchyIndex classHierarchyIndex;
 
-        public FixFramesVisitor(int flags, @NonNull URLClassLoader classLoader) {
+        public FixFramesVisitor(int flags, @NonNull ClassHierarchyIndex classHierarchyIndex) {
             super(flags);
-            this.classLoader = classLoader;
+            this.classHierarchyIndex = classHierarchyIndex;
         }
 
         @Override
         protected String getCommonSuperClass(String type1, String type2) {
-            Class<?> c;
-            Class<?> d;
-            ClassLoader classLoader = this.classLoader;
             try {
-                c = Class.forName(type1.replace('/', '.'), false, classLoader);
-                d = Class.forName(type2.replace('/', '.'), false, classLoader);
+                return classHierarchyIndex.getCommonSuperClass(type1, type2);
             } catch (Exception e) {
                 throw new RuntimeException(
                         String.format(
                                 "Unable to find common supper type for %s and %s.", type1, type2),
                         e);
             }
-            if (c.isAssignableFrom(d)) {
-                return type1;
-            }
-            if (d.isAssignableFrom(c)) {
-                return type2;
-            }
-            if (c.isInterface() || d.isInterface()) {
-                return "java/lang/Object";
-            } else {
-                do {
-                    c = c.getSuperclass();
-                } while (!c.isAssignableFrom(d));
-                return c.getName().replace('.', '/');
-            }
         }
     }
 
@@ -135,7 +114,7 @@ public class FixStackFramesTransform extends Transform {
     @NonNull private final List<Path> compilationBootclasspath;
     @Nullable private final FileCache userCache;
     @NonNull private final WaitableExecutor waitableExecutor;
-    @Nullable private URLClassLoader classLoader = null;
+    @Nullable private ClassHierarchyIndex classHierarchyIndex = null;
 
     public FixStackFramesTransform(
             @NonNull Supplier<List<File>> androidJarClasspath,
@@ -190,37 +169,34 @@ public class FixStackFramesTransform extends Transform {
     }
 
     @NonNull
-    private URLClassLoader getClassLoader(@NonNull TransformInvocation invocation)
-            throws MalformedURLException {
-        if (classLoader == null) {
-            ImmutableList.Builder<URL> urls = new ImmutableList.Builder<>();
-            for (File file : androidJarClasspath.get()) {
-                urls.add(file.toURI().toURL());
-            }
+    private synchronized ClassHierarchyIndex getClassHierarchyIndex(
+            @NonNull TransformInvocation invocation) throws IOException {
+        if (classHierarchyIndex == null) {
+            ImmutableList.Builder<File> classpath = new ImmutableList.Builder<>();
+            classpath.addAll(androidJarClasspath.get());
             for (Path bootClasspath : this.compilationBootclasspath) {
                 if (Files.exists(bootClasspath)) {
-                    urls.add(bootClasspath.toUri().toURL());
+                    classpath.add(bootClasspath.toFile());
                 }
             }
             for (TransformInput inputs :
                     Iterables.concat(invocation.getInputs(), invocation.getReferencedInputs())) {
                 for (DirectoryInput directoryInput : inputs.getDirectoryInputs()) {
                     if (directoryInput.getFile().isDirectory()) {
-                        urls.add(directoryInput.getFile().toURI().toURL());
+                        classpath.add(directoryInput.getFile());
                     }
                 }
                 for (JarInput jarInput : inputs.getJarInputs()) {
                     if (jarInput.getFile().isFile()) {
-                        urls.add(jarInput.getFile().toURI().toURL());
+                        classpath.add(jarInput.getFile());
                     }
                 }
             }
 
-            ImmutableList<URL> allUrls = urls.build();
-            URL[] classLoaderUrls = allUrls.toArray(new URL[allUrls.size()]);
-            classLoader = new URLClassLoader(classLoaderUrls);
+            classHierarchyIndex =
+                    ClassHierarchyIndex.createWithRuntimeClasses(classpath.build(), userCache);
         }
-        return classLoader;
+        return classHierarchyIndex;
     }
 
     @Override
@@ -259,9 +235,7 @@ public class FixStackFramesTransform extends Transform {
         } catch (Exception e) {
             throw new TransformException(e);
         } finally {
-            if (classLoader != null) {
-                classLoader.close();
-            }
+            classHierarchyIndex = null;
         }
     }
 
@@ -306,7 +280,8 @@ public class FixStackFramesTransform extends Transform {
                         // just copy it
                         newEntryContent = ByteStreams.toByteArray(originalFile);
                     } else {
-                        newEntryContent = getFixedClass(originalFile, getClassLoader(invocation));
+                        newEntryContent =
+                                getFixedClass(originalFile, getClassHierarchyIndex(invocation));
                     }
                     CRC32 crc32 = new CRC32();
                     crc32.update(newEntryContent);
@@ -328,12 +303,13 @@ public class FixStackFramesTransform extends Transform {
 
     @NonNull
     private static byte[] getFixedClass(
-            @NonNull InputStream originalFile, @NonNull URLClassLoader classLoader)
+            @NonNull InputStream originalFile, @NonNull ClassHierarchyIndex classHierarchyIndex)
             throws IOException {
         byte[] bytes = ByteStreams.toByteArray(originalFile);
         try {
             ClassReader classReader = new ClassReader(bytes);
-            ClassWriter classWriter = new FixFramesVisitor(ClassWriter.COMPUTE_FRAMES, classLoader);
+            ClassWriter classWriter =
+                    new FixFramesVisitor(ClassWriter.COMPUTE_FRAMES, classHierarchyIndex);
             classReader.accept(classWriter, ClassReader.SKIP_FRAMES);
             return classWriter.toByteArray();
         } catch (Throwable t) {
@@ -34,7 +34,9 @@ import com.android.build.api.transform.TransformException;
 import com.android.build.api.transform.TransformInput;
 import com.android.build.api.transform.TransformInvocation;
 import com.android.build.api.transform.TransformOutputProvider;
+import com.android.build.gradle.internal.BuildCacheUtils;
 import com.android.build.gradle.internal.LoggerWrapper;
+import com.android.build.gradle.internal.incremental.AsmUtils;
 import com.android.build.gradle.internal.incremental.IncrementalChangeVisitor;
 import com.android.build.gradle.internal.incremental.IncrementalSupportVisitor;
 import com.android.build.gradle.internal.incremental.IncrementalVisitor;
@@ -56,23 +58,23 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import org.gradle.api.logging.Logging;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
 
 /**
  * Implementation of the {@link Transform} to run the byte code enhancement logic on compiled
@@ -82,10 +84,19 @@ public class InstantRunTransform extends Transform {
 
     protected static final ILogger LOGGER =
             new LoggerWrapper(Logging.getLogger(InstantRunTransform.class));
-    private final ImmutableList.Builder<String> generatedClasses3Names = ImmutableList.builder();
+    /** The names of the classes.3 classes generated, written concurrently by the work items. */
+    private final Set<String> generatedClasses3Names = ConcurrentHashMap.newKeySet();
     private final InstantRunVariantScope transformScope;
     private final AndroidVersion targetPlatformApi;
     private final WaitableExecutor executor;
+    /** The jars and directories of the classes being transformed, and of their dependencies. */
+    @Nullable private List<File> classpath = null;
+    @Nullable private ClassHierarchyIndex classHierarchyIndex = null;
+    /** The providers of the classes of each input directory, shared by the work items. */
+    @NonNull
+    private final Map<File, AsmUtils.ClassReaderProvider> inputClasses = new ConcurrentHashMap<>();
+    /** Whether a work item found a class that cannot be hot swapped. */
+    private volatile boolean hotSwapDisabled = false;
 
     public InstantRunTransform(WaitableExecutor executor, InstantRunVariantScope transformScope) {
         this.transformScope = transformScope;
@@ -276,32 +287,14 @@ public class InstantRunTransform extends Transform {
             }
         }
 
-        // first get all referenced input to construct a class loader capable of loading those
-        // classes. This is useful for ASM as it needs to load classes
-        List<URL> referencedInputUrls = getAllClassesLocations(
-                invocation.getInputs(), invocation.getReferencedInputs());
-
-        // This class loader could be optimized a bit, first we could create a parent class loader
-        // with the android.jar only that could be stored in the GlobalScope for reuse. This
-        // class loader could also be store in the VariantScope for potential reuse if some
-        // other transform need to load project's classes.
-        try (URLClassLoader urlClassLoader = new NonDelegatingUrlClassloader(referencedInputUrls)) {
-            workItems.forEach(
-                    workItem ->
-                            executor.execute(
-                                    () -> {
-                                        ClassLoader currentThreadClassLoader =
-                                                Thread.currentThread().getContextClassLoader();
-                                        Thread.currentThread()
-                                                .setContextClassLoader(urlClassLoader);
-                                        try {
-                                            return workItem.doWork();
-                                        } finally {
-                                            Thread.currentThread()
-                                                    .setContextClassLoader(
-                                                            currentThreadClassLoader);
-                                        }
-                                    }));
+        // first get all referenced input to resolve the classes outside of the project. This is
+        // useful for ASM as it needs to know the class hierarchy. The index of these classes is
+        // only created if a work item needs it.
+        classpath =
+                getAllClassesLocations(invocation.getInputs(), invocation.getReferencedInputs());
+        boolean classesDisabled;
+        try {
+            workItems.forEach(workItem -> executor.execute(workItem::doWork));
 
             try {
                 // wait for all work items completion.
@@ -312,6 +305,18 @@ public class InstantRunTransform extends Transform {
             } catch (Exception e) {
                 throw new TransformException(e);
             }
+        } finally {
+            classpath = null;
+            classHierarchyIndex = null;
+            inputClasses.clear();
+            classesDisabled = hotSwapDisabled;
+            hotSwapDisabled = false;
+        }
+
+        // the work items do not update the build context concurrently, so that the verifier
+        // status does not depend on the order in which they completed.
+        if (classesDisabled) {
+            buildContext.setVerifierStatus(InstantRunVerifierStatus.INSTANT_RUN_DISABLED);
         }
 
         // If our classes.2 transformations indicated that a cold swap was necessary,
@@ -333,7 +338,10 @@ public class InstantRunTransform extends Transform {
             return;
         }
         // otherwise, generate the patch file and add it to the list of files to process next.
-        ImmutableList<String> generatedClassNames = generatedClasses3Names.build();
+        // The names are sorted as the work items generated the classes in no particular order.
+        ImmutableList<String> generatedClassNames =
+                Ordering.natural().immutableSortedCopy(generatedClasses3Names);
+        generatedClasses3Names.clear();
         if (!generatedClassNames.isEmpty()) {
             writePatchFileContents(
                     generatedClassNames,
@@ -344,47 +352,80 @@ public class InstantRunTransform extends Transform {
 
 
     /**
-     * Calculate a list of {@link URL} that represent all the directories containing classes
-     * either directly belonging to this project or referencing it.
+     * Calculate a list of {@link File} that represent all the jars and directories containing
+     * classes either directly belonging to this project or referencing it.
      *
      * @param inputs the project's inputs
      * @param referencedInputs the project's referenced inputs
-     * @return a {@link List} or {@link URL} for all the locations.
-     * @throws MalformedURLException if once the locatio
+     * @return a {@link List} or {@link File} for all the locations.
      */
     @NonNull
-    private List<URL> getAllClassesLocations(
+    private List<File> getAllClassesLocations(
             @NonNull Collection<TransformInput> inputs,
-            @NonNull Collection<TransformInput> referencedInputs) throws MalformedURLException {
+            @NonNull Collection<TransformInput> referencedInputs) {
 
-        List<URL> referencedInputUrls = new ArrayList<>();
+        List<File> referencedInputFiles = new ArrayList<>();
 
         // add the bootstrap classpath for jars like android.jar
-        for (File file : transformScope.getInstantRunBootClasspath()) {
-            referencedInputUrls.add(file.toURI().toURL());
-        }
+        referencedInputFiles.addAll(transformScope.getInstantRunBootClasspath());
 
         // now add the project dependencies.
         for (TransformInput referencedInput : referencedInputs) {
-            addAllClassLocations(referencedInput, referencedInputUrls);
+            addAllClassLocations(referencedInput, referencedInputFiles);
         }
 
         // and finally add input folders.
         for (TransformInput input : inputs) {
-            addAllClassLocations(input, referencedInputUrls);
+            addAllClassLocations(input, referencedInputFiles);
         }
-        return referencedInputUrls;
+        return referencedInputFiles;
     }
 
-    private static void addAllClassLocations(TransformInput transformInput, List<URL> into)
-            throws MalformedURLException {
+    private static void addAllClassLocations(TransformInput transformInput, List<File> into) {
 
         for (DirectoryInput directoryInput : transformInput.getDirectoryInputs()) {
-            into.add(directoryInput.getFile().toURI().toURL());
+            into.add(directoryInput.getFile());
         }
         for (JarInput jarInput : transformInput.getJarInputs()) {
-            into.add(jarInput.getFile().toURI().toURL());
+            into.add(jarInput.getFile());
+        }
+    }
+
+    /**
+     * Looks up a class outside of the instrumented classes, in the index of the classpath created
+     * the first time a class is looked up. Like the class loader used before the index, classes are
+     * not looked up in the JVM running the build, so a class missing from the classpath disables
+     * hot swapping the classes depending on it.
+     */
+    @Nullable
+    private ClassNode loadClassNode(@NonNull String className) throws IOException {
+        ClassHierarchyIndex.ClassHeader header = getClassHierarchyIndex().getHeader(className);
+        return header != null ? header.toClassNode() : null;
+    }
+
+    @NonNull
+    private synchronized ClassHierarchyIndex getClassHierarchyIndex() throws IOException {
+        if (classHierarchyIndex == null) {
+            classHierarchyIndex =
+                    ClassHierarchyIndex.create(
+                            Preconditions.checkNotNull(classpath),
+                            BuildCacheUtils.getUserIntermediatesCache(
+                                    transformScope.getGlobalScope()));
         }
+        return classHierarchyIndex;
+    }
+
+    /**
+     * Returns the provider of the classes of an input directory, which caches the outer and parent
+     * classes read while instrumenting the classes of the directory.
+     */
+    @NonNull
+    private AsmUtils.ClassReaderProvider getInputClasses(@NonNull File inputDir) {
+        return inputClasses.computeIfAbsent(
+                inputDir,
+                dir ->
+                        new AsmUtils.CachingClassReaderProvider(
+                                new AsmUtils.DirectoryBasedClassReader(dir)));
     }
 
     /**
@@ -410,6 +451,8 @@ public class InstantRunTransform extends Transform {
                     inputFile,
                     outputDir,
                     IncrementalSupportVisitor.VISITOR_BUILDER,
+                    getInputClasses(inputDir),
+                    this::loadClassNode,
                     LOGGER);
         }
         return null;
@@ -453,15 +496,15 @@ public class InstantRunTransform extends Transform {
                         inputFile,
                         outputDir,
                         IncrementalChangeVisitor.VISITOR_BUILDER,
+                        getInputClasses(inputDir),
+                        this::loadClassNode,
                         LOGGER);
 
         // if the visitor returned null, that means the class cannot be hot swapped or more likely
         // that it was disabled for InstantRun, we don't add it to our collection of generated
         // classes and it will not be part of the Patch class that apply changes.
         if (outputFile == null) {
-            transformScope
-                    .getInstantRunBuildContext()
-                    .setVerifierStatus(InstantRunVerifierStatus.INSTANT_RUN_DISABLED);
+            hotSwapDisabled = true;
             LOGGER.info("Class %s cannot be hot swapped.", inputFile);
             return null;
         }
@@ -537,17 +580,4 @@ public class InstantRunTransform extends Transform {
             throw new RuntimeException(e);
         }
     }
-
-    private static class NonDelegatingUrlClassloader extends URLClassLoader {
-
-        public NonDelegatingUrlClassloader(@NonNull List<URL> urls) {
-            super(urls.toArray(new URL[urls.size()]), null);
-        }
-
-        @Override
-        public URL getResource(String name) {
-            // Never delegate to bootstrap classes.
-            return findResource(name);
-        }
-    }
 }
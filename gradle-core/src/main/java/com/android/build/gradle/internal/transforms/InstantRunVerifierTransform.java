@@ -29,6 +29,7 @@ import com.android.build.api.transform.TransformException;
 import com.android.build.api.transform.TransformInput;
 import com.android.build.api.transform.TransformInvocation;
 import com.android.build.gradle.internal.LoggerWrapper;
+import com.android.build.gradle.internal.incremental.ClassFingerprintIndex;
 import com.android.build.gradle.internal.incremental.InstantRunBuildContext;
 import com.android.build.gradle.internal.incremental.InstantRunVerifier;
 import com.android.build.gradle.internal.incremental.InstantRunVerifier.ClassBytesJarEntryProvider;
@@ -39,6 +40,7 @@ import com.android.builder.model.OptionalCompilationStep;
 import com.android.builder.profile.Recorder;
 import com.android.utils.FileUtils;
 import com.android.utils.ILogger;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
@@ -66,6 +68,10 @@ import org.gradle.api.logging.Logging;
  * compare the new versions to the ones saved in the private directory. The result of this
  * verification process will be encapsulated in an instance of {@link VerificationResult} and stored
  * in the VariantScope.
+ *
+ * The fingerprints of the verified classes are kept in a {@link ClassFingerprintIndex} next to the
+ * private directory, so that a class changed again in a later build can be verified without
+ * parsing its saved version.
  */
 public class InstantRunVerifierTransform extends Transform {
 
@@ -74,7 +80,9 @@ public class InstantRunVerifierTransform extends Transform {
 
     private final InstantRunVariantScope variantScope;
     private final File outputDir;
+    private final File fingerprintsFile;
     private final Recorder recorder;
+    @Nullable private ClassFingerprintIndex fingerprints = null;
 
     /**
      * Object that encapsulates the result of the verification process.
@@ -103,6 +111,7 @@ public class InstantRunVerifierTransform extends Transform {
             @NonNull InstantRunVariantScope variantScope, @NonNull Recorder recorder) {
         this.variantScope = variantScope;
         this.outputDir = variantScope.getIncrementalVerifierDir();
+        this.fingerprintsFile = new File(outputDir.getPath() + ".fingerprints");
         this.recorder = recorder;
     }
 
@@ -133,6 +142,12 @@ public class InstantRunVerifierTransform extends Transform {
         } else {
             FileUtils.mkdirs(outputDir);
         }
+        if (isIncremental) {
+            fingerprints = ClassFingerprintIndex.load(fingerprintsFile);
+        } else {
+            FileUtils.deleteIfExists(fingerprintsFile);
+            fingerprints = new ClassFingerprintIndex();
+        }
 
         InstantRunVerifierStatus resultSoFar = InstantRunVerifierStatus.COMPATIBLE;
         for (TransformInput transformInput : inputs) {
@@ -140,6 +155,16 @@ public class InstantRunVerifierTransform extends Transform {
             resultSoFar = processJarInputs(resultSoFar, transformInput);
         }
 
+        if (fingerprints.isModified()) {
+            try {
+                fingerprints.write(fingerprintsFile);
+            } catch (IOException e) {
+                // the next changes will be verified by comparing the classes.
+                LOGGER.warning("Cannot write %1$s : %2$s", fingerprintsFile, e);
+            }
+        }
+        fingerprints = null;
+
         // If we are being asked to produce the RESTART artifacts, there is no need to set the
         // verifier result, however the transform needed to run to backup the .class files.
         // But we do record the result as a build-eligibility status, for the IDE.
@@ -179,8 +204,11 @@ public class InstantRunVerifierTransform extends Transform {
                     continue;
                 }
                 File lastIterationFile = getOutputFile(inputDir, inputFile, outputDir);
+                String relativePath =
+                        FileUtils.relativePossiblyNonExistingPath(inputFile, inputDir);
                 switch(changedFile.getValue()) {
                     case REMOVED:
+                        Preconditions.checkNotNull(fingerprints).remove(relativePath);
                         // remove the backup file.
                         if (lastIterationFile.exists() && !lastIterationFile.delete()) {
                             // it's not a big deal if the file cannot be deleted, hopefully
@@ -199,7 +227,7 @@ public class InstantRunVerifierTransform extends Transform {
                         // if we have not failed any verification so far.
                         if (verificationResult == InstantRunVerifierStatus.COMPATIBLE) {
                             if (lastIterationFile.exists()) {
-                                verificationResult = runVerifier(inputFile.getName(),
+                                verificationResult = runVerifier(relativePath,
                                         new InstantRunVerifier.ClassBytesFileProvider(
                                                 lastIterationFile),
                                         new InstantRunVerifier.ClassBytesFileProvider(inputFile));
@@ -331,12 +359,19 @@ public class InstantRunVerifierTransform extends Transform {
         if (!name.endsWith(SdkConstants.DOT_CLASS)) {
             return InstantRunVerifierStatus.COMPATIBLE;
         }
+        ClassFingerprintIndex classFingerprints = Preconditions.checkNotNull(fingerprints);
         InstantRunVerifierStatus status =
                 recorder.record(
                         ExecutionType.TASK_FILE_VERIFICATION,
                         variantScope.getGlobalScope().getProject().getPath(),
                         variantScope.getFullVariantName(),
-                        () -> InstantRunVerifier.run(originalClass, updatedClass, LOGGER));
+                        () ->
+                                InstantRunVerifier.run(
+                                        originalClass,
+                                        updatedClass,
+                                        classFingerprints,
+                                        name,
+                                        LOGGER));
         // TODO: re-add approximation of target.
         if (status == null) {
             LOGGER.warning("No verifier result provided for %1$s", name);
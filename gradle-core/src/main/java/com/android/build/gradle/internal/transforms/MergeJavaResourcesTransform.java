@@ -35,7 +35,7 @@ import com.android.build.gradle.internal.packaging.ParsedPackagingOptions;
 import com.android.build.gradle.internal.pipeline.ExtendedContentType;
 import com.android.build.gradle.internal.pipeline.IncrementalFileMergerTransformUtils;
 import com.android.build.gradle.internal.scope.VariantScope;
-import com.android.builder.files.FileCacheByPath;
+import com.android.builder.files.ZipIndexCache;
 import com.android.builder.merge.DelegateIncrementalFileMergerOutput;
 import com.android.builder.merge.FilterIncrementalFileMergerInput;
 import com.android.builder.merge.IncrementalFileMerger;
@@ -56,14 +56,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -109,7 +108,7 @@ public class MergeJavaResourcesTransform extends Transform {
         this.intermediateDir = variantScope.getIncrementalDir(
                 variantScope.getFullVariantName() + "-" + name);
 
-        cacheDir = new File(intermediateDir, "zip-cache");
+        cacheDir = new File(intermediateDir, "zip-index");
 
         if (mergedType == QualifiedContent.DefaultContentType.RESOURCES) {
             acceptedPathsPredicate =
@@ -189,20 +188,21 @@ public class MergeJavaResourcesTransform extends Transform {
     /**
      * Loads the incremental state.
      *
-     * @return {@code null} if the state is not defined
-     * @throws IOException failed to load the incremental state
+     * @return {@code null} if the state is not defined or cannot be read, for example because it
+     *     was written by an older version of the plugin
      */
     @Nullable
-    private IncrementalFileMergerState loadMergeState() throws IOException {
+    private IncrementalFileMergerState loadMergeState() {
         File incrementalFile = incrementalStateFile();
         if (!incrementalFile.isFile()) {
             return null;
         }
 
-        try (ObjectInputStream i = new ObjectInputStream(new FileInputStream(incrementalFile))) {
-            return (IncrementalFileMergerState) i.readObject();
-        } catch (ClassNotFoundException e) {
-            throw new IOException(e);
+        try (FileInputStream i = new FileInputStream(incrementalFile)) {
+            return IncrementalFileMergerState.read(i);
+        } catch (IOException e) {
+            // A full merge will be done.
+            return null;
         }
     }
 
@@ -216,16 +216,22 @@ public class MergeJavaResourcesTransform extends Transform {
         File incrementalFile = incrementalStateFile();
 
         FileUtils.mkdirs(incrementalFile.getParentFile());
-        try (ObjectOutputStream o = new ObjectOutputStream(new FileOutputStream(incrementalFile))) {
-            o.writeObject(state);
+        try (FileOutputStream o = new FileOutputStream(incrementalFile)) {
+            state.write(o);
         }
     }
 
     @Override
     public void transform(@NonNull TransformInvocation invocation)
             throws IOException, TransformException {
+        // Older versions kept copies of the input jars rather than their indexes.
+        File legacyCacheDir = new File(intermediateDir, "zip-cache");
+        if (legacyCacheDir.exists()) {
+            FileUtils.deletePath(legacyCacheDir);
+        }
+
         FileUtils.mkdirs(cacheDir);
-        FileCacheByPath zipCache = new FileCacheByPath(cacheDir);
+        ZipIndexCache zipCache = new ZipIndexCache(cacheDir);
 
         TransformOutputProvider outputProvider = invocation.getOutputProvider();
         checkNotNull(outputProvider, "Missing output object for transform " + getName());
@@ -335,7 +341,7 @@ public class MergeJavaResourcesTransform extends Transform {
         /*
          * Create an output that uses the algorithm. This is not the final output because,
          * unfortunately, we still have the complexity of the project scope overriding other scopes
-         * to solve.
+         * to solve. Paths are merged in parallel, but written in order.
          *
          * When resources inside a jar file are extracted to a directory, the results may not be
          * expected on Windows if the file names end with "." (bug 65337573), or if there is an
@@ -349,7 +355,9 @@ public class MergeJavaResourcesTransform extends Transform {
                             "resources", getOutputTypes(), getScopes(), Format.JAR);
             baseOutput =
                     IncrementalFileMergerOutputs.fromAlgorithmAndWriter(
-                            mergeTransformAlgorithm, MergeOutputWriters.toZip(outputLocation));
+                            mergeTransformAlgorithm,
+                            MergeOutputWriters.toZip(outputLocation),
+                            ForkJoinPool.commonPool());
         } else {
             File outputLocation =
                     outputProvider.getContentLocation(
@@ -357,7 +365,8 @@ public class MergeJavaResourcesTransform extends Transform {
             baseOutput =
                     IncrementalFileMergerOutputs.fromAlgorithmAndWriter(
                             mergeTransformAlgorithm,
-                            MergeOutputWriters.toDirectory(outputLocation));
+                            MergeOutputWriters.toDirectory(outputLocation),
+                            ForkJoinPool.commonPool());
         }
 
         /*
@@ -146,6 +146,7 @@ class PreDexCallable implements Callable<Void> {
         if (buildCache != null) {
             FileCache.Inputs buildCacheInputs =
                     getBuildCacheInputs(
+                            buildCache,
                             from,
                             androidBuilder.getTargetInfo().getBuildTools().getRevision(),
                             dexOptions,
@@ -196,6 +197,7 @@ class PreDexCallable implements Callable<Void> {
      */
     @NonNull
     private static FileCache.Inputs getBuildCacheInputs(
+            @NonNull FileCache buildCache,
             @NonNull File inputFile,
             @NonNull Revision buildToolsRevision,
             @NonNull DexOptions dexOptions,
@@ -205,7 +207,7 @@ class PreDexCallable implements Callable<Void> {
         // To use the cache, we need to specify all the inputs that affect the outcome of a pre-dex
         // (see DxDexKey for an exhaustive list of these inputs)
         FileCache.Inputs.Builder buildCacheInputs =
-                new FileCache.Inputs.Builder(FileCache.Command.PREDEX_LIBRARY);
+                new FileCache.Inputs.Builder(FileCache.Command.PREDEX_LIBRARY, buildCache);
 
         buildCacheInputs
                 .putFile(
@@ -21,6 +21,11 @@ import com.android.annotations.Nullable;
 
 public enum LongOption implements Option<Long> {
     DEPRECATED_NDK_COMPILE_LEASE("android.deprecatedNdkCompileLease"),
+    /**
+     * Size budget of the build cache in megabytes. If set, the least recently used build cache
+     * entries are evicted once the build cache grows larger than this budget.
+     */
+    BUILD_CACHE_MAX_SIZE_IN_MB("android.buildCacheMaxSizeInMB"),
     ;
 
     @NonNull private final String propertyName;
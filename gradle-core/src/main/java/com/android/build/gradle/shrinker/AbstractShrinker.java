@@ -27,24 +27,28 @@ import com.android.build.api.transform.JarInput;
 import com.android.build.api.transform.QualifiedContent;
 import com.android.build.api.transform.TransformInput;
 import com.android.build.api.transform.TransformOutputProvider;
+import com.android.build.gradle.internal.incremental.JarHandlePool;
 import com.android.build.gradle.shrinker.parser.BytecodeVersion;
+import com.android.build.gradle.shrinker.tracing.NoOpTracer;
 import com.android.build.gradle.shrinker.tracing.Trace;
 import com.android.build.gradle.shrinker.tracing.Tracer;
 import com.android.ide.common.internal.WaitableExecutor;
 import com.android.utils.FileUtils;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Iterables;
-import com.google.common.io.ByteStreams;
+import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Predicate;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
 import java.util.stream.Collectors;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -63,6 +67,12 @@ public abstract class AbstractShrinker<T> {
     private static final boolean IGNORE_PACKAGE_NAME =
             Boolean.getBoolean("android.newShrinker.ignorePackageName");
 
+    /** Number of counter increments processed by a single task when marking reachable nodes. */
+    private static final int MARKING_BATCH_SIZE = 256;
+
+    /** Number of jars kept open while the classes read from jars are rewritten. */
+    private static final int MAX_IDLE_JAR_HANDLES = 32;
+
     protected final WaitableExecutor mExecutor;
 
     protected final ShrinkerGraph<T> mGraph;
@@ -167,32 +177,6 @@ public abstract class AbstractShrinker<T> {
         return input.getJarInputs().stream().map(JarInput::getFile).collect(Collectors.toList());
     }
 
-    /**
-     * Increments the counter on the given graph node. If the node just became reachable, keeps on
-     * walking the graph to find newly reachable nodes.
-     *
-     * @param node node to increment
-     * @param dependencyType type of counter to increment
-     * @param counterSet set of counters to work on
-     * @param tracer tracer for recording paths to nodes
-     * @param trace trace of how we got here
-     */
-    protected void incrementCounter(
-            @NonNull T node,
-            @NonNull DependencyType dependencyType,
-            @NonNull CounterSet counterSet,
-            @NonNull Tracer<T> tracer,
-            @NonNull Trace<T> trace) {
-        if (mGraph.incrementAndCheck(node, dependencyType, counterSet)) {
-            trace = trace.with(node, dependencyType);
-            tracer.nodeReached(node, trace);
-
-            for (Dependency<T> dependency : mGraph.getDependencies(node)) {
-                incrementCounter(dependency.target, dependency.type, counterSet, tracer, trace);
-            }
-        }
-    }
-
     /**
      * Finds existing methods or fields (graph nodes) which encountered opcodes refer to. Updates
      * the graph with additional edges accordingly.
@@ -264,22 +248,25 @@ public abstract class AbstractShrinker<T> {
 
     /**
      * Rewrites the given class (read from file) to only include used methods and fields and
-     * interfaces. Returns the new class bytecode as {@code byte[]}.
+     * interfaces. Returns the new class bytecode as {@code byte[]}. Classes in jars are read
+     * through the given pool, so that the jar is not opened again for every class.
      */
     @NonNull
     protected byte[] rewrite(
             @NonNull String className,
             @NonNull File classFile,
             @NonNull Set<String> membersToKeep,
-            @NonNull Predicate<String> keepInterface)
+            @NonNull Predicate<String> keepInterface,
+            @NonNull JarHandlePool jarHandlePool)
             throws IOException {
         byte[] bytes;
         if (Files.getFileExtension(classFile.getName()).equals("class")) {
             bytes = Files.toByteArray(classFile);
         } else {
-            try (JarFile jarFile = new JarFile(classFile)) {
-                JarEntry jarEntry = jarFile.getJarEntry(className + ".class");
-                bytes = ByteStreams.toByteArray(jarFile.getInputStream(jarEntry));
+            bytes = jarHandlePool.readEntry(classFile, className + ".class");
+            if (bytes == null) {
+                throw new IOException(
+                        "Class " + className + " not found in " + classFile.getAbsolutePath());
             }
         }
 
@@ -297,22 +284,61 @@ public abstract class AbstractShrinker<T> {
 
     /**
      * Walks the entire graph, starting from the roots, and increments counters for reachable nodes.
+     *
+     * <p>The graph is walked breadth first, one level at a time. The counter increments of a level
+     * are split into batches that are processed in parallel, and the dependencies of nodes that
+     * just became reachable form the next level. Whether a node is reachable only depends on which
+     * counters were incremented and not on the order of increments, so the result is the same as
+     * the one of a sequential walk. Traces do depend on the order in which nodes are reached, so
+     * when they are recorded, every level is processed sequentially, in order.
      */
     protected void setCounters(@NonNull final CounterSet counterSet, @NonNull Tracer<T> tracer) {
-        Map<T, DependencyType> roots = mGraph.getRoots(counterSet);
-        for (final Map.Entry<T, DependencyType> toIncrementEntry : roots.entrySet()) {
-            mExecutor.execute(
-                    () -> {
-                        incrementCounter(
-                                toIncrementEntry.getKey(),
-                                toIncrementEntry.getValue(),
-                                counterSet,
-                                tracer,
-                                tracer.startTrace());
-                        return null;
-                    });
+        Trace<T> startTrace = tracer.startTrace();
+        List<Visit<T>> level = new ArrayList<>();
+        for (Map.Entry<T, DependencyType> root : mGraph.getRoots(counterSet).entrySet()) {
+            level.add(new Visit<>(root.getKey(), root.getValue(), startTrace));
+        }
+
+        boolean recordingTraces = !(tracer instanceof NoOpTracer);
+        while (!level.isEmpty()) {
+            if (recordingTraces) {
+                List<Visit<T>> nextLevel = new ArrayList<>();
+                visitNodes(level, counterSet, tracer, nextLevel);
+                level = nextLevel;
+            } else {
+                Queue<Visit<T>> nextLevel = new ConcurrentLinkedQueue<>();
+                for (List<Visit<T>> batch : Lists.partition(level, MARKING_BATCH_SIZE)) {
+                    mExecutor.execute(
+                            () -> {
+                                visitNodes(batch, counterSet, tracer, nextLevel);
+                                return null;
+                            });
+                }
+                waitForAllTasks();
+                level = new ArrayList<>(nextLevel);
+            }
+        }
+    }
+
+    /**
+     * Increments the counters for the given visits. For every node that just became reachable, adds
+     * visits of its dependencies to {@code nextLevel}.
+     */
+    private void visitNodes(
+            @NonNull List<Visit<T>> visits,
+            @NonNull CounterSet counterSet,
+            @NonNull Tracer<T> tracer,
+            @NonNull Collection<Visit<T>> nextLevel) {
+        for (Visit<T> visit : visits) {
+            if (mGraph.incrementAndCheck(visit.node, visit.dependencyType, counterSet)) {
+                Trace<T> trace = visit.trace.with(visit.node, visit.dependencyType);
+                tracer.nodeReached(visit.node, trace);
+
+                for (Dependency<T> dependency : mGraph.getDependencies(visit.node)) {
+                    nextLevel.add(new Visit<>(dependency.target, dependency.type, trace));
+                }
+            }
         }
-        waitForAllTasks();
     }
 
     /** Writes updates class files to the outputs. */
@@ -322,6 +348,22 @@ public abstract class AbstractShrinker<T> {
             @NonNull Iterable<TransformInput> inputs,
             @NonNull TransformOutputProvider output)
             throws IOException {
+        try (JarHandlePool jarHandlePool = new JarHandlePool(MAX_IDLE_JAR_HANDLES)) {
+            rewriteClassFiles(classesToWrite, inputs, output, jarHandlePool);
+        }
+
+        for (File classFile : classFilesToDelete) {
+            FileUtils.delete(classFile);
+        }
+    }
+
+    /** Rewrites the class files on the executor, and waits for all of them to be written. */
+    private void rewriteClassFiles(
+            @NonNull Iterable<T> classesToWrite,
+            @NonNull Iterable<TransformInput> inputs,
+            @NonNull TransformOutputProvider output,
+            @NonNull JarHandlePool jarHandlePool)
+            throws IOException {
         for (final T klass : classesToWrite) {
             final File sourceFile = mGraph.getSourceFile(klass);
             checkState(sourceFile != null, "Program class has no source file.");
@@ -349,17 +391,14 @@ public abstract class AbstractShrinker<T> {
                                         sourceFile,
                                         mGraph.getReachableMembersLocalNames(
                                                 klass, CounterSet.SHRINK),
-                                        keepInterfacePredicate);
+                                        keepInterfacePredicate,
+                                        jarHandlePool);
 
                         Files.write(newBytes, outputFile.get());
                         return null;
                     });
         }
 
-        for (File classFile : classFilesToDelete) {
-            FileUtils.delete(classFile);
-        }
-
         waitForAllTasks();
     }
 
@@ -380,6 +419,19 @@ public abstract class AbstractShrinker<T> {
         LEGACY_MULTIDEX
     }
 
+    /** Pending increment of a node counter, found while walking the graph. */
+    private static final class Visit<T> {
+        @NonNull final T node;
+        @NonNull final DependencyType dependencyType;
+        @NonNull final Trace<T> trace;
+
+        Visit(@NonNull T node, @NonNull DependencyType dependencyType, @NonNull Trace<T> trace) {
+            this.node = node;
+            this.dependencyType = dependencyType;
+            this.trace = trace;
+        }
+    }
+
     public static void logTime(String section, Stopwatch stopwatch) {
         if (System.getProperty("android.newShrinker.profile") != null) {
             System.out.println(section + ": " + stopwatch);
@@ -0,0 +1,1212 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.shrinker;
+
+import static com.android.build.gradle.shrinker.AbstractShrinker.isSdkPackage;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.build.gradle.shrinker.AbstractShrinker.CounterSet;
+import com.android.build.gradle.shrinker.IncrementalShrinker.IncrementalRunImpossibleException;
+import com.android.ide.common.internal.WaitableExecutor;
+import com.android.utils.FileUtils;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Function;
+import java.util.function.LongPredicate;
+
+/**
+ * {@link ShrinkerGraph} implementation that interns class and member names to int ids and keeps
+ * all the data about nodes in primitive arrays.
+ *
+ * <p>Nodes are represented as strings in the API (internal names for classes and {@code
+ * owner.name:desc} for class members), but every node gets a dense int id the first time it's
+ * seen. Edges, members and annotations are then stored as ids in primitive arrays, instead of maps
+ * of strings and {@link Dependency} objects.
+ *
+ * <p>Reachability only depends on which counters of a node are non-zero, so every counter is
+ * stored as a single bit. The bits of all counter sets fit in one int per node, which is updated
+ * atomically without locking, so that the graph can be marked by many threads at once.
+ *
+ * <p>The per-node arrays are split into fixed size chunks, which are allocated as the graph grows
+ * and never moved. Every chunk is guarded by its own monitor, so threads adding nodes and edges in
+ * parallel only contend when they modify nodes from the same chunk.
+ *
+ * <p>The state is saved to a versioned binary file, which is memory-mapped and decoded with bulk
+ * reads when the graph is loaded for an incremental run.
+ */
+public class CompactShrinkerGraph implements ShrinkerGraph<String> {
+
+    /** Version of the state file format, needs to be bumped every time the format changes. */
+    @VisibleForTesting static final int VERSION = 2;
+
+    @VisibleForTesting static final int MAGIC = 0x53475248;
+
+    private static final boolean MAPPING_SUPPORTED =
+            SdkConstants.currentPlatform() != SdkConstants.PLATFORM_WINDOWS;
+
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final int NO_NODE = -1;
+
+    /** Set on nodes passed to {@link #addClass(String, String, String[], int, File)}. */
+    private static final int FLAG_CLASS = 1;
+
+    /** Set on nodes passed to {@link #addMember(String, String, String, int)}. */
+    private static final int FLAG_MEMBER = 2;
+
+    private static final CounterSet[] COUNTER_SETS = CounterSet.values();
+    private static final DependencyType[] DEPENDENCY_TYPES = DependencyType.values();
+
+    // Bits of the counters of a single counter set, see DependencyType for how they are used.
+    private static final int REQUIRED = 1;
+    private static final int IF_CLASS_KEPT = 1 << 1;
+    private static final int CLASS_IS_KEPT = 1 << 2;
+    private static final int SUPERINTERFACE_KEPT = 1 << 3;
+    private static final int INTERFACE_IMPLEMENTED = 1 << 4;
+    private static final int COUNTER_BITS_PER_SET = 5;
+
+    /** Edges are packed into longs, with the target id in the high bits. */
+    private static final int EDGE_TYPE_BITS = 8;
+
+    @NonNull private final File mStateDir;
+
+    @NonNull private final ConcurrentMap<String, Integer> mIds;
+
+    @NonNull private final Object mInternLock = new Object();
+
+    @NonNull private volatile Chunk[] mChunks;
+
+    private volatile int mNodeCount;
+
+    @NonNull private final ConcurrentMap<String, DependencyType> mShrinkRoots;
+
+    @NonNull private final ConcurrentMap<String, DependencyType> mMultidexRoots;
+
+    private CompactShrinkerGraph(@NonNull File stateDir) {
+        mStateDir = checkNotNull(stateDir);
+        mIds = Maps.newConcurrentMap();
+        mChunks = new Chunk[0];
+        mNodeCount = 0;
+        mShrinkRoots = Maps.newConcurrentMap();
+        mMultidexRoots = Maps.newConcurrentMap();
+    }
+
+    public static CompactShrinkerGraph empty(@NonNull File stateDir) {
+        return new CompactShrinkerGraph(stateDir);
+    }
+
+    /**
+     * Constructs a graph from the state saved by {@link #saveState()}.
+     *
+     * @param dir directory where the state was saved
+     * @throws IncrementalRunImpossibleException if the state was saved by a different version of
+     *     the graph, or is corrupted
+     */
+    public static CompactShrinkerGraph readFromDir(@NonNull File dir) throws IOException {
+        File stateFile = getStateFile(dir);
+        ByteBuffer buffer;
+        if (MAPPING_SUPPORTED) {
+            try (FileChannel channel =
+                    FileChannel.open(stateFile.toPath(), StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        } else {
+            // Mapped files cannot be deleted on Windows until the mapping is garbage collected,
+            // which would make saving the state at the end of the run fail.
+            buffer = ByteBuffer.wrap(Files.toByteArray(stateFile));
+        }
+
+        try {
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+                throw new IncrementalRunImpossibleException("Unknown shrinker state format.");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IncrementalRunImpossibleException(
+                        String.format(
+                                "Shrinker state was saved with version %d, expected %d.",
+                                version, VERSION));
+            }
+
+            CompactShrinkerGraph graph = new CompactShrinkerGraph(dir);
+            graph.readNodes(buffer);
+            return graph;
+        } catch (BufferUnderflowException
+                | IndexOutOfBoundsException
+                | IllegalArgumentException
+                | NegativeArraySizeException e) {
+            throw new IncrementalRunImpossibleException(e);
+        }
+    }
+
+    @NonNull
+    @Override
+    public String addMember(
+            @NonNull String owner, @NonNull String name, @NonNull String desc, int modifiers) {
+        int ownerId = intern(owner);
+        int id = intern(getFullMemberName(owner, name, desc));
+
+        Chunk chunk = chunk(id);
+        synchronized (chunk) {
+            int index = id & CHUNK_MASK;
+            chunk.flags[index] |= FLAG_MEMBER;
+            chunk.modifiers[index] = modifiers;
+        }
+
+        Chunk ownerChunk = chunk(ownerId);
+        synchronized (ownerChunk) {
+            ownerChunk.members.add(ownerId & CHUNK_MASK, id);
+        }
+        return getName(id);
+    }
+
+    @NonNull
+    @Override
+    public String getMemberReference(
+            @NonNull String className, @NonNull String memberName, @NonNull String desc) {
+        return getName(intern(getFullMemberName(className, memberName, desc)));
+    }
+
+    @Override
+    public void addDependency(
+            @NonNull String source, @NonNull String target, @NonNull DependencyType type) {
+        int sourceId = intern(source);
+        long edge = toEdge(intern(target), type);
+
+        Chunk chunk = chunk(sourceId);
+        synchronized (chunk) {
+            chunk.dependencies.add(sourceId & CHUNK_MASK, edge);
+        }
+    }
+
+    @NonNull
+    @Override
+    public Set<Dependency<String>> getDependencies(@NonNull String node) {
+        int id = lookup(node);
+        if (id == NO_NODE) {
+            return Sets.newHashSet();
+        }
+
+        long[] edges = getEdges(id);
+        Set<Dependency<String>> dependencies = Sets.newHashSetWithExpectedSize(edges.length);
+        for (long edge : edges) {
+            dependencies.add(
+                    new Dependency<>(getName(getEdgeTarget(edge)), getEdgeType(edge)));
+        }
+        return dependencies;
+    }
+
+    @NonNull
+    @Override
+    public Set<String> getMethods(@NonNull String klass) {
+        Set<String> methods = Sets.newHashSet();
+        for (int member : getMembers(klass)) {
+            String name = getName(member);
+            if (isMethod(name)) {
+                methods.add(name);
+            }
+        }
+        return methods;
+    }
+
+    @NonNull
+    @Override
+    public Set<String> getFields(@NonNull String klass) {
+        Set<String> fields = Sets.newHashSet();
+        for (int member : getMembers(klass)) {
+            String name = getName(member);
+            if (!isMethod(name)) {
+                fields.add(name);
+            }
+        }
+        return fields;
+    }
+
+    @Override
+    public boolean incrementAndCheck(
+            @NonNull String node, @NonNull DependencyType type, @NonNull CounterSet counterSet) {
+        int id = intern(node);
+        int counter = getCounter(type) << getCountersShift(counterSet);
+        int before = chunk(id).counters.getAndAccumulate(id & CHUNK_MASK, counter, (a, b) -> a | b);
+        return isReachable(before, counterSet) != isReachable(before | counter, counterSet);
+    }
+
+    @Override
+    public void saveState() throws IOException {
+        File stateFile = getStateFile(mStateDir);
+        FileUtils.deleteIfExists(stateFile);
+        Files.createParentDirs(stateFile);
+
+        try (DataOutputStream stream =
+                new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(stateFile)))) {
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            writeNodes(stream);
+        }
+    }
+
+    @Override
+    public boolean isReachable(@NonNull String node, @NonNull CounterSet counterSet) {
+        int id = lookup(node);
+        if (id == NO_NODE) {
+            return false;
+        }
+
+        return isReachable(chunk(id).counters.get(id & CHUNK_MASK), counterSet);
+    }
+
+    @Override
+    public void removeAllCodeDependencies(@NonNull String node) {
+        int id = lookup(node);
+        if (id == NO_NODE) {
+            return;
+        }
+
+        Chunk chunk = chunk(id);
+        synchronized (chunk) {
+            chunk.dependencies.removeIf(
+                    id & CHUNK_MASK,
+                    edge -> {
+                        DependencyType type = getEdgeType(edge);
+                        return type == DependencyType.REQUIRED_CODE_REFERENCE
+                                || type == DependencyType.REQUIRED_CODE_REFERENCE_REFLECTION;
+                    });
+        }
+    }
+
+    @Nullable
+    @Override
+    public String getSuperclass(@NonNull String klass) throws ClassLookupException {
+        int id = lookup(klass);
+        if (!hasFlag(id, FLAG_CLASS)) {
+            throw new ClassLookupException(klass);
+        }
+
+        int superclass;
+        Chunk chunk = chunk(id);
+        synchronized (chunk) {
+            superclass = chunk.superclasses[id & CHUNK_MASK];
+        }
+
+        if (superclass == NO_NODE) {
+            return null;
+        }
+
+        String superclassName = getName(superclass);
+        if (!hasFlag(superclass, FLAG_CLASS)) {
+            throw new ClassLookupException(superclassName);
+        }
+        return superclassName;
+    }
+
+    @Nullable
+    @Override
+    public String findMatchingMethod(@NonNull String klass, @NonNull String method) {
+        int klassId = lookup(klass);
+        if (klassId == NO_NODE) {
+            return null;
+        }
+
+        // Common case:
+        int methodId = lookup(method);
+        if (isMemberOf(methodId, klassId)) {
+            return getName(methodId);
+        }
+
+        int matchingId = lookup(klass + "." + getMemberId(method));
+        if (isMemberOf(matchingId, klassId)) {
+            return getName(matchingId);
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isProgramClass(@NonNull String klass) {
+        if (isSdkPackage(klass)) {
+            return false;
+        }
+
+        int id = lookup(klass);
+        if (id == NO_NODE) {
+            return false;
+        }
+
+        Chunk chunk = chunk(id);
+        synchronized (chunk) {
+            return isProgramClass(chunk, id & CHUNK_MASK);
+        }
+    }
+
+    @NonNull
+    @Override
+    public String[] getInterfaces(String klass) throws ClassLookupException {
+        int id = lookup(klass);
+        if (!hasFlag(id, FLAG_CLASS)) {
+            throw new ClassLookupException(klass);
+        }
+
+        int[] interfaces;
+        Chunk chunk = chunk(id);
+        synchronized (chunk) {
+            interfaces = chunk.interfaces.get(id & CHUNK_MASK);
+        }
+        return getNames(interfaces).toArray(new String[interfaces.length]);
+    }
+
+    @Override
+    public void checkDependencies(ShrinkerLogger shrinkerLogger) {
+        int nodeCount = mNodeCount;
+        for (int source = 0; source < nodeCount; source++) {
+            long[] edges = getEdges(source);
+            if (edges.length == 0) {
+                continue;
+            }
+
+            String sourceName = getName(source);
+            Set<Long> invalidEdges = Sets.newHashSet();
+            for (long edge : edges) {
+                int target = getEdgeTarget(edge);
+                String targetName = getName(target);
+                if (!isMember(targetName)) {
+                    if (!hasFlag(target, FLAG_CLASS)) {
+                        // We don't warn about by-name references in strings.
+                        if (getEdgeType(edge)
+                                != DependencyType.REQUIRED_CODE_REFERENCE_REFLECTION) {
+                            shrinkerLogger.invalidClassReference(sourceName, targetName);
+                            invalidEdges.add(edge);
+                        }
+                    }
+                } else {
+                    if (!hasFlag(target, FLAG_MEMBER)) {
+                        shrinkerLogger.invalidMemberReference(sourceName, targetName);
+                        invalidEdges.add(edge);
+                    }
+                }
+            }
+
+            if (!invalidEdges.isEmpty()) {
+                Chunk chunk = chunk(source);
+                synchronized (chunk) {
+                    chunk.dependencies.removeIf(source & CHUNK_MASK, invalidEdges::contains);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addTypeFromGenericSignature(@NonNull String klass, @NonNull String type) {
+        int id = intern(klass);
+        int typeId = intern(type);
+
+        Chunk chunk = chunk(id);
+        synchronized (chunk) {
+            chunk.typesFromSignatures.add(id & CHUNK_MASK, typeId);
+        }
+    }
+
+    @NonNull
+    @Override
+    public Set<String> getTypesFromGenericSignatures(@NonNull String klass) {
+        int id = lookup(klass);
+        if (id == NO_NODE) {
+            return Sets.newHashSet();
+        }
+
+        int[] types;
+        Chunk chunk = chunk(id);
+        synchronized (chunk) {
+            types = chunk.typesFromSignatures.get(id & CHUNK_MASK);
+        }
+        return Sets.newHashSet(getNames(types));
+    }
+
+    @NonNull
+    @Override
+    public Set<String> getReachableClasses(@NonNull CounterSet counterSet) {
+        Set<String> classesToKeep = Sets.newHashSet();
+        int nodeCount = mNodeCount;
+        for (int id = 0; id < nodeCount; id++) {
+            Chunk chunk = chunk(id);
+            int index = id & CHUNK_MASK;
+            synchronized (chunk) {
+                if (isProgramClass(chunk, index)
+                        && isReachable(chunk.counters.get(index), counterSet)) {
+                    classesToKeep.add(chunk.names[index]);
+                }
+            }
+        }
+
+        return classesToKeep;
+    }
+
+    @Nullable
+    @Override
+    public File getSourceFile(@NonNull String klass) {
+        int id = lookup(klass);
+        if (id == NO_NODE) {
+            return null;
+        }
+
+        Chunk chunk = chunk(id);
+        synchronized (chunk) {
+            return chunk.classFiles[id & CHUNK_MASK];
+        }
+    }
+
+    @NonNull
+    @Override
+    public Set<String> getReachableMembersLocalNames(
+            @NonNull String klass, @NonNull CounterSet counterSet) {
+        Set<String> memberIds = Sets.newHashSet();
+        for (int member : getMembers(klass)) {
+            if (isReachable(chunk(member).counters.get(member & CHUNK_MASK), counterSet)) {
+                memberIds.add(getMemberId(getName(member)));
+            }
+        }
+
+        return memberIds;
+    }
+
+    @NonNull
+    @Override
+    public String getOwnerClass(@NonNull String member) {
+        int id = lookup(member);
+        if (id != NO_NODE) {
+            int owner = chunk(id).owners[id & CHUNK_MASK];
+            if (owner != NO_NODE) {
+                return getName(owner);
+            }
+        }
+        Preconditions.checkArgument(isMember(member), "Class name passed as argument.");
+        return getOwnerClassName(member);
+    }
+
+    @NonNull
+    @Override
+    public String getClassReference(@NonNull String className) {
+        checkNotNull(className);
+        return getName(intern(className));
+    }
+
+    @NonNull
+    @Override
+    public String addClass(
+            @NonNull String name,
+            @Nullable String superName,
+            @Nullable String[] interfaces,
+            int modifiers,
+            @Nullable File classFile) {
+        int id = intern(name);
+        int superclass = superName != null ? intern(superName) : NO_NODE;
+        int[] interfaceIds = new int[interfaces != null ? interfaces.length : 0];
+        for (int i = 0; i < interfaceIds.length; i++) {
+            interfaceIds[i] = intern(interfaces[i]);
+        }
+
+        Chunk chunk = chunk(id);
+        synchronized (chunk) {
+            int index = id & CHUNK_MASK;
+            chunk.flags[index] |= FLAG_CLASS;
+            chunk.modifiers[index] = modifiers;
+            chunk.superclasses[index] = superclass;
+            chunk.interfaces.set(index, interfaceIds);
+            chunk.classFiles[index] = classFile;
+        }
+        return getName(id);
+    }
+
+    @NonNull
+    @Override
+    public Iterable<String> getAllProgramClasses() {
+        List<String> classes = Lists.newArrayList();
+        int nodeCount = mNodeCount;
+        for (int id = 0; id < nodeCount; id++) {
+            Chunk chunk = chunk(id);
+            int index = id & CHUNK_MASK;
+            synchronized (chunk) {
+                if ((chunk.flags[index] & FLAG_CLASS) != 0 && chunk.classFiles[index] != null) {
+                    classes.add(chunk.names[index]);
+                }
+            }
+        }
+
+        return classes;
+    }
+
+    @NonNull
+    @Override
+    public String getClassName(@NonNull String klass) {
+        return klass;
+    }
+
+    @Override
+    public int getModifiers(@NonNull String node) {
+        int id = lookup(node);
+        Preconditions.checkArgument(
+                hasFlag(id, FLAG_CLASS | FLAG_MEMBER), "Unknown node %s.", node);
+
+        Chunk chunk = chunk(id);
+        synchronized (chunk) {
+            return chunk.modifiers[id & CHUNK_MASK];
+        }
+    }
+
+    @Override
+    public void addAnnotation(@NonNull String node, @NonNull String annotationName) {
+        Preconditions.checkArgument(!annotationName.endsWith(";"));
+        int id = intern(node);
+        int annotation = intern(annotationName);
+
+        Chunk chunk = chunk(id);
+        synchronized (chunk) {
+            chunk.annotations.add(id & CHUNK_MASK, annotation);
+        }
+    }
+
+    @NonNull
+    @Override
+    public Iterable<String> getAnnotations(@NonNull String node) {
+        int id = lookup(node);
+        if (id == NO_NODE) {
+            return Lists.newArrayList();
+        }
+
+        int[] annotations;
+        Chunk chunk = chunk(id);
+        synchronized (chunk) {
+            annotations = chunk.annotations.get(id & CHUNK_MASK);
+        }
+        return getNames(annotations);
+    }
+
+    @Override
+    public void addRoots(
+            @NonNull Map<String, DependencyType> symbolsToKeep, @NonNull CounterSet counterSet) {
+        for (String symbol : symbolsToKeep.keySet()) {
+            // Make sure every root has an id, so that it can be saved.
+            intern(symbol);
+        }
+        getRootsMap(counterSet).putAll(symbolsToKeep);
+    }
+
+    @NonNull
+    @Override
+    public Map<String, DependencyType> getRoots(@NonNull CounterSet counterSet) {
+        return ImmutableMap.copyOf(getRootsMap(counterSet));
+    }
+
+    @Override
+    public void clearCounters(@NonNull WaitableExecutor executor) {
+        for (Chunk chunk : mChunks) {
+            if (chunk == null) {
+                break;
+            }
+            for (int index = 0; index < CHUNK_SIZE; index++) {
+                chunk.counters.set(index, 0);
+            }
+        }
+    }
+
+    @Override
+    public String getMemberName(@NonNull String member) {
+        return member.substring(member.indexOf('.') + 1, member.indexOf(':'));
+    }
+
+    @Override
+    public String getFullMemberName(@NonNull String member) {
+        return member;
+    }
+
+    @Override
+    public String getMemberDescriptor(@NonNull String member) {
+        return member.substring(member.indexOf(':') + 1);
+    }
+
+    @Override
+    public boolean isClassKnown(@NonNull String klass) {
+        return hasFlag(lookup(klass), FLAG_CLASS);
+    }
+
+    /** Returns the id of the given node, or {@link #NO_NODE} if the node was never seen. */
+    private int lookup(@NonNull String node) {
+        Integer id = mIds.get(node);
+        return id != null ? id : NO_NODE;
+    }
+
+    /** Returns the id of the given node, assigning a new one if the node was never seen. */
+    private int intern(@NonNull String node) {
+        Integer id = mIds.get(node);
+        if (id != null) {
+            return id;
+        }
+
+        int owner = isMember(node) ? intern(getOwnerClassName(node)) : NO_NODE;
+        synchronized (mInternLock) {
+            id = mIds.get(node);
+            if (id != null) {
+                return id;
+            }
+
+            int newId = mNodeCount;
+            Chunk chunk = allocateChunk(newId);
+            chunk.names[newId & CHUNK_MASK] = node;
+            chunk.owners[newId & CHUNK_MASK] = owner;
+            // Publish the name and owner before the id can be seen by other threads.
+            mNodeCount = newId + 1;
+            mIds.put(node, newId);
+            return newId;
+        }
+    }
+
+    /** Returns the chunk for the given id, allocating it if needed. Requires the intern lock. */
+    @NonNull
+    private Chunk allocateChunk(int id) {
+        Chunk[] chunks = mChunks;
+        int chunkIndex = id >>> CHUNK_BITS;
+        if (chunkIndex == chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(16, chunks.length * 2));
+        }
+        if (chunks[chunkIndex] == null) {
+            chunks[chunkIndex] = new Chunk();
+            mChunks = chunks;
+        }
+        return chunks[chunkIndex];
+    }
+
+    @NonNull
+    private Chunk chunk(int id) {
+        return mChunks[id >>> CHUNK_BITS];
+    }
+
+    @NonNull
+    private String getName(int id) {
+        return chunk(id).names[id & CHUNK_MASK];
+    }
+
+    @NonNull
+    private List<String> getNames(@NonNull int[] ids) {
+        List<String> names = Lists.newArrayListWithCapacity(ids.length);
+        for (int id : ids) {
+            names.add(getName(id));
+        }
+        return names;
+    }
+
+    private boolean hasFlag(int id, int flag) {
+        if (id == NO_NODE) {
+            return false;
+        }
+
+        Chunk chunk = chunk(id);
+        synchronized (chunk) {
+            return (chunk.flags[id & CHUNK_MASK] & flag) != 0;
+        }
+    }
+
+    private boolean isMemberOf(int member, int klass) {
+        return member != NO_NODE
+                && chunk(member).owners[member & CHUNK_MASK] == klass
+                && hasFlag(member, FLAG_MEMBER);
+    }
+
+    @NonNull
+    private int[] getMembers(@NonNull String klass) {
+        int id = lookup(klass);
+        if (id == NO_NODE) {
+            return IntLists.EMPTY;
+        }
+
+        Chunk chunk = chunk(id);
+        synchronized (chunk) {
+            return chunk.members.get(id & CHUNK_MASK);
+        }
+    }
+
+    @NonNull
+    private long[] getEdges(int id) {
+        Chunk chunk = chunk(id);
+        synchronized (chunk) {
+            return chunk.dependencies.get(id & CHUNK_MASK);
+        }
+    }
+
+    @NonNull
+    private ConcurrentMap<String, DependencyType> getRootsMap(@NonNull CounterSet counterSet) {
+        if (counterSet == CounterSet.SHRINK) {
+            return mShrinkRoots;
+        } else {
+            return mMultidexRoots;
+        }
+    }
+
+    private static boolean isProgramClass(@NonNull Chunk chunk, int index) {
+        return (chunk.flags[index] & FLAG_CLASS) != 0
+                && chunk.classFiles[index] != null
+                && !isSdkPackage(chunk.names[index]);
+    }
+
+    private static int getCountersShift(@NonNull CounterSet counterSet) {
+        return counterSet.ordinal() * COUNTER_BITS_PER_SET;
+    }
+
+    private static int getCounter(@NonNull DependencyType type) {
+        switch (type) {
+            case REQUIRED_CLASS_STRUCTURE:
+            case REQUIRED_CODE_REFERENCE:
+            case REQUIRED_CODE_REFERENCE_REFLECTION:
+            case REQUIRED_KEEP_RULES:
+                return REQUIRED;
+            case IF_CLASS_KEPT:
+                return IF_CLASS_KEPT;
+            case CLASS_IS_KEPT:
+                return CLASS_IS_KEPT;
+            case SUPERINTERFACE_KEPT:
+                return SUPERINTERFACE_KEPT;
+            case INTERFACE_IMPLEMENTED:
+                return INTERFACE_IMPLEMENTED;
+            default:
+                throw new IllegalArgumentException("Unknown dependency type.");
+        }
+    }
+
+    private static boolean isReachable(int counters, @NonNull CounterSet counterSet) {
+        int bits = counters >>> getCountersShift(counterSet);
+        return (bits & REQUIRED) != 0
+                || ((bits & IF_CLASS_KEPT) != 0 && (bits & CLASS_IS_KEPT) != 0)
+                || ((bits & SUPERINTERFACE_KEPT) != 0 && (bits & INTERFACE_IMPLEMENTED) != 0);
+    }
+
+    private static long toEdge(int target, @NonNull DependencyType type) {
+        return ((long) target << EDGE_TYPE_BITS) | type.ordinal();
+    }
+
+    private static int getEdgeTarget(long edge) {
+        return (int) (edge >>> EDGE_TYPE_BITS);
+    }
+
+    @NonNull
+    private static DependencyType getEdgeType(long edge) {
+        return DEPENDENCY_TYPES[(int) (edge & ((1 << EDGE_TYPE_BITS) - 1))];
+    }
+
+    /**
+     * Writes all the nodes. Every per-node field is written as a separate array, so that it can be
+     * read back with a single bulk read.
+     */
+    private void writeNodes(@NonNull DataOutputStream stream) throws IOException {
+        int nodeCount = mNodeCount;
+        stream.writeInt(nodeCount);
+
+        List<byte[]> names = Lists.newArrayListWithCapacity(nodeCount);
+        for (int id = 0; id < nodeCount; id++) {
+            names.add(getName(id).getBytes(StandardCharsets.UTF_8));
+        }
+        writeStrings(stream, names);
+
+        List<byte[]> classFiles = Lists.newArrayList();
+        int[] owners = new int[nodeCount];
+        int[] flags = new int[nodeCount];
+        int[] modifiers = new int[nodeCount];
+        int[] superclasses = new int[nodeCount];
+        int[] classFileIndexes = new int[nodeCount];
+        int[][] interfaces = new int[nodeCount][];
+        int[][] members = new int[nodeCount][];
+        int[][] annotations = new int[nodeCount][];
+        int[][] typesFromSignatures = new int[nodeCount][];
+        long[][] dependencies = new long[nodeCount][];
+        int[] counters = new int[nodeCount];
+
+        for (int id = 0; id < nodeCount; id++) {
+            Chunk chunk = chunk(id);
+            int index = id & CHUNK_MASK;
+            synchronized (chunk) {
+                owners[id] = chunk.owners[index];
+                flags[id] = chunk.flags[index];
+                modifiers[id] = chunk.modifiers[index];
+                superclasses[id] = chunk.superclasses[index];
+                File classFile = chunk.classFiles[index];
+                if (classFile != null) {
+                    classFileIndexes[id] = classFiles.size();
+                    classFiles.add(classFile.getPath().getBytes(StandardCharsets.UTF_8));
+                } else {
+                    classFileIndexes[id] = NO_NODE;
+                }
+                interfaces[id] = chunk.interfaces.get(index);
+                members[id] = chunk.members.get(index);
+                annotations[id] = chunk.annotations.get(index);
+                typesFromSignatures[id] = chunk.typesFromSignatures.get(index);
+                dependencies[id] = chunk.dependencies.get(index);
+            }
+            counters[id] = chunk.counters.get(index);
+        }
+
+        writeInts(stream, owners);
+        writeInts(stream, flags);
+        writeInts(stream, modifiers);
+        writeInts(stream, superclasses);
+        writeInts(stream, classFileIndexes);
+        writeStrings(stream, classFiles);
+        writeIntLists(stream, interfaces);
+        writeIntLists(stream, members);
+        writeIntLists(stream, annotations);
+        writeIntLists(stream, typesFromSignatures);
+
+        int edgesCount = 0;
+        for (long[] edges : dependencies) {
+            stream.writeInt(edges.length);
+            edgesCount += edges.length;
+        }
+        stream.writeInt(edgesCount);
+        for (long[] edges : dependencies) {
+            for (long edge : edges) {
+                stream.writeLong(edge);
+            }
+        }
+
+        writeInts(stream, counters);
+
+        for (CounterSet counterSet : COUNTER_SETS) {
+            Map<String, DependencyType> roots = getRootsMap(counterSet);
+            stream.writeInt(roots.size());
+            for (Map.Entry<String, DependencyType> root : roots.entrySet()) {
+                stream.writeInt(lookup(root.getKey()));
+                stream.writeInt(root.getValue().ordinal());
+            }
+        }
+    }
+
+    /** Reads the nodes written by {@link #writeNodes(DataOutputStream)} into this empty graph. */
+    private void readNodes(@NonNull ByteBuffer buffer) {
+        int nodeCount = buffer.getInt();
+        String[] names = readStrings(buffer);
+        if (names.length != nodeCount) {
+            throw new IncrementalRunImpossibleException("Corrupted shrinker state.");
+        }
+        int[] owners = readInts(buffer, nodeCount);
+        int[] flags = readInts(buffer, nodeCount);
+        int[] modifiers = readInts(buffer, nodeCount);
+        int[] superclasses = readInts(buffer, nodeCount);
+        int[] classFileIndexes = readInts(buffer, nodeCount);
+        String[] classFiles = readStrings(buffer);
+
+        Chunk[] chunks = new Chunk[(nodeCount + CHUNK_SIZE - 1) >>> CHUNK_BITS];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new Chunk();
+        }
+
+        for (int id = 0; id < nodeCount; id++) {
+            Chunk chunk = chunks[id >>> CHUNK_BITS];
+            int index = id & CHUNK_MASK;
+            chunk.names[index] = names[id];
+            chunk.owners[index] = owners[id];
+            chunk.flags[index] = flags[id];
+            chunk.modifiers[index] = modifiers[id];
+            chunk.superclasses[index] = superclasses[id];
+            if (classFileIndexes[id] != NO_NODE) {
+                chunk.classFiles[index] = new File(classFiles[classFileIndexes[id]]);
+            }
+            mIds.put(names[id], id);
+        }
+
+        readIntLists(buffer, chunks, nodeCount, chunk -> chunk.interfaces);
+        readIntLists(buffer, chunks, nodeCount, chunk -> chunk.members);
+        readIntLists(buffer, chunks, nodeCount, chunk -> chunk.annotations);
+        readIntLists(buffer, chunks, nodeCount, chunk -> chunk.typesFromSignatures);
+
+        int[] edgesCounts = readInts(buffer, nodeCount);
+        long[] edges = new long[buffer.getInt()];
+        buffer.asLongBuffer().get(edges);
+        buffer.position(buffer.position() + edges.length * Long.BYTES);
+        int start = 0;
+        for (int id = 0; id < nodeCount; id++) {
+            int end = start + edgesCounts[id];
+            chunks[id >>> CHUNK_BITS].dependencies.set(
+                    id & CHUNK_MASK, Arrays.copyOfRange(edges, start, end));
+            start = end;
+        }
+
+        int[] counters = readInts(buffer, nodeCount);
+        for (int id = 0; id < nodeCount; id++) {
+            chunks[id >>> CHUNK_BITS].counters.set(id & CHUNK_MASK, counters[id]);
+        }
+
+        for (CounterSet counterSet : COUNTER_SETS) {
+            Map<String, DependencyType> roots = getRootsMap(counterSet);
+            int rootsCount = buffer.getInt();
+            for (int i = 0; i < rootsCount; i++) {
+                roots.put(names[buffer.getInt()], DEPENDENCY_TYPES[buffer.getInt()]);
+            }
+        }
+
+        // Publish the chunks last, so that they are visible together with the node count.
+        mChunks = chunks;
+        mNodeCount = nodeCount;
+    }
+
+    private static void writeInts(@NonNull DataOutputStream stream, @NonNull int[] values)
+            throws IOException {
+        for (int value : values) {
+            stream.writeInt(value);
+        }
+    }
+
+    @NonNull
+    private static int[] readInts(@NonNull ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * Integer.BYTES);
+        return values;
+    }
+
+    /** Writes all the lengths first, then all the contents, so that both are bulk readable. */
+    private static void writeIntLists(@NonNull DataOutputStream stream, @NonNull int[][] lists)
+            throws IOException {
+        int total = 0;
+        for (int[] list : lists) {
+            stream.writeInt(list.length);
+            total += list.length;
+        }
+        stream.writeInt(total);
+        for (int[] list : lists) {
+            writeInts(stream, list);
+        }
+    }
+
+    private static void readIntLists(
+            @NonNull ByteBuffer buffer,
+            @NonNull Chunk[] chunks,
+            int nodeCount,
+            @NonNull Function<Chunk, IntLists> field) {
+        int[] lengths = readInts(buffer, nodeCount);
+        int[] values = readInts(buffer, buffer.getInt());
+        int start = 0;
+        for (int id = 0; id < nodeCount; id++) {
+            int end = start + lengths[id];
+            if (end > start) {
+                field.apply(chunks[id >>> CHUNK_BITS])
+                        .set(id & CHUNK_MASK, Arrays.copyOfRange(values, start, end));
+            }
+            start = end;
+        }
+    }
+
+    private static void writeStrings(
+            @NonNull DataOutputStream stream, @NonNull List<byte[]> strings) throws IOException {
+        stream.writeInt(strings.size());
+        int end = 0;
+        for (byte[] string : strings) {
+            end += string.length;
+            stream.writeInt(end);
+        }
+        for (byte[] string : strings) {
+            stream.write(string);
+        }
+    }
+
+    @NonNull
+    private static String[] readStrings(@NonNull ByteBuffer buffer) {
+        int count = buffer.getInt();
+        int[] ends = readInts(buffer, count);
+        byte[] bytes = new byte[count > 0 ? ends[count - 1] : 0];
+        buffer.get(bytes);
+
+        String[] strings = new String[count];
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            strings[i] = new String(bytes, start, ends[i] - start, StandardCharsets.UTF_8);
+            start = ends[i];
+        }
+        return strings;
+    }
+
+    @NonNull
+    private static String getFullMemberName(
+            @NonNull String className, @NonNull String memberName, @NonNull String desc) {
+        return className + "." + memberName + ":" + desc;
+    }
+
+    @NonNull
+    private static String getOwnerClassName(@NonNull String member) {
+        return member.substring(0, member.indexOf('.'));
+    }
+
+    @NonNull
+    private static String getMemberId(@NonNull String member) {
+        return member.substring(member.indexOf('.') + 1);
+    }
+
+    @NonNull
+    private static File getStateFile(@NonNull File dir) {
+        return new File(dir, "shrinker.bin");
+    }
+
+    private static boolean isMember(@NonNull String node) {
+        return node.indexOf('.') != -1;
+    }
+
+    private static boolean isMethod(@NonNull String member) {
+        return member.contains("(");
+    }
+
+    /** Data of {@link #CHUNK_SIZE} consecutive nodes, guarded by the chunk's monitor. */
+    private static final class Chunk {
+        @NonNull final String[] names = new String[CHUNK_SIZE];
+
+        /** Owner class of members, {@link #NO_NODE} for classes. Set once, when interning. */
+        @NonNull final int[] owners = new int[CHUNK_SIZE];
+
+        @NonNull final int[] flags = new int[CHUNK_SIZE];
+
+        @NonNull final int[] modifiers = new int[CHUNK_SIZE];
+
+        @NonNull final int[] superclasses = new int[CHUNK_SIZE];
+
+        @NonNull final File[] classFiles = new File[CHUNK_SIZE];
+
+        @NonNull final IntLists interfaces = new IntLists();
+
+        @NonNull final IntLists members = new IntLists();
+
+        @NonNull final IntLists annotations = new IntLists();
+
+        @NonNull final IntLists typesFromSignatures = new IntLists();
+
+        @NonNull final LongLists dependencies = new LongLists();
+
+        /** Counter bits of all counter sets, not guarded by the monitor. */
+        @NonNull final AtomicIntegerArray counters = new AtomicIntegerArray(CHUNK_SIZE);
+    }
+
+    /** Growable sets of ints, one for every node in a chunk. */
+    private static final class IntLists {
+        static final int[] EMPTY = new int[0];
+
+        @NonNull private final int[][] mValues = new int[CHUNK_SIZE][];
+
+        @NonNull private final int[] mSizes = new int[CHUNK_SIZE];
+
+        /** Adds the value to the set at the given index, unless it's already there. */
+        void add(int index, int value) {
+            int[] values = mValues[index];
+            int size = mSizes[index];
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value) {
+                    return;
+                }
+            }
+
+            if (values == null || size == values.length) {
+                values = values == null ? new int[4] : Arrays.copyOf(values, size * 2);
+                mValues[index] = values;
+            }
+            values[size] = value;
+            mSizes[index] = size + 1;
+        }
+
+        /** Returns a copy of the set at the given index. */
+        @NonNull
+        int[] get(int index) {
+            int size = mSizes[index];
+            return size == 0 ? EMPTY : Arrays.copyOf(mValues[index], size);
+        }
+
+        void set(int index, @NonNull int[] values) {
+            mValues[index] = values;
+            mSizes[index] = values.length;
+        }
+    }
+
+    /** Growable sets of longs, one for every node in a chunk. */
+    private static final class LongLists {
+        static final long[] EMPTY = new long[0];
+
+        @NonNull private final long[][] mValues = new long[CHUNK_SIZE][];
+
+        @NonNull private final int[] mSizes = new int[CHUNK_SIZE];
+
+        /** Adds the value to the set at the given index, unless it's already there. */
+        void add(int index, long value) {
+            long[] values = mValues[index];
+            int size = mSizes[index];
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value) {
+                    return;
+                }
+            }
+
+            if (values == null || size == values.length) {
+                values = values == null ? new long[4] : Arrays.copyOf(values, size * 2);
+                mValues[index] = values;
+            }
+            values[size] = value;
+            mSizes[index] = size + 1;
+        }
+
+        /** Returns a copy of the set at the given index. */
+        @NonNull
+        long[] get(int index) {
+            int size = mSizes[index];
+            return size == 0 ? EMPTY : Arrays.copyOf(mValues[index], size);
+        }
+
+        void set(int index, @NonNull long[] values) {
+            mValues[index] = values;
+            mSizes[index] = values.length;
+        }
+
+        /** Removes all values matching the predicate from the set at the given index. */
+        void removeIf(int index, @NonNull LongPredicate predicate) {
+            long[] values = mValues[index];
+            int size = mSizes[index];
+            int newSize = 0;
+            for (int i = 0; i < size; i++) {
+                if (!predicate.test(values[i])) {
+                    values[newSize++] = values[i];
+                }
+            }
+            mSizes[index] = newSize;
+        }
+    }
+}
@@ -23,15 +23,18 @@ import com.android.annotations.Nullable;
 import com.android.annotations.concurrency.Immutable;
 import com.android.build.api.transform.TransformInput;
 import com.android.build.api.transform.TransformOutputProvider;
+import com.android.build.gradle.internal.transforms.ClassHierarchyIndex;
 import com.android.build.gradle.shrinker.parser.BytecodeVersion;
 import com.android.build.gradle.shrinker.tracing.NoOpTracer;
 import com.android.build.gradle.shrinker.tracing.RealTracer;
 import com.android.build.gradle.shrinker.tracing.Trace;
 import com.android.build.gradle.shrinker.tracing.Tracer;
+import com.android.builder.utils.FileCache;
 import com.android.ide.common.internal.WaitableExecutor;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 import com.google.common.collect.TreeTraverser;
 import com.google.common.io.ByteStreams;
@@ -76,14 +79,19 @@ public class FullRunShrinker<T> extends AbstractShrinker<T> {
 
     private final Set<File> mPlatformJars;
 
+    /** Cache of the headers of the classes of the platform and library jars, if any. */
+    @Nullable private final FileCache mClassHeadersCache;
+
     public FullRunShrinker(
             @NonNull WaitableExecutor executor,
             @NonNull ShrinkerGraph<T> graph,
             @NonNull Set<File> platformJars,
             @NonNull ShrinkerLogger shrinkerLogger,
-            @Nullable BytecodeVersion bytecodeVersion) {
+            @Nullable BytecodeVersion bytecodeVersion,
+            @Nullable FileCache classHeadersCache) {
         super(graph, executor, shrinkerLogger, bytecodeVersion);
         mPlatformJars = platformJars;
+        mClassHeadersCache = classHeadersCache;
     }
 
     /**
@@ -147,7 +155,7 @@ public class FullRunShrinker<T> extends AbstractShrinker<T> {
             }
 
             for (final File jarFile : getAllJars(input)) {
-                processJarFile(jarFile, this::processLibraryClass);
+                processLibraryJar(jarFile);
             }
         }
 
@@ -416,6 +424,28 @@ public class FullRunShrinker<T> extends AbstractShrinker<T> {
                 ClassReader.SKIP_CODE | ClassReader.SKIP_FRAMES | ClassReader.SKIP_DEBUG);
     }
 
+    /** Adds a library class to the graph, like {@link ClassStructureVisitor} does. */
+    private void processLibraryClass(@NonNull ClassHierarchyIndex.ClassHeader header) {
+        T klass =
+                mGraph.addClass(
+                        header.getName(),
+                        header.getSuperName(),
+                        header.getInterfaces().toArray(new String[0]),
+                        header.getAccess(),
+                        null);
+        for (String annotation : header.getAnnotations()) {
+            mGraph.addAnnotation(klass, annotation);
+        }
+        for (ClassHierarchyIndex.MemberHeader member :
+                Iterables.concat(header.getFields(), header.getMethods())) {
+            T memberNode =
+                    mGraph.addMember(klass, member.getName(), member.getDesc(), member.getAccess());
+            for (String annotation : member.getAnnotations()) {
+                mGraph.addAnnotation(memberNode, annotation);
+            }
+        }
+    }
+
     /** Updates the graph with nodes and edges based on the given class file. */
     private void processProgramClassFile(
             byte[] bytes,
@@ -461,7 +491,18 @@ public class FullRunShrinker<T> extends AbstractShrinker<T> {
 
     private void readPlatformJars() throws IOException {
         for (File platformJar : mPlatformJars) {
-            processJarFile(platformJar, this::processLibraryClass);
+            processLibraryJar(platformJar);
+        }
+    }
+
+    /**
+     * Adds the classes of a library jar to the graph. The classes are obtained from the {@link
+     * ClassHierarchyIndex}, so jars like android.jar are not read again by every run.
+     */
+    private void processLibraryJar(@NonNull File jarFile) throws IOException {
+        for (ClassHierarchyIndex.ClassHeader header :
+                ClassHierarchyIndex.getJarHeaders(jarFile, mClassHeadersCache).values()) {
+            processLibraryClass(header);
         }
     }
 
@@ -165,7 +165,8 @@ public class MergeManifests extends ManifestProcessorTask {
                                     ManifestMerger2.MergeType.APPLICATION,
                                     variantConfiguration.getManifestPlaceholders(),
                                     getOptionalFeatures(),
-                                    getReportFile());
+                                    getReportFile(),
+                                    getMergedLibrariesFile(apkData));
 
             XmlDocument mergedXmlDocument =
                     mergingReport.getMergedXmlDocument(MergingReport.MergedManifestKind.MERGED);
@@ -200,6 +201,19 @@ public class MergeManifests extends ManifestProcessorTask {
                 getInstantRunManifestOutputDirectory());
     }
 
+    /**
+     * Returns the file caching the library manifests merged together for a split, so that they
+     * are only merged again when they change. Each split has its own file, as the libraries of the
+     * splits may differ.
+     */
+    @Nullable
+    private File getMergedLibrariesFile(@NonNull ApkData apkData) {
+        File incrementalFolder = getIncrementalFolder();
+        return incrementalFolder != null
+                ? FileUtils.join(incrementalFolder, apkData.getDirName(), "merged-libraries.json")
+                : null;
+    }
+
     @Nullable
     @Override
     @Internal
@@ -520,6 +534,7 @@ public class MergeManifests extends ManifestProcessorTask {
                     variantScope.getInstantRunManifestOutputDirectory());
 
             processManifestTask.setReportFile(reportFile);
+            processManifestTask.setIncrementalFolder(variantScope.getIncrementalDir(getName()));
             processManifestTask.optionalFeatures = optionalFeatures;
 
             processManifestTask.supportedAbis =
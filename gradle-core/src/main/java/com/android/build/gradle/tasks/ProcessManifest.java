@@ -88,7 +88,8 @@ public class ProcessManifest extends ManifestProcessorTask {
                                 ManifestMerger2.MergeType.LIBRARY,
                                 variantConfiguration.getManifestPlaceholders(),
                                 Collections.emptyList(),
-                                getReportFile());
+                                getReportFile(),
+                                null /* mergedLibrariesFile */);
 
         XmlDocument mergedXmlDocument =
                 mergingReport.getMergedXmlDocument(MergingReport.MergedManifestKind.MERGED);
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.tasks;
+
+import com.android.annotations.NonNull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Index of items by name, used by {@link ResourceUsageAnalyzer} to find the resources whose names
+ * start with, or match a format string found in, a string constant of the code, without testing
+ * the name of every resource for every string.
+ *
+ * <p>The names are sorted, and also sorted by their reversed characters, so the names starting
+ * with a prefix or ending with a suffix are found with a binary search. The items are always
+ * returned in the order they were given in, so that callers visit them in the same order as
+ * when iterating over all the items.
+ */
+final class ResourceNameIndex<T> {
+
+    @NonNull private final List<T> items;
+    /** The name of each of {@link #items}. */
+    @NonNull private final String[] itemNames;
+
+    /** The names, sorted. */
+    @NonNull private final String[] names;
+    /** The position in {@link #items} of each of {@link #names}. */
+    @NonNull private final int[] positions;
+
+    /** The names with their characters reversed, sorted. */
+    @NonNull private final String[] reversedNames;
+    /** The position in {@link #items} of each of {@link #reversedNames}. */
+    @NonNull private final int[] reversedPositions;
+
+    ResourceNameIndex(@NonNull List<T> items, @NonNull Function<T, String> nameFunction) {
+        this.items = items;
+
+        int size = items.size();
+        itemNames = new String[size];
+        String[] itemReversedNames = new String[size];
+        for (int i = 0; i < size; i++) {
+            itemNames[i] = nameFunction.apply(items.get(i));
+            itemReversedNames[i] = new StringBuilder(itemNames[i]).reverse().toString();
+        }
+
+        names = new String[size];
+        positions = new int[size];
+        sort(itemNames, names, positions);
+        reversedNames = new String[size];
+        reversedPositions = new int[size];
+        sort(itemReversedNames, reversedNames, reversedPositions);
+    }
+
+    /** Returns the items whose names start with the given prefix. */
+    @NonNull
+    List<T> findByPrefix(@NonNull String prefix) {
+        return findMatching(prefix, "", name -> true);
+    }
+
+    /**
+     * Returns the items whose names start with the given prefix, end with the given suffix, and
+     * are accepted by the given predicate. The predicate is only tested on names with both the
+     * prefix and the suffix.
+     */
+    @NonNull
+    List<T> findMatching(
+            @NonNull String prefix, @NonNull String suffix, @NonNull Predicate<String> predicate) {
+        String reversedSuffix = new StringBuilder(suffix).reverse().toString();
+        int prefixStart = lowerBound(names, prefix);
+        int prefixEnd = upperBound(names, prefix, prefixStart);
+        int suffixStart = lowerBound(reversedNames, reversedSuffix);
+        int suffixEnd = upperBound(reversedNames, reversedSuffix, suffixStart);
+
+        // only look at the smallest of the two ranges.
+        int[] rangePositions;
+        int start;
+        int end;
+        if (prefixEnd - prefixStart <= suffixEnd - suffixStart) {
+            rangePositions = positions;
+            start = prefixStart;
+            end = prefixEnd;
+        } else {
+            rangePositions = reversedPositions;
+            start = suffixStart;
+            end = suffixEnd;
+        }
+
+        int[] matches = new int[end - start];
+        int matchCount = 0;
+        for (int i = start; i < end; i++) {
+            String name = itemNames[rangePositions[i]];
+            if (name.startsWith(prefix) && name.endsWith(suffix) && predicate.test(name)) {
+                matches[matchCount++] = rangePositions[i];
+            }
+        }
+
+        Arrays.sort(matches, 0, matchCount);
+        List<T> result = new ArrayList<>(matchCount);
+        for (int i = 0; i < matchCount; i++) {
+            result.add(items.get(matches[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Sorts the given names into the given array, and writes their original positions into the
+     * given positions array.
+     */
+    private static void sort(
+            @NonNull String[] unsortedNames,
+            @NonNull String[] sortedNames,
+            @NonNull int[] sortedPositions) {
+        Integer[] order = new Integer[unsortedNames.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> unsortedNames[i]));
+        for (int i = 0; i < order.length; i++) {
+            sortedNames[i] = unsortedNames[order[i]];
+            sortedPositions[i] = order[i];
+        }
+    }
+
+    /** Returns the index of the first of the sorted names not less than the given prefix. */
+    private static int lowerBound(@NonNull String[] sortedNames, @NonNull String prefix) {
+        int low = 0;
+        int high = sortedNames.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sortedNames[middle].compareTo(prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the index after the last of the sorted names starting with the given prefix, given
+     * the index of the first one.
+     */
+    private static int upperBound(
+            @NonNull String[] sortedNames, @NonNull String prefix, int lowerBound) {
+        int low = lowerBound;
+        int high = sortedNames.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sortedNames[middle].startsWith(prefix)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
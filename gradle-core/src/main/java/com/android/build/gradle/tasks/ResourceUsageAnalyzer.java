@@ -35,6 +35,7 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.build.gradle.internal.incremental.ByteCodeUtils;
+import com.android.ide.common.internal.WaitableExecutor;
 import com.android.ide.common.xml.XmlPrettyPrinter;
 import com.android.resources.FolderTypeRelationship;
 import com.android.resources.ResourceFolderType;
@@ -46,34 +47,36 @@ import com.android.utils.Pair;
 import com.android.utils.XmlUtils;
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
 import com.google.common.io.Files;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.jar.JarEntry;
-import java.util.jar.JarInputStream;
-import java.util.jar.JarOutputStream;
+import java.util.jar.JarFile;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import javax.xml.parsers.ParserConfigurationException;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -185,6 +188,18 @@ public class ResourceUsageAnalyzer {
     @SuppressWarnings("SpellCheckingInspection") // arsc
     public static final boolean TWO_PASS_AAPT = false;
 
+    /**
+     * Number of resource files parsed concurrently before they are visited, which bounds the
+     * number of parsed documents kept in memory.
+     */
+    private static final int RESOURCE_FILES_BATCH_SIZE = 512;
+
+    /**
+     * Default number of classes scanned concurrently before their usages are recorded, which
+     * bounds the number of class files kept in memory.
+     */
+    private static final int CLASS_FILES_BATCH_SIZE = 512;
+
     /** Special marker regexp which does not match a resource name */
     static final String NO_MATCH = "-nomatch-";
 
@@ -201,6 +216,7 @@ public class ResourceUsageAnalyzer {
     private boolean mVerbose;
     private boolean mDebug;
     private boolean mDryRun;
+    private int mClassFilesBatchSize = CLASS_FILES_BATCH_SIZE;
 
     /** The computed set of unused resources */
     private List<Resource> mUnused;
@@ -268,9 +284,7 @@ public class ResourceUsageAnalyzer {
         gatherResourceValues(mResourceClassDir);
         recordMapping(mProguardMapping);
 
-        for (File jarOrDir : mClasses) {
-            recordClassUsages(jarOrDir);
-        }
+        recordClassUsages(mClasses);
 
         recordManifestUsages(mMergedManifest);
         recordResources(mMergedResourceDir);
@@ -305,6 +319,16 @@ public class ResourceUsageAnalyzer {
         mDebug = verbose;
     }
 
+    /**
+     * Sets the number of classes scanned concurrently; with a batch size of 1, the classes are
+     * scanned one at a time.
+     */
+    @VisibleForTesting
+    void setClassFilesBatchSize(int classFilesBatchSize) {
+        Preconditions.checkArgument(classFilesBatchSize > 0);
+        mClassFilesBatchSize = classFilesBatchSize;
+    }
+
     // A 1x1 pixel PNG of type BufferedImage.TYPE_BYTE_GRAY
     public static final byte[] TINY_PNG = new byte[] {
             (byte)-119, (byte)  80, (byte)  78, (byte)  71, (byte)  13, (byte)  10,
@@ -384,23 +408,26 @@ public class ResourceUsageAnalyzer {
             }
         }
 
-        try (JarInputStream zis =
-                        new JarInputStream(new BufferedInputStream(new FileInputStream(source)));
-                JarOutputStream zos =
-                        new JarOutputStream(new BufferedOutputStream(new FileOutputStream(dest)))) {
+        try (ZipFile zipFile = new ZipFile(source);
+                ZipArchiveOutputStream zos = new ZipArchiveOutputStream(dest)) {
 
             // Rather than using Deflater.DEFAULT_COMPRESSION we use 9 here,
             // since that seems to match the compressed sizes we observe in source
             // .ap_ files encountered by the resource shrinker:
             zos.setLevel(9);
 
-            ZipEntry entry = zis.getNextEntry();
-            while (entry != null) {
+            Enumeration<ZipArchiveEntry> entries = zipFile.getEntriesInPhysicalOrder();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
                 String name = entry.getName();
                 boolean directory = entry.isDirectory();
+                if (name.equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+                    // The jar manifest was never copied to the output, keep it that way.
+                    continue;
+                }
                 Resource resource = getResourceByJarPath(name);
                 if (resource == null || resource.isReachable()) {
-                    copyToOutput(zis, zos, entry, name, directory);
+                    copyToOutput(zipFile, zos, entry);
 
                 } else if (REPLACE_DELETED_WITH_EMPTY
                         && !directory
@@ -417,9 +444,7 @@ public class ResourceUsageAnalyzer {
                         mDebugPrinter.println(message);
                     }
                 }
-                entry = zis.getNextEntry();
             }
-            zos.flush();
         }
 
         // If net negative, copy original back. This is unusual, but can happen
@@ -448,8 +473,8 @@ public class ResourceUsageAnalyzer {
      *
      * @see #REPLACE_DELETED_WITH_EMPTY
      */
-    private void replaceWithDummyEntry(JarOutputStream zos, ZipEntry entry, String name)
-            throws IOException {
+    private void replaceWithDummyEntry(
+            ZipArchiveOutputStream zos, ZipArchiveEntry entry, String name) throws IOException {
         // Create a new entry so that the compressed len is recomputed.
         byte[] bytes;
         long crc;
@@ -466,18 +491,20 @@ public class ResourceUsageAnalyzer {
             bytes = new byte[0];
             crc = 0L;
         }
-        JarEntry outEntry = new JarEntry(name);
+        ZipArchiveEntry outEntry = new ZipArchiveEntry(name);
         if (entry.getTime() != -1L) {
             outEntry.setTime(entry.getTime());
         }
-        if (entry.getMethod() == JarEntry.STORED) {
-            outEntry.setMethod(JarEntry.STORED);
-            outEntry.setSize(bytes.length);
+        outEntry.setSize(bytes.length);
+        if (entry.getMethod() == ZipArchiveEntry.STORED) {
+            outEntry.setMethod(ZipArchiveEntry.STORED);
             outEntry.setCrc(crc);
+        } else {
+            outEntry.setMethod(ZipArchiveEntry.DEFLATED);
         }
-        zos.putNextEntry(outEntry);
+        zos.putArchiveEntry(outEntry);
         zos.write(bytes);
-        zos.closeEntry();
+        zos.closeArchiveEntry();
 
         if (isVerbose() || mDebugPrinter != null) {
             String message =
@@ -498,34 +525,16 @@ public class ResourceUsageAnalyzer {
     }
 
     private static void copyToOutput(
-            JarInputStream zis, JarOutputStream zos, ZipEntry entry, String name, boolean directory)
+            ZipFile zipFile, ZipArchiveOutputStream zos, ZipArchiveEntry entry)
             throws IOException {
-        // We can't just compress all files; files that are not
-        // compressed in the source .ap_ file must be left uncompressed
-        // here, since for example RAW files need to remain uncompressed in
-        // the APK such that they can be mmap'ed at runtime.
-        // Preserve the STORED method of the input entry.
-        JarEntry outEntry;
-        if (entry.getMethod() == JarEntry.STORED) {
-            outEntry = new JarEntry(entry);
-        } else {
-            // Create a new entry so that the compressed len is recomputed.
-            outEntry = new JarEntry(name);
-            if (entry.getTime() != -1L) {
-                outEntry.setTime(entry.getTime());
-            }
+        // Copy the compressed data of the entry as is, rather than inflating and deflating it
+        // again. This also keeps the compression method of the entry: files that are not
+        // compressed in the source .ap_ file must be left uncompressed here, since for example
+        // RAW files need to remain uncompressed in the APK such that they can be mmap'ed at
+        // runtime.
+        try (InputStream rawData = zipFile.getRawInputStream(entry)) {
+            zos.addRawArchiveEntry(entry, rawData);
         }
-
-        zos.putNextEntry(outEntry);
-
-        if (!directory) {
-            byte[] bytes = ByteStreams.toByteArray(zis);
-            if (bytes != null) {
-                zos.write(bytes);
-            }
-        }
-
-        zos.closeEntry();
     }
 
     /**
@@ -863,7 +872,8 @@ public class ResourceUsageAnalyzer {
 
         int shortest = Integer.MAX_VALUE;
         Set<String> names = Sets.newHashSetWithExpectedSize(50);
-        for (Resource resource : mModel.getResources()) {
+        List<Resource> resources = mModel.getResources();
+        for (Resource resource : resources) {
             String name = resource.name;
             names.add(name);
             int length = name.length();
@@ -871,6 +881,10 @@ public class ResourceUsageAnalyzer {
                 shortest = length;
             }
         }
+        // Index the resources by name, so the resources matching a prefix or a format string are
+        // found without matching each string against every resource.
+        ResourceNameIndex<Resource> nameIndex =
+                new ResourceNameIndex<>(resources, resource -> resource.name);
 
         for (String string : mStrings) {
             if (string.length() < shortest) {
@@ -945,14 +959,12 @@ public class ResourceUsageAnalyzer {
 
                 // Check for a simple prefix match, e.g. as in
                 // getResources().getIdentifier("ic_video_codec_" + codecName, "drawable", ...)
-                for (Resource resource : mModel.getResources()) {
-                    if (resource.name.startsWith(name)) {
-                        if (mDebugPrinter != null) {
-                            mDebugPrinter.println("Marking " + resource + " used because its "
-                                    + "prefix matches string pool constant " + string);
-                        }
-                        ResourceUsageModel.markReachable(resource);
+                for (Resource resource : nameIndex.findByPrefix(name)) {
+                    if (mDebugPrinter != null) {
+                        mDebugPrinter.println("Marking " + resource + " used because its "
+                                + "prefix matches string pool constant " + string);
                     }
+                    ResourceUsageModel.markReachable(resource);
                 }
             } else if (!haveSlash) {
                 if (formatting) {
@@ -962,15 +974,20 @@ public class ResourceUsageAnalyzer {
 
                     try {
                         Pattern pattern = Pattern.compile(convertFormatStringToRegexp(string));
-                        for (Resource resource : mModel.getResources()) {
-                            if (pattern.matcher(resource.name).matches()) {
-                                if (mDebugPrinter != null) {
-                                    mDebugPrinter.println("Marking " + resource + " used because "
-                                            + "it format-string matches string pool constant "
-                                            + string);
-                                }
-                                ResourceUsageModel.markReachable(resource);
+                        // The names matching the pattern start and end with the text before the
+                        // first and after the last format specifier, use them to narrow down the
+                        // names to match.
+                        for (Resource resource :
+                                nameIndex.findMatching(
+                                        getFormatStringPrefix(string),
+                                        getFormatStringSuffix(string),
+                                        resourceName -> pattern.matcher(resourceName).matches())) {
+                            if (mDebugPrinter != null) {
+                                mDebugPrinter.println("Marking " + resource + " used because "
+                                        + "it format-string matches string pool constant "
+                                        + string);
                             }
+                            ResourceUsageModel.markReachable(resource);
                         }
                     } catch (PatternSyntaxException ignored) {
                         // Might not have been a formatting string after all!
@@ -1148,6 +1165,32 @@ public class ResourceUsageAnalyzer {
         return regexp.toString();
     }
 
+    /**
+     * Returns the text of the given format string before its first format specifier, which
+     * starts all the strings matched by {@link #convertFormatStringToRegexp(String)}.
+     */
+    @VisibleForTesting
+    @NonNull
+    static String getFormatStringPrefix(@NonNull String formatString) {
+        Matcher matcher = StringFormatDetector.FORMAT.matcher(formatString);
+        return matcher.find(0) ? formatString.substring(0, matcher.start()) : formatString;
+    }
+
+    /**
+     * Returns the text of the given format string after its last format specifier, which ends
+     * all the strings matched by {@link #convertFormatStringToRegexp(String)}.
+     */
+    @VisibleForTesting
+    @NonNull
+    static String getFormatStringSuffix(@NonNull String formatString) {
+        Matcher matcher = StringFormatDetector.FORMAT.matcher(formatString);
+        int from = 0;
+        while (matcher.find(from)) {
+            from = matcher.end();
+        }
+        return formatString.substring(from);
+    }
+
     /**
      * Appends the characters in the range [from,to> from formatString as escaped
      * regexp characters into the given string builder. Returns true if there were
@@ -1170,34 +1213,55 @@ public class ResourceUsageAnalyzer {
             throws IOException, SAXException, ParserConfigurationException {
         File[] resourceFolders = resDir.listFiles();
         if (resourceFolders != null) {
+            List<ResourceFile> resourceFiles = new ArrayList<>();
             for (File folder : resourceFolders) {
                 ResourceFolderType folderType = ResourceFolderType.getFolderType(folder.getName());
                 if (folderType != null) {
-                    recordResources(folderType, folder);
+                    File[] files = folder.listFiles();
+                    if (files != null) {
+                        for (File file : files) {
+                            resourceFiles.add(new ResourceFile(folderType, file));
+                        }
+                    }
                 }
             }
+            for (List<ResourceFile> batch :
+                    Lists.partition(resourceFiles, RESOURCE_FILES_BATCH_SIZE)) {
+                recordResources(batch);
+            }
         }
     }
 
-    private void recordResources(@NonNull ResourceFolderType folderType, File folder)
+    /**
+     * Records the given resource files. The XML files are parsed concurrently, but the resource
+     * model is not thread-safe, so the files are visited one at a time in their original order.
+     */
+    private void recordResources(@NonNull List<ResourceFile> resourceFiles)
             throws ParserConfigurationException, SAXException, IOException {
-        File[] files = folder.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                String path = file.getPath();
-                mModel.file = file;
-                try {
-                    boolean isXml = endsWithIgnoreCase(path, DOT_XML);
-                    if (isXml) {
-                        String xml = Files.toString(file, UTF_8);
-                        Document document = XmlUtils.parseDocument(xml, true);
-                        mModel.visitXmlDocument(file, folderType, document);
-                    } else {
-                        mModel.visitBinaryResource(folderType, file);
-                    }
-                } finally {
-                    mModel.file = null;
+        WaitableExecutor executor = WaitableExecutor.useGlobalSharedThreadPool();
+        for (ResourceFile resourceFile : resourceFiles) {
+            if (endsWithIgnoreCase(resourceFile.file.getPath(), DOT_XML)) {
+                executor.execute(
+                        () -> {
+                            String xml = Files.toString(resourceFile.file, UTF_8);
+                            resourceFile.document = XmlUtils.parseDocument(xml, true);
+                            return null;
+                        });
+            }
+        }
+        waitForTasks(executor);
+
+        for (ResourceFile resourceFile : resourceFiles) {
+            File file = resourceFile.file;
+            mModel.file = file;
+            try {
+                if (resourceFile.document != null) {
+                    mModel.visitXmlDocument(file, resourceFile.folderType, resourceFile.document);
+                } else {
+                    mModel.visitBinaryResource(resourceFile.folderType, file);
                 }
+            } finally {
+                mModel.file = null;
             }
         }
     }
@@ -1327,18 +1391,35 @@ public class ResourceUsageAnalyzer {
         }
     }
 
-    private void recordClassUsages(File file) throws IOException {
+    /**
+     * Records the resource usages of the given jars and directories of classes.
+     *
+     * <p>The classes are read in batches. The classes of a batch are scanned concurrently, each
+     * into its own {@link ClassUsages}, which are then applied one class at a time in the order
+     * the classes were read, so the result is the same as scanning them sequentially.
+     */
+    private void recordClassUsages(@NonNull Iterable<File> classes)
+            throws IOException, SAXException {
+        List<ClassUsages> batch = new ArrayList<>();
+        for (File jarOrDir : classes) {
+            recordClassUsages(jarOrDir, batch);
+        }
+        recordClassUsages(batch);
+    }
+
+    private void recordClassUsages(@NonNull File file, @NonNull List<ClassUsages> batch)
+            throws IOException, SAXException {
         if (file.isDirectory()) {
             File[] children = file.listFiles();
             if (children != null) {
                 for (File child : children) {
-                    recordClassUsages(child);
+                    recordClassUsages(child, batch);
                 }
             }
         } else if (file.isFile()) {
             if (file.getPath().endsWith(DOT_CLASS)) {
                 byte[] bytes = Files.toByteArray(file);
-                recordClassUsages(file, file.getName(), bytes);
+                recordClassUsages(file, file.getName(), bytes, batch);
             } else if (file.getPath().endsWith(DOT_JAR)) {
                 ZipInputStream zis = null;
                 try {
@@ -1356,7 +1437,7 @@ public class ResourceUsageAnalyzer {
                                     !isResourceClass(name)) {
                                 byte[] bytes = ByteStreams.toByteArray(zis);
                                 if (bytes != null) {
-                                    recordClassUsages(file, name, bytes);
+                                    recordClassUsages(file, name, bytes, batch);
                                 }
                             }
 
@@ -1372,9 +1453,80 @@ public class ResourceUsageAnalyzer {
         }
     }
 
-    private void recordClassUsages(File file, String name, byte[] bytes) {
-        ClassReader classReader = new ClassReader(bytes);
-        classReader.accept(new UsageVisitor(file, name), SKIP_DEBUG | SKIP_FRAMES);
+    private void recordClassUsages(
+            @NonNull File file,
+            @NonNull String name,
+            @NonNull byte[] bytes,
+            @NonNull List<ClassUsages> batch)
+            throws IOException, SAXException {
+        batch.add(new ClassUsages(file, name, bytes));
+        if (batch.size() >= mClassFilesBatchSize) {
+            recordClassUsages(batch);
+        }
+    }
+
+    /**
+     * Scans the given batch of classes concurrently, records their usages in the order of the
+     * batch, and clears the batch.
+     */
+    private void recordClassUsages(@NonNull List<ClassUsages> batch)
+            throws IOException, SAXException {
+        WaitableExecutor executor = WaitableExecutor.useGlobalSharedThreadPool();
+        for (ClassUsages usages : batch) {
+            executor.execute(
+                    () -> {
+                        ClassReader classReader = new ClassReader(usages.bytes);
+                        classReader.accept(new UsageVisitor(usages), SKIP_DEBUG | SKIP_FRAMES);
+                        usages.bytes = null;
+                        return null;
+                    });
+        }
+        waitForTasks(executor);
+
+        for (ClassUsages usages : batch) {
+            applyClassUsages(usages);
+        }
+        batch.clear();
+    }
+
+    /** Marks the resources referenced by a scanned class and records its strings. */
+    private void applyClassUsages(@NonNull ClassUsages usages) {
+        for (int i = 0; i < usages.resources.size(); i++) {
+            Resource resource = usages.resources.get(i);
+            String context = usages.contexts.get(i);
+            if (ResourceUsageModel.markReachable(resource) && mDebug && context != null) {
+                assert mDebugPrinter != null : "mDebug is true, but mDebugPrinter is null.";
+                mDebugPrinter.println("Marking " + resource + " reachable: referenced from " +
+                        context + " in " + usages.jarFile + ":" + usages.className);
+            }
+        }
+        for (String string : usages.strings) {
+            referencedString(string);
+        }
+        if (usages.foundGetIdentifier) {
+            mFoundGetIdentifier = true;
+        }
+        if (usages.foundWebContent) {
+            mFoundWebContent = true;
+        }
+    }
+
+    /**
+     * Waits for the tasks submitted to the given executor, rethrowing the I/O and parsing
+     * exceptions of the tasks.
+     */
+    private static void waitForTasks(@NonNull WaitableExecutor executor)
+            throws IOException, SAXException {
+        try {
+            executor.waitForTasksWithQuickFail(true /*cancelRemaining*/);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+            Throwables.throwIfInstanceOf(e.getCause(), SAXException.class);
+            throw e;
+        }
     }
 
     /** Returns whether the given class file name points to an aapt-generated compiled R class */
@@ -1560,13 +1712,11 @@ public class ResourceUsageAnalyzer {
      * calls and recording string literals, used to handle dynamic lookup of resources.
      */
     private class UsageVisitor extends ClassVisitor {
-        private final File mJarFile;
-        private final String mCurrentClass;
+        private final ClassUsages mUsages;
 
-        public UsageVisitor(File jarFile, String name) {
+        public UsageVisitor(ClassUsages usages) {
             super(Opcodes.ASM5);
-            mJarFile = jarFile;
-            mCurrentClass = name;
+            mUsages = usages;
         }
 
         @Override
@@ -1583,7 +1733,7 @@ public class ResourceUsageAnalyzer {
                     if (opcode == Opcodes.GETSTATIC) {
                         Resource resource = getResourceFromCode(owner, name);
                         if (resource != null) {
-                            ResourceUsageModel.markReachable(resource);
+                            mUsages.addResource(resource, null);
                         }
                     }
                 }
@@ -1597,20 +1747,20 @@ public class ResourceUsageAnalyzer {
                             && desc.equals(
                             "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)I")) {
 
-                        if (mCurrentClass.equals(mResourcesWrapper) ||
-                                mCurrentClass.equals(mSuggestionsAdapter)) {
+                        if (mUsages.className.equals(mResourcesWrapper) ||
+                                mUsages.className.equals(mSuggestionsAdapter)) {
                             // "benign" usages: don't trigger reflection mode just because
                             // the user has included appcompat
                             return;
                         }
 
-                        mFoundGetIdentifier = true;
+                        mUsages.foundGetIdentifier = true;
                         // TODO: Check previous instruction and see if we can find a literal
                         // String; if so, we can more accurately dispatch the resource here
                         // rather than having to check the whole string pool!
                     }
                     if (owner.equals("android/webkit/WebView") && name.startsWith("load")) {
-                        mFoundWebContent = true;
+                        mUsages.foundWebContent = true;
                     }
                 }
 
@@ -1676,28 +1826,65 @@ public class ResourceUsageAnalyzer {
             if (cst instanceof Integer) {
                 Integer value = (Integer) cst;
                 Resource resource = mModel.getResource(value);
-                if (ResourceUsageModel.markReachable(resource) && mDebug) {
-                    assert mDebugPrinter != null : "mDebug is true, but mDebugPrinter is null.";
-                    mDebugPrinter.println("Marking " + resource + " reachable: referenced from " +
-                            context + " in " + mJarFile + ":" + mCurrentClass);
+                if (resource != null) {
+                    mUsages.addResource(resource, context);
                 }
             } else if (cst instanceof int[]) {
                 int[] values = (int[]) cst;
                 for (int value : values) {
                     Resource resource = mModel.getResource(value);
-                    if (ResourceUsageModel.markReachable(resource) && mDebug) {
-                        assert mDebugPrinter != null : "mDebug is true, but mDebugPrinter is null.";
-                        mDebugPrinter.println("Marking " + resource + " reachable: referenced from " +
-                                context + " in " + mJarFile + ":" + mCurrentClass);
+                    if (resource != null) {
+                        mUsages.addResource(resource, context);
                     }
                 }
             } else if (cst instanceof String) {
                 String string = (String) cst;
-                referencedString(string);
+                mUsages.strings.add(string);
             }
         }
     }
 
+    /**
+     * Resource references, strings and reflection usages found in a class, in the order they were
+     * found. Classes are scanned concurrently into their own instance, which is only read once the
+     * scan completes.
+     */
+    private static final class ClassUsages {
+        @NonNull private final File jarFile;
+        @NonNull private final String className;
+        /** The class file, until it is scanned. */
+        @Nullable private byte[] bytes;
+        @NonNull private final List<Resource> resources = new ArrayList<>();
+        /** Where each resource is referenced from, or null if the reference is not reported. */
+        @NonNull private final List<String> contexts = new ArrayList<>();
+        @NonNull private final List<String> strings = new ArrayList<>();
+        private boolean foundGetIdentifier;
+        private boolean foundWebContent;
+
+        ClassUsages(@NonNull File jarFile, @NonNull String className, @NonNull byte[] bytes) {
+            this.jarFile = jarFile;
+            this.className = className;
+            this.bytes = bytes;
+        }
+
+        void addResource(@NonNull Resource resource, @Nullable String context) {
+            resources.add(resource);
+            contexts.add(context);
+        }
+    }
+
+    /** A resource file, and its document once parsed if it is an XML file. */
+    private static final class ResourceFile {
+        @NonNull private final ResourceFolderType folderType;
+        @NonNull private final File file;
+        @Nullable private Document document;
+
+        ResourceFile(@NonNull ResourceFolderType folderType, @NonNull File file) {
+            this.folderType = folderType;
+            this.file = file;
+        }
+    }
+
     private final ResourceShrinkerUsageModel mModel =
             new ResourceShrinkerUsageModel();
 
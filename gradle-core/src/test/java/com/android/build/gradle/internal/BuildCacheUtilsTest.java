@@ -20,6 +20,7 @@ import static com.android.testutils.truth.MoreTruth.assertThat;
 import static com.google.common.truth.Truth.assertThat;
 
 import com.android.build.gradle.options.BooleanOption;
+import com.android.build.gradle.options.LongOption;
 import com.android.build.gradle.options.ProjectOptions;
 import com.android.build.gradle.options.StringOption;
 import com.android.builder.utils.FileCache;
@@ -71,6 +72,28 @@ public class BuildCacheUtilsTest {
         assertThat(buildCache.getCacheDirectory()).isEqualTo(defaultBuildCacheDir);
     }
 
+    @Test
+    public void testCreateBuildCache_Enabled_MaxSizeSet() throws IOException {
+        File buildCacheDirectory = testDir.newFolder();
+
+        ProjectOptions options =
+                new ProjectOptions(
+                        ImmutableMap.of(
+                                BooleanOption.ENABLE_BUILD_CACHE.getPropertyName(),
+                                Boolean.TRUE,
+                                StringOption.BUILD_CACHE_DIR.getPropertyName(),
+                                buildCacheDirectory.toString(),
+                                LongOption.BUILD_CACHE_MAX_SIZE_IN_MB.getPropertyName(),
+                                "10"));
+
+        FileCache buildCache =
+                BuildCacheUtils.createBuildCacheIfEnabled(BuildCacheUtilsTest::file, options);
+
+        assertThat(buildCache).isNotNull();
+        assertThat(buildCache.getCacheDirectory()).isEqualTo(buildCacheDirectory);
+        assertThat(buildCache.toString()).contains("maxSizeInBytes=" + 10 * 1024 * 1024);
+    }
+
     @Test
     public void testCreateBuildCache_Disabled() {
         ProjectOptions options =
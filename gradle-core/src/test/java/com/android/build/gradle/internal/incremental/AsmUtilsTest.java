@@ -19,8 +19,13 @@ package com.android.build.gradle.internal.incremental;
 import static com.google.common.truth.Truth.assertThat;
 
 import com.android.build.gradle.internal.incremental.annotated.OuterClassFor21;
+import com.android.utils.ILogger;
+import com.android.utils.NullLogger;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.Test;
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.ClassNode;
 
@@ -58,4 +63,28 @@ public class AsmUtilsTest {
             assertThat(AsmUtils.getOuterClassName(classNode)).isNull();
         }
     }
+
+    @Test
+    public void testCachingClassReaderProvider() throws IOException {
+        ILogger logger = new NullLogger();
+        List<String> loadedClasses = new ArrayList<>();
+        AsmUtils.ClassReaderProvider classReaderProvider =
+                (className, log) -> {
+                    loadedClasses.add(className);
+                    return className.equals(Type.getInternalName(OuterClassFor21.class))
+                            ? new ClassReader(OuterClassFor21.class.getName())
+                            : null;
+                };
+        AsmUtils.CachingClassReaderProvider cachingProvider =
+                new AsmUtils.CachingClassReaderProvider(classReaderProvider);
+
+        String className = Type.getInternalName(OuterClassFor21.class);
+        ClassReader classReader = cachingProvider.loadClassBytes(className, logger);
+        assertThat(classReader).isNotNull();
+        assertThat(classReader.getClassName()).isEqualTo(className);
+        assertThat(cachingProvider.loadClassBytes(className, logger)).isSameAs(classReader);
+        assertThat(cachingProvider.loadClassBytes("test/Missing", logger)).isNull();
+        assertThat(cachingProvider.loadClassBytes("test/Missing", logger)).isNull();
+        assertThat(loadedClasses).containsExactly(className, "test/Missing").inOrder();
+    }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.incremental;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.android.annotations.NonNull;
+import com.android.utils.ILogger;
+import com.android.utils.NullLogger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+/** Tests for {@link JarHandlePool}. */
+public class JarHandlePoolTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testReadEntry() throws IOException {
+        File jar = writeJar("a.jar", "foo.txt", "Foo");
+        try (JarHandlePool pool = new JarHandlePool(1)) {
+            assertThat(new String(pool.readEntry(jar, "foo.txt"), StandardCharsets.UTF_8))
+                    .isEqualTo("Foo");
+            assertThat(pool.readEntry(jar, "bar.txt")).isNull();
+            assertThat(pool.hasEntry(jar, "foo.txt")).isTrue();
+            assertThat(pool.hasEntry(jar, "bar.txt")).isFalse();
+            assertThat(pool.getOpenCount()).isEqualTo(1);
+            assertThat(pool.getOpenedCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testHandlesReusedAndReleased() throws IOException {
+        File a = writeJar("a.jar", "a.txt", "A");
+        File b = writeJar("b.jar", "b.txt", "B");
+        JarHandlePool pool = new JarHandlePool(2);
+        for (int i = 0; i < 10; i++) {
+            assertThat(pool.readEntry(a, "a.txt")).isNotNull();
+            assertThat(pool.readEntry(b, "b.txt")).isNotNull();
+        }
+        assertThat(pool.getOpenedCount()).isEqualTo(2);
+        assertThat(pool.getOpenCount()).isEqualTo(2);
+
+        pool.close();
+        assertThat(pool.getOpenCount()).isEqualTo(0);
+        // the handles are closed, so the jars can be deleted even on Windows.
+        assertThat(a.delete()).isTrue();
+        assertThat(b.delete()).isTrue();
+    }
+
+    @Test
+    public void testIdleHandlesBounded() throws IOException {
+        File a = writeJar("a.jar", "a.txt", "A");
+        File b = writeJar("b.jar", "b.txt", "B");
+        File c = writeJar("c.jar", "c.txt", "C");
+        JarHandlePool pool = new JarHandlePool(2);
+        pool.readEntry(a, "a.txt");
+        pool.readEntry(b, "b.txt");
+        pool.readEntry(c, "c.txt");
+        assertThat(pool.getOpenCount()).isEqualTo(2);
+
+        // the handle of a.jar was evicted, but its index is kept.
+        assertThat(pool.hasEntry(a, "a.txt")).isTrue();
+        assertThat(pool.readEntry(a, "missing.txt")).isNull();
+        assertThat(pool.getOpenCount()).isEqualTo(2);
+
+        assertThat(new String(pool.readEntry(a, "a.txt"), StandardCharsets.UTF_8))
+                .isEqualTo("A");
+        assertThat(pool.getOpenCount()).isEqualTo(2);
+
+        pool.close();
+        assertThat(pool.getOpenCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testNoIdleHandles() throws IOException {
+        File jar = writeJar("a.jar", "foo.txt", "Foo");
+        try (JarHandlePool pool = new JarHandlePool(0)) {
+            assertThat(pool.readEntry(jar, "foo.txt")).isNotNull();
+            assertThat(pool.getOpenCount()).isEqualTo(0);
+            // the handle opened to index the jar is used to read the entry.
+            assertThat(pool.getOpenedCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testChangedJarIndexedAgain() throws IOException {
+        File jar = writeJar("a.jar", "foo.txt", "Foo");
+        try (JarHandlePool pool = new JarHandlePool(1)) {
+            assertThat(pool.hasEntry(jar, "bar.txt")).isFalse();
+
+            writeJar("a.jar", "bar.txt", "Bar, changed");
+            assertThat(jar.setLastModified(jar.lastModified() + 2_000)).isTrue();
+            assertThat(new String(pool.readEntry(jar, "bar.txt"), StandardCharsets.UTF_8))
+                    .isEqualTo("Bar, changed");
+            assertThat(pool.hasEntry(jar, "foo.txt")).isFalse();
+            assertThat(pool.getOpenCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testClosedPool() throws IOException {
+        File jar = writeJar("a.jar", "foo.txt", "Foo");
+        JarHandlePool pool = new JarHandlePool(1);
+        pool.close();
+        try {
+            pool.readEntry(jar, "foo.txt");
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testJarBasedClassReader() throws IOException {
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "test/Foo", null, "java/lang/Object", null);
+        cw.visitEnd();
+        File jar = tmp.getRoot().toPath().resolve("classes.jar").toFile();
+        writeJar(jar, "test/Foo.class", cw.toByteArray());
+
+        ILogger logger = new NullLogger();
+        try (JarHandlePool pool = new JarHandlePool(1)) {
+            AsmUtils.JarBasedClassReader first = new AsmUtils.JarBasedClassReader(jar, pool);
+            AsmUtils.JarBasedClassReader second = new AsmUtils.JarBasedClassReader(jar, pool);
+            ClassReader classReader = first.loadClassBytes("test.Foo", logger);
+            assertThat(classReader).isNotNull();
+            assertThat(classReader.getClassName()).isEqualTo("test/Foo");
+            assertThat(second.loadClassBytes("test/Foo", logger)).isNotNull();
+            assertThat(second.loadClassBytes("test/Bar", logger)).isNull();
+            assertThat(pool.getOpenCount()).isEqualTo(1);
+            assertThat(pool.getOpenedCount()).isEqualTo(1);
+        }
+    }
+
+    @NonNull
+    private File writeJar(@NonNull String name, @NonNull String entryName, @NonNull String content)
+            throws IOException {
+        File jar = new File(tmp.getRoot(), name);
+        writeJar(jar, entryName, content.getBytes(StandardCharsets.UTF_8));
+        return jar;
+    }
+
+    private static void writeJar(@NonNull File jar, @NonNull String entryName, byte[] content)
+            throws IOException {
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar.toPath()))) {
+            out.putNextEntry(new ZipEntry(entryName));
+            out.write(content);
+            out.closeEntry();
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.transforms;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.utils.FileCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+
+/** Tests for {@link ClassHierarchyIndex}. */
+public class ClassHierarchyIndexTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testCommonSuperClass() throws IOException {
+        ClassHierarchyIndex index =
+                ClassHierarchyIndex.createWithRuntimeClasses(createClasspath(), null);
+
+        assertThat(index.getCommonSuperClass("test/A", "test/B")).isEqualTo("test/Base");
+        assertThat(index.getCommonSuperClass("test/Base", "test/A")).isEqualTo("test/Base");
+        assertThat(index.getCommonSuperClass("test/A", "test/Base")).isEqualTo("test/Base");
+        assertThat(index.getCommonSuperClass("test/I", "test/A")).isEqualTo("test/I");
+        assertThat(index.getCommonSuperClass("test/I", "test/B")).isEqualTo("java/lang/Object");
+        assertThat(index.getCommonSuperClass("test/A", "java/lang/String"))
+                .isEqualTo("java/lang/Object");
+    }
+
+    @Test
+    public void testAssignableFrom() throws IOException {
+        ClassHierarchyIndex index =
+                ClassHierarchyIndex.createWithRuntimeClasses(createClasspath(), null);
+
+        assertThat(index.isAssignableFrom("test/Base", "test/A")).isTrue();
+        assertThat(index.isAssignableFrom("test/I", "test/A")).isTrue();
+        assertThat(index.isAssignableFrom("java/lang/Object", "test/I")).isTrue();
+        assertThat(index.isAssignableFrom("test/I", "test/B")).isFalse();
+        assertThat(index.isAssignableFrom("test/A", "test/Base")).isFalse();
+    }
+
+    @Test
+    public void testHeaders() throws IOException {
+        ClassHierarchyIndex index =
+                ClassHierarchyIndex.createWithRuntimeClasses(createClasspath(), null);
+
+        ClassHierarchyIndex.ClassHeader a = index.getHeader("test/A");
+        assertThat(a).isNotNull();
+        assertThat(a.getSuperName()).isEqualTo("test/Base");
+        assertThat(a.getInterfaces()).containsExactly("test/I");
+        assertThat(a.isInterface()).isFalse();
+
+        ClassHierarchyIndex.ClassHeader i = index.getHeader("test/I");
+        assertThat(i).isNotNull();
+        assertThat(i.isInterface()).isTrue();
+
+        ClassHierarchyIndex.ClassHeader object = index.getHeader("java/lang/Object");
+        assertThat(object).isNotNull();
+        assertThat(object.getSuperName()).isNull();
+
+        assertThat(index.getHeader("test/Missing")).isNull();
+    }
+
+    @Test
+    public void testRuntimeClassesNotLookedUpByDefault() throws IOException {
+        ClassHierarchyIndex index = ClassHierarchyIndex.create(createClasspath());
+
+        assertThat(index.getHeader("test/A")).isNotNull();
+        assertThat(index.getHeader("java/lang/Object")).isNull();
+    }
+
+    @Test
+    public void testClasspathOrder() throws IOException {
+        Path first = tmp.getRoot().toPath().resolve("first.jar");
+        writeJar(first, classBytes("test/C", "test/Base", null, 0));
+        Path second = tmp.getRoot().toPath().resolve("second.jar");
+        writeJar(second, classBytes("test/C", "java/lang/Object", null, 0));
+
+        ClassHierarchyIndex index =
+                ClassHierarchyIndex.create(ImmutableList.of(first.toFile(), second.toFile()));
+        ClassHierarchyIndex.ClassHeader c = index.getHeader("test/C");
+        assertThat(c).isNotNull();
+        assertThat(c.getSuperName()).isEqualTo("test/Base");
+    }
+
+    @Test
+    public void testMissingSuperClass() throws IOException {
+        Path jar = tmp.getRoot().toPath().resolve("missing.jar");
+        writeJar(jar, classBytes("test/D", "test/Missing", null, 0));
+        ClassHierarchyIndex index = ClassHierarchyIndex.create(ImmutableList.of(jar.toFile()));
+
+        try {
+            index.getCommonSuperClass("test/D", "java/lang/String");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testMembers() throws IOException {
+        Path jar = tmp.getRoot().toPath().resolve("members.jar");
+        writeJar(jar, classWithMembers());
+        ClassHierarchyIndex index = ClassHierarchyIndex.create(ImmutableList.of(jar.toFile()));
+
+        ClassHierarchyIndex.ClassHeader header = index.getHeader("test/Members");
+        assertThat(header).isNotNull();
+        checkClassWithMembers(header);
+
+        ClassNode node = header.toClassNode();
+        assertThat(node.name).isEqualTo("test/Members");
+        assertThat(node.superName).isEqualTo("java/lang/Object");
+        assertThat(node.fields).hasSize(1);
+        assertThat(node.fields.get(0).name).isEqualTo("field");
+        assertThat(node.methods).hasSize(1);
+        assertThat(node.methods.get(0).desc).isEqualTo("(I)V");
+    }
+
+    @Test
+    public void testWriteAndReadHeaders() throws IOException {
+        Path jar = tmp.getRoot().toPath().resolve("headers.jar");
+        writeJar(
+                jar,
+                classWithMembers(),
+                classBytes("test/A", "test/Base", "test/I", 0),
+                classBytes("test/Other", "java/lang/Object", null, 0));
+        ImmutableMap<String, ClassHierarchyIndex.ClassHeader> headers =
+                ClassHierarchyIndex.getJarHeaders(jar.toFile(), null);
+
+        File file = new File(tmp.getRoot(), "headers.bin");
+        ClassHierarchyIndex.writeHeaders(headers, file);
+        ImmutableMap<String, ClassHierarchyIndex.ClassHeader> readHeaders =
+                ClassHierarchyIndex.readHeaders(file);
+
+        assertThat(readHeaders.keySet()).containsExactlyElementsIn(headers.keySet());
+        checkClassWithMembers(readHeaders.get("test/Members"));
+        ClassHierarchyIndex.ClassHeader a = readHeaders.get("test/A");
+        assertThat(a.getSuperName()).isEqualTo("test/Base");
+        assertThat(a.getInterfaces()).containsExactly("test/I");
+        assertThat(a.getFields()).isEmpty();
+    }
+
+    @Test
+    public void testReadInvalidHeaders() throws IOException {
+        File file = new File(tmp.getRoot(), "headers.bin");
+        Files.write(file.toPath(), new byte[] {1, 2, 3});
+        try {
+            ClassHierarchyIndex.readHeaders(file);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testJarHeadersStoredInCache() throws IOException {
+        Path jar = tmp.getRoot().toPath().resolve("cached.jar");
+        writeJar(jar, classWithMembers(), classBytes("test/Cached", "java/lang/Object", null, 0));
+        File cacheDir = tmp.newFolder("cache");
+        FileCache cache = FileCache.getInstanceWithSingleProcessLocking(cacheDir);
+
+        ImmutableMap<String, ClassHierarchyIndex.ClassHeader> headers =
+                ClassHierarchyIndex.getJarHeaders(jar.toFile(), cache);
+        checkClassWithMembers(headers.get("test/Members"));
+        File[] entries = cacheDir.listFiles(File::isDirectory);
+        assertThat(entries).hasLength(1);
+    }
+
+    @Test
+    public void testChangedJarHeadersReadAgain() throws IOException {
+        Path jar = tmp.getRoot().toPath().resolve("changed.jar");
+        writeJar(jar, classBytes("test/Before", "java/lang/Object", null, 0));
+        assertThat(ClassHierarchyIndex.getJarHeaders(jar.toFile(), null))
+                .containsKey("test/Before");
+
+        writeJar(jar, classBytes("test/AfterTheChange", "java/lang/Object", null, 0));
+        ImmutableMap<String, ClassHierarchyIndex.ClassHeader> headers =
+                ClassHierarchyIndex.getJarHeaders(jar.toFile(), null);
+        assertThat(headers).containsKey("test/AfterTheChange");
+        assertThat(headers).doesNotContainKey("test/Before");
+    }
+
+    /** Creates a jar with test/Base, test/A and test/I, and a directory with test/B. */
+    @NonNull
+    private ImmutableList<File> createClasspath() throws IOException {
+        Path jar = tmp.getRoot().toPath().resolve("classes.jar");
+        writeJar(
+                jar,
+                classBytes("test/Base", "java/lang/Object", null, 0),
+                classBytes("test/A", "test/Base", "test/I", 0),
+                classBytes(
+                        "test/I",
+                        "java/lang/Object",
+                        null,
+                        Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT));
+
+        File dir = tmp.newFolder("classes");
+        Path b = dir.toPath().resolve("test/B" + SdkConstants.DOT_CLASS);
+        Files.createDirectories(b.getParent());
+        Files.write(b, classBytes("test/B", "test/Base", null, 0));
+
+        return ImmutableList.of(jar.toFile(), dir);
+    }
+
+    private static void writeJar(@NonNull Path jar, @NonNull byte[]... classes)
+            throws IOException {
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            for (byte[] bytes : classes) {
+                String name = new ClassReader(bytes).getClassName();
+                out.putNextEntry(new ZipEntry(name + SdkConstants.DOT_CLASS));
+                out.write(bytes);
+                out.closeEntry();
+            }
+        }
+    }
+
+    /** Returns the class file of test/Members, with a field, a method and annotations. */
+    @NonNull
+    private static byte[] classWithMembers() {
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(
+                Opcodes.V1_8,
+                Opcodes.ACC_PUBLIC,
+                "test/Members",
+                null,
+                "java/lang/Object",
+                null);
+        cw.visitAnnotation("Ltest/ClassAnnotation;", false).visitEnd();
+        FieldVisitor fv = cw.visitField(Opcodes.ACC_PRIVATE, "field", "J", null, null);
+        fv.visitAnnotation("Ltest/FieldAnnotation;", true).visitEnd();
+        fv.visitEnd();
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PROTECTED, "method", "(I)V", null, null);
+        mv.visitAnnotation("Ltest/MethodAnnotation;", true).visitEnd();
+        mv.visitCode();
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 2);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void checkClassWithMembers(@NonNull ClassHierarchyIndex.ClassHeader header) {
+        assertThat(header.getName()).isEqualTo("test/Members");
+        assertThat(header.getAnnotations()).containsExactly("test/ClassAnnotation");
+
+        assertThat(header.getFields()).hasSize(1);
+        ClassHierarchyIndex.MemberHeader field = header.getFields().get(0);
+        assertThat(field.getName()).isEqualTo("field");
+        assertThat(field.getDesc()).isEqualTo("J");
+        assertThat(field.getAccess()).isEqualTo(Opcodes.ACC_PRIVATE);
+        assertThat(field.getAnnotations()).containsExactly("test/FieldAnnotation");
+
+        assertThat(header.getMethods()).hasSize(1);
+        ClassHierarchyIndex.MemberHeader method = header.getMethods().get(0);
+        assertThat(method.getName()).isEqualTo("method");
+        assertThat(method.getDesc()).isEqualTo("(I)V");
+        assertThat(method.getAccess()).isEqualTo(Opcodes.ACC_PROTECTED);
+        assertThat(method.getAnnotations()).containsExactly("test/MethodAnnotation");
+    }
+
+    @NonNull
+    private static byte[] classBytes(
+            @NonNull String name, @NonNull String superName, @Nullable String itf, int access) {
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(
+                Opcodes.V1_8,
+                Opcodes.ACC_PUBLIC | access,
+                name,
+                null,
+                superName,
+                itf == null ? null : new String[] {itf});
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
@@ -83,6 +83,7 @@ public class DexMergerTransformTest {
     @Before
     public void setUp() throws IOException {
         context = Mockito.mock(Context.class);
+        when(context.getTemporaryDir()).thenReturn(tmpDir.newFolder("transformTmp"));
         out = tmpDir.getRoot().toPath().resolve("out");
         Files.createDirectories(out);
         outputProvider = new TestTransformOutputProvider(out);
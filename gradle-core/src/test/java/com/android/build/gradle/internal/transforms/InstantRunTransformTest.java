@@ -19,7 +19,6 @@ package com.android.build.gradle.internal.transforms;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
-import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doAnswer;
@@ -111,7 +110,7 @@ public class InstantRunTransformTest {
     }
 
     @Test
-    public void classLoaderOverrideTest()
+    public void classLoaderNotOverriddenTest()
             throws TransformException, InterruptedException, IOException {
 
         // now set up a funky classloader.
@@ -124,7 +123,7 @@ public class InstantRunTransformTest {
             protected Void transformToClasses2Format(@NonNull File inputDir,
                     @NonNull File inputFile, @NonNull File outputDir,
                     @NonNull Status change) throws IOException {
-                assertNotEquals(classLoader, Thread.currentThread().getContextClassLoader());
+                assertEquals(classLoader, Thread.currentThread().getContextClassLoader());
                 return null;
             }
 
@@ -132,7 +131,7 @@ public class InstantRunTransformTest {
             @Override
             protected Void transformToClasses3Format(File inputDir, File inputFile, File outputDir)
                     throws IOException {
-                assertNotEquals(classLoader, Thread.currentThread().getContextClassLoader());
+                assertEquals(classLoader, Thread.currentThread().getContextClassLoader());
                 return null;
             }
         };
@@ -190,7 +189,7 @@ public class InstantRunTransformTest {
                     .setIncrementalMode(true)
                     .build());
 
-            // make sure any thread class loader set during the transform execution has been reset
+            // make sure the thread class loader has not been changed by the transform
             assertEquals(classLoader, Thread.currentThread().getContextClassLoader());
         } finally {
             Thread.currentThread().setContextClassLoader(currentClassLoader);
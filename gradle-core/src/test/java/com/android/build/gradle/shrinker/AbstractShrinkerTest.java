@@ -113,10 +113,11 @@ public abstract class AbstractShrinkerTest {
             @Nullable BytecodeVersion bytecodeVersion) {
         return new FullRunShrinker<>(
                 WaitableExecutor.useGlobalSharedThreadPool(),
-                JavaSerializationShrinkerGraph.empty(mIncrementalDir),
+                CompactShrinkerGraph.empty(mIncrementalDir),
                 getPlatformJars(),
                 mShrinkerLogger,
-                bytecodeVersion);
+                bytecodeVersion,
+                null);
     }
 
     @Before
@@ -274,8 +275,7 @@ public abstract class AbstractShrinkerTest {
         IncrementalShrinker<String> incrementalShrinker =
                 new IncrementalShrinker<>(
                         WaitableExecutor.useGlobalSharedThreadPool(),
-                        JavaSerializationShrinkerGraph.readFromDir(
-                                mIncrementalDir, this.getClass().getClassLoader()),
+                        CompactShrinkerGraph.readFromDir(mIncrementalDir),
                         mShrinkerLogger,
                         null);
 
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.shrinker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.android.build.gradle.shrinker.AbstractShrinker.CounterSet;
+import com.android.build.gradle.shrinker.IncrementalShrinker.IncrementalRunImpossibleException;
+import com.google.common.collect.ImmutableMap;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.Opcodes;
+import org.slf4j.LoggerFactory;
+
+/** Tests for {@link CompactShrinkerGraph}. */
+public class CompactShrinkerGraphTest {
+
+    @Rule public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private File mStateDir;
+
+    private File mClassFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mStateDir = tmpDir.newFolder("incremental");
+        mClassFile = tmpDir.newFile("Foo.class");
+    }
+
+    @Test
+    public void testStateRoundTrip() throws Exception {
+        CompactShrinkerGraph graph = CompactShrinkerGraph.empty(mStateDir);
+        String foo =
+                graph.addClass(
+                        "test/Foo",
+                        "java/lang/Object",
+                        new String[] {"test/Iface"},
+                        Opcodes.ACC_PUBLIC,
+                        mClassFile);
+        graph.addClass("java/lang/Object", null, null, Opcodes.ACC_PUBLIC, null);
+        graph.addClass(
+                "test/Iface",
+                "java/lang/Object",
+                null,
+                Opcodes.ACC_INTERFACE,
+                tmpDir.newFile("Iface.class"));
+        String method = graph.addMember(foo, "run", "()V", Opcodes.ACC_PUBLIC);
+        String field = graph.addMember(foo, "count", "I", Opcodes.ACC_PRIVATE);
+        graph.addDependency(foo, method, DependencyType.CLASS_IS_KEPT);
+        graph.addDependency(method, field, DependencyType.REQUIRED_CODE_REFERENCE);
+        graph.addAnnotation(foo, "test/Annotation");
+        graph.addTypeFromGenericSignature(foo, "test/Iface");
+        graph.addRoots(ImmutableMap.of(foo, DependencyType.REQUIRED_KEEP_RULES), CounterSet.SHRINK);
+
+        assertThat(
+                        graph.incrementAndCheck(
+                                foo, DependencyType.REQUIRED_KEEP_RULES, CounterSet.SHRINK))
+                .isTrue();
+        assertThat(graph.incrementAndCheck(method, DependencyType.IF_CLASS_KEPT, CounterSet.SHRINK))
+                .isFalse();
+        assertThat(graph.incrementAndCheck(method, DependencyType.CLASS_IS_KEPT, CounterSet.SHRINK))
+                .isTrue();
+
+        graph.saveState();
+        CompactShrinkerGraph loaded = CompactShrinkerGraph.readFromDir(mStateDir);
+
+        assertThat(loaded.getAllProgramClasses()).containsExactly("test/Foo", "test/Iface");
+        assertThat(loaded.getReachableClasses(CounterSet.SHRINK)).containsExactly("test/Foo");
+        assertThat(loaded.getReachableClasses(CounterSet.LEGACY_MULTIDEX)).isEmpty();
+        assertThat(loaded.getReachableMembersLocalNames(foo, CounterSet.SHRINK))
+                .containsExactly("run:()V");
+        assertThat(loaded.getDependencies(foo))
+                .containsExactly(new Dependency<>(method, DependencyType.CLASS_IS_KEPT));
+        assertThat(loaded.getDependencies(method))
+                .containsExactly(new Dependency<>(field, DependencyType.REQUIRED_CODE_REFERENCE));
+        assertThat(loaded.getMethods(foo)).containsExactly(method);
+        assertThat(loaded.getFields(foo)).containsExactly(field);
+        assertThat(loaded.getSuperclass(foo)).isEqualTo("java/lang/Object");
+        assertThat(loaded.getInterfaces(foo)).asList().containsExactly("test/Iface");
+        assertThat(loaded.getModifiers(field)).isEqualTo(Opcodes.ACC_PRIVATE);
+        assertThat(loaded.getSourceFile(foo)).isEqualTo(mClassFile);
+        assertThat(loaded.getAnnotations(foo)).containsExactly("test/Annotation");
+        assertThat(loaded.getTypesFromGenericSignatures(foo)).containsExactly("test/Iface");
+        assertThat(loaded.getRoots(CounterSet.SHRINK))
+                .containsExactly(foo, DependencyType.REQUIRED_KEEP_RULES);
+        assertThat(loaded.isProgramClass(foo)).isTrue();
+        assertThat(loaded.isProgramClass("java/lang/Object")).isFalse();
+        assertThat(loaded.getOwnerClass(method)).isEqualTo(foo);
+        assertThat(loaded.findMatchingMethod(foo, "test/Other.run:()V")).isEqualTo(method);
+    }
+
+    @Test
+    public void testRemovingDependencies() throws Exception {
+        CompactShrinkerGraph graph = CompactShrinkerGraph.empty(mStateDir);
+        String foo = graph.addClass("test/Foo", null, null, Opcodes.ACC_PUBLIC, mClassFile);
+        String method = graph.addMember(foo, "run", "()V", Opcodes.ACC_PUBLIC);
+        graph.addDependency(method, "test/Missing", DependencyType.REQUIRED_CODE_REFERENCE);
+        graph.addDependency(method, "test/Missing.run:()V", DependencyType.REQUIRED_CODE_REFERENCE);
+        graph.addDependency(
+                method, "test/ByName", DependencyType.REQUIRED_CODE_REFERENCE_REFLECTION);
+        graph.addDependency(method, foo, DependencyType.REQUIRED_CODE_REFERENCE);
+        graph.addDependency(method, foo, DependencyType.REQUIRED_CLASS_STRUCTURE);
+
+        ShrinkerLogger shrinkerLogger =
+                new ShrinkerLogger(Collections.emptyList(), LoggerFactory.getLogger(getClass()));
+        graph.checkDependencies(shrinkerLogger);
+
+        assertThat(shrinkerLogger.getWarningsCount()).isEqualTo(2);
+        assertThat(graph.getDependencies(method))
+                .containsExactly(
+                        new Dependency<>(
+                                "test/ByName", DependencyType.REQUIRED_CODE_REFERENCE_REFLECTION),
+                        new Dependency<>(foo, DependencyType.REQUIRED_CODE_REFERENCE),
+                        new Dependency<>(foo, DependencyType.REQUIRED_CLASS_STRUCTURE));
+
+        graph.removeAllCodeDependencies(method);
+        assertThat(graph.getDependencies(method))
+                .containsExactly(new Dependency<>(foo, DependencyType.REQUIRED_CLASS_STRUCTURE));
+    }
+
+    @Test
+    public void testConcurrentIncrements() throws Exception {
+        CompactShrinkerGraph graph = CompactShrinkerGraph.empty(mStateDir);
+        String foo = graph.addClass("test/Foo", null, null, Opcodes.ACC_PUBLIC, mClassFile);
+        String method = graph.addMember(foo, "run", "()V", Opcodes.ACC_PUBLIC);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                DependencyType type =
+                        i % 2 == 0 ? DependencyType.IF_CLASS_KEPT : DependencyType.CLASS_IS_KEPT;
+                results.add(
+                        executor.submit(
+                                () -> graph.incrementAndCheck(method, type, CounterSet.SHRINK)));
+            }
+
+            int madeReachable = 0;
+            for (Future<Boolean> result : results) {
+                if (result.get()) {
+                    madeReachable++;
+                }
+            }
+            assertThat(madeReachable).isEqualTo(1);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(graph.isReachable(method, CounterSet.SHRINK)).isTrue();
+        assertThat(graph.isReachable(method, CounterSet.LEGACY_MULTIDEX)).isFalse();
+    }
+
+    @Test
+    public void testStateFromDifferentVersion() throws Exception {
+        CompactShrinkerGraph.empty(mStateDir).saveState();
+        File stateFile = new File(mStateDir, "shrinker.bin");
+        try (DataOutputStream stream = new DataOutputStream(new FileOutputStream(stateFile))) {
+            stream.writeInt(CompactShrinkerGraph.MAGIC);
+            stream.writeInt(CompactShrinkerGraph.VERSION + 1);
+        }
+
+        try {
+            CompactShrinkerGraph.readFromDir(mStateDir);
+            fail("Expected IncrementalRunImpossibleException");
+        } catch (IncrementalRunImpossibleException e) {
+            assertThat(e.getMessage()).contains("version");
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.tasks;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.junit.Test;
+
+/** Tests for {@link ResourceNameIndex}. */
+public class ResourceNameIndexTest {
+
+    private static final List<String> NAMES =
+            ImmutableList.of(
+                    "ic_video_codec_h264",
+                    "abc_action_bar",
+                    "ic_video_codec_vp8",
+                    "ic_audio",
+                    "icon",
+                    "ic_video_codec_h264",
+                    "title_1",
+                    "title_12",
+                    "subtitle_1");
+
+    @Test
+    public void testFindByPrefix() {
+        ResourceNameIndex<String> index = new ResourceNameIndex<>(NAMES, Function.identity());
+
+        assertEquals(
+                ImmutableList.of(
+                        "ic_video_codec_h264", "ic_video_codec_vp8", "ic_video_codec_h264"),
+                index.findByPrefix("ic_video_codec_"));
+        assertEquals(
+                ImmutableList.of(
+                        "ic_video_codec_h264",
+                        "ic_video_codec_vp8",
+                        "ic_audio",
+                        "icon",
+                        "ic_video_codec_h264"),
+                index.findByPrefix("ic"));
+        assertEquals(NAMES, index.findByPrefix(""));
+        assertEquals(ImmutableList.of(), index.findByPrefix("ic_z"));
+        assertEquals(ImmutableList.of(), index.findByPrefix("zzz"));
+    }
+
+    @Test
+    public void testFindMatching() {
+        ResourceNameIndex<String> index = new ResourceNameIndex<>(NAMES, Function.identity());
+
+        assertEquals(
+                ImmutableList.of("title_1", "title_12"),
+                index.findMatching("title_", "", name -> name.matches("title_\\d+")));
+        assertEquals(
+                ImmutableList.of("title_1", "subtitle_1"),
+                index.findMatching("", "_1", name -> true));
+        assertEquals(
+                ImmutableList.of("title_1"),
+                index.findMatching("title", "_1", name -> true));
+        assertEquals(
+                ImmutableList.of("ic_video_codec_h264", "ic_video_codec_h264"),
+                index.findMatching("ic_", "4", name -> true));
+        assertEquals(ImmutableList.of(), index.findMatching("title_", "_1", name -> false));
+    }
+
+    @Test
+    public void testSameAsFullScan() {
+        Random random = new Random(0);
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            names.add(randomName(random));
+        }
+        ResourceNameIndex<String> index = new ResourceNameIndex<>(names, Function.identity());
+
+        for (int i = 0; i < 200; i++) {
+            String prefix = randomName(random).substring(0, random.nextInt(3));
+            String suffix = randomName(random).substring(0, random.nextInt(3));
+            Pattern pattern =
+                    Pattern.compile(Pattern.quote(prefix) + ".*" + Pattern.quote(suffix));
+            assertEquals(
+                    names.stream()
+                            .filter(name -> pattern.matcher(name).matches())
+                            .collect(Collectors.toList()),
+                    index.findMatching(
+                            prefix, suffix, name -> pattern.matcher(name).matches()));
+            assertEquals(
+                    names.stream()
+                            .filter(name -> name.startsWith(prefix))
+                            .collect(Collectors.toList()),
+                    index.findByPrefix(prefix));
+        }
+    }
+
+    private static String randomName(Random random) {
+        StringBuilder name = new StringBuilder();
+        int length = 2 + random.nextInt(6);
+        for (int i = 0; i < length; i++) {
+            name.append((char) ('a' + random.nextInt(3)));
+        }
+        return name.toString();
+    }
+}
@@ -19,6 +19,8 @@ package com.android.build.gradle.tasks;
 import static com.android.build.gradle.tasks.ResourceUsageAnalyzer.NO_MATCH;
 import static com.android.build.gradle.tasks.ResourceUsageAnalyzer.REPLACE_DELETED_WITH_EMPTY;
 import static com.android.build.gradle.tasks.ResourceUsageAnalyzer.convertFormatStringToRegexp;
+import static com.android.build.gradle.tasks.ResourceUsageAnalyzer.getFormatStringPrefix;
+import static com.android.build.gradle.tasks.ResourceUsageAnalyzer.getFormatStringSuffix;
 import static java.io.File.separatorChar;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -43,6 +45,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 import org.junit.ClassRule;
@@ -76,6 +79,54 @@ public class ResourceUsageAnalyzerTest {
         check(false, false);
     }
 
+    @Test
+    public void testConcurrentClassScanMatchesSequential() throws Exception {
+        for (boolean useProguard : new boolean[] {true, false}) {
+            File dir = sTemporaryFolder.newFolder();
+            File classes =
+                    useProguard ? createProguardedClasses(dir) : createUnproguardedClasses(dir);
+            File mapping = useProguard ? createMappingFile(dir) : null;
+            File rDir = createResourceClassFolder(dir);
+            File mergedManifest = createMergedManifest(dir);
+            File resources = createResourceFolder(dir);
+
+            String sequential =
+                    analyzeWithReport(classes, mapping, rDir, mergedManifest, resources, 1);
+            assertTrue(sequential.contains("reachable: referenced from"));
+            assertEquals(
+                    sequential,
+                    analyzeWithReport(classes, mapping, rDir, mergedManifest, resources, 2));
+            assertEquals(
+                    sequential,
+                    analyzeWithReport(
+                            classes, mapping, rDir, mergedManifest, resources, Integer.MAX_VALUE));
+        }
+    }
+
+    /** Analyzes the given classes and resources and returns the debug report. */
+    private static String analyzeWithReport(
+            File classes,
+            @Nullable File mapping,
+            File rDir,
+            File mergedManifest,
+            File resources,
+            int classFilesBatchSize)
+            throws Exception {
+        File report = new File(sTemporaryFolder.newFolder(), "report.txt");
+        ResourceUsageAnalyzer analyzer =
+                new ResourceUsageAnalyzer(
+                        rDir,
+                        Collections.singleton(classes),
+                        mergedManifest,
+                        mapping,
+                        resources,
+                        report);
+        analyzer.setClassFilesBatchSize(classFilesBatchSize);
+        analyzer.analyze();
+        analyzer.dispose();
+        return Files.toString(report, Charsets.UTF_8);
+    }
+
     private static void check(boolean useProguard, boolean inPlace) throws Exception {
         File dir = sTemporaryFolder.newFolder();
 
@@ -285,6 +336,23 @@ public class ResourceUsageAnalyzerTest {
                         getZipContents(compressedFile, "res/drawable-xxhdpi/unused.png")));
             }
 
+            // Kept entries are copied without being recompressed
+            try (ZipFile sourceZip = new ZipFile(uncompressedFile);
+                    ZipFile rewrittenZip = new ZipFile(compressedFile)) {
+                for (String name :
+                        Arrays.asList(
+                                "res/drawable-hdpi/ic_launcher.png",
+                                "res/layout/activity_main.xml")) {
+                    ZipEntry sourceEntry = sourceZip.getEntry(name);
+                    ZipEntry rewrittenEntry = rewrittenZip.getEntry(name);
+                    assertNotNull(rewrittenEntry);
+                    assertEquals(sourceEntry.getMethod(), rewrittenEntry.getMethod());
+                    assertEquals(sourceEntry.getCrc(), rewrittenEntry.getCrc());
+                    assertEquals(
+                            sourceEntry.getCompressedSize(), rewrittenEntry.getCompressedSize());
+                }
+            }
+
             analyzer.dispose();
 
             uncompressedFile.delete();
@@ -1053,6 +1121,20 @@ public class ResourceUsageAnalyzerTest {
         assertTrue(s.matches(convertFormatStringToRegexp(p)));
     }
 
+    @Test
+    public void testFormatStringPrefixAndSuffix() {
+        assertEquals("foo_", getFormatStringPrefix("foo_"));
+        assertEquals("foo_", getFormatStringSuffix("foo_"));
+        assertEquals("foo", getFormatStringPrefix("foo%s_%1$send"));
+        assertEquals("end", getFormatStringSuffix("foo%s_%1$send"));
+        assertEquals("", getFormatStringPrefix("%sabc"));
+        assertEquals("abc", getFormatStringSuffix("%sabc"));
+        assertEquals("prefix", getFormatStringPrefix("prefix%05dsuffix"));
+        assertEquals("suffix", getFormatStringSuffix("prefix%05dsuffix"));
+        assertEquals("a", getFormatStringPrefix("a%d%s"));
+        assertEquals("", getFormatStringSuffix("a%d%s"));
+    }
+
     /** Utility method to generate byte array literal dump (used by classesJarBytecode above) */
     @SuppressWarnings("UnusedDeclaration") // Utility for future .class/.jar additions
     public static void dumpBytes(File file) throws IOException {
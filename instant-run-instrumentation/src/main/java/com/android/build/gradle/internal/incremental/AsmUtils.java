@@ -26,11 +26,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
-import java.util.jar.JarFile;
-import java.util.zip.ZipEntry;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.AnnotationNode;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.InnerClassNode;
@@ -58,6 +64,45 @@ public class AsmUtils {
                 throws IOException;
     }
 
+    /**
+     * Abstraction for a provider of the structure of the classes that are not being instrumented,
+     * like the classes of the dependencies and of the platform.
+     */
+    public interface ClassNodeProvider {
+
+        /**
+         * Obtains a {@link ClassNode} for a class name. The node may only contain the header of
+         * the class and the signatures of its fields and methods, without code or annotations.
+         *
+         * @param className the internal name of the requested class.
+         * @return the {@link ClassNode} or null if the class cannot be located.
+         * @throws IOException when locating/reading the class.
+         */
+        @Nullable
+        ClassNode loadClassNode(@NonNull String className) throws IOException;
+    }
+
+    /** {@link ClassNodeProvider} reading the class files of a class loader. */
+    public static class ClassLoaderBasedClassNodeProvider implements ClassNodeProvider {
+
+        private final ClassLoader classLoader;
+
+        public ClassLoaderBasedClassNodeProvider(ClassLoader classLoader) {
+            this.classLoader = classLoader;
+        }
+
+        @Nullable
+        @Override
+        public ClassNode loadClassNode(@NonNull String className) throws IOException {
+            try (InputStream is = classLoader.getResourceAsStream(className + ".class")) {
+                if (is == null) {
+                    return null;
+                }
+                return readClass(new ClassReader(is));
+            }
+        }
+    }
+
     public static class DirectoryBasedClassReader implements ClassReaderProvider {
 
         private final File binaryFolder;
@@ -83,27 +128,68 @@ public class AsmUtils {
         }
     }
 
+    /**
+     * {@link ClassReaderProvider} reading the classes of a jar through a {@link JarHandlePool}, so
+     * that providers sharing a pool do not open the jar again for every class.
+     */
     public static class JarBasedClassReader implements ClassReaderProvider {
 
         private final File file;
+        private final JarHandlePool jarHandlePool;
 
+        /**
+         * Creates a provider that does not keep the jar open between two classes. Use {@link
+         * #JarBasedClassReader(File, JarHandlePool)} to read many classes.
+         */
         public JarBasedClassReader(File file) {
+            this(file, new JarHandlePool(0));
+        }
+
+        public JarBasedClassReader(File file, JarHandlePool jarHandlePool) {
             this.file = file;
+            this.jarHandlePool = jarHandlePool;
         }
 
         @Nullable
         @Override
         public ClassReader loadClassBytes(@NonNull String className, @NonNull ILogger logger)
                 throws IOException {
-            try (JarFile jarFile = new JarFile(file)) {
-                ZipEntry entry = jarFile.getEntry(className.replace(".", "/") + ".class");
-                if (entry != null) {
-                    try (InputStream is = jarFile.getInputStream(entry)) {
-                        return new ClassReader(is);
-                    }
+            byte[] classBytes =
+                    jarHandlePool.readEntry(file, className.replace(".", "/") + ".class");
+            return classBytes != null ? new ClassReader(classBytes) : null;
+        }
+    }
+
+    /**
+     * {@link ClassReaderProvider} caching the {@link ClassReader}s, or their absence, of another
+     * provider. It is thread safe if the other provider is, as a {@link ClassReader} is not
+     * modified when classes are read from it.
+     */
+    public static class CachingClassReaderProvider implements ClassReaderProvider {
+
+        private final ClassReaderProvider classReaderProvider;
+        private final ConcurrentMap<String, Optional<ClassReader>> classReaders =
+                new ConcurrentHashMap<>();
+
+        public CachingClassReaderProvider(ClassReaderProvider classReaderProvider) {
+            this.classReaderProvider = classReaderProvider;
+        }
+
+        @Nullable
+        @Override
+        public ClassReader loadClassBytes(@NonNull String className, @NonNull ILogger logger)
+                throws IOException {
+            Optional<ClassReader> classReader = classReaders.get(className);
+            if (classReader == null) {
+                // two threads may load the same class, only one of the readers is kept.
+                classReader =
+                        Optional.ofNullable(classReaderProvider.loadClassBytes(className, logger));
+                Optional<ClassReader> previous = classReaders.putIfAbsent(className, classReader);
+                if (previous != null) {
+                    classReader = previous;
                 }
             }
-            return null;
+            return classReader.orElse(null);
         }
     }
 
@@ -147,6 +233,7 @@ public class AsmUtils {
     public static List<ClassNode> parseParents(
             @NonNull ILogger logger,
             @NonNull ClassReaderProvider classBytesReader,
+            @NonNull ClassNodeProvider classpath,
             @NonNull ClassNode classNode,
             int targetApi) throws IOException {
         List<ClassNode> parentNodes = new ArrayList<>();
@@ -159,17 +246,16 @@ public class AsmUtils {
                 parentNodes.add(parentNode);
                 currentParentName = parentNode.superName;
             } else {
-                // May need method information from outside of the current project. The thread's
-                // context class loader is configured by the caller (InstantRunTransform) to contain
-                // all app's dependencies.
-                ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
-                try {
-                    parentNode = readClass(contextClassLoader, currentParentName);
+                // May need method information from outside of the current project. The classpath
+                // is configured by the caller (InstantRunTransform) to contain all app's
+                // dependencies.
+                parentNode = classpath.loadClassNode(currentParentName);
+                if (parentNode != null) {
                     parentNodes.add(parentNode);
                     currentParentName = parentNode.superName;
-                } catch (IOException e) {
+                } else {
                     // Could not locate parent class. This is as far as we can go locating parents.
-                    logger.warning(e.getMessage());
+                    logger.warning("Failed to find byte code for %1$s", currentParentName);
                     logger.warning("IncrementalVisitor parseParents could not locate %1$s "
                                     + "which is an ancestor of project class %2$s.\n"
                                     + "%2$s is not eligible for hot swap. \n"
@@ -183,6 +269,86 @@ public class AsmUtils {
         return parentNodes;
     }
 
+    /**
+     * Computes the common super class of two types, in the same way as {@link
+     * org.objectweb.asm.ClassWriter#getCommonSuperClass(String, String)} does using classes loaded
+     * in the JVM.
+     *
+     * @param classpath the provider of the classes.
+     * @param type1 the internal name of the first type.
+     * @param type2 the internal name of the second type.
+     * @return the internal name of the common super class or null if one of the types or of their
+     * super types cannot be located.
+     * @throws IOException when locating/reading a class.
+     */
+    @Nullable
+    public static String getCommonSuperClass(
+            @NonNull ClassNodeProvider classpath, @NonNull String type1, @NonNull String type2)
+            throws IOException {
+        ClassNode c = classpath.loadClassNode(type1);
+        ClassNode d = classpath.loadClassNode(type2);
+        if (c == null || d == null) {
+            return null;
+        }
+        Boolean assignable = isAssignableFrom(classpath, type1, type2);
+        if (assignable == null) {
+            return null;
+        } else if (assignable) {
+            return type1;
+        }
+        assignable = isAssignableFrom(classpath, type2, type1);
+        if (assignable == null) {
+            return null;
+        } else if (assignable) {
+            return type2;
+        }
+        if ((c.access & Opcodes.ACC_INTERFACE) != 0 || (d.access & Opcodes.ACC_INTERFACE) != 0) {
+            return "java/lang/Object";
+        }
+        do {
+            c = c.superName != null ? classpath.loadClassNode(c.superName) : null;
+            if (c == null) {
+                return null;
+            }
+            assignable = isAssignableFrom(classpath, c.name, type2);
+            if (assignable == null) {
+                return null;
+            }
+        } while (!assignable);
+        return c.name;
+    }
+
+    /**
+     * Returns whether a type is assignable from another one like {@link Class#isAssignableFrom},
+     * or null if one of the super types of {@code subType} cannot be located.
+     */
+    @Nullable
+    private static Boolean isAssignableFrom(
+            @NonNull ClassNodeProvider classpath, @NonNull String type, @NonNull String subType)
+            throws IOException {
+        Set<String> visited = new HashSet<>();
+        Deque<String> toVisit = new ArrayDeque<>();
+        toVisit.add(subType);
+        while (!toVisit.isEmpty()) {
+            String current = toVisit.removeFirst();
+            if (current.equals(type)) {
+                return true;
+            }
+            if (visited.add(current)) {
+                ClassNode node = classpath.loadClassNode(current);
+                if (node == null) {
+                    return null;
+                }
+                if (node.superName != null) {
+                    toVisit.add(node.superName);
+                }
+                //noinspection unchecked ASM API
+                toVisit.addAll((List<String>) node.interfaces);
+            }
+        }
+        return false;
+    }
+
     @NonNull
     public static ClassNode readClass(ClassLoader classLoader, String className)
             throws IOException {
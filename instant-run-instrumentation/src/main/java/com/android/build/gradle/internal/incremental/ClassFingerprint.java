@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.build.gradle.internal.incremental;
+
+import static com.android.build.gradle.internal.incremental.InstantRunVerifierStatus.COMPATIBLE;
+import static com.android.build.gradle.internal.incremental.InstantRunVerifierStatus.INSTANT_RUN_DISABLED;
+import static com.android.build.gradle.internal.incremental.InstantRunVerifierStatus.METHOD_ADDED;
+import static com.android.build.gradle.internal.incremental.InstantRunVerifierStatus.METHOD_DELETED;
+import static com.android.build.gradle.internal.incremental.InstantRunVerifierStatus.REFLECTION_USED;
+import static com.android.build.gradle.internal.incremental.InstantRunVerifierStatus.STATIC_INITIALIZER_CHANGE;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.utils.ILogger;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Structural fingerprint of a class, used by {@link InstantRunVerifier} to verify the changes of a
+ * class without parsing its previous version again.
+ *
+ * <p>The fingerprint holds hashes of what the verifier compares: the super class, interfaces and
+ * annotations of the class, its fields, and the signature and annotations of each method. The
+ * bodies of the methods are only hashed when a change to them prevents a hot swap, that is for the
+ * static initializer and for the methods that are disabled for Instant Run or that call
+ * blacklisted APIs.
+ *
+ * <p>Equal hashes mean that the verifier finds no change. When the hashes of the class header,
+ * fields or method annotations differ, {@link #verify} cannot tell which change the verifier would
+ * report, and the two versions of the class must be compared.
+ */
+public final class ClassFingerprint {
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private static final String KOTLIN_METADATA_ANNOTATION_DESC = "Lkotlin/Metadata;";
+
+    @NonNull private final String name;
+    @NonNull private final HashCode header;
+    private final boolean instantRunDisabled;
+    @NonNull private final HashCode fields;
+    @NonNull private final ImmutableList<MethodFingerprint> methods;
+
+    private ClassFingerprint(
+            @NonNull String name,
+            @NonNull HashCode header,
+            boolean instantRunDisabled,
+            @NonNull HashCode fields,
+            @NonNull ImmutableList<MethodFingerprint> methods) {
+        this.name = name;
+        this.header = header;
+        this.instantRunDisabled = instantRunDisabled;
+        this.fields = fields;
+        this.methods = methods;
+    }
+
+    /** Computes the fingerprint of a class. */
+    @NonNull
+    public static ClassFingerprint create(@NonNull ClassNode classNode) {
+        Hasher header = HASH_FUNCTION.newHasher();
+        putString(header, classNode.superName);
+        //noinspection unchecked ASM API
+        putStrings(header, classNode.interfaces);
+        //noinspection unchecked ASM API
+        putAnnotations(header, classNode.visibleAnnotations);
+
+        Hasher fields = HASH_FUNCTION.newHasher();
+        //noinspection unchecked ASM API
+        for (FieldNode field : (List<FieldNode>) classNode.fields) {
+            putString(fields, field.name);
+            putString(fields, field.desc);
+            fields.putInt(field.access);
+            putValue(fields, field.value);
+        }
+
+        ImmutableList.Builder<MethodFingerprint> methods = ImmutableList.builder();
+        //noinspection unchecked ASM API
+        for (MethodNode method : (List<MethodNode>) classNode.methods) {
+            methods.add(MethodFingerprint.create(method));
+        }
+
+        //noinspection unchecked ASM API
+        return new ClassFingerprint(
+                classNode.name,
+                header.hash(),
+                isInstantRunDisabled(classNode.invisibleAnnotations),
+                fields.hash(),
+                methods.build());
+    }
+
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Verifies the changes from this fingerprint, of the original version of a class, to the
+     * fingerprint of its updated version.
+     *
+     * @return the status {@link InstantRunVerifier} would return for the two versions of the
+     *     class, or null if it cannot be determined from the fingerprints.
+     */
+    @Nullable
+    public InstantRunVerifierStatus verify(
+            @NonNull ClassFingerprint updated, @NonNull ILogger logger) {
+        if (!header.equals(updated.header)) {
+            return null;
+        }
+        if (instantRunDisabled) {
+            logger.info(
+                    "Class %s$1 annotated with %s$2.",
+                    updated.name,
+                    IncrementalVisitor.DISABLE_ANNOTATION_TYPE.getClassName());
+            return INSTANT_RUN_DISABLED;
+        }
+        if (!fields.equals(updated.fields)) {
+            return null;
+        }
+
+        Map<String, MethodFingerprint> updatedMethods = new HashMap<>();
+        for (MethodFingerprint method : updated.methods) {
+            updatedMethods.put(method.getKey(), method);
+        }
+        for (MethodFingerprint method : methods) {
+            MethodFingerprint updatedMethod = updatedMethods.remove(method.getKey());
+            if (updatedMethod == null) {
+                return METHOD_DELETED;
+            }
+            boolean bodyChanged =
+                    method.body == null
+                            || updatedMethod.body == null
+                            || !method.body.equals(updatedMethod.body);
+            if (method.name.equals(ByteCodeUtils.CLASS_INITIALIZER)) {
+                if (bodyChanged) {
+                    return STATIC_INITIALIZER_CHANGE;
+                }
+                continue;
+            }
+            if (!method.annotations.equals(updatedMethod.annotations)) {
+                return null;
+            }
+            // the body of a method is hashed if it is disabled or uses blacklisted APIs, and is
+            // printed with its annotations and calls, so a body only hashed in one of the versions
+            // is a changed body.
+            if ((method.instantRunDisabled || updatedMethod.usingBlackListedApis) && bodyChanged) {
+                if (method.instantRunDisabled) {
+                    logger.info("Instant Run disabled for method %s.", updatedMethod.name);
+                    return INSTANT_RUN_DISABLED;
+                } else {
+                    return REFLECTION_USED;
+                }
+            }
+        }
+        return updatedMethods.isEmpty() ? COMPATIBLE : METHOD_ADDED;
+    }
+
+    /** Writes this fingerprint, to be read by {@link #read(DataInput)}. */
+    public void write(@NonNull DataOutput out) throws IOException {
+        out.writeUTF(name);
+        out.write(header.asBytes());
+        out.writeBoolean(instantRunDisabled);
+        out.write(fields.asBytes());
+        out.writeInt(methods.size());
+        for (MethodFingerprint method : methods) {
+            method.write(out);
+        }
+    }
+
+    /** Reads a fingerprint written by {@link #write(DataOutput)}. */
+    @NonNull
+    public static ClassFingerprint read(@NonNull DataInput in) throws IOException {
+        String name = in.readUTF();
+        HashCode header = readHash(in);
+        boolean instantRunDisabled = in.readBoolean();
+        HashCode fields = readHash(in);
+        int methodCount = in.readInt();
+        ImmutableList.Builder<MethodFingerprint> methods = ImmutableList.builder();
+        for (int i = 0; i < methodCount; i++) {
+            methods.add(MethodFingerprint.read(in));
+        }
+        return new ClassFingerprint(name, header, instantRunDisabled, fields, methods.build());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        ClassFingerprint that = (ClassFingerprint) o;
+        return instantRunDisabled == that.instantRunDisabled
+                && name.equals(that.name)
+                && header.equals(that.header)
+                && fields.equals(that.fields)
+                && methods.equals(that.methods);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(name, header, instantRunDisabled, fields, methods);
+    }
+
+    /** Fingerprint of a method. */
+    private static final class MethodFingerprint {
+
+        @NonNull private final String name;
+        @NonNull private final String desc;
+        @NonNull private final HashCode annotations;
+        private final boolean instantRunDisabled;
+        private final boolean usingBlackListedApis;
+        /** The hash of the body, if it was hashed. */
+        @Nullable private final HashCode body;
+
+        private MethodFingerprint(
+                @NonNull String name,
+                @NonNull String desc,
+                @NonNull HashCode annotations,
+                boolean instantRunDisabled,
+                boolean usingBlackListedApis,
+                @Nullable HashCode body) {
+            this.name = name;
+            this.desc = desc;
+            this.annotations = annotations;
+            this.instantRunDisabled = instantRunDisabled;
+            this.usingBlackListedApis = usingBlackListedApis;
+            this.body = body;
+        }
+
+        @NonNull
+        static MethodFingerprint create(@NonNull MethodNode method) {
+            Hasher annotations = HASH_FUNCTION.newHasher();
+            //noinspection unchecked ASM API
+            putAnnotations(annotations, method.visibleAnnotations);
+            //noinspection unchecked ASM API
+            boolean instantRunDisabled = isInstantRunDisabled(method.invisibleAnnotations);
+            boolean usingBlackListedApis =
+                    InstantRunMethodVerifier.verifyMethod(method) != COMPATIBLE;
+            HashCode body =
+                    method.name.equals(ByteCodeUtils.CLASS_INITIALIZER)
+                                    || instantRunDisabled
+                                    || usingBlackListedApis
+                            ? HASH_FUNCTION.hashString(
+                                    InstantRunVerifier.getMethodText(method),
+                                    StandardCharsets.UTF_8)
+                            : null;
+            return new MethodFingerprint(
+                    method.name,
+                    method.desc,
+                    annotations.hash(),
+                    instantRunDisabled,
+                    usingBlackListedApis,
+                    body);
+        }
+
+        @NonNull
+        String getKey() {
+            return name + desc;
+        }
+
+        void write(@NonNull DataOutput out) throws IOException {
+            out.writeUTF(name);
+            out.writeUTF(desc);
+            out.write(annotations.asBytes());
+            out.writeBoolean(instantRunDisabled);
+            out.writeBoolean(usingBlackListedApis);
+            out.writeBoolean(body != null);
+            if (body != null) {
+                out.write(body.asBytes());
+            }
+        }
+
+        @NonNull
+        static MethodFingerprint read(@NonNull DataInput in) throws IOException {
+            String name = in.readUTF();
+            String desc = in.readUTF();
+            HashCode annotations = readHash(in);
+            boolean instantRunDisabled = in.readBoolean();
+            boolean usingBlackListedApis = in.readBoolean();
+            HashCode body = in.readBoolean() ? readHash(in) : null;
+            return new MethodFingerprint(
+                    name, desc, annotations, instantRunDisabled, usingBlackListedApis, body);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            MethodFingerprint that = (MethodFingerprint) o;
+            return instantRunDisabled == that.instantRunDisabled
+                    && usingBlackListedApis == that.usingBlackListedApis
+                    && name.equals(that.name)
+                    && desc.equals(that.desc)
+                    && annotations.equals(that.annotations)
+                    && Objects.equal(body, that.body);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(
+                    name, desc, annotations, instantRunDisabled, usingBlackListedApis, body);
+        }
+    }
+
+    private static boolean isInstantRunDisabled(@Nullable List<AnnotationNode> annotations) {
+        if (annotations != null) {
+            for (AnnotationNode annotation : annotations) {
+                if (annotation.desc.equals(
+                        IncrementalVisitor.DISABLE_ANNOTATION_TYPE.getDescriptor())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @NonNull
+    private static HashCode readHash(@NonNull DataInput in) throws IOException {
+        byte[] bytes = new byte[HASH_FUNCTION.bits() / 8];
+        in.readFully(bytes);
+        return HashCode.fromBytes(bytes);
+    }
+
+    private static void putString(@NonNull Hasher hasher, @Nullable String value) {
+        if (value == null) {
+            hasher.putInt(-1);
+        } else {
+            hasher.putInt(value.length());
+            hasher.putString(value, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void putStrings(@NonNull Hasher hasher, @Nullable List<String> values) {
+        if (values == null) {
+            hasher.putInt(-1);
+            return;
+        }
+        hasher.putInt(values.size());
+        for (String value : values) {
+            putString(hasher, value);
+        }
+    }
+
+    private static void putAnnotations(
+            @NonNull Hasher hasher, @Nullable List<AnnotationNode> annotations) {
+        if (annotations == null) {
+            hasher.putInt(-1);
+            return;
+        }
+        hasher.putInt(annotations.size());
+        for (AnnotationNode annotation : annotations) {
+            putAnnotation(hasher, annotation);
+        }
+    }
+
+    private static void putAnnotation(@NonNull Hasher hasher, @NonNull AnnotationNode annotation) {
+        putString(hasher, annotation.desc);
+        // the verifier ignores the values of the Kotlin metadata, which change with the class.
+        if (annotation.desc.equals(KOTLIN_METADATA_ANNOTATION_DESC)) {
+            return;
+        }
+        //noinspection unchecked ASM API
+        List<Object> values = annotation.values;
+        if (values == null) {
+            hasher.putInt(-1);
+            return;
+        }
+        hasher.putInt(values.size());
+        for (Object value : values) {
+            putValue(hasher, value);
+        }
+    }
+
+    /**
+     * Hashes a field or annotation value: a boxed primitive, a string, a type, an enum entry, an
+     * annotation, or an array or list of values.
+     */
+    private static void putValue(@NonNull Hasher hasher, @Nullable Object value) {
+        if (value == null) {
+            hasher.putInt(-1);
+            return;
+        }
+        putString(hasher, value.getClass().getName());
+        if (value instanceof AnnotationNode) {
+            putAnnotation(hasher, (AnnotationNode) value);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            hasher.putInt(list.size());
+            for (Object element : list) {
+                putValue(hasher, element);
+            }
+        } else if (value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            hasher.putInt(length);
+            for (int i = 0; i < length; i++) {
+                putValue(hasher, Array.get(value, i));
+            }
+        } else {
+            putString(hasher, value.toString());
+        }
+    }
+}
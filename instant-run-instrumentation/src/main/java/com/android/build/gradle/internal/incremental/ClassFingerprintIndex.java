@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.build.gradle.internal.incremental;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Index of the {@link ClassFingerprint}s of the classes verified by {@link InstantRunVerifier},
+ * persisted from one build to the next one so that the previous version of a changed class does
+ * not need to be parsed again.
+ *
+ * <p>The fingerprints are keyed by a name of the class file, like its path, and are only returned
+ * for the exact class file they were computed from, so a class file changed or copied without
+ * updating the index is verified by comparing the two versions. The index file is only an
+ * optimization: if it is missing or corrupted, the classes are compared.
+ *
+ * <p>This class is not thread-safe.
+ */
+public final class ClassFingerprintIndex {
+
+    @VisibleForTesting static final int MAGIC = 0x49524650;
+    @VisibleForTesting static final int VERSION = 1;
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    /** A fingerprint and the hash of the class file it was computed from. */
+    private static final class Entry {
+
+        @NonNull private final HashCode classHash;
+        @NonNull private final ClassFingerprint fingerprint;
+
+        Entry(@NonNull HashCode classHash, @NonNull ClassFingerprint fingerprint) {
+            this.classHash = classHash;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    @NonNull private final Map<String, Entry> entries = new HashMap<>();
+
+    private boolean modified = false;
+
+    /**
+     * Returns the fingerprint of a class file, or null if the index does not contain the
+     * fingerprint of this exact class file.
+     */
+    @Nullable
+    public ClassFingerprint get(@NonNull String key, @NonNull byte[] classBytes) {
+        Entry entry = entries.get(key);
+        if (entry == null || !entry.classHash.equals(HASH_FUNCTION.hashBytes(classBytes))) {
+            return null;
+        }
+        return entry.fingerprint;
+    }
+
+    /** Records the fingerprint of a class file. */
+    public void put(
+            @NonNull String key,
+            @NonNull byte[] classBytes,
+            @NonNull ClassFingerprint fingerprint) {
+        entries.put(key, new Entry(HASH_FUNCTION.hashBytes(classBytes), fingerprint));
+        modified = true;
+    }
+
+    /** Removes the fingerprint of a class file that was deleted. */
+    public void remove(@NonNull String key) {
+        if (entries.remove(key) != null) {
+            modified = true;
+        }
+    }
+
+    /** Returns whether the index changed since it was loaded. */
+    public boolean isModified() {
+        return modified;
+    }
+
+    @VisibleForTesting
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Loads an index file written by {@link #write(File)}. Returns an empty index if the file does
+     * not exist or is invalid.
+     */
+    @NonNull
+    public static ClassFingerprintIndex load(@NonNull File indexFile) {
+        ClassFingerprintIndex index = new ClassFingerprintIndex();
+        try (DataInputStream in =
+                new DataInputStream(
+                        new BufferedInputStream(Files.newInputStream(indexFile.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return index;
+            }
+            int entryCount = in.readInt();
+            Map<String, Entry> entries = new HashMap<>();
+            for (int i = 0; i < entryCount; i++) {
+                String key = in.readUTF();
+                byte[] classHash = new byte[HASH_FUNCTION.bits() / 8];
+                in.readFully(classHash);
+                ClassFingerprint fingerprint = ClassFingerprint.read(in);
+                entries.put(key, new Entry(HashCode.fromBytes(classHash), fingerprint));
+            }
+            index.entries.putAll(entries);
+        } catch (NoSuchFileException | EOFException e) {
+            // no index, or it was only partially written
+        } catch (IOException | RuntimeException e) {
+            // the classes will be compared
+        }
+        return index;
+    }
+
+    /**
+     * Writes this index to the given file. The file is written to a temporary file first and then
+     * moved, so that an interrupted build does not leave a partially written index.
+     */
+    public void write(@NonNull File indexFile) throws IOException {
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out =
+                new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(tmpFile.toPath())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                out.writeUTF(mapEntry.getKey());
+                out.write(mapEntry.getValue().classHash.asBytes());
+                mapEntry.getValue().fingerprint.write(out);
+            }
+        }
+        try {
+            Files.move(
+                    tmpFile.toPath(),
+                    indexFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        modified = false;
+    }
+}
@@ -240,6 +240,10 @@ public class IncrementalVisitor extends ClassVisitor {
         return (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_BRIDGE | Opcodes.ACC_NATIVE)) == 0;
     }
 
+    /**
+     * Instruments a class, resolving the classes outside of the input root directory with the
+     * thread's context class loader.
+     */
     @Nullable
     public static File instrumentClass(
             int targetApiLevel,
@@ -248,6 +252,61 @@ public class IncrementalVisitor extends ClassVisitor {
             @NonNull File outputDirectory,
             @NonNull VisitorBuilder visitorBuilder,
             @NonNull ILogger logger) throws IOException {
+        return instrumentClass(
+                targetApiLevel,
+                inputRootDirectory,
+                inputFile,
+                outputDirectory,
+                visitorBuilder,
+                new AsmUtils.ClassLoaderBasedClassNodeProvider(
+                        Thread.currentThread().getContextClassLoader()),
+                logger);
+    }
+
+    /**
+     * Instruments a class, resolving the classes outside of the input root directory with the
+     * given classpath.
+     */
+    @Nullable
+    public static File instrumentClass(
+            int targetApiLevel,
+            @NonNull File inputRootDirectory,
+            @NonNull File inputFile,
+            @NonNull File outputDirectory,
+            @NonNull VisitorBuilder visitorBuilder,
+            @NonNull AsmUtils.ClassNodeProvider classpath,
+            @NonNull ILogger logger) throws IOException {
+        return instrumentClass(
+                targetApiLevel,
+                inputRootDirectory,
+                inputFile,
+                outputDirectory,
+                visitorBuilder,
+                null,
+                classpath,
+                logger);
+    }
+
+    /**
+     * Instruments a class, reading the outer and parent classes of the input root directory with
+     * the given provider and resolving the other classes with the given classpath.
+     *
+     * <p>The providers are shared by the classes instrumented concurrently, so they must be
+     * thread safe.
+     *
+     * @param inputClasses the provider of the classes of the input root directory, or null to read
+     *     them from the directory of the input file.
+     */
+    @Nullable
+    public static File instrumentClass(
+            int targetApiLevel,
+            @NonNull File inputRootDirectory,
+            @NonNull File inputFile,
+            @NonNull File outputDirectory,
+            @NonNull VisitorBuilder visitorBuilder,
+            @Nullable AsmUtils.ClassReaderProvider inputClasses,
+            @NonNull AsmUtils.ClassNodeProvider classpath,
+            @NonNull ILogger logger) throws IOException {
 
         byte[] classBytes;
         String path = FileUtils.relativePath(inputFile, inputRootDirectory);
@@ -266,40 +325,25 @@ public class IncrementalVisitor extends ClassVisitor {
         }
         classBytes = Files.toByteArray(inputFile);
         ClassReader classReader = new ClassReader(classBytes);
-        // override the getCommonSuperClass to use the thread context class loader instead of
-        // the system classloader. This is useful as ASM needs to load classes from the project
-        // which the system classloader does not have visibility upon.
-        // TODO: investigate if there is not a simpler way than overriding.
+        // override the getCommonSuperClass to use the classpath instead of the system
+        // classloader. This is useful as ASM needs to resolve classes from the project which the
+        // system classloader does not have visibility upon.
         ClassWriter classWriter = new ClassWriter(classReader, ClassWriter.COMPUTE_FRAMES) {
             @Override
             protected String getCommonSuperClass(final String type1, final String type2) {
-                Class<?> c, d;
-                ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+                String commonSuperClass;
                 try {
-                    c = Class.forName(type1.replace('/', '.'), false, classLoader);
-                    d = Class.forName(type2.replace('/', '.'), false, classLoader);
-                } catch (ClassNotFoundException e) {
+                    commonSuperClass = AsmUtils.getCommonSuperClass(classpath, type1, type2);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                if (commonSuperClass == null) {
                     // This may happen if we're processing class files which reference APIs not
                     // available on the target device. In this case return a dummy value, since this
                     // is ignored during dx compilation.
                     return "instant/run/NoCommonSuperClass";
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-                if (c.isAssignableFrom(d)) {
-                    return type1;
-                }
-                if (d.isAssignableFrom(c)) {
-                    return type2;
-                }
-                if (c.isInterface() || d.isInterface()) {
-                    return "java/lang/Object";
-                } else {
-                    do {
-                        c = c.getSuperclass();
-                    } while (!c.isAssignableFrom(d));
-                    return c.getName().replace('.', '/');
                 }
+                return commonSuperClass;
             }
         };
 
@@ -327,8 +371,11 @@ public class IncrementalVisitor extends ClassVisitor {
             }
         }
 
-        AsmUtils.DirectoryBasedClassReader directoryClassReader =
-                new AsmUtils.DirectoryBasedClassReader(getBinaryFolder(inputFile, classNode));
+        AsmUtils.ClassReaderProvider directoryClassReader =
+                inputClasses != null
+                        ? inputClasses
+                        : new AsmUtils.DirectoryBasedClassReader(
+                                getBinaryFolder(inputFile, classNode));
 
         // if we are targeting a more recent version than the current device, disable instant run
         // for that class.
@@ -337,7 +384,7 @@ public class IncrementalVisitor extends ClassVisitor {
                         targetApiLevel, TARGET_API_TYPE, directoryClassReader, classNode, logger)
                         ? ImmutableList.of()
                         : AsmUtils.parseParents(
-                                logger, directoryClassReader, classNode, targetApiLevel);
+                                logger, directoryClassReader, classpath, classNode, targetApiLevel);
         // if we could not determine the parent hierarchy, disable instant run.
         if (parentsNodes.isEmpty() || isPackageInstantRunDisabled(inputFile)) {
             if (visitorBuilder.getOutputType() == OutputType.INSTRUMENT) {
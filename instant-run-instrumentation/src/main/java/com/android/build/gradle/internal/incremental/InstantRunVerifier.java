@@ -164,17 +164,53 @@ public class InstantRunVerifier {
                 logger);
     }
 
-    // ASM API not generified.
-    @SuppressWarnings("unchecked")
     @NonNull
     public static InstantRunVerifierStatus run(
             @NonNull ClassBytesProvider original,
             @NonNull ClassBytesProvider updated,
             @NonNull ILogger logger)
             throws IOException {
+        return run(loadClass(original), loadClass(updated), logger);
+    }
+
+    /**
+     * Verifies the changes of a class, using the fingerprint of its original version recorded in
+     * the given index when it is there, so that the original version does not need to be parsed.
+     * The fingerprint of the updated version is recorded in the index.
+     *
+     * @param key the key of the class in the index, like the path of the class file.
+     */
+    @NonNull
+    public static InstantRunVerifierStatus run(
+            @NonNull ClassBytesProvider original,
+            @NonNull ClassBytesProvider updated,
+            @NonNull ClassFingerprintIndex fingerprints,
+            @NonNull String key,
+            @NonNull ILogger logger)
+            throws IOException {
+        byte[] originalBytes = original.load();
+        byte[] updatedBytes = updated.load();
+        ClassFingerprint originalFingerprint = fingerprints.get(key, originalBytes);
+        ClassNode updatedClass = loadClass(updatedBytes);
+        ClassFingerprint updatedFingerprint = ClassFingerprint.create(updatedClass);
+        fingerprints.put(key, updatedBytes, updatedFingerprint);
+
+        if (originalFingerprint != null) {
+            InstantRunVerifierStatus status = originalFingerprint.verify(updatedFingerprint, logger);
+            if (status != null) {
+                return status;
+            }
+        }
+        return run(loadClass(originalBytes), updatedClass, logger);
+    }
 
-        ClassNode originalClass = loadClass(original);
-        ClassNode updatedClass = loadClass(updated);
+    // ASM API not generified.
+    @SuppressWarnings("unchecked")
+    @NonNull
+    private static InstantRunVerifierStatus run(
+            @NonNull ClassNode originalClass,
+            @NonNull ClassNode updatedClass,
+            @NonNull ILogger logger) {
 
         if (!originalClass.superName.equals(updatedClass.superName)) {
             return PARENT_CLASS_CHANGED;
@@ -398,20 +434,23 @@ public class InstantRunVerifier {
             if (!first.name.equals(second.name) || !first.desc.equals(second.desc)) {
                 return false;
             }
-            VerifierTextifier firstMethodTextifier = new VerifierTextifier();
-            VerifierTextifier secondMethodTextifier = new VerifierTextifier();
-            first.accept(new TraceMethodVisitor(firstMethodTextifier));
-            second.accept(new TraceMethodVisitor(secondMethodTextifier));
-
-            StringWriter firstText = new StringWriter();
-            StringWriter secondText = new StringWriter();
-            firstMethodTextifier.print(new PrintWriter(firstText));
-            secondMethodTextifier.print(new PrintWriter(secondText));
-
-            return firstText.toString().equals(secondText.toString());
+            return getMethodText(first).equals(getMethodText(second));
         }
     }
 
+    /**
+     * Returns the text of a method, with its annotations and byte codes but without line numbers,
+     * which is compared to find if the implementation of a method changed.
+     */
+    @NonNull
+    static String getMethodText(@NonNull MethodNode method) {
+        VerifierTextifier textifier = new VerifierTextifier();
+        method.accept(new TraceMethodVisitor(textifier));
+        StringWriter text = new StringWriter();
+        textifier.print(new PrintWriter(text));
+        return text.toString();
+    }
+
     /**
      * Subclass of {@link Textifier} that will pretty print method bytecodes but will swallow the
      * line numbers notification as it is not pertinent for the InstantRun hot swapping.
@@ -516,7 +555,10 @@ public class InstantRunVerifier {
     }
 
     static ClassNode loadClass(ClassBytesProvider classFile) throws IOException {
-        byte[] classBytes = classFile.load();
+        return loadClass(classFile.load());
+    }
+
+    static ClassNode loadClass(byte[] classBytes) {
         ClassReader classReader = new ClassReader(classBytes);
 
         org.objectweb.asm.tree.ClassNode classNode = new org.objectweb.asm.tree.ClassNode();
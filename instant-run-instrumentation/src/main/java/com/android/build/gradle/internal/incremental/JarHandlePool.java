@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.incremental;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Pool of open {@link ZipFile} handles, shared by the readers of the same jars so that the central
+ * directory of a jar is not parsed again for every entry read from it.
+ *
+ * <p>The names of the entries of each jar are indexed when the jar is first opened, so looking up
+ * a missing entry does not need an open handle. Handles are reference counted while an entry is
+ * read, and at most {@code maxIdleHandles} handles are kept open once they are no longer used, the
+ * least recently used ones being closed first. A jar that changed on disk is indexed again.
+ *
+ * <p>The pool is thread safe. It must be closed once the jars are no longer read, for instance at
+ * the end of a transform, so that no file stays open.
+ */
+public final class JarHandlePool implements Closeable {
+
+    /** The jars known to the pool, by path, in least recently used order. */
+    @NonNull
+    private final LinkedHashMap<String, JarHandle> jars = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final int maxIdleHandles;
+
+    private int openCount;
+
+    private int openedCount;
+
+    private boolean closed;
+
+    /**
+     * Creates a pool.
+     *
+     * @param maxIdleHandles the maximum number of handles kept open while no entry is read from
+     *     them, 0 to close handles as soon as they are released.
+     */
+    public JarHandlePool(int maxIdleHandles) {
+        Preconditions.checkArgument(maxIdleHandles >= 0, "maxIdleHandles < 0");
+        this.maxIdleHandles = maxIdleHandles;
+    }
+
+    /**
+     * Returns whether the given jar contains an entry. Only the index of the jar is used once it
+     * has been built.
+     */
+    public synchronized boolean hasEntry(@NonNull File jar, @NonNull String entryName)
+            throws IOException {
+        boolean hasEntry = getIndexedHandle(jar).entryNames.contains(entryName);
+        evictIdleHandles();
+        return hasEntry;
+    }
+
+    /**
+     * Reads an entry of a jar.
+     *
+     * @param jar the jar file.
+     * @param entryName the name of the entry, like {@code com/example/Foo.class}.
+     * @return the content of the entry or null if the jar does not contain it.
+     * @throws IOException when the jar cannot be read.
+     */
+    @Nullable
+    public byte[] readEntry(@NonNull File jar, @NonNull String entryName) throws IOException {
+        JarHandle handle;
+        ZipFile zipFile;
+        synchronized (this) {
+            handle = getIndexedHandle(jar);
+            if (!handle.entryNames.contains(entryName)) {
+                evictIdleHandles();
+                return null;
+            }
+            // the handle opened to index the jar, if any, is still open and reused.
+            zipFile = acquire(handle);
+        }
+        try {
+            ZipEntry entry = zipFile.getEntry(entryName);
+            if (entry == null) {
+                return null;
+            }
+            try (InputStream is = zipFile.getInputStream(entry)) {
+                return ByteStreams.toByteArray(is);
+            }
+        } finally {
+            release(handle);
+        }
+    }
+
+    /** Closes all the handles of the pool. The pool cannot be used afterwards. */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        IOException failure = null;
+        for (JarHandle handle : jars.values()) {
+            try {
+                closeHandle(handle);
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        jars.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /** Returns the number of handles currently open. */
+    @VisibleForTesting
+    synchronized int getOpenCount() {
+        return openCount;
+    }
+
+    /** Returns the number of times a jar was opened since the pool was created. */
+    @VisibleForTesting
+    synchronized int getOpenedCount() {
+        return openedCount;
+    }
+
+    /**
+     * Returns the handle of a jar, with its index of entry names up to date. Idle handles are not
+     * evicted, so that the handle opened to index the jar can be used by the caller, which is
+     * responsible for evicting them.
+     */
+    @NonNull
+    private JarHandle getIndexedHandle(@NonNull File jar) throws IOException {
+        Preconditions.checkState(!closed, "Jar handle pool is closed");
+        String key = jar.getAbsolutePath();
+        JarHandle handle = jars.get(key);
+        if (handle != null && !handle.isUpToDate()) {
+            // the handle is closed when released if an entry is being read from it.
+            jars.remove(key);
+            if (handle.references == 0) {
+                closeHandle(handle);
+            }
+            handle = null;
+        }
+        if (handle == null) {
+            handle = new JarHandle(jar);
+            ZipFile zipFile = open(handle);
+            ImmutableSet.Builder<String> entryNames = ImmutableSet.builder();
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                entryNames.add(entries.nextElement().getName());
+            }
+            handle.entryNames = entryNames.build();
+            jars.put(key, handle);
+        }
+        return handle;
+    }
+
+    @NonNull
+    private ZipFile acquire(@NonNull JarHandle handle) throws IOException {
+        ZipFile zipFile = handle.zipFile != null ? handle.zipFile : open(handle);
+        handle.references++;
+        return zipFile;
+    }
+
+    private synchronized void release(@NonNull JarHandle handle) throws IOException {
+        handle.references--;
+        if (handle.references == 0 && (closed || jars.get(handle.key) != handle)) {
+            // the pool was closed, or the jar changed, while the entry was read.
+            closeHandle(handle);
+        } else {
+            evictIdleHandles();
+        }
+    }
+
+    @NonNull
+    private ZipFile open(@NonNull JarHandle handle) throws IOException {
+        ZipFile zipFile = new ZipFile(handle.file);
+        handle.zipFile = zipFile;
+        openCount++;
+        openedCount++;
+        return zipFile;
+    }
+
+    private void closeHandle(@NonNull JarHandle handle) throws IOException {
+        ZipFile zipFile = handle.zipFile;
+        if (zipFile != null) {
+            handle.zipFile = null;
+            openCount--;
+            zipFile.close();
+        }
+    }
+
+    /** Closes the least recently used idle handles above {@link #maxIdleHandles}. */
+    private void evictIdleHandles() throws IOException {
+        int idleCount = 0;
+        for (JarHandle handle : jars.values()) {
+            if (handle.zipFile != null && handle.references == 0) {
+                idleCount++;
+            }
+        }
+        Iterator<Map.Entry<String, JarHandle>> iterator = jars.entrySet().iterator();
+        while (idleCount > maxIdleHandles && iterator.hasNext()) {
+            JarHandle handle = iterator.next().getValue();
+            if (handle.zipFile != null && handle.references == 0) {
+                closeHandle(handle);
+                idleCount--;
+            }
+        }
+    }
+
+    /** The state of a jar in the pool. Guarded by the pool. */
+    private static final class JarHandle {
+
+        @NonNull private final File file;
+        @NonNull private final String key;
+        private final long lastModified;
+        private final long length;
+
+        /** The names of all the entries of the jar. */
+        @NonNull private ImmutableSet<String> entryNames = ImmutableSet.of();
+
+        /** The open handle, or null if it was closed. */
+        @Nullable private ZipFile zipFile;
+
+        /** The number of entries being read. */
+        private int references;
+
+        JarHandle(@NonNull File file) {
+            this.file = file;
+            this.key = file.getAbsolutePath();
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+
+        boolean isUpToDate() {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+}
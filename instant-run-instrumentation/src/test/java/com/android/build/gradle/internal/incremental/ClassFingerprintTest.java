@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.build.gradle.internal.incremental;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.annotations.NonNull;
+import com.android.utils.ILogger;
+import com.android.utils.NullLogger;
+import com.google.common.io.Files;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/** Tests for {@link ClassFingerprint} and {@link ClassFingerprintIndex}. */
+public class ClassFingerprintTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final ILogger logger = new NullLogger();
+
+    @Test
+    public void testUnchangedClass() {
+        ClassFingerprint original = fingerprint(new TestClass());
+        assertThat(original.getName()).isEqualTo("test/Foo");
+        assertThat(original.verify(fingerprint(new TestClass()), logger))
+                .isEqualTo(InstantRunVerifierStatus.COMPATIBLE);
+    }
+
+    @Test
+    public void testMethodBodyChanged() {
+        TestClass updated = new TestClass();
+        updated.fooValue = 2;
+        assertThat(fingerprint(new TestClass()).verify(fingerprint(updated), logger))
+                .isEqualTo(InstantRunVerifierStatus.COMPATIBLE);
+    }
+
+    @Test
+    public void testStaticInitializerChanged() {
+        TestClass updated = new TestClass();
+        updated.clinitValue = 2;
+        assertThat(fingerprint(new TestClass()).verify(fingerprint(updated), logger))
+                .isEqualTo(InstantRunVerifierStatus.STATIC_INITIALIZER_CHANGE);
+    }
+
+    @Test
+    public void testReflectionUsed() {
+        TestClass original = new TestClass();
+        original.reflective = true;
+        TestClass unchanged = new TestClass();
+        unchanged.reflective = true;
+        assertThat(fingerprint(original).verify(fingerprint(unchanged), logger))
+                .isEqualTo(InstantRunVerifierStatus.COMPATIBLE);
+
+        TestClass updated = new TestClass();
+        updated.reflective = true;
+        updated.fooValue = 2;
+        assertThat(fingerprint(original).verify(fingerprint(updated), logger))
+                .isEqualTo(InstantRunVerifierStatus.REFLECTION_USED);
+        assertThat(fingerprint(new TestClass()).verify(fingerprint(updated), logger))
+                .isEqualTo(InstantRunVerifierStatus.REFLECTION_USED);
+    }
+
+    @Test
+    public void testMethodAddedAndDeleted() {
+        TestClass withBar = new TestClass();
+        withBar.bar = true;
+        assertThat(fingerprint(new TestClass()).verify(fingerprint(withBar), logger))
+                .isEqualTo(InstantRunVerifierStatus.METHOD_ADDED);
+        assertThat(fingerprint(withBar).verify(fingerprint(new TestClass()), logger))
+                .isEqualTo(InstantRunVerifierStatus.METHOD_DELETED);
+    }
+
+    @Test
+    public void testStructuralChangesNotDetermined() {
+        TestClass fieldChanged = new TestClass();
+        fieldChanged.fieldDesc = "J";
+        assertThat(fingerprint(new TestClass()).verify(fingerprint(fieldChanged), logger))
+                .isNull();
+
+        TestClass superClassChanged = new TestClass();
+        superClassChanged.superName = "java/lang/Thread";
+        assertThat(fingerprint(new TestClass()).verify(fingerprint(superClassChanged), logger))
+                .isNull();
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        TestClass testClass = new TestClass();
+        testClass.reflective = true;
+        ClassFingerprint fingerprint = fingerprint(testClass);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        fingerprint.write(new DataOutputStream(bytes));
+        ClassFingerprint read =
+                ClassFingerprint.read(
+                        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertThat(read).isEqualTo(fingerprint);
+    }
+
+    @Test
+    public void testIndex() throws IOException {
+        byte[] original = new TestClass().toByteArray();
+        TestClass updatedClass = new TestClass();
+        updatedClass.fooValue = 2;
+        byte[] updated = updatedClass.toByteArray();
+
+        ClassFingerprintIndex index = new ClassFingerprintIndex();
+        assertThat(index.get("test/Foo.class", original)).isNull();
+        index.put("test/Foo.class", original, fingerprint(new TestClass()));
+        assertThat(index.isModified()).isTrue();
+        assertThat(index.get("test/Foo.class", original)).isEqualTo(fingerprint(new TestClass()));
+        // the fingerprint is only returned for the class file it was computed from.
+        assertThat(index.get("test/Foo.class", updated)).isNull();
+
+        File indexFile = new File(temporaryFolder.getRoot(), "fingerprints");
+        index.write(indexFile);
+        assertThat(index.isModified()).isFalse();
+        ClassFingerprintIndex loaded = ClassFingerprintIndex.load(indexFile);
+        assertThat(loaded.size()).isEqualTo(1);
+        assertThat(loaded.get("test/Foo.class", original)).isEqualTo(fingerprint(new TestClass()));
+
+        loaded.remove("test/Foo.class");
+        assertThat(loaded.isModified()).isTrue();
+        assertThat(loaded.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testInvalidIndexFileIgnored() throws IOException {
+        File indexFile = new File(temporaryFolder.getRoot(), "fingerprints");
+        Files.write(new byte[] {1, 2, 3}, indexFile);
+        assertThat(ClassFingerprintIndex.load(indexFile).size()).isEqualTo(0);
+        assertThat(ClassFingerprintIndex.load(new File(indexFile.getPath() + "-missing")).size())
+                .isEqualTo(0);
+    }
+
+    @NonNull
+    private static ClassFingerprint fingerprint(@NonNull TestClass testClass) {
+        return ClassFingerprint.create(InstantRunVerifier.loadClass(testClass.toByteArray()));
+    }
+
+    /** Generator of the versions of a test/Foo class. */
+    private static final class TestClass {
+
+        String superName = "java/lang/Object";
+        String fieldDesc = "I";
+        int fooValue = 1;
+        int clinitValue = 1;
+        boolean reflective = false;
+        boolean bar = false;
+
+        @NonNull
+        byte[] toByteArray() {
+            ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+            cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "test/Foo", null, superName, null);
+            cw.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "field", fieldDesc, null, null)
+                    .visitEnd();
+
+            MethodVisitor mv = cw.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+            mv.visitCode();
+            mv.visitLdcInsn(clinitValue);
+            mv.visitInsn(Opcodes.POP);
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+
+            mv =
+                    cw.visitMethod(
+                            Opcodes.ACC_PUBLIC, "foo", "(Ljava/lang/reflect/Method;)V", null, null);
+            mv.visitCode();
+            mv.visitLdcInsn(fooValue);
+            mv.visitInsn(Opcodes.POP);
+            if (reflective) {
+                mv.visitVarInsn(Opcodes.ALOAD, 1);
+                mv.visitInsn(Opcodes.ACONST_NULL);
+                mv.visitInsn(Opcodes.ACONST_NULL);
+                mv.visitMethodInsn(
+                        Opcodes.INVOKEVIRTUAL,
+                        "java/lang/reflect/Method",
+                        "invoke",
+                        "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;",
+                        false);
+                mv.visitInsn(Opcodes.POP);
+            }
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+
+            if (bar) {
+                mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "bar", "()V", null, null);
+                mv.visitCode();
+                mv.visitInsn(Opcodes.RETURN);
+                mv.visitMaxs(0, 0);
+                mv.visitEnd();
+            }
+            cw.visitEnd();
+            return cw.toByteArray();
+        }
+    }
+}
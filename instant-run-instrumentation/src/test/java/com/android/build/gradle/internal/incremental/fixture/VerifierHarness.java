@@ -16,8 +16,11 @@
 
 package com.android.build.gradle.internal.incremental.fixture;
 
+import static org.junit.Assert.assertEquals;
+
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.build.gradle.internal.incremental.ClassFingerprintIndex;
 import com.android.build.gradle.internal.incremental.InstantRunVerifier;
 import com.android.build.gradle.internal.incremental.InstantRunVerifierStatus;
 import com.android.utils.ILogger;
@@ -45,6 +48,15 @@ public class VerifierHarness {
             patch = original;
         }
 
-        return InstantRunVerifier.run(() -> original, () -> patch, LOGGER);
+        InstantRunVerifierStatus status =
+                InstantRunVerifier.run(() -> original, () -> patch, LOGGER);
+
+        // verifying the patch with the fingerprint of the original class must give the same status.
+        ClassFingerprintIndex fingerprints = new ClassFingerprintIndex();
+        InstantRunVerifier.run(() -> original, () -> original, fingerprints, fqcn, LOGGER);
+        assertEquals(
+                status,
+                InstantRunVerifier.run(() -> original, () -> patch, fingerprints, fqcn, LOGGER));
+        return status;
     }
 }
@@ -24,6 +24,7 @@ import com.android.annotations.concurrency.GuardedBy;
 import com.android.ide.common.blame.SourceFilePosition;
 import com.android.ide.common.blame.SourcePosition;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
@@ -93,6 +94,14 @@ public class ActionRecorder {
     private final Map<NodeKey, Actions.DecisionTreeRecord> mRecords =
             new LinkedHashMap<NodeKey, Actions.DecisionTreeRecord>();
 
+    /**
+     * The declarations of the elements of the library documents merged pairwise, when merging
+     * them into a higher priority document, or null.
+     */
+    @GuardedBy("this")
+    @Nullable
+    private LibraryDeclarations mLibraryDeclarations;
+
     /**
      * Record an {@link com.android.manifmerger.Actions.ActionType.ADDED} action for an unrecorded
      * XmlElement and its unrecorded descendants. If exhaustiveSearch is true, we check all the
@@ -109,7 +118,12 @@ public class ActionRecorder {
             @NonNull XmlElement xmlElement, boolean exhaustiveSearch) {
         boolean nodeRecorded = !getDecisionTreeRecord(xmlElement).getNodeRecords().isEmpty();
         if (!nodeRecorded) {
-            recordNodeAction(xmlElement, Actions.ActionType.ADDED);
+            // the other library elements merged into an element are merged into the added one.
+            List<SourceFilePosition> positions = getPositions(xmlElement);
+            recordNodeAction(xmlElement, Actions.ActionType.ADDED, xmlElement, positions.get(0));
+            for (SourceFilePosition position : positions.subList(1, positions.size())) {
+                recordNodeAction(xmlElement, Actions.ActionType.MERGED, xmlElement, position);
+            }
         } else if (!exhaustiveSearch) {
             return;
         }
@@ -172,10 +186,19 @@ public class ActionRecorder {
             @NonNull Actions.ActionType actionType,
             @NonNull XmlElement targetElement) {
 
+        for (SourceFilePosition targetPosition : getPositions(targetElement)) {
+            recordNodeAction(mergedElement, actionType, targetElement, targetPosition);
+        }
+    }
+
+    private synchronized void recordNodeAction(
+            @NonNull XmlElement mergedElement,
+            @NonNull Actions.ActionType actionType,
+            @NonNull XmlElement targetElement,
+            @NonNull SourceFilePosition targetPosition) {
+
         Actions.NodeRecord record = new Actions.NodeRecord(actionType,
-                new SourceFilePosition(
-                        targetElement.getDocument().getSourceFile(),
-                        targetElement.getPosition()),
+                targetPosition,
                 targetElement.getOriginalId(),
                 null, /* reason */
                 mergedElement.getOperationType()
@@ -216,8 +239,22 @@ public class ActionRecorder {
             @NonNull Actions.ActionType actionType,
             @Nullable AttributeOperationType attributeOperationType) {
 
-        recordAttributeAction(
-                attribute, attribute.getPosition(), actionType, attributeOperationType);
+        List<SourceFilePosition> positions = getPositions(attribute);
+        // the other library attributes merged into an attribute are merged into the added one,
+        // which is not recorded.
+        if (actionType == Actions.ActionType.ADDED) {
+            positions = positions.subList(0, 1);
+        }
+        for (SourceFilePosition position : positions) {
+            recordAttributeAction(
+                    attribute,
+                    new Actions.AttributeRecord(
+                            actionType,
+                            position,
+                            attribute.getOriginalId(),
+                            null, /* reason */
+                            attributeOperationType));
+        }
     }
 
     /**
@@ -274,16 +311,57 @@ public class ActionRecorder {
             @NonNull XmlElement implicitAttributeOwner) {
 
         List<Actions.AttributeRecord> attributeRecords = getAttributeRecords(attribute);
-        Actions.AttributeRecord attributeRecord = new Actions.AttributeRecord(
-                Actions.ActionType.REJECTED,
-                new SourceFilePosition(
-                        implicitAttributeOwner.getDocument().getSourceFile(),
-                        implicitAttributeOwner.getPosition()),
-                attribute.getOriginalId(),
-                null, /* reason */
-                AttributeOperationType.REPLACE
-        );
-        attributeRecords.add(attributeRecord);
+        for (SourceFilePosition implicitAttributePosition : getPositions(implicitAttributeOwner)) {
+            Actions.AttributeRecord attributeRecord = new Actions.AttributeRecord(
+                    Actions.ActionType.REJECTED,
+                    implicitAttributePosition,
+                    attribute.getOriginalId(),
+                    null, /* reason */
+                    AttributeOperationType.REPLACE
+            );
+            attributeRecords.add(attributeRecord);
+        }
+    }
+
+    /**
+     * Sets the declarations of the elements of the library documents merged pairwise, to record
+     * the actions of merging them into a higher priority document for each library element merged
+     * into them, or null once they are merged.
+     */
+    synchronized void setLibraryDeclarations(@Nullable LibraryDeclarations libraryDeclarations) {
+        mLibraryDeclarations = libraryDeclarations;
+    }
+
+    /**
+     * Returns the positions of the library elements merged into an element, by decreasing
+     * priority, or the position of the element itself.
+     */
+    @NonNull
+    private synchronized List<SourceFilePosition> getPositions(@NonNull XmlElement xmlElement) {
+        List<SourceFilePosition> positions =
+                mLibraryDeclarations != null ? mLibraryDeclarations.getPositions(xmlElement) : null;
+        return positions != null
+                ? positions
+                : ImmutableList.of(
+                        new SourceFilePosition(
+                                xmlElement.getDocument().getSourceFile(),
+                                xmlElement.getPosition()));
+    }
+
+    /**
+     * Returns the positions of the library attributes merged into an attribute, by decreasing
+     * priority, or the position of the attribute itself.
+     */
+    @NonNull
+    private synchronized List<SourceFilePosition> getPositions(@NonNull XmlAttribute attribute) {
+        List<SourceFilePosition> positions =
+                mLibraryDeclarations != null ? mLibraryDeclarations.getPositions(attribute) : null;
+        return positions != null
+                ? positions
+                : ImmutableList.of(
+                        new SourceFilePosition(
+                                attribute.getOwnerElement().getDocument().getSourceFile(),
+                                attribute.getPosition()));
     }
 
     /**
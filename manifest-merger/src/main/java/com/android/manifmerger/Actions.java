@@ -37,11 +37,11 @@ import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParseException;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringReader;
+import java.io.Writer;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -126,34 +126,48 @@ public class Actions {
     }
 
     /**
-     * Dump merging tool actions to a text file.
-     * @param fileWriter the file to write all actions into.
+     * Dump merging tool actions to a text file. The actions are written record by record, so the
+     * writer should be buffered.
+     * @param writer the writer to write all actions into.
      * @throws IOException
      */
-    void log(@NonNull FileWriter fileWriter) throws IOException {
-        fileWriter.append(getLogs());
+    void log(@NonNull Writer writer) throws IOException {
+        writeLogs(writer);
     }
 
+    @NonNull
     private String getLogs() {
         StringBuilder stringBuilder = new StringBuilder();
-        stringBuilder.append(HEADER);
+        try {
+            writeLogs(stringBuilder);
+        } catch (IOException e) {
+            // cannot happen when appending to a StringBuilder.
+            throw new AssertionError(e);
+        }
+        return stringBuilder.toString();
+    }
+
+    private void writeLogs(@NonNull Appendable appendable) throws IOException {
+        // records are printed in a reused builder, and appended one line at a time.
+        StringBuilder recordBuilder = new StringBuilder();
+        appendable.append(HEADER);
         for (Map.Entry<XmlNode.NodeKey, Actions.DecisionTreeRecord> record : mRecords.entrySet()) {
-            stringBuilder.append(record.getKey()).append("\n");
+            appendable.append(record.getKey().toString()).append('\n');
             for (Actions.NodeRecord nodeRecord : record.getValue().getNodeRecords()) {
-                nodeRecord.print(stringBuilder);
-                stringBuilder.append('\n');
+                recordBuilder.setLength(0);
+                nodeRecord.print(recordBuilder);
+                appendable.append(recordBuilder).append('\n');
             }
             for (Map.Entry<XmlNode.NodeName, List<Actions.AttributeRecord>> attributeRecords :
                     record.getValue().mAttributeRecords.entrySet()) {
-                stringBuilder.append('\t').append(attributeRecords.getKey()).append('\n');
+                appendable.append('\t').append(attributeRecords.getKey().toString()).append('\n');
                 for (Actions.AttributeRecord attributeRecord : attributeRecords.getValue()) {
-                    stringBuilder.append("\t\t");
-                    attributeRecord.print(stringBuilder);
-                    stringBuilder.append('\n');
+                    recordBuilder.setLength(0);
+                    attributeRecord.print(recordBuilder);
+                    appendable.append("\t\t").append(recordBuilder).append('\n');
                 }
             }
         }
-        return stringBuilder.toString();
     }
 
     /**
@@ -330,7 +344,7 @@ public class Actions {
 
     @SuppressWarnings("SpellCheckingInspection")
     @NonNull
-    private static Gson getGsonParser() {
+    static Gson getGsonParser() {
         GsonBuilder gsonBuilder = new GsonBuilder();
         gsonBuilder.enableComplexMapKeySerialization();
         gsonBuilder.registerTypeAdapter(XmlNode.NodeName.class, new NodeNameDeserializer());
@@ -340,6 +354,17 @@ public class Actions {
 
     public ImmutableMultimap<Integer, Record> getResultingSourceMapping(@NonNull XmlDocument xmlDocument)
             throws ParserConfigurationException, SAXException, IOException {
+        return getResultingSourceMapping(xmlDocument, xmlDocument.prettyPrint());
+    }
+
+    /**
+     * Returns the records of the elements and attributes of the given document, indexed by their
+     * line in the given pretty printed version of the document.
+     */
+    @NonNull
+    private ImmutableMultimap<Integer, Record> getResultingSourceMapping(
+            @NonNull XmlDocument xmlDocument, @NonNull String prettyPrintedXml)
+            throws ParserConfigurationException, SAXException, IOException {
 
         SourceFile inMemory = SourceFile.UNKNOWN;
 
@@ -347,7 +372,7 @@ public class Actions {
                 xmlDocument.getSelectors(),
                 xmlDocument.getSystemPropertyResolver(),
                 inMemory,
-                xmlDocument.prettyPrint(),
+                prettyPrintedXml,
                 XmlDocument.Type.MAIN,
                 Optional.<String>absent() /* mainManifestPackageName */);
 
@@ -383,12 +408,13 @@ public class Actions {
     public String blame(@NonNull XmlDocument xmlDocument)
             throws IOException, SAXException, ParserConfigurationException {
 
+        // pretty print the document once, for both the line numbers and the blamed lines.
+        String prettyPrintedXml = xmlDocument.prettyPrint();
         ImmutableMultimap<Integer, Record> resultingSourceMapping =
-                getResultingSourceMapping(xmlDocument);
-        LineReader lineReader = new LineReader(
-                new StringReader(xmlDocument.prettyPrint()));
+                getResultingSourceMapping(xmlDocument, prettyPrintedXml);
+        LineReader lineReader = new LineReader(new StringReader(prettyPrintedXml));
 
-        StringBuilder actualMappings = new StringBuilder();
+        StringBuilder actualMappings = new StringBuilder(prettyPrintedXml.length() * 2);
         String line;
         int count = 0;
         while ((line = lineReader.readLine()) != null) {
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.manifmerger;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.blame.SourceFile;
+import com.android.ide.common.blame.SourceFilePosition;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.w3c.dom.Node;
+
+/**
+ * The library elements, or declarations, merged into the elements of library documents merged
+ * pairwise.
+ *
+ * <p>When the libraries are merged with each other before being merged into a higher priority
+ * document, each element of the merged libraries stands for the library elements merged into it,
+ * by decreasing priority. The libraries are merged with the regular merging code, with a recorder
+ * keeping track of these declarations (see {@link #newActionRecorder(XmlDocument, XmlDocument)}),
+ * and the {@link ActionRecorder} merging the merged libraries into the higher priority document
+ * records each action on a merged element for each of its declarations, so the recorded actions
+ * are the ones of merging the libraries one by one.
+ *
+ * <p>As only the first element added with a given key is recorded, an element key declared under
+ * different parents, like an intent filter of several activities, is recorded from the first of
+ * these elements in the merged libraries rather than from the first library declaring it.
+ *
+ * <p>The positions of the declarations are saved before the libraries are merged, as the elements
+ * merged into another document lose their position. They are also saved along with the merged
+ * libraries when these are cached, see {@link MergedLibrariesCache}.
+ */
+class LibraryDeclarations {
+
+    /** The declarations of the elements of the library documents, by element. */
+    @NonNull
+    private final Map<Node, List<Declaration>> mDeclarations =
+            new IdentityHashMap<Node, List<Declaration>>();
+
+    /**
+     * Creates the declarations of library documents which have not been merged yet, each of their
+     * elements standing for itself.
+     */
+    LibraryDeclarations(@NonNull List<XmlDocument> libraryDocuments) {
+        for (XmlDocument libraryDocument : libraryDocuments) {
+            addDeclarations(libraryDocument.getSourceFile(), libraryDocument.getRootNode());
+        }
+    }
+
+    private void addDeclarations(@NonNull SourceFile sourceFile, @NonNull XmlElement xmlElement) {
+        List<Declaration> declarations = new ArrayList<Declaration>(1);
+        declarations.add(new Declaration(sourceFile, xmlElement));
+        mDeclarations.put(xmlElement.getXml(), declarations);
+        for (XmlElement childElement : xmlElement.getMergeableElements()) {
+            addDeclarations(sourceFile, childElement);
+        }
+    }
+
+    /**
+     * Returns the declarations of the elements of merged libraries, in document order, to save
+     * them along with the document (see {@link MergedLibrariesCache}).
+     */
+    @NonNull
+    synchronized List<List<Declaration>> getDeclarations(@NonNull XmlDocument mergedDocument) {
+        List<List<Declaration>> declarations = new ArrayList<List<Declaration>>();
+        collectDeclarations(mergedDocument.getRootNode(), declarations);
+        return declarations;
+    }
+
+    private void collectDeclarations(
+            @NonNull XmlElement xmlElement, @NonNull List<List<Declaration>> declarations) {
+        List<Declaration> elementDeclarations = mDeclarations.get(xmlElement.getXml());
+        declarations.add(
+                elementDeclarations != null
+                        ? ImmutableList.copyOf(elementDeclarations)
+                        : ImmutableList.<Declaration>of());
+        for (XmlElement childElement : xmlElement.getMergeableElements()) {
+            collectDeclarations(childElement, declarations);
+        }
+    }
+
+    /**
+     * Adds the declarations of the elements of merged libraries loaded from a file, as returned by
+     * {@link #getDeclarations(XmlDocument)} when they were saved.
+     *
+     * @throws IllegalArgumentException if the declarations do not match the document's elements.
+     */
+    synchronized void addDeclarations(
+            @NonNull XmlDocument mergedDocument, @NonNull List<List<Declaration>> declarations) {
+        Iterator<List<Declaration>> iterator = declarations.iterator();
+        addDeclarations(mergedDocument.getRootNode(), iterator);
+        Preconditions.checkArgument(!iterator.hasNext(), "More declarations than elements");
+    }
+
+    private void addDeclarations(
+            @NonNull XmlElement xmlElement, @NonNull Iterator<List<Declaration>> declarations) {
+        Preconditions.checkArgument(declarations.hasNext(), "More elements than declarations");
+        List<Declaration> elementDeclarations = declarations.next();
+        if (!elementDeclarations.isEmpty()) {
+            mDeclarations.put(
+                    xmlElement.getXml(), new ArrayList<Declaration>(elementDeclarations));
+        }
+        for (XmlElement childElement : xmlElement.getMergeableElements()) {
+            addDeclarations(childElement, declarations);
+        }
+    }
+
+    /**
+     * Returns a recorder to merge a library document into the next higher priority one with, which
+     * adds the declarations of the lower priority elements to the ones of the elements they are
+     * merged into. The actions it records are the ones of merging the two libraries.
+     */
+    @NonNull
+    ActionRecorder newActionRecorder(
+            @NonNull XmlDocument higherPriorityDocument,
+            @NonNull XmlDocument lowerPriorityDocument) {
+        // the merge of the root elements is only recorded on the lower priority one.
+        mergeDeclarations(
+                higherPriorityDocument.getRootNode(), lowerPriorityDocument.getRootNode());
+        return new ActionRecorder() {
+            @Override
+            synchronized void recordNodeAction(
+                    @NonNull XmlElement mergedElement,
+                    @NonNull Actions.ActionType actionType,
+                    @NonNull XmlElement targetElement) {
+                super.recordNodeAction(mergedElement, actionType, targetElement);
+                // the merge of two elements is recorded on both of them, see
+                // XmlElement#handleTwoElementsExistence.
+                if (actionType == Actions.ActionType.MERGED && mergedElement != targetElement) {
+                    mergeDeclarations(mergedElement, targetElement);
+                }
+            }
+        };
+    }
+
+    private synchronized void mergeDeclarations(
+            @NonNull XmlElement higherPriorityElement, @NonNull XmlElement lowerPriorityElement) {
+        List<Declaration> declarations = mDeclarations.get(higherPriorityElement.getXml());
+        List<Declaration> lowerPriorityDeclarations =
+                mDeclarations.get(lowerPriorityElement.getXml());
+        if (declarations != null && lowerPriorityDeclarations != null) {
+            declarations.addAll(lowerPriorityDeclarations);
+        }
+    }
+
+    /**
+     * Returns the positions of the declarations of an element of the merged libraries, by
+     * decreasing priority, or null if the element is not a library element.
+     */
+    @Nullable
+    synchronized List<SourceFilePosition> getPositions(@NonNull XmlElement xmlElement) {
+        List<Declaration> declarations = mDeclarations.get(xmlElement.getXml());
+        if (declarations == null) {
+            return null;
+        }
+        ImmutableList.Builder<SourceFilePosition> positions = ImmutableList.builder();
+        for (Declaration declaration : declarations) {
+            positions.add(declaration.mPosition);
+        }
+        return positions.build();
+    }
+
+    /**
+     * Returns the positions of the declarations of an attribute of the merged libraries, by
+     * decreasing priority, or null if the attribute is not a library attribute.
+     */
+    @Nullable
+    synchronized List<SourceFilePosition> getPositions(@NonNull XmlAttribute xmlAttribute) {
+        List<Declaration> declarations = mDeclarations.get(xmlAttribute.getOwnerElement().getXml());
+        if (declarations == null) {
+            return null;
+        }
+        ImmutableList.Builder<SourceFilePosition> positions = ImmutableList.builder();
+        for (Declaration declaration : declarations) {
+            SourceFilePosition position =
+                    declaration.mAttributePositions.get(xmlAttribute.getName());
+            if (position != null) {
+                positions.add(position);
+            }
+        }
+        ImmutableList<SourceFilePosition> attributePositions = positions.build();
+        return attributePositions.isEmpty() ? null : attributePositions;
+    }
+
+    /** The positions of a library element and of its attributes. */
+    static final class Declaration {
+
+        @NonNull private final SourceFilePosition mPosition;
+
+        @NonNull private final Map<XmlNode.NodeName, SourceFilePosition> mAttributePositions;
+
+        Declaration(@NonNull SourceFile sourceFile, @NonNull XmlElement xmlElement) {
+            mPosition = new SourceFilePosition(sourceFile, xmlElement.getPosition());
+            mAttributePositions = new HashMap<XmlNode.NodeName, SourceFilePosition>();
+            for (XmlAttribute attribute : xmlElement.getAttributes()) {
+                mAttributePositions.put(
+                        attribute.getName(),
+                        new SourceFilePosition(sourceFile, attribute.getPosition()));
+            }
+        }
+    }
+}
@@ -23,6 +23,7 @@ import static com.android.manifmerger.PlaceholderHandler.PACKAGE_NAME;
 import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
 import com.android.annotations.concurrency.Immutable;
 import com.android.ide.common.xml.XmlFormatPreferences;
 import com.android.ide.common.xml.XmlFormatStyle;
@@ -30,23 +31,37 @@ import com.android.ide.common.xml.XmlPrettyPrinter;
 import com.android.utils.ILogger;
 import com.android.utils.Pair;
 import com.android.utils.XmlUtils;
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Pattern;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
@@ -63,6 +78,9 @@ public class ManifestMerger2 {
     static final String BOOTSTRAP_INSTANT_RUN_CONTENT_PROVIDER =
             "com.android.tools.ir.server.InstantRunContentProvider";
 
+    /** Minimum number of libraries for merging them pairwise to be worth it. */
+    @VisibleForTesting static final int MIN_LIBRARIES_FOR_TREE_MERGE = 3;
+
     @NonNull
     private final File mManifestFile;
 
@@ -88,6 +106,8 @@ public class ManifestMerger2 {
     private final Optional<File> mReportFile;
     @NonNull private final String mFeatureName;
     @NonNull private final FileStreamProvider mFileStreamProvider;
+    @NonNull private final Executor mExecutor;
+    @NonNull private final Optional<File> mMergedLibrariesFile;
 
     private ManifestMerger2(
             @NonNull ILogger logger,
@@ -101,7 +121,9 @@ public class ManifestMerger2 {
             @NonNull XmlDocument.Type documentType,
             @NonNull Optional<File> reportFile,
             @NonNull String featureName,
-            @NonNull FileStreamProvider fileStreamProvider) {
+            @NonNull FileStreamProvider fileStreamProvider,
+            @NonNull Executor executor,
+            @NonNull Optional<File> mergedLibrariesFile) {
         this.mSystemPropertyResolver = systemPropertiesResolver;
         this.mPlaceHolderValues = placeHolderValues;
         this.mManifestFile = mainManifestFile;
@@ -114,6 +136,8 @@ public class ManifestMerger2 {
         this.mReportFile = reportFile;
         this.mFeatureName = featureName;
         this.mFileStreamProvider = fileStreamProvider;
+        this.mExecutor = executor;
+        this.mMergedLibrariesFile = mergedLibrariesFile;
     }
 
     /**
@@ -255,13 +279,14 @@ public class ManifestMerger2 {
                         .setAttribute("package", mainManifestPackageName);
             }
         }
-        for (LoadedManifestInfo libraryDocument : loadedLibraryDocuments) {
-            mLogger.verbose("Merging library manifest " + libraryDocument.getLocation());
-            xmlDocumentOptional = merge(
-                    xmlDocumentOptional, libraryDocument, mergingReportBuilder);
-            if (!xmlDocumentOptional.isPresent()) {
-                return mergingReportBuilder.build();
-            }
+        xmlDocumentOptional =
+                mergeLibraries(
+                        xmlDocumentOptional.get(),
+                        loadedLibraryDocuments,
+                        selectors,
+                        mergingReportBuilder);
+        if (!xmlDocumentOptional.isPresent()) {
+            return mergingReportBuilder.build();
         }
 
         // done with proper merging phase, now we need to trim unwanted elements, placeholder
@@ -374,27 +399,25 @@ public class ManifestMerger2 {
             addDebuggableAttribute(document);
         }
 
-        if (!mOptionalFeatures.contains(Invoker.Feature.SKIP_XML_STRING)) {
+        // the merged document is printed again after adding the feature split or target sandbox
+        // attributes, only print it after the last modification.
+        boolean addFeatureSplitInfo =
+                mOptionalFeatures.contains(Invoker.Feature.ADD_FEATURE_SPLIT_INFO);
+        boolean addTargetSandboxVersion =
+                mOptionalFeatures.contains(Invoker.Feature.TARGET_SANDBOX_VERSION);
+
+        if (!mOptionalFeatures.contains(Invoker.Feature.SKIP_XML_STRING)
+                && !addFeatureSplitInfo
+                && !addTargetSandboxVersion) {
             mergingReport.setMergedDocument(
-                    MergingReport.MergedManifestKind.MERGED,
-                    XmlPrettyPrinter.prettyPrint(
-                            document,
-                            XmlFormatPreferences.defaults(),
-                            XmlFormatStyle.get(document.getDocumentElement()),
-                            null, /* endOfLineSeparator */
-                            false /* endWithNewLine */));
+                    MergingReport.MergedManifestKind.MERGED, prettyPrint(document));
         }
 
         if (mOptionalFeatures.contains(Invoker.Feature.MAKE_AAPT_SAFE)) {
             PlaceholderEncoder.visit(document);
             mergingReport.setMergedDocument(
                     MergingReport.MergedManifestKind.AAPT_SAFE,
-                    XmlPrettyPrinter.prettyPrint(
-                            document,
-                            XmlFormatPreferences.defaults(),
-                            XmlFormatStyle.get(document.getDocumentElement()),
-                            null, /* endOfLineSeparator */
-                            false /* endWithNewLine */));
+                    prettyPrint(document));
         }
 
         // Always save the pre InstantRun state in case some APT plugins require it.
@@ -402,39 +425,34 @@ public class ManifestMerger2 {
             instantRunReplacement(document);
             mergingReport.setMergedDocument(
                     MergingReport.MergedManifestKind.INSTANT_RUN,
-                    XmlPrettyPrinter.prettyPrint(
-                            document,
-                            XmlFormatPreferences.defaults(),
-                            XmlFormatStyle.get(document.getDocumentElement()),
-                            null, /* endOfLineSeparator */
-                            false /* endWithNewLine */));
+                    prettyPrint(document));
         }
 
-        if (mOptionalFeatures.contains(Invoker.Feature.ADD_FEATURE_SPLIT_INFO)) {
+        if (addFeatureSplitInfo) {
             addFeatureSplitAttributes(document, mFeatureName);
-            mergingReport.setMergedDocument(
-                    MergingReport.MergedManifestKind.MERGED,
-                    XmlPrettyPrinter.prettyPrint(
-                            document,
-                            XmlFormatPreferences.defaults(),
-                            XmlFormatStyle.get(document.getDocumentElement()),
-                            null, /* endOfLineSeparator */
-                            false /* endWithNewLine */));
+            if (!addTargetSandboxVersion) {
+                mergingReport.setMergedDocument(
+                        MergingReport.MergedManifestKind.MERGED, prettyPrint(document));
+            }
         }
 
-        if (mOptionalFeatures.contains(Invoker.Feature.TARGET_SANDBOX_VERSION)) {
+        if (addTargetSandboxVersion) {
             addTargetSandboxVersionAttribute(document);
             mergingReport.setMergedDocument(
-                    MergingReport.MergedManifestKind.MERGED,
-                    XmlPrettyPrinter.prettyPrint(
-                            document,
-                            XmlFormatPreferences.defaults(),
-                            XmlFormatStyle.get(document.getDocumentElement()),
-                            null, /* endOfLineSeparator */
-                            false /* endWithNewLine */));
+                    MergingReport.MergedManifestKind.MERGED, prettyPrint(document));
         }
     }
 
+    @NonNull
+    private static String prettyPrint(@NonNull Document document) {
+        return XmlPrettyPrinter.prettyPrint(
+                document,
+                XmlFormatPreferences.defaults(),
+                XmlFormatStyle.get(document.getDocumentElement()),
+                null, /* endOfLineSeparator */
+                false /* endWithNewLine */);
+    }
+
     /**
      * Set android:testOnly="true" to ensure APK will be rejected by the Play store.
      *
@@ -659,7 +677,7 @@ public class ManifestMerger2 {
      * @param mergingReport the merging activities report to serialize.
      */
     private void writeReport(@NonNull MergingReport mergingReport) {
-        FileWriter fileWriter = null;
+        Writer fileWriter = null;
         try {
             if (!mReportFile.get().getParentFile().exists()
                     && !mReportFile.get().getParentFile().mkdirs()) {
@@ -669,7 +687,7 @@ public class ManifestMerger2 {
                                 + "will not be documented",
                         mReportFile.get().getAbsolutePath()));
             } else {
-                fileWriter = new FileWriter(mReportFile.get());
+                fileWriter = new BufferedWriter(new FileWriter(mReportFile.get()));
                 mergingReport.getActions().log(fileWriter);
             }
         } catch (IOException e) {
@@ -868,13 +886,495 @@ public class ManifestMerger2 {
         return result;
     }
 
+    /**
+     * Merges the library manifests, by decreasing priority, into the higher priority document.
+     *
+     * <p>When the libraries can be merged with each other first (see {@link
+     * #canMergeLibrariesAsTree(XmlDocument, List)}), they are merged pairwise in a tree on {@link
+     * #mExecutor}, so that each library is only merged a logarithmic number of times instead of
+     * into an ever growing document, and the result is merged into the higher priority document.
+     * Otherwise, or if two libraries conflict with each other, they are merged one by one into the
+     * higher priority document. Note that conflicts between the higher priority document and a
+     * library merged pairwise are reported against the document the library was merged into.
+     *
+     * <p>The actions recorded are the ones of merging the libraries one by one, see {@link
+     * LibraryDeclarations}, so the blame report does not depend on how they are merged.
+     *
+     * <p>If {@link #mMergedLibrariesFile} is set, the libraries merged pairwise are cached in it
+     * (see {@link MergedLibrariesCache}), so that the libraries which did not change are not merged
+     * again by the next merge.
+     */
+    @NonNull
+    private Optional<XmlDocument> mergeLibraries(
+            @NonNull XmlDocument xmlDocument,
+            @NonNull List<LoadedManifestInfo> loadedLibraryDocuments,
+            @NonNull SelectorResolver selectors,
+            @NonNull MergingReport.Builder mergingReportBuilder)
+            throws MergeFailureException {
+
+        if (canMergeLibrariesAsTree(xmlDocument, loadedLibraryDocuments)) {
+            List<XmlDocument> libraryXmlDocuments = new ArrayList<XmlDocument>();
+            for (LoadedManifestInfo libraryDocument : loadedLibraryDocuments) {
+                libraryXmlDocuments.add(libraryDocument.getXmlDocument());
+            }
+            LibraryDeclarations libraryDeclarations =
+                    new LibraryDeclarations(libraryXmlDocuments);
+            MergedLibrariesCache mergedLibrariesCache =
+                    mMergedLibrariesFile.isPresent()
+                            ? MergedLibrariesCache.load(mMergedLibrariesFile.get(), mLogger)
+                            : null;
+            Optional<XmlDocument> mergedLibraries =
+                    mergeLibrariesAsTree(
+                            loadedLibraryDocuments,
+                            libraryDeclarations,
+                            selectors,
+                            mergedLibrariesCache);
+            if (mergedLibraries.isPresent() && mergedLibrariesCache != null) {
+                mergedLibrariesCache.save(mLogger);
+            }
+            if (mergedLibraries.isPresent()) {
+                mLogger.verbose("Merging the pairwise merged library manifests");
+                ActionRecorder actionRecorder = mergingReportBuilder.getActionRecorder();
+                actionRecorder.setLibraryDeclarations(libraryDeclarations);
+                try {
+                    return xmlDocument.mergeWithoutImplicitElements(
+                            mergedLibraries.get(), mergingReportBuilder);
+                } finally {
+                    actionRecorder.setLibraryDeclarations(null);
+                }
+            }
+            // the library documents were modified by the merge, load them again to merge them
+            // one by one and report the conflicts against the higher priority documents.
+            loadedLibraryDocuments = reloadLibraries(loadedLibraryDocuments, selectors);
+        }
+
+        Optional<XmlDocument> xmlDocumentOptional = Optional.of(xmlDocument);
+        for (LoadedManifestInfo libraryDocument : loadedLibraryDocuments) {
+            mLogger.verbose("Merging library manifest " + libraryDocument.getLocation());
+            xmlDocumentOptional = merge(
+                    xmlDocumentOptional, libraryDocument, mergingReportBuilder);
+            if (!xmlDocumentOptional.isPresent()) {
+                return xmlDocumentOptional;
+            }
+        }
+        return xmlDocumentOptional;
+    }
+
+    /**
+     * Returns true if merging the libraries pairwise before merging them into the higher priority
+     * document produces the same merged document as merging them one by one.
+     *
+     * <p>This is not the case when:
+     *
+     * <ul>
+     *   <li>the intermediary stages are requested, as they show how each library is merged into
+     *       the higher priority document,
+     *   <li>a library has declarations that are merged differently when merged with the lower
+     *       priority libraries first (see {@link #isMergedDependingOnOrder(XmlElement)}),
+     *   <li>the higher priority document has instructions which apply to each library element
+     *       differently (see {@link #hasInstructionsForEachLibrary(XmlElement)}),
+     *   <li>implicit elements may be added, as they depend on each library's target SDK,
+     *   <li>the libraries do not pass validation or their sdk versions are not compatible with the
+     *       higher priority document's, as the messages are reported library by library,
+     *   <li>conflicts are resolved automatically, as the messages are reported library by library.
+     * </ul>
+     */
+    private boolean canMergeLibrariesAsTree(
+            @NonNull XmlDocument xmlDocument,
+            @NonNull List<LoadedManifestInfo> loadedLibraryDocuments) {
+
+        if (loadedLibraryDocuments.size() < MIN_LIBRARIES_FOR_TREE_MERGE
+                || mOptionalFeatures.contains(Invoker.Feature.KEEP_INTERMEDIARY_STAGES)
+                || mOptionalFeatures.contains(
+                        Invoker.Feature.HANDLE_VALUE_CONFLICTS_AUTOMATICALLY)
+                // the sdk versions of the higher priority document must not come from a library.
+                || !xmlDocument.getByTypeAndKey(ManifestModel.NodeTypes.USES_SDK, null).isPresent()
+                || hasInstructionsForEachLibrary(xmlDocument.getRootNode())) {
+            return false;
+        }
+
+        boolean addImplicitPermissions =
+                !mOptionalFeatures.contains(Invoker.Feature.NO_IMPLICIT_PERMISSION_ADDITION);
+        // the checks done when merging the libraries one by one are reported to a throwaway
+        // report, the libraries are merged one by one to report them properly.
+        MergingReport.Builder checksReportBuilder = new MergingReport.Builder(mLogger, this);
+        for (LoadedManifestInfo libraryDocument : loadedLibraryDocuments) {
+            XmlDocument libraryXmlDocument = libraryDocument.getXmlDocument();
+            if (isMergedDependingOnOrder(libraryXmlDocument.getRootNode())
+                    || xmlDocument.mayAddImplicitElements(
+                            libraryXmlDocument, addImplicitPermissions)) {
+                return false;
+            }
+            PreValidator.validate(checksReportBuilder, libraryXmlDocument);
+            xmlDocument.checkLowerPrioritySdkVersions(libraryXmlDocument, checksReportBuilder);
+        }
+        return checksReportBuilder.build().getLoggingRecords().isEmpty();
+    }
+
+    /**
+     * Returns true if the higher priority element or its children have selectors, which could not
+     * tell apart the libraries merged together, strict instructions, which would compare the
+     * merged library elements instead of each of them, or instructions rejecting intent filters
+     * or all the children of an element, as the equal intent filters of the libraries are merged
+     * into one.
+     */
+    private static boolean hasInstructionsForEachLibrary(@NonNull XmlElement xmlElement) {
+        NodeOperationType operationType = xmlElement.getOperationType();
+        if (xmlElement.getSelector() != null
+                || operationType == NodeOperationType.STRICT
+                || operationType == NodeOperationType.MERGE_ONLY_ATTRIBUTES
+                || (xmlElement.isA(ManifestModel.NodeTypes.INTENT_FILTER)
+                        && operationType != NodeOperationType.MERGE)) {
+            return true;
+        }
+        for (XmlElement childElement : xmlElement.getMergeableElements()) {
+            if (hasInstructionsForEachLibrary(childElement)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the library element or its children may not be merged the same way when the
+     * library is first merged with the lower priority libraries, because they have merging
+     * instructions, attribute values merged with default values (the merged value would then be
+     * explicit), relative class names (they would be expanded with another package), or trailing
+     * comments (they would become the leading comments of the elements merged after them).
+     */
+    private static boolean isMergedDependingOnOrder(@NonNull XmlElement xmlElement) {
+        if (xmlElement.getOperationType() != NodeOperationType.MERGE
+                || xmlElement.getSelector() != null
+                || !xmlElement.getAttributeOperations().isEmpty()
+                || !xmlElement.getOverrideUsesSdkLibrarySelectors().isEmpty()
+                || hasTrailingComment(xmlElement.getXml())) {
+            return true;
+        }
+        for (XmlAttribute xmlAttribute : xmlElement.getAttributes()) {
+            AttributeModel attributeModel = xmlAttribute.getModel();
+            if (attributeModel == null) {
+                continue;
+            }
+            if (attributeModel.getDefaultValue() != null
+                    && attributeModel.getMergingPolicy() == AttributeModel.OR_MERGING_POLICY) {
+                return true;
+            }
+            String value = xmlAttribute.getValue();
+            if (attributeModel.isPackageDependent()
+                    && !value.isEmpty()
+                    && (value.indexOf('.') == -1 || value.charAt(0) == '.')) {
+                return true;
+            }
+        }
+        for (XmlElement childElement : xmlElement.getMergeableElements()) {
+            if (isMergedDependingOnOrder(childElement)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasTrailingComment(@NonNull Element element) {
+        Node lastChild = element.getLastChild();
+        while (lastChild != null && lastChild.getNodeType() == Node.TEXT_NODE) {
+            lastChild = lastChild.getPreviousSibling();
+        }
+        return lastChild != null && lastChild.getNodeType() == Node.COMMENT_NODE;
+    }
+
+    /**
+     * Merges the libraries pairwise, each library with the next lower priority one, until a single
+     * document is left. The merges of each round are independent and run concurrently on {@link
+     * #mExecutor}.
+     *
+     * <p>With a cache, each merged document is saved to it, and the merged documents it has for
+     * the same libraries are loaded instead of being merged again, along with the documents merged
+     * into them. So when only a library changed, only the documents it is merged into are merged
+     * again, and when no library changed, the libraries are not merged at all.
+     *
+     * @param libraryDeclarations the declarations of the elements of the libraries, updated by
+     *     the merges and the loaded documents.
+     * @return the merged libraries or {@link Optional#absent()} if merging two libraries reported
+     * a message, in which case the library documents may have been modified.
+     */
+    @NonNull
+    private Optional<XmlDocument> mergeLibrariesAsTree(
+            @NonNull List<LoadedManifestInfo> loadedLibraryDocuments,
+            @NonNull LibraryDeclarations libraryDeclarations,
+            @NonNull KeyResolver<String> selectors,
+            @Nullable MergedLibrariesCache mergedLibrariesCache)
+            throws MergeFailureException {
+
+        List<Integer> roundSizes = new ArrayList<Integer>();
+        for (int size = loadedLibraryDocuments.size(); ; size = (size + 1) / 2) {
+            roundSizes.add(size);
+            if (size == 1) {
+                break;
+            }
+        }
+        List<List<String>> fingerprints =
+                mergedLibrariesCache != null
+                        ? getMergedFingerprints(getLibraryFingerprints(loadedLibraryDocuments))
+                        : null;
+
+        // from the last round, load the cached documents and find the documents needed to merge
+        // the ones which are not cached.
+        int roundCount = roundSizes.size();
+        XmlDocument[][] loadedDocuments = new XmlDocument[roundCount][];
+        boolean[][] neededDocuments = new boolean[roundCount][];
+        for (int round = roundCount - 1; round >= 0; round--) {
+            loadedDocuments[round] = new XmlDocument[roundSizes.get(round)];
+            neededDocuments[round] = new boolean[roundSizes.get(round)];
+            for (int i = 0; i < roundSizes.get(round); i++) {
+                neededDocuments[round][i] =
+                        round == roundCount - 1
+                                || (neededDocuments[round + 1][i / 2]
+                                        && loadedDocuments[round + 1][i / 2] == null);
+                if (fingerprints == null || round == 0) {
+                    continue;
+                }
+                String fingerprint = fingerprints.get(round).get(i);
+                if (!neededDocuments[round][i]) {
+                    mergedLibrariesCache.keep(fingerprint);
+                    continue;
+                }
+                // the first library merged into the document, which it is reported against.
+                XmlDocument firstLibrary =
+                        loadedLibraryDocuments.get(i << round).getXmlDocument();
+                Optional<XmlDocument> loadedDocument =
+                        mergedLibrariesCache.load(
+                                fingerprint,
+                                firstLibrary.getSourceFile(),
+                                selectors,
+                                mSystemPropertyResolver,
+                                libraryDeclarations,
+                                mLogger);
+                if (loadedDocument.isPresent()) {
+                    mLogger.verbose(
+                            "Reusing the merged library manifests from %1$s",
+                            firstLibrary.getSourceFile().print(true));
+                    loadedDocuments[round][i] = loadedDocument.get();
+                }
+            }
+        }
+
+        List<XmlDocument> xmlDocuments = new ArrayList<XmlDocument>();
+        for (int i = 0; i < loadedLibraryDocuments.size(); i++) {
+            xmlDocuments.add(
+                    neededDocuments[0][i]
+                            ? loadedLibraryDocuments.get(i).getXmlDocument()
+                            : null);
+        }
+        for (int round = 1; round < roundCount; round++) {
+            List<FutureTask<Optional<XmlDocument>>> mergingTasks =
+                    new ArrayList<FutureTask<Optional<XmlDocument>>>();
+            for (int i = 0; i < roundSizes.get(round); i++) {
+                // the lowest priority document has no pair if the previous round has an odd size.
+                if (!neededDocuments[round][i]
+                        || loadedDocuments[round][i] != null
+                        || 2 * i + 1 == xmlDocuments.size()) {
+                    mergingTasks.add(null);
+                    continue;
+                }
+                XmlDocument higherPriorityDocument = xmlDocuments.get(2 * i);
+                XmlDocument lowerPriorityDocument = xmlDocuments.get(2 * i + 1);
+                String fingerprint =
+                        fingerprints != null ? fingerprints.get(round).get(i) : null;
+                FutureTask<Optional<XmlDocument>> mergingTask =
+                        new FutureTask<Optional<XmlDocument>>(
+                                () -> mergeLibraryPair(
+                                        higherPriorityDocument,
+                                        lowerPriorityDocument,
+                                        libraryDeclarations,
+                                        mergedLibrariesCache,
+                                        fingerprint));
+                mExecutor.execute(mergingTask);
+                mergingTasks.add(mergingTask);
+            }
+
+            // wait for all the merges of the round, so none is running once this method returns.
+            List<XmlDocument> mergedDocuments = new ArrayList<XmlDocument>();
+            boolean conflicting = false;
+            for (int i = 0; i < mergingTasks.size(); i++) {
+                FutureTask<Optional<XmlDocument>> mergingTask = mergingTasks.get(i);
+                if (mergingTask == null) {
+                    mergedDocuments.add(
+                            loadedDocuments[round][i] != null
+                                    ? loadedDocuments[round][i]
+                                    : xmlDocuments.get(2 * i));
+                    continue;
+                }
+                Optional<XmlDocument> mergedDocument = getMergedDocument(mergingTask);
+                mergedDocuments.add(mergedDocument.orNull());
+                conflicting |= !mergedDocument.isPresent();
+            }
+            if (conflicting) {
+                return Optional.absent();
+            }
+            xmlDocuments = mergedDocuments;
+        }
+        return Optional.of(xmlDocuments.get(0));
+    }
+
+    /**
+     * Merges a library into the next higher priority one. This method may be invoked concurrently
+     * for different libraries, so it must not modify the merger's state.
+     *
+     * @param fingerprint the fingerprint of the merged libraries, to save them to the cache.
+     * @return the merged libraries or {@link Optional#absent()} if the merge reported a message.
+     */
+    @NonNull
+    private Optional<XmlDocument> mergeLibraryPair(
+            @NonNull XmlDocument higherPriorityDocument,
+            @NonNull XmlDocument lowerPriorityDocument,
+            @NonNull LibraryDeclarations libraryDeclarations,
+            @Nullable MergedLibrariesCache mergedLibrariesCache,
+            @Nullable String fingerprint) {
+        mLogger.verbose(
+                "Merging the library manifests from %1$s pairwise",
+                lowerPriorityDocument.getSourceFile().print(true));
+        // the actions are recorded when merging the merged libraries, for each library element.
+        MergingReport.Builder pairReportBuilder = new MergingReport.Builder(mLogger, this);
+        pairReportBuilder.setActionRecorder(
+                libraryDeclarations.newActionRecorder(
+                        higherPriorityDocument, lowerPriorityDocument));
+        Optional<XmlDocument> mergedDocument =
+                higherPriorityDocument.mergeWithoutImplicitElements(
+                        lowerPriorityDocument, pairReportBuilder);
+        if (!pairReportBuilder.build().getLoggingRecords().isEmpty()) {
+            return Optional.absent();
+        }
+        if (mergedDocument.isPresent() && mergedLibrariesCache != null && fingerprint != null) {
+            mergedLibrariesCache.put(fingerprint, mergedDocument.get(), libraryDeclarations);
+        }
+        return mergedDocument;
+    }
+
+    /**
+     * Returns the fingerprints of the library manifests, in priority order. The fingerprint of a
+     * library changes whenever its manifest, its name or location, or anything it is loaded and
+     * merged with changes, i.e. the merge type, the optional features or the placeholder values.
+     */
+    @NonNull
+    private List<String> getLibraryFingerprints(
+            @NonNull List<LoadedManifestInfo> loadedLibraryDocuments)
+            throws MergeFailureException {
+        Hasher settingsHasher = Hashing.sha256().newHasher();
+        settingsHasher.putString(mMergeType.name(), Charsets.UTF_8).putByte((byte) 0);
+        for (Invoker.Feature feature : mOptionalFeatures) {
+            settingsHasher.putString(feature.name(), Charsets.UTF_8).putByte((byte) 0);
+        }
+        for (Map.Entry<String, Object> placeholder :
+                new TreeMap<String, Object>(mPlaceHolderValues).entrySet()) {
+            settingsHasher.putString(placeholder.getKey(), Charsets.UTF_8).putByte((byte) 0);
+            settingsHasher
+                    .putString(String.valueOf(placeholder.getValue()), Charsets.UTF_8)
+                    .putByte((byte) 0);
+        }
+        String settingsFingerprint = settingsHasher.hash().toString();
+
+        List<String> fingerprints = new ArrayList<String>();
+        for (LoadedManifestInfo libraryDocument : loadedLibraryDocuments) {
+            Hasher hasher = Hashing.sha256().newHasher();
+            hasher.putString(settingsFingerprint, Charsets.UTF_8).putByte((byte) 0);
+            hasher.putString(Strings.nullToEmpty(libraryDocument.getName()), Charsets.UTF_8)
+                    .putByte((byte) 0);
+            hasher.putString(libraryDocument.getLocation().getAbsolutePath(), Charsets.UTF_8)
+                    .putByte((byte) 0);
+            hasher.putString(
+                            libraryDocument.getMainManifestPackageName().or(""), Charsets.UTF_8)
+                    .putByte((byte) 0);
+            try (InputStream inputStream =
+                    mFileStreamProvider.getInputStream(libraryDocument.getLocation())) {
+                hasher.putBytes(ByteStreams.toByteArray(inputStream));
+            } catch (IOException e) {
+                throw new MergeFailureException(e);
+            }
+            fingerprints.add(hasher.hash().toString());
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Returns the fingerprints of the documents of each round of {@link
+     * #mergeLibrariesAsTree(List, LibraryDeclarations, KeyResolver, MergedLibrariesCache)}, the
+     * first round being the libraries. The fingerprint of a merged document is the one of the two
+     * documents merged into it.
+     */
+    @NonNull
+    private static List<List<String>> getMergedFingerprints(
+            @NonNull List<String> libraryFingerprints) {
+        List<List<String>> fingerprints = new ArrayList<List<String>>();
+        List<String> roundFingerprints = libraryFingerprints;
+        fingerprints.add(roundFingerprints);
+        while (roundFingerprints.size() > 1) {
+            List<String> mergedFingerprints = new ArrayList<String>();
+            for (int i = 0; i + 1 < roundFingerprints.size(); i += 2) {
+                mergedFingerprints.add(
+                        Hashing.sha256()
+                                .newHasher()
+                                .putString(roundFingerprints.get(i), Charsets.UTF_8)
+                                .putString(roundFingerprints.get(i + 1), Charsets.UTF_8)
+                                .hash()
+                                .toString());
+            }
+            if (roundFingerprints.size() % 2 == 1) {
+                mergedFingerprints.add(roundFingerprints.get(roundFingerprints.size() - 1));
+            }
+            fingerprints.add(mergedFingerprints);
+            roundFingerprints = mergedFingerprints;
+        }
+        return fingerprints;
+    }
+
+    @NonNull
+    private static Optional<XmlDocument> getMergedDocument(
+            @NonNull FutureTask<Optional<XmlDocument>> mergingTask)
+            throws MergeFailureException {
+        try {
+            return Uninterruptibles.getUninterruptibly(mergingTask);
+        } catch (ExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new MergeFailureException(e);
+        }
+    }
+
+    /**
+     * Loads the library manifests again, for instance after they were modified by a merge. The
+     * selectors and the placeholder substitution messages were already handled when the libraries
+     * were first loaded.
+     */
+    @NonNull
+    private List<LoadedManifestInfo> reloadLibraries(
+            @NonNull List<LoadedManifestInfo> loadedLibraryDocuments,
+            @NonNull SelectorResolver selectors)
+            throws MergeFailureException {
+        ImmutableList.Builder<LoadedManifestInfo> reloadedLibraryDocuments =
+                ImmutableList.builder();
+        for (LoadedManifestInfo libraryDocument : loadedLibraryDocuments) {
+            reloadedLibraryDocuments.add(
+                    loadLibrary(
+                                    libraryDocument,
+                                    selectors,
+                                    new MergingReport.Builder(mLogger, this))
+                            .mLoadedManifestInfo);
+        }
+        return reloadedLibraryDocuments.build();
+    }
+
+    /**
+     * Loads the library manifests and performs their placeholder substitution. The libraries are
+     * loaded concurrently on {@link #mExecutor}, but the selectors are registered and the loaded
+     * manifests are returned in the order of the library files (i.e., by decreasing priority), so
+     * the result does not depend on the executor.
+     */
     private List<LoadedManifestInfo> loadLibraries(
             @NonNull SelectorResolver selectors,
             @NonNull MergingReport.Builder mergingReportBuilder,
             @Nullable String mainManifestPackageName)
             throws MergeFailureException {
 
-        ImmutableList.Builder<LoadedManifestInfo> loadedLibraryDocuments = ImmutableList.builder();
+        List<FutureTask<LoadedLibrary>> loadingTasks = new ArrayList<FutureTask<LoadedLibrary>>();
         for (Pair<String, File> libraryFile : Sets.newLinkedHashSet(mLibraryFiles)) {
             mLogger.verbose("Loading library manifest " + libraryFile.getSecond().getPath());
             ManifestInfo manifestInfo =
@@ -883,46 +1383,94 @@ public class ManifestMerger2 {
                             libraryFile.getSecond(),
                             XmlDocument.Type.LIBRARY,
                             Optional.fromNullable(mainManifestPackageName));
-            File xmlFile = manifestInfo.mLocation;
-            XmlDocument libraryDocument;
-            try {
-                InputStream inputStream = mFileStreamProvider.getInputStream(xmlFile);
-                libraryDocument = XmlLoader.load(selectors,
-                        mSystemPropertyResolver,
-                        manifestInfo.mName,
-                        xmlFile,
-                        inputStream,
-                        XmlDocument.Type.LIBRARY,
-                        Optional.<String>absent()  /* mainManifestPackageName */);
-            } catch (Exception e) {
-                throw new MergeFailureException(e);
+            FutureTask<LoadedLibrary> loadingTask =
+                    new FutureTask<LoadedLibrary>(
+                            () -> loadLibrary(manifestInfo, selectors, mergingReportBuilder));
+            mExecutor.execute(loadingTask);
+            loadingTasks.add(loadingTask);
+        }
+
+        ImmutableList.Builder<LoadedManifestInfo> loadedLibraryDocuments = ImmutableList.builder();
+        try {
+            for (FutureTask<LoadedLibrary> loadingTask : loadingTasks) {
+                LoadedLibrary loadedLibrary = getLoadedLibrary(loadingTask);
+                // save the package name in the selector instance.
+                if (!Strings.isNullOrEmpty(loadedLibrary.mPackageName)) {
+                    selectors.addSelector(
+                            loadedLibrary.mPackageName,
+                            loadedLibrary.mLoadedManifestInfo.getName());
+                }
+                if (loadedLibrary.mPlaceholderReport.hasErrors()) {
+                    // we log the errors but continue, in case the error is of no consequence
+                    // to the application consuming the library.
+                    loadedLibrary.mPlaceholderReport.build().log(mLogger);
+                }
+                loadedLibraryDocuments.add(loadedLibrary.mLoadedManifestInfo);
             }
-            // extract the package name...
-            String libraryPackage = libraryDocument.getRootNode().getXml().getAttribute("package");
-            // save it in the selector instance.
-            if (!Strings.isNullOrEmpty(libraryPackage)) {
-                selectors.addSelector(libraryPackage, libraryFile.getFirst());
+        } finally {
+            // do not keep loading libraries if one of them failed to load.
+            for (FutureTask<LoadedLibrary> loadingTask : loadingTasks) {
+                loadingTask.cancel(false);
             }
+        }
+        return loadedLibraryDocuments.build();
+    }
 
-            // perform placeholder substitution, this is useful when the library is using
-            // a placeholder in a key element, we however do not need to record these
-            // substitutions so feed it with a fake merging report.
-            MergingReport.Builder builder =
-                    new MergingReport.Builder(mergingReportBuilder.getLogger(), this);
-            builder.getActionRecorder().recordAddedNodeAction(libraryDocument.getRootNode(), false);
-            performPlaceHolderSubstitution(
-                    manifestInfo, libraryDocument, builder, MergingReport.Record.Severity.INFO);
-            if (builder.hasErrors()) {
-                // we log the errors but continue, in case the error is of no consequence
-                // to the application consuming the library.
-                builder.build().log(mLogger);
-            }
+    /**
+     * Loads a library manifest and performs its placeholder substitution. This method may be
+     * invoked concurrently for different libraries, so it must not modify the merger's state.
+     */
+    @NonNull
+    private LoadedLibrary loadLibrary(
+            @NonNull ManifestInfo manifestInfo,
+            @NonNull KeyResolver<String> selectors,
+            @NonNull MergingReport.Builder mergingReportBuilder)
+            throws MergeFailureException {
+        File xmlFile = manifestInfo.mLocation;
+        XmlDocument libraryDocument;
+        try {
+            InputStream inputStream = mFileStreamProvider.getInputStream(xmlFile);
+            libraryDocument = XmlLoader.load(selectors,
+                    mSystemPropertyResolver,
+                    manifestInfo.mName,
+                    xmlFile,
+                    inputStream,
+                    XmlDocument.Type.LIBRARY,
+                    Optional.<String>absent()  /* mainManifestPackageName */);
+        } catch (Exception e) {
+            throw new MergeFailureException(e);
+        }
+        // extract the package name...
+        String libraryPackage = libraryDocument.getRootNode().getXml().getAttribute("package");
+
+        // perform placeholder substitution, this is useful when the library is using
+        // a placeholder in a key element, we however do not need to record these
+        // substitutions so feed it with a fake merging report.
+        MergingReport.Builder builder =
+                new MergingReport.Builder(mergingReportBuilder.getLogger(), this);
+        builder.getActionRecorder().recordAddedNodeAction(libraryDocument.getRootNode(), false);
+        performPlaceHolderSubstitution(
+                manifestInfo, libraryDocument, builder, MergingReport.Record.Severity.INFO);
+
+        return new LoadedLibrary(
+                new LoadedManifestInfo(
+                        manifestInfo,
+                        Optional.fromNullable(libraryDocument.getPackageName()),
+                        libraryDocument),
+                libraryPackage,
+                builder);
+    }
 
-            loadedLibraryDocuments.add(new LoadedManifestInfo(manifestInfo,
-                    Optional.fromNullable(libraryDocument.getPackageName()),
-                    libraryDocument));
+    @NonNull
+    private static LoadedLibrary getLoadedLibrary(@NonNull FutureTask<LoadedLibrary> loadingTask)
+            throws MergeFailureException {
+        try {
+            return Uninterruptibles.getUninterruptibly(loadingTask);
+        } catch (ExecutionException e) {
+            Throwables.throwIfInstanceOf(e.getCause(), MergeFailureException.class);
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new MergeFailureException(e);
         }
-        return loadedLibraryDocuments.build();
     }
 
     /**
@@ -1069,6 +1617,9 @@ public class ManifestMerger2 {
         @Nullable
         private FileStreamProvider mFileStreamProvider;
 
+        @Nullable private Executor mExecutor;
+        @Nullable private File mMergedLibrariesFile;
+
         @NonNull private String mFeatureName;
 
         /**
@@ -1344,6 +1895,40 @@ public class ManifestMerger2 {
             return thisAsT();
         }
 
+        /**
+         * Sets an executor used to load the library manifests concurrently. If not called, the
+         * library manifests are loaded one at a time on the calling thread. The merged manifest
+         * is the same in both cases, as the loaded library manifests are still merged in priority
+         * order.
+         *
+         * <p>NOTE: The file stream provider, if any, must be thread-safe when an executor is set.
+         *
+         * @param executor the executor to use
+         * @return itself.
+         */
+        @NonNull
+        public Invoker withExecutor(@Nullable Executor executor) {
+            mExecutor = executor;
+            return thisAsT();
+        }
+
+        /**
+         * Sets the file used to save the library manifests merged pairwise, so that the next merge
+         * only merges again the libraries which changed, along with the libraries they are merged
+         * with, and reuses the saved documents for the others. If nothing but the higher priority
+         * manifests changed, the library manifests are not merged again at all. If not called,
+         * the library manifests are always merged. The merged manifest and the recorded actions
+         * are the same in both cases.
+         *
+         * @param mergedLibrariesFile the file to save the merged library manifests to.
+         * @return itself.
+         */
+        @NonNull
+        public Invoker setMergedLibrariesFile(@Nullable File mergedLibrariesFile) {
+            mMergedLibrariesFile = mergedLibrariesFile;
+            return thisAsT();
+        }
+
         /** Regular expression defining legal feature split name. */
         private static final Pattern FEATURE_NAME_PATTERN =
                 Pattern.compile("[a-zA-Z0-9][a-zA-Z0-9_]*");
@@ -1425,7 +2010,9 @@ public class ManifestMerger2 {
                             mDocumentType,
                             Optional.fromNullable(mReportFile),
                             mFeatureName,
-                            fileStreamProvider);
+                            fileStreamProvider,
+                            mExecutor != null ? mExecutor : MoreExecutors.directExecutor(),
+                            Optional.fromNullable(mMergedLibrariesFile));
             return manifestMerger.merge();
         }
 
@@ -1517,6 +2104,24 @@ public class ManifestMerger2 {
         }
     }
 
+    /** A loaded library manifest, and the results of its loading to be consumed in order. */
+    private static class LoadedLibrary {
+
+        @NonNull private final LoadedManifestInfo mLoadedManifestInfo;
+        /** The package attribute before placeholder substitution, used as a selector. */
+        @Nullable private final String mPackageName;
+        @NonNull private final MergingReport.Builder mPlaceholderReport;
+
+        private LoadedLibrary(
+                @NonNull LoadedManifestInfo loadedManifestInfo,
+                @Nullable String packageName,
+                @NonNull MergingReport.Builder placeholderReport) {
+            mLoadedManifestInfo = loadedManifestInfo;
+            mPackageName = packageName;
+            mPlaceholderReport = placeholderReport;
+        }
+    }
+
     /**
      * Implementation a {@link com.android.manifmerger.KeyResolver} capable of resolving all
      * selectors value in the context of the passed libraries to this merging activities.
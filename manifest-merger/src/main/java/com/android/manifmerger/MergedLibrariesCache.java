@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.manifmerger;
+
+import static com.android.manifmerger.PlaceholderHandler.KeyBasedValueResolver;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.concurrency.GuardedBy;
+import com.android.ide.common.blame.SourceFile;
+import com.android.utils.ILogger;
+import com.android.utils.XmlUtils;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.google.gson.JsonParseException;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The library manifests merged pairwise by the previous merge, saved to a file along with the
+ * declarations of their elements (see {@link LibraryDeclarations}), so that the libraries which
+ * did not change since then are not merged again.
+ *
+ * <p>Each merged document is keyed by a fingerprint of the libraries merged into it, which changes
+ * whenever one of these libraries or anything they are merged with changes (see {@link
+ * ManifestMerger2}). Only the merged documents of the last merge are kept in the file.
+ */
+class MergedLibrariesCache {
+
+    /** Version of the file format, the file is ignored if it was saved with another version. */
+    private static final int VERSION = 1;
+
+    @NonNull private final File mFile;
+
+    /** The merged documents saved by the previous merge, by fingerprint. */
+    @NonNull private final Map<String, Entry> mSavedEntries;
+
+    /** The merged documents of this merge, by fingerprint. */
+    @GuardedBy("this")
+    @NonNull
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    /** Whether documents were merged again by this merge. */
+    @GuardedBy("this")
+    private boolean mMerged;
+
+    private MergedLibrariesCache(@NonNull File file, @NonNull Map<String, Entry> savedEntries) {
+        mFile = file;
+        mSavedEntries = savedEntries;
+    }
+
+    /**
+     * Loads the merged documents saved to a file by the previous merge. If the file does not exist
+     * or cannot be read, the cache is empty and the libraries will be merged again.
+     */
+    @NonNull
+    static MergedLibrariesCache load(@NonNull File file, @NonNull ILogger logger) {
+        if (file.isFile()) {
+            try (Reader reader = Files.newReader(file, Charsets.UTF_8)) {
+                Content content = Actions.getGsonParser().fromJson(reader, Content.class);
+                if (content != null && content.mVersion == VERSION && content.mEntries != null) {
+                    return new MergedLibrariesCache(file, content.mEntries);
+                }
+            } catch (IOException | JsonParseException e) {
+                logger.verbose(
+                        "Cannot read the merged library manifests from %1$s: %2$s",
+                        file.getAbsolutePath(),
+                        e.getMessage());
+            }
+        }
+        return new MergedLibrariesCache(file, ImmutableMap.<String, Entry>of());
+    }
+
+    /**
+     * Loads the merged document saved for a fingerprint and adds the declarations of its elements,
+     * or returns {@link Optional#absent()} if there is no such document or it cannot be loaded.
+     *
+     * @param sourceFile the source file of the loaded document, the one of the highest priority
+     *     library merged into it.
+     */
+    @NonNull
+    Optional<XmlDocument> load(
+            @NonNull String fingerprint,
+            @NonNull SourceFile sourceFile,
+            @NonNull KeyResolver<String> selectors,
+            @NonNull KeyBasedValueResolver<ManifestSystemProperty> systemPropertyResolver,
+            @NonNull LibraryDeclarations libraryDeclarations,
+            @NonNull ILogger logger) {
+        Entry entry = mSavedEntries.get(fingerprint);
+        if (entry == null || entry.mDocument == null || entry.mDeclarations == null) {
+            return Optional.absent();
+        }
+        try {
+            XmlDocument xmlDocument =
+                    XmlLoader.load(
+                            selectors,
+                            systemPropertyResolver,
+                            sourceFile,
+                            entry.mDocument,
+                            XmlDocument.Type.LIBRARY,
+                            Optional.<String>absent() /* mainManifestPackageName */);
+            libraryDeclarations.addDeclarations(xmlDocument, entry.mDeclarations);
+            put(fingerprint, entry);
+            return Optional.of(xmlDocument);
+        } catch (Exception e) {
+            // the libraries will be merged again and the document saved again.
+            logger.verbose(
+                    "Cannot load the merged library manifests from %1$s: %2$s",
+                    mFile.getAbsolutePath(),
+                    e.getMessage());
+            return Optional.absent();
+        }
+    }
+
+    /**
+     * Keeps the merged document saved for a fingerprint, if any, in the file, as its libraries are
+     * still merged together even if the document is not needed by this merge.
+     */
+    void keep(@NonNull String fingerprint) {
+        Entry entry = mSavedEntries.get(fingerprint);
+        if (entry != null) {
+            put(fingerprint, entry);
+        }
+    }
+
+    /**
+     * Saves a document merged from libraries with a given fingerprint. This must be called before
+     * the document is merged into another one, as merging moves its elements. This method may be
+     * invoked concurrently for different documents.
+     */
+    void put(
+            @NonNull String fingerprint,
+            @NonNull XmlDocument mergedDocument,
+            @NonNull LibraryDeclarations libraryDeclarations) {
+        Entry entry =
+                new Entry(
+                        XmlUtils.toXml(mergedDocument.getXml()),
+                        libraryDeclarations.getDeclarations(mergedDocument));
+        synchronized (this) {
+            mEntries.put(fingerprint, entry);
+            mMerged = true;
+        }
+    }
+
+    private synchronized void put(@NonNull String fingerprint, @NonNull Entry entry) {
+        mEntries.put(fingerprint, entry);
+    }
+
+    /**
+     * Writes the merged documents of this merge to the file, if they are not the ones of the
+     * previous merge. The file is written to a uniquely named temporary file first and then moved,
+     * so that a partially written file is never loaded. The merged documents are only an
+     * optimization, so a failure to write them is logged and ignored.
+     */
+    synchronized void save(@NonNull ILogger logger) {
+        if (!mMerged && mEntries.keySet().equals(mSavedEntries.keySet())) {
+            return;
+        }
+        Content content = new Content(VERSION, ImmutableMap.copyOf(mEntries));
+        try {
+            Files.createParentDirs(mFile);
+            Path tmpFile =
+                    java.nio.file.Files.createTempFile(
+                            mFile.getParentFile().toPath(), mFile.getName(), ".tmp");
+            try {
+                try (Writer writer =
+                        java.nio.file.Files.newBufferedWriter(tmpFile, Charsets.UTF_8)) {
+                    Actions.getGsonParser().toJson(content, writer);
+                }
+                try {
+                    java.nio.file.Files.move(
+                            tmpFile,
+                            mFile.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    java.nio.file.Files.move(
+                            tmpFile, mFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                java.nio.file.Files.deleteIfExists(tmpFile);
+            }
+        } catch (IOException e) {
+            logger.warning(
+                    "Error '%1$s' while writing the merged library manifests to %2$s, build can "
+                            + "continue but the library manifests will be merged again",
+                    e.getMessage(),
+                    mFile.getAbsolutePath());
+        }
+    }
+
+    /** The content of the file. */
+    private static final class Content {
+
+        private final int mVersion;
+
+        private final Map<String, Entry> mEntries;
+
+        Content(int version, @NonNull Map<String, Entry> entries) {
+            mVersion = version;
+            mEntries = entries;
+        }
+    }
+
+    /** A merged document and the declarations of its elements, in document order. */
+    private static final class Entry {
+
+        private final String mDocument;
+
+        private final List<List<LibraryDeclarations.Declaration>> mDeclarations;
+
+        Entry(
+                @NonNull String document,
+                @NonNull List<List<LibraryDeclarations.Declaration>> declarations) {
+            mDocument = document;
+            mDeclarations = declarations;
+        }
+    }
+}
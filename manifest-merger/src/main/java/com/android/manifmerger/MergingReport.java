@@ -357,6 +357,14 @@ public class MergingReport {
             return mActionRecorder;
         }
 
+        /**
+         * Replaces the recorder of this builder, before any action is recorded, for instance to
+         * keep track of the library elements merged when merging libraries pairwise.
+         */
+        void setActionRecorder(@NonNull ActionRecorder actionRecorder) {
+            mActionRecorder = actionRecorder;
+        }
+
         @NonNull
         MergingReport build() {
             Result result = mHasErrors
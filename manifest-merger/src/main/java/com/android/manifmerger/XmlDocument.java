@@ -150,6 +150,42 @@ public class XmlDocument {
             @NonNull XmlDocument lowerPriorityDocument,
             @NonNull MergingReport.Builder mergingReportBuilder,
             boolean addImplicitPermissions) {
+        return merge(
+                lowerPriorityDocument,
+                mergingReportBuilder,
+                true /* addImplicitElements */,
+                addImplicitPermissions);
+    }
+
+    /**
+     * merge this higher priority document with a lower priority document, without checking the
+     * lower priority document's sdk versions against this document's or adding the elements they
+     * imply. This is used when these checks were already performed with
+     * {@link #checkLowerPrioritySdkVersions(XmlDocument, MergingReport.Builder)} and
+     * {@link #mayAddImplicitElements(XmlDocument, boolean)} on the documents that were merged into
+     * the lower priority document.
+     * @param lowerPriorityDocument the lower priority document to merge in.
+     * @param mergingReportBuilder the merging report to record errors and actions.
+     * @return a new merged {@link com.android.manifmerger.XmlDocument} or
+     * {@link Optional#absent()} if there were errors during the merging activities.
+     */
+    @NonNull
+    Optional<XmlDocument> mergeWithoutImplicitElements(
+            @NonNull XmlDocument lowerPriorityDocument,
+            @NonNull MergingReport.Builder mergingReportBuilder) {
+        return merge(
+                lowerPriorityDocument,
+                mergingReportBuilder,
+                false /* addImplicitElements */,
+                false /* addImplicitPermissions */);
+    }
+
+    @NonNull
+    private Optional<XmlDocument> merge(
+            @NonNull XmlDocument lowerPriorityDocument,
+            @NonNull MergingReport.Builder mergingReportBuilder,
+            boolean addImplicitElements,
+            boolean addImplicitPermissions) {
 
         if (getFileType() == Type.MAIN) {
             mergingReportBuilder.getActionRecorder().recordAddedNodeAction(getRootNode(), false);
@@ -158,7 +194,10 @@ public class XmlDocument {
         getRootNode().mergeWithLowerPriorityNode(
                 lowerPriorityDocument.getRootNode(), mergingReportBuilder);
 
-        addImplicitElements(lowerPriorityDocument, mergingReportBuilder, addImplicitPermissions);
+        if (addImplicitElements) {
+            addImplicitElements(
+                    lowerPriorityDocument, mergingReportBuilder, addImplicitPermissions);
+        }
 
         // force re-parsing as new nodes may have appeared.
         return mergingReportBuilder.hasErrors()
@@ -384,6 +423,52 @@ public class XmlDocument {
         return SdkVersionInfo.getApiByPreviewName(attributeVersion, true);
     }
 
+    /**
+     * Checks that the sdk versions of the passed lower priority document are compatible with this
+     * document's, as {@link #merge(XmlDocument, MergingReport.Builder, boolean)} does, without
+     * adding any implicit element.
+     */
+    void checkLowerPrioritySdkVersions(
+            @NonNull XmlDocument lowerPriorityDocument,
+            @NonNull MergingReport.Builder mergingReport) {
+        addImplicitElements(
+                lowerPriorityDocument, mergingReport, false /* addImplicitPermissions */);
+    }
+
+    /**
+     * Returns true if merging the passed lower priority document in this document may add implicit
+     * elements (like the permissions implied by an older library target SDK), false if it can only
+     * check the sdk versions. This mirrors the conditions of {@link
+     * #addImplicitElements(XmlDocument, MergingReport.Builder, boolean)}.
+     */
+    boolean mayAddImplicitElements(
+            @NonNull XmlDocument lowerPriorityDocument, boolean addImplicitPermissions) {
+        if (!addImplicitPermissions) {
+            return false;
+        }
+        int thisTargetSdk = getApiLevelFromAttribute(getTargetSdkVersion());
+        int libraryTargetSdk = getApiLevelFromAttribute(
+                lowerPriorityDocument.getFileType() == Type.LIBRARY
+                        ? lowerPriorityDocument.getRawTargetSdkVersion()
+                        : lowerPriorityDocument.getTargetSdkVersion());
+        if (thisTargetSdk <= libraryTargetSdk || thisTargetSdk < 4) {
+            return false;
+        }
+        if (libraryTargetSdk < 4
+                || lowerPriorityDocument.getByTypeAndKey(
+                        USES_PERMISSION, permission("WRITE_EXTERNAL_STORAGE")).isPresent()) {
+            return true;
+        }
+        return thisTargetSdk >= 16
+                && libraryTargetSdk < 16
+                && (lowerPriorityDocument.getByTypeAndKey(
+                                        USES_PERMISSION, permission("READ_CONTACTS"))
+                                .isPresent()
+                        || lowerPriorityDocument.getByTypeAndKey(
+                                        USES_PERMISSION, permission("WRITE_CONTACTS"))
+                                .isPresent());
+    }
+
     /**
      * Add all implicit elements from the passed lower priority document that are
      * required in the target SDK.
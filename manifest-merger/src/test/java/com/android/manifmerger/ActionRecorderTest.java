@@ -18,6 +18,7 @@ package com.android.manifmerger;
 
 import com.android.utils.ILogger;
 import java.io.IOException;
+import java.io.StringWriter;
 import javax.xml.parsers.ParserConfigurationException;
 import junit.framework.TestCase;
 import org.mockito.Mock;
@@ -92,6 +93,31 @@ public class ActionRecorderTest extends TestCase {
         Mockito.verifyNoMoreInteractions(mLoggerMock);
     }
 
+    public void testLogToWriter()
+            throws ParserConfigurationException, SAXException, IOException {
+
+        XmlDocument xmlDocument = TestUtils.xmlDocumentFromString(
+                TestUtils.sourceFile(getClass(),
+                        REFEFENCE_DOCUMENT), REFERENCE);
+
+        XmlElement xmlElement = xmlDocument.getRootNode().getNodeByTypeAndKey(
+                ManifestModel.NodeTypes.ACTIVITY, "com.example.lib3.activityOne").get();
+        mActionRecorderBuilder.recordNodeAction(xmlElement, Actions.ActionType.ADDED);
+        XmlAttribute xmlAttribute = xmlElement.getAttribute(
+                XmlNode.fromXmlName("android:name")).get();
+        mActionRecorderBuilder.recordAttributeAction(
+                xmlAttribute, Actions.ActionType.ADDED, AttributeOperationType.STRICT);
+
+        Actions actions = mActionRecorderBuilder.build();
+        StringWriter stringWriter = new StringWriter();
+        actions.log(stringWriter);
+        actions.log(mLoggerMock);
+
+        // the same actions are written to files and logged.
+        Mockito.verify(mLoggerMock).verbose(stringWriter.toString());
+        Mockito.verifyNoMoreInteractions(mLoggerMock);
+    }
+
     public void testSingleElement_withoutAttributes_withRejection()
             throws ParserConfigurationException, SAXException, IOException {
 
@@ -38,7 +38,11 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 import javax.xml.parsers.ParserConfigurationException;
 import org.junit.Rule;
@@ -433,6 +437,74 @@ public class ManifestMerger2SmallTest {
         }
     }
 
+    @Test
+    public void testConcurrentLibraryLoading() throws Exception {
+        String xml = ""
+                + "<manifest package=\"com.example.app\"\n"
+                + "    xmlns:android=\"http://schemas.android.com/apk/res/android\">\n"
+                + "    <application android:label=\"${labelName}\"/>\n"
+                + "</manifest>";
+        File inputFile = inputAsFile("testConcurrentLibraryLoading", xml);
+        List<File> libraryFiles = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            // libraries declare the same activity, so the merged manifest depends on their order
+            String libraryXml = ""
+                    + "<manifest package=\"com.example.lib" + i + "\"\n"
+                    + "    xmlns:android=\"http://schemas.android.com/apk/res/android\">\n"
+                    + "    <application>\n"
+                    + "        <activity android:name=\"com.example.Shared\">\n"
+                    + "            <meta-data android:name=\"lib" + i + "\" android:value=\"" + i
+                    + "\"/>\n"
+                    + "        </activity>\n"
+                    + "        <activity android:name=\".Activity" + i + "\"\n"
+                    + "            android:label=\"${labelName}\"/>\n"
+                    + "    </application>\n"
+                    + "</manifest>";
+            libraryFiles.add(inputAsFile("testConcurrentLibraryLoading" + i, libraryXml));
+        }
+        Map<String, String> placeholders = ImmutableMap.of("labelName", "injectedLabelName");
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            MergingReport serialReport =
+                    ManifestMerger2.newMerger(
+                                    inputFile, new MockLog(), ManifestMerger2.MergeType.APPLICATION)
+                            .setPlaceHolderValues(placeholders)
+                            .addLibraryManifests(libraryFiles.toArray(new File[0]))
+                            .merge();
+            MergingReport concurrentReport =
+                    ManifestMerger2.newMerger(
+                                    inputFile, new MockLog(), ManifestMerger2.MergeType.APPLICATION)
+                            .setPlaceHolderValues(placeholders)
+                            .addLibraryManifests(libraryFiles.toArray(new File[0]))
+                            .withExecutor(executor)
+                            .merge();
+
+            assertTrue(serialReport.getResult().isSuccess());
+            assertEquals(serialReport.getResult(), concurrentReport.getResult());
+            assertEquals(
+                    serialReport.getMergedDocument(MergedManifestKind.MERGED),
+                    concurrentReport.getMergedDocument(MergedManifestKind.MERGED));
+            assertEquals(
+                    serialReport.getMergedDocument(MergedManifestKind.BLAME),
+                    concurrentReport.getMergedDocument(MergedManifestKind.BLAME));
+
+            Document document =
+                    parse(concurrentReport.getMergedDocument(MergedManifestKind.MERGED));
+            assertTrue(
+                    getElementByTypeAndKey(document, "activity", "com.example.Shared").isPresent());
+            assertEquals(20, document.getElementsByTagName("meta-data").getLength());
+        } finally {
+            executor.shutdown();
+            //noinspection ResultOfMethodCallIgnored
+            inputFile.delete();
+            for (File libraryFile : libraryFiles) {
+                //noinspection ResultOfMethodCallIgnored
+                libraryFile.delete();
+            }
+        }
+    }
+
     @Test
     public void testApplicationIdSubstitution() throws Exception {
         String xml = ""
@@ -0,0 +1,603 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.manifmerger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.blame.SourceFile;
+import com.android.manifmerger.MergingReport.MergedManifestKind;
+import com.android.testutils.MockLog;
+import com.android.utils.ILogger;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Differential tests checking that merging the library manifests pairwise produces the same merged
+ * manifest and records the same actions, and so the same blame report, as merging them one by one
+ * into the main manifest. The actions of the different nodes and libraries may be recorded in a
+ * different order.
+ *
+ * <p>The randomly generated libraries only declare an element key under a single parent: when
+ * several parents declare it, the actions of one of these elements are recorded, which may not be
+ * the same one (see {@link #testKeyDeclaredUnderDifferentParents()}).
+ */
+public class ManifestMerger2TreeMergeTest {
+
+    private static final String TREE_MERGE_MESSAGE =
+            "Merging the pairwise merged library manifests";
+
+    private static final String MAIN_MANIFEST = ""
+            + "<manifest package=\"com.example.app\"\n"
+            + "    xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+            + "    xmlns:tools=\"http://schemas.android.com/tools\">\n"
+            + "    <uses-sdk android:minSdkVersion=\"14\" android:targetSdkVersion=\"25\"/>\n"
+            + "    <uses-permission android:name=\"android.permission.INTERNET\"/>\n"
+            + "    <application android:label=\"@string/app_name\">\n"
+            + "        <activity android:name=\"com.example.Shared0\"\n"
+            + "            android:theme=\"@style/Shared0\"/>\n"
+            + "        <activity android:name=\".MainActivity\"/>\n"
+            + "    </application>\n"
+            + "</manifest>";
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRandomLibraries() throws Exception {
+        File mainManifest = inputAsFile("main", MAIN_MANIFEST);
+        for (int seed = 0; seed < 20; seed++) {
+            Random random = new Random(seed);
+            int libraryCount =
+                    ManifestMerger2.MIN_LIBRARIES_FOR_TREE_MERGE + random.nextInt(10);
+            List<File> libraryFiles = new ArrayList<>();
+            for (int i = 0; i < libraryCount; i++) {
+                libraryFiles.add(
+                        inputAsFile("seed" + seed + "_lib" + i, createLibrary(random, i)));
+            }
+
+            MergingReport mergingReport =
+                    assertSameMergedManifest(mainManifest, libraryFiles, true);
+            assertTrue(mergingReport.getResult().isSuccess());
+        }
+    }
+
+    @Test
+    public void testMainManifestInstructionsRecorded() throws Exception {
+        String mainManifest = ""
+                + "<manifest package=\"com.example.app\"\n"
+                + "    xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                + "    xmlns:tools=\"http://schemas.android.com/tools\">\n"
+                + "    <uses-sdk android:minSdkVersion=\"14\" android:targetSdkVersion=\"25\"/>\n"
+                + "    <uses-feature android:name=\"android.hardware.camera\"\n"
+                + "        android:required=\"false\"/>\n"
+                + "    <application>\n"
+                + "        <activity android:name=\"com.example.Shared\"\n"
+                + "            android:theme=\"@style/Main\"\n"
+                + "            tools:replace=\"android:theme\"/>\n"
+                + "        <activity android:name=\"com.example.Removed\"\n"
+                + "            tools:node=\"remove\"/>\n"
+                + "    </application>\n"
+                + "</manifest>";
+        List<File> libraryFiles = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            String libraryXml = ""
+                    + "<manifest package=\"com.example.lib" + i + "\"\n"
+                    + "    xmlns:android=\"http://schemas.android.com/apk/res/android\">\n"
+                    + "    <uses-sdk android:minSdkVersion=\"14\"\n"
+                    + "        android:targetSdkVersion=\"25\"/>\n"
+                    + "    <uses-feature android:name=\"android.hardware.camera\"/>\n"
+                    + "    <application>\n"
+                    + "        <activity android:name=\"com.example.Shared\"\n"
+                    + "            android:theme=\"@style/Lib\"/>\n"
+                    + "        <activity android:name=\"com.example.Removed\"/>\n"
+                    + "    </application>\n"
+                    + "</manifest>";
+            libraryFiles.add(inputAsFile("lib" + i, libraryXml));
+        }
+
+        MergingReport mergingReport =
+                assertSameMergedManifest(inputAsFile("main", mainManifest), libraryFiles, true);
+        assertTrue(mergingReport.getResult().isSuccess());
+    }
+
+    @Test
+    public void testLibrariesConflictResolvedByMainManifest() throws Exception {
+        String mainManifest = ""
+                + "<manifest package=\"com.example.app\"\n"
+                + "    xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                + "    xmlns:tools=\"http://schemas.android.com/tools\">\n"
+                + "    <uses-sdk android:minSdkVersion=\"14\" android:targetSdkVersion=\"25\"/>\n"
+                + "    <application>\n"
+                + "        <activity android:name=\"com.example.Shared\"\n"
+                + "            android:theme=\"@style/Main\"\n"
+                + "            tools:replace=\"android:theme\"/>\n"
+                + "    </application>\n"
+                + "</manifest>";
+        List<File> libraryFiles = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            libraryFiles.add(
+                    inputAsFile(
+                            "lib" + i,
+                            createLibrary(
+                                    i,
+                                    "        <activity android:name=\"com.example.Shared\"\n"
+                                            + "            android:theme=\"@style/Lib"
+                                            + i
+                                            + "\"/>\n")));
+        }
+
+        // the libraries conflict with each other, so they are merged one by one.
+        MergingReport mergingReport =
+                assertSameMergedManifest(
+                        inputAsFile("main", mainManifest), libraryFiles, false);
+        assertTrue(mergingReport.getResult().isSuccess());
+    }
+
+    @Test
+    public void testLibrariesConflict() throws Exception {
+        List<File> libraryFiles = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            libraryFiles.add(
+                    inputAsFile(
+                            "lib" + i,
+                            createLibrary(
+                                    i,
+                                    "        <activity android:name=\"com.example.Shared\"\n"
+                                            + "            android:theme=\"@style/Lib"
+                                            + i
+                                            + "\"/>\n")));
+        }
+
+        MergingReport mergingReport =
+                assertSameMergedManifest(
+                        inputAsFile("main", MAIN_MANIFEST), libraryFiles, false);
+        assertTrue(mergingReport.getResult().isError());
+    }
+
+    @Test
+    public void testLibraryWithMergingInstructions() throws Exception {
+        List<File> libraryFiles = new ArrayList<>();
+        libraryFiles.add(
+                inputAsFile(
+                        "lib0",
+                        createLibrary(
+                                0,
+                                "        <activity android:name=\"com.example.Removed\"\n"
+                                        + "            tools:node=\"remove\"/>\n")));
+        for (int i = 1; i < 4; i++) {
+            libraryFiles.add(
+                    inputAsFile(
+                            "lib" + i,
+                            createLibrary(
+                                    i,
+                                    "        <activity android:name=\"com.example.Removed\"/>\n")));
+        }
+
+        MergingReport mergingReport =
+                assertSameMergedManifest(
+                        inputAsFile("main", MAIN_MANIFEST), libraryFiles, false);
+        assertTrue(mergingReport.getResult().isSuccess());
+    }
+
+    @Test
+    public void testLibraryWithImpliedPermissions() throws Exception {
+        List<File> libraryFiles = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            String libraryXml = ""
+                    + "<manifest package=\"com.example.lib" + i + "\"\n"
+                    + "    xmlns:android=\"http://schemas.android.com/apk/res/android\">\n"
+                    + "    <uses-sdk android:minSdkVersion=\"4\" android:targetSdkVersion=\""
+                    + (i == 2 ? "15" : "25") + "\"/>\n"
+                    + "    <uses-permission android:name=\"android.permission.READ_CONTACTS\"/>\n"
+                    + "</manifest>";
+            libraryFiles.add(inputAsFile("lib" + i, libraryXml));
+        }
+
+        MergingReport mergingReport =
+                assertSameMergedManifest(
+                        inputAsFile("main", MAIN_MANIFEST), libraryFiles, false);
+        assertTrue(mergingReport.getResult().isSuccess());
+        assertTrue(
+                mergingReport
+                        .getMergedDocument(MergedManifestKind.MERGED)
+                        .contains("android.permission.READ_CALL_LOG"));
+    }
+
+    @Test
+    public void testLibrariesWithLowerTargetSdk() throws Exception {
+        String[] libraryTargetSdks = {"15", "21", "23", "25"};
+        String[] libraryPermissions = {
+            "INTERNET", "READ_CONTACTS", "CAMERA", "WRITE_EXTERNAL_STORAGE"
+        };
+        List<File> libraryFiles = new ArrayList<>();
+        for (int i = 0; i < libraryTargetSdks.length; i++) {
+            String libraryXml = ""
+                    + "<manifest package=\"com.example.lib" + i + "\"\n"
+                    + "    xmlns:android=\"http://schemas.android.com/apk/res/android\">\n"
+                    + "    <uses-sdk android:minSdkVersion=\"9\" android:targetSdkVersion=\""
+                    + libraryTargetSdks[i] + "\"/>\n"
+                    + "    <uses-permission android:name=\"android.permission."
+                    + libraryPermissions[i] + "\"/>\n"
+                    + "</manifest>";
+            libraryFiles.add(inputAsFile("lib" + i, libraryXml));
+        }
+
+        // no permission is implied by the libraries targeting an older SDK than the main manifest.
+        MergingReport mergingReport =
+                assertSameMergedManifest(
+                        inputAsFile("main", MAIN_MANIFEST), libraryFiles, true);
+        assertTrue(mergingReport.getResult().isSuccess());
+    }
+
+    @Test
+    public void testKeyDeclaredUnderDifferentParents() throws Exception {
+        String sharedIntentFilter = ""
+                + "            <intent-filter>\n"
+                + "                <action android:name=\"com.example.SHARED\"/>\n"
+                + "            </intent-filter>\n";
+        List<File> libraryFiles = new ArrayList<>();
+        libraryFiles.add(
+                inputAsFile(
+                        "lib0",
+                        createLibrary(
+                                0,
+                                "        <activity android:name=\"com.example.First\"/>\n"
+                                        + "        <activity android:name=\"com.example.Second\">\n"
+                                        + sharedIntentFilter
+                                        + "        </activity>\n")));
+        libraryFiles.add(
+                inputAsFile(
+                        "lib1",
+                        createLibrary(
+                                1,
+                                "        <activity android:name=\"com.example.First\">\n"
+                                        + sharedIntentFilter
+                                        + "        </activity>\n")));
+        for (int i = 2; i < 4; i++) {
+            libraryFiles.add(inputAsFile("lib" + i, createLibrary(i, "")));
+        }
+        File mainManifest = inputAsFile("main", MAIN_MANIFEST);
+
+        MergingReport foldReport =
+                ManifestMerger2.newMerger(
+                                mainManifest, new MockLog(), ManifestMerger2.MergeType.APPLICATION)
+                        .addLibraryManifests(libraryFiles.toArray(new File[0]))
+                        .withFeatures(ManifestMerger2.Invoker.Feature.KEEP_INTERMEDIARY_STAGES)
+                        .merge();
+        MergingReport treeReport =
+                ManifestMerger2.newMerger(
+                                mainManifest, new MockLog(), ManifestMerger2.MergeType.APPLICATION)
+                        .addLibraryManifests(libraryFiles.toArray(new File[0]))
+                        .withExecutor(executor)
+                        .merge();
+
+        assertEquals(
+                foldReport.getMergedDocument(MergedManifestKind.MERGED),
+                treeReport.getMergedDocument(MergedManifestKind.MERGED));
+        // both intent filters have the same key, recorded from the first declaring library when
+        // merging the libraries one by one, and from the first one in the merged document when
+        // merging them pairwise.
+        XmlNode.NodeKey intentFilterKey = new XmlNode.NodeKey("intent-filter#com.example.SHARED");
+        assertEquals(
+                "lib0.xml",
+                getCreationFileName(foldReport.getActions(), intentFilterKey));
+        assertEquals(
+                "lib1.xml",
+                getCreationFileName(treeReport.getActions(), intentFilterKey));
+    }
+
+    @NonNull
+    private static String getCreationFileName(
+            @NonNull Actions actions, @NonNull XmlNode.NodeKey nodeKey) {
+        Actions.NodeRecord creationRecord = actions.getNodeRecords(nodeKey).get(0);
+        assertEquals(Actions.ActionType.ADDED, creationRecord.getActionType());
+        File sourceFile = creationRecord.getActionLocation().getFile().getSourceFile();
+        return sourceFile == null ? "" : sourceFile.getName();
+    }
+
+    @Test
+    public void testMergedLibrariesFile() throws Exception {
+        Random random = new Random(0);
+        List<File> libraryFiles = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            libraryFiles.add(inputAsFile("lib" + i, createLibrary(random, i)));
+        }
+        File mergedLibrariesFile = new File(temporaryFolder.getRoot(), "merged-libraries.json");
+
+        // all the libraries are merged the first time.
+        ILogger logger = mock(ILogger.class);
+        MergingReport mergingReport =
+                assertSameMergedManifest(
+                        inputAsFile("main", MAIN_MANIFEST),
+                        libraryFiles,
+                        logger,
+                        mergedLibrariesFile);
+        assertTrue(mergingReport.getResult().isSuccess());
+        assertTrue(mergedLibrariesFile.isFile());
+        verify(logger).verbose(TREE_MERGE_MESSAGE);
+        for (int i = 1; i < 8; i++) {
+            verifyPairMerge(logger, libraryFiles.get(i), true);
+        }
+
+        // none of them is merged again when only the main manifest changes.
+        logger = mock(ILogger.class);
+        mergingReport =
+                assertSameMergedManifest(
+                        inputAsFile(
+                                "main_changed",
+                                MAIN_MANIFEST.replace(
+                                        "android.permission.INTERNET",
+                                        "android.permission.CAMERA")),
+                        libraryFiles,
+                        logger,
+                        mergedLibrariesFile);
+        assertTrue(mergingReport.getResult().isSuccess());
+        verify(logger).verbose(TREE_MERGE_MESSAGE);
+        verifyReuse(logger, libraryFiles.get(0));
+        for (int i = 1; i < 8; i++) {
+            verifyPairMerge(logger, libraryFiles.get(i), false);
+        }
+
+        // only the documents lib5 is merged into are merged again when it changes: lib5 into
+        // lib4, then lib6 and lib7, loaded, into them, then all of them into lib0 to lib3, loaded.
+        Files.write(createLibrary(new Random(1), 5), libraryFiles.get(5), Charsets.UTF_8);
+        logger = mock(ILogger.class);
+        mergingReport =
+                assertSameMergedManifest(
+                        inputAsFile("main", MAIN_MANIFEST),
+                        libraryFiles,
+                        logger,
+                        mergedLibrariesFile);
+        assertTrue(mergingReport.getResult().isSuccess());
+        verify(logger).verbose(TREE_MERGE_MESSAGE);
+        verifyReuse(logger, libraryFiles.get(0));
+        verifyReuse(logger, libraryFiles.get(6));
+        for (int i = 1; i < 8; i++) {
+            verifyPairMerge(logger, libraryFiles.get(i), i == 4 || i == 5 || i == 6);
+        }
+    }
+
+    /** Verifies whether a library, or the libraries merged into it, was merged pairwise. */
+    private static void verifyPairMerge(
+            @NonNull ILogger logger, @NonNull File libraryFile, boolean merged) {
+        verify(logger, times(merged ? 1 : 0))
+                .verbose(
+                        "Merging the library manifests from %1$s pairwise",
+                        new SourceFile(libraryFile, libraryFile.getName()).print(true));
+    }
+
+    /** Verifies that the libraries merged into a library were loaded from the cache. */
+    private static void verifyReuse(@NonNull ILogger logger, @NonNull File libraryFile) {
+        verify(logger)
+                .verbose(
+                        "Reusing the merged library manifests from %1$s",
+                        new SourceFile(libraryFile, libraryFile.getName()).print(true));
+    }
+
+    /**
+     * Merges the libraries one by one and, with an executor, pairwise if possible and checks the
+     * merged manifests and the recorded actions are the same.
+     */
+    @NonNull
+    private MergingReport assertSameMergedManifest(
+            @NonNull File mainManifest, @NonNull List<File> libraryFiles, boolean mergedPairwise)
+            throws Exception {
+        ILogger logger = mock(ILogger.class);
+        MergingReport mergingReport =
+                assertSameMergedManifest(mainManifest, libraryFiles, logger, null);
+        if (mergedPairwise) {
+            verify(logger).verbose(TREE_MERGE_MESSAGE);
+        } else {
+            verify(logger, never()).verbose(TREE_MERGE_MESSAGE);
+        }
+        return mergingReport;
+    }
+
+    /**
+     * Merges the libraries one by one and, with an executor and the given merged libraries file,
+     * pairwise if possible and checks the merged manifests and the recorded actions are the same.
+     */
+    @NonNull
+    private MergingReport assertSameMergedManifest(
+            @NonNull File mainManifest,
+            @NonNull List<File> libraryFiles,
+            @NonNull ILogger logger,
+            @Nullable File mergedLibrariesFile)
+            throws Exception {
+        // the intermediary stages are only kept when merging the libraries one by one.
+        MergingReport foldReport =
+                ManifestMerger2.newMerger(
+                                mainManifest, new MockLog(), ManifestMerger2.MergeType.APPLICATION)
+                        .addLibraryManifests(libraryFiles.toArray(new File[0]))
+                        .withFeatures(ManifestMerger2.Invoker.Feature.KEEP_INTERMEDIARY_STAGES)
+                        .merge();
+
+        MergingReport treeReport =
+                ManifestMerger2.newMerger(
+                                mainManifest, logger, ManifestMerger2.MergeType.APPLICATION)
+                        .addLibraryManifests(libraryFiles.toArray(new File[0]))
+                        .withExecutor(executor)
+                        .setMergedLibrariesFile(mergedLibrariesFile)
+                        .merge();
+
+        assertEquals(foldReport.getResult(), treeReport.getResult());
+        assertEquals(
+                foldReport.getMergedDocument(MergedManifestKind.MERGED),
+                treeReport.getMergedDocument(MergedManifestKind.MERGED));
+        assertSameActions(foldReport.getActions(), treeReport.getActions());
+        assertEquals(
+                foldReport.getMergedDocument(MergedManifestKind.BLAME),
+                treeReport.getMergedDocument(MergedManifestKind.BLAME));
+        return treeReport;
+    }
+
+    /** Checks the same actions are recorded for each node and attribute, in any order. */
+    private static void assertSameActions(@NonNull Actions expected, @NonNull Actions actual) {
+        assertEquals(expected.getNodeKeys(), actual.getNodeKeys());
+        for (XmlNode.NodeKey nodeKey : expected.getNodeKeys()) {
+            assertEquals(
+                    nodeKey.toString(),
+                    toStrings(expected.getNodeRecords(nodeKey)),
+                    toStrings(actual.getNodeRecords(nodeKey)));
+            assertEquals(
+                    nodeKey.toString(),
+                    ImmutableSet.copyOf(expected.getRecordedAttributeNames(nodeKey)),
+                    ImmutableSet.copyOf(actual.getRecordedAttributeNames(nodeKey)));
+            for (XmlNode.NodeName attributeName : expected.getRecordedAttributeNames(nodeKey)) {
+                assertEquals(
+                        nodeKey + "@" + attributeName,
+                        toStrings(expected.getAttributeRecords(nodeKey, attributeName)),
+                        toStrings(actual.getAttributeRecords(nodeKey, attributeName)));
+            }
+        }
+    }
+
+    @NonNull
+    private static Set<String> toStrings(@NonNull List<? extends Actions.Record> records) {
+        Set<String> strings = new HashSet<>();
+        for (Actions.Record record : records) {
+            strings.add(record.toString());
+        }
+        return strings;
+    }
+
+    /**
+     * Creates a library manifest declaring random elements, some of them also declared by other
+     * libraries, that do not conflict with each other.
+     */
+    @NonNull
+    private static String createLibrary(@NonNull Random random, int index) {
+        // the target SDK may be lower than the main manifest's, as long as no permission is
+        // implied by it.
+        int minSdkVersion = 9 + random.nextInt(6);
+        StringBuilder libraryXml = new StringBuilder();
+        libraryXml
+                .append("<manifest package=\"com.example.lib")
+                .append(index)
+                .append("\"\n")
+                .append("    xmlns:android=\"http://schemas.android.com/apk/res/android\">\n")
+                .append("    <uses-sdk android:minSdkVersion=\"")
+                .append(minSdkVersion)
+                .append("\" android:targetSdkVersion=\"")
+                .append(minSdkVersion + random.nextInt(27 - minSdkVersion))
+                .append("\"/>\n");
+        for (int i = 0; i < 4; i++) {
+            if (random.nextBoolean()) {
+                libraryXml
+                        .append("    <uses-permission android:name=\"com.example.permission.P")
+                        .append(i)
+                        .append("\"/>\n");
+            }
+        }
+        if (random.nextBoolean()) {
+            libraryXml.append(
+                    "    <uses-feature android:name=\"android.hardware.camera\"/>\n");
+        }
+        libraryXml.append("    <application>\n");
+        for (int i = 0; i < 6; i++) {
+            if (!random.nextBoolean()) {
+                continue;
+            }
+            // shared activities have the same attributes in all libraries, and children specific
+            // to each library or shared with other libraries.
+            libraryXml
+                    .append("        <activity android:name=\"com.example.Shared")
+                    .append(i)
+                    .append("\"\n")
+                    .append("            android:theme=\"@style/Shared")
+                    .append(i)
+                    .append("\">\n")
+                    .append("            <meta-data android:name=\"lib")
+                    .append(index)
+                    .append(".")
+                    .append(i)
+                    .append("\" android:value=\"")
+                    .append(random.nextInt(100))
+                    .append("\"/>\n");
+            if (random.nextBoolean()) {
+                libraryXml
+                        .append("            <intent-filter>\n")
+                        .append("                <action android:name=\"com.example.ACTION")
+                        .append(i)
+                        .append(".")
+                        .append(random.nextInt(3))
+                        .append("\"/>\n")
+                        .append("            </intent-filter>\n");
+            }
+            libraryXml.append("        </activity>\n");
+        }
+        libraryXml
+                .append("        <!-- the library's own activity -->\n")
+                .append("        <activity android:name=\".LibraryActivity\"/>\n")
+                .append("    </application>\n")
+                .append("</manifest>");
+        return libraryXml.toString();
+    }
+
+    @NonNull
+    private static String createLibrary(int index, @NonNull String applicationElements) {
+        return ""
+                + "<manifest package=\"com.example.lib" + index + "\"\n"
+                + "    xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                + "    xmlns:tools=\"http://schemas.android.com/tools\">\n"
+                + "    <uses-sdk android:minSdkVersion=\"14\" android:targetSdkVersion=\"25\"/>\n"
+                + "    <application>\n"
+                + applicationElements
+                + "    </application>\n"
+                + "</manifest>";
+    }
+
+    @NonNull
+    private File inputAsFile(@NonNull String name, @NonNull String input) throws IOException {
+        File file = temporaryFolder.newFile(name + ".xml");
+        Files.write(input, file, Charsets.UTF_8);
+        return file;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.tasks;
+
+/**
+ * Priority of a {@link Job} pushed to a {@link WorkQueue}. Workers always pick up pending jobs of a
+ * higher priority before pending jobs of a lower priority; jobs of the same priority are picked up
+ * roughly in the order they were pushed.
+ */
+public enum JobPriority {
+
+    /** Jobs on the critical path of the build, e.g. compiling resources needed for linking. */
+    HIGH,
+
+    /** Default priority. */
+    NORMAL,
+
+    /** Jobs that can be delayed without slowing down the build, e.g. crunching PNG files. */
+    LOW,
+}
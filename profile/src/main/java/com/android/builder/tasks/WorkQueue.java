@@ -17,166 +17,233 @@
 package com.android.builder.tasks;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.utils.ILogger;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 
 /**
- * A work queue that accepts jobs and treat them in order.
+ * A work queue that accepts jobs and treat them in order of priority.
+ *
+ * <p>Jobs are processed by a fixed pool of worker threads, started when the first job is pushed.
+ * The pool size is the requested workforce. Each worker owns one lock-free deque of pending jobs
+ * per {@link JobPriority}; pushed jobs are spread across the workers' deques, and a worker that
+ * runs out of jobs of a given priority steals jobs of that priority from the other workers before
+ * looking at lower priorities. Jobs of the same priority are taken in the order they were pushed
+ * to a given worker, whether by their owner or by a thief.
  *
  * @author jedo@google.com (Jerome Dochez)
  */
-public class WorkQueue<T> implements Runnable {
+public class WorkQueue<T> {
 
     private static final boolean VERBOSE = System.getenv("GRADLE_WORK_QUEUE_VERBOSE") != null;
 
+    private static final JobPriority[] PRIORITIES = JobPriority.values();
+
     private final ILogger mLogger;
 
     // queue name as human would understand.
     private final String mName;
 
-    // the user throttling has already happened before so I am using a potentially
-    // infinite linked list of request.
-    private final LinkedBlockingQueue<QueueTask<T>> mPendingJobs =
-            new LinkedBlockingQueue<>();
-
-    // List of working threads pumping from this queue.
-    private final List<Thread> mWorkThreads = new ArrayList<>();
-
-    private final float mGrowthTriggerRatio;
-    private final int mMWorkforceIncrement;
+    private final int mWorkforce;
     private final AtomicInteger mThreadId = new AtomicInteger(0);
     private final AtomicInteger mServerFailure = new AtomicInteger(0);
     private final QueueThreadContext<T> mQueueThreadContext;
 
-    // we could base this on the number of processors this machine has, etc...
-    private static final int MAX_WORKFORCE_SIZE = 20;
+    // one permit per pending job, plus one per worker once the shutdown sequence has started.
+    private final Semaphore mPendingPermits = new Semaphore(0);
 
+    // used to spread pushed jobs across the workers.
+    private final AtomicInteger mNextWorker = new AtomicInteger(0);
 
-    /**
-     * Private queue structure to store queue items.
-     */
-    private static class QueueTask<T> {
+    // workers pumping from this queue, or null if they are not started.
+    @Nullable private volatile List<Worker> mWorkers;
+
+    // held for reading while pushing a job to the workers, and for writing while starting or
+    // retiring the workers, so that no job is pushed to workers that have been retired.
+    private final ReadWriteLock mWorkersLock = new ReentrantReadWriteLock();
+
+    private volatile boolean mShuttingDown = false;
+
+    /** Worker thread with its own deques of pending jobs, one per priority. */
+    private final class Worker implements Runnable {
 
-        enum ActionType { Death, Normal }
-        final ActionType actionType;
-        final Job<T> job;
+        private final int mIndex;
+        @NonNull private final ConcurrentLinkedDeque<Job<T>>[] mDeques;
+        @NonNull private final Thread mThread;
 
-        private QueueTask(ActionType actionType, Job<T> job) {
-            this.actionType = actionType;
-            this.job = job;
+        @SuppressWarnings("unchecked")
+        private Worker(int index) {
+            mIndex = index;
+            mDeques = new ConcurrentLinkedDeque[PRIORITIES.length];
+            for (int i = 0; i < mDeques.length; i++) {
+                mDeques[i] = new ConcurrentLinkedDeque<>();
+            }
+            mThread = new Thread(this, mName + "_" + mThreadId.incrementAndGet());
+            mThread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            runWorker(this);
         }
     }
 
     /**
-     * Creates a non expanding queue, with a number of dedicated threads to process
-     * the queue's jobs.
+     * Creates a queue, with a number of dedicated threads to process the queue's jobs.
      *
      * @param logger to log messages
      * @param queueName a meaningful descriptive name.
-     * @param workforce the number of dedicated threads for this queue.
+     * @param workforce the number of dedicated threads for this queue; if {@code 0}, the number of
+     *     processors is used.
      */
     public WorkQueue(
             @NonNull ILogger logger,
             @NonNull QueueThreadContext<T> queueThreadContext,
             @NonNull String queueName,
             int workforce) {
-        this(logger, queueThreadContext, queueName, workforce, 0);
+        this.mLogger = logger;
+        this.mName = queueName;
+        this.mWorkforce =
+                workforce > 0 ? workforce : Runtime.getRuntime().availableProcessors();
+        this.mQueueThreadContext = queueThreadContext;
     }
 
     /**
-     * Creates a new queue, with a number of dedicated threads to process
-     * the queue's jobs.
+     * Creates a queue, with a number of dedicated threads to process the queue's jobs.
      *
-     * @param logger to log messages
-     * @param queueName a meaningful descriptive name.
-     * @param workforce the number of dedicated threads for this queue.
-     * @param growthTriggerRatio the ratio between outstanding requests and worker threads that
-     *                           should trigger a growth in worker threads; if {@code 0} no growth
-     *                           will happen beyond the initial thread creation
+     * @deprecated the queue no longer grows its workforce, use {@link #WorkQueue(ILogger,
+     *     QueueThreadContext, String, int)} instead.
      */
+    @Deprecated
     public WorkQueue(
             @NonNull ILogger logger,
             @NonNull QueueThreadContext<T> queueThreadContext,
             @NonNull String queueName,
             int workforce,
             float growthTriggerRatio) {
-
-        this.mLogger = logger;
-        this.mName = queueName;
-        this.mGrowthTriggerRatio = growthTriggerRatio;
-        this.mMWorkforceIncrement = workforce;
-        this.mQueueThreadContext = queueThreadContext;
+        this(logger, queueThreadContext, queueName, workforce);
     }
 
-    public void push(Job<T> job) throws InterruptedException {
-        _push(new QueueTask<>(QueueTask.ActionType.Normal, job));
-        checkWorkforce();
+    /** Pushes a job with {@link JobPriority#NORMAL} priority. */
+    public void push(@NonNull Job<T> job) throws InterruptedException {
+        push(job, JobPriority.NORMAL);
     }
 
-    private void _push(QueueTask<T> task) throws InterruptedException {
-        // at this point, I am not trying to limit the number of pending jobs.
-        // eventually we would want to put some limit to the size of the pending jobs
-        // queue so it does not grow out of control.
-        mPendingJobs.put(task);
+    /**
+     * Pushes a job with the given priority. Pending jobs of a higher priority are always picked up
+     * before pending jobs of a lower priority.
+     */
+    public void push(@NonNull Job<T> job, @NonNull JobPriority priority)
+            throws InterruptedException {
+        while (true) {
+            mWorkersLock.readLock().lock();
+            try {
+                List<Worker> workers = mWorkers;
+                if (workers != null) {
+                    // at this point, I am not trying to limit the number of pending jobs.
+                    Worker worker =
+                            workers.get(
+                                    Math.floorMod(mNextWorker.getAndIncrement(), workers.size()));
+                    worker.mDeques[priority.ordinal()].addLast(job);
+                    mPendingPermits.release();
+                    return;
+                }
+            } finally {
+                mWorkersLock.readLock().unlock();
+            }
+            startWorkforce();
+        }
     }
 
-    private synchronized void checkWorkforce() {
-        if (mWorkThreads.isEmpty()
-                || ((mPendingJobs.size() / mWorkThreads.size() > mGrowthTriggerRatio)
-                        && mGrowthTriggerRatio > 0)) {
-            verbose("Request to incrementing workforce from %1$d", mWorkThreads.size());
-            if (mWorkThreads.size() >= MAX_WORKFORCE_SIZE) {
-                verbose("Already at max workforce %1$d, denied.", MAX_WORKFORCE_SIZE);
+    private void startWorkforce() {
+        mWorkersLock.writeLock().lock();
+        try {
+            if (mWorkers != null) {
                 return;
             }
-            for (int i = 0; i < mMWorkforceIncrement; i++) {
-                Thread t = new Thread(this, mName + "_" + mThreadId.incrementAndGet());
-                t.setDaemon(true);
-                mWorkThreads.add(t);
-                t.start();
+            verbose("Starting workforce of %1$d threads", mWorkforce);
+            List<Worker> workers = new ArrayList<>(mWorkforce);
+            for (int i = 0; i < mWorkforce; i++) {
+                workers.add(new Worker(i));
             }
-            verbose("thread-pool size=%1$d", mWorkThreads.size());
-        }
-    }
-
-    private synchronized void reduceWorkforce() throws InterruptedException {
-        verbose("Decrementing workforce from " + mWorkThreads.size());
-        // push a the right number of kiss of death tasks to shutdown threads.
-        for (int i = 0; i < mMWorkforceIncrement; i++) {
-           _push(new QueueTask<>(QueueTask.ActionType.Death, null));
+            mServerFailure.set(0);
+            // publish the workers before starting them, so they can look each other up.
+            mWorkers = workers;
+            for (Worker worker : workers) {
+                worker.mThread.start();
+            }
+        } finally {
+            mWorkersLock.writeLock().unlock();
         }
     }
 
     /**
-     * Shutdowns the working queue and wait until all pending requests have
-     * been processed. This needs to be reviewed as jobs can still be added
-     * to the queue once the shutdown process has started....
+     * Shutdowns the working queue and wait until all pending requests have been processed,
+     * including the jobs pushed while the shutdown sequence is running. Jobs pushed once the
+     * shutdown sequence has completed start a new workforce.
+     *
      * @throws InterruptedException if the shutdown sequence is interrupted
      */
     public synchronized void shutdown() throws InterruptedException {
+        List<Worker> workers;
+        while ((workers = mWorkers) != null) {
+            List<Worker> livingWorkers =
+                    workers.stream().filter(w -> w.mThread.isAlive()).collect(Collectors.toList());
+
+            if (livingWorkers.isEmpty() && size() > 0) {
+                // all of our threads died without processing all the jobs, this is not good.
+                throw new RuntimeException("No slave process to process jobs, aborting");
+            }
 
-        List<Thread> livingThreads =
-                mWorkThreads.stream().filter(Thread::isAlive).collect(Collectors.toList());
+            // wake up every worker, each of them will exit once there are no more pending jobs.
+            mShuttingDown = true;
+            mPendingPermits.release(workers.size());
+            // we could use a latch.
+            for (Worker worker : workers) {
+                worker.mThread.join();
+            }
 
-        if (livingThreads.isEmpty() && !mPendingJobs.isEmpty()) {
-            // all of our threads died without processing all the jobs, this is not good.
-            throw new RuntimeException("No slave process to process jobs, aborting");
-        }
+            // jobs may have been pushed after the workers found no more pending jobs, take them
+            // back while retiring the workers and push them again to a new workforce.
+            List<List<Job<T>>> leftoverJobs = new ArrayList<>(PRIORITIES.length);
+            boolean hasLeftoverJobs = false;
+            mWorkersLock.writeLock().lock();
+            try {
+                for (int priority = 0; priority < PRIORITIES.length; priority++) {
+                    List<Job<T>> jobs = new ArrayList<>();
+                    for (Worker worker : workers) {
+                        Job<T> job;
+                        while ((job = worker.mDeques[priority].pollFirst()) != null) {
+                            jobs.add(job);
+                        }
+                    }
+                    leftoverJobs.add(jobs);
+                    hasLeftoverJobs |= !jobs.isEmpty();
+                }
+                mWorkers = null;
+                mShuttingDown = false;
+                mPendingPermits.drainPermits();
+            } finally {
+                mWorkersLock.writeLock().unlock();
+            }
 
-        // push as many death pills as necessary
-        for (Thread t : mWorkThreads) {
-            _push(new QueueTask<>(QueueTask.ActionType.Death, null));
-        }
-        // we could use a latch.
-        for (Thread t : mWorkThreads) {
-            t.join();
+            if (hasLeftoverJobs) {
+                verbose("Restarting workforce for jobs pushed during shutdown");
+                for (int priority = 0; priority < PRIORITIES.length; priority++) {
+                    for (Job<T> job : leftoverJobs.get(priority)) {
+                        push(job, PRIORITIES[priority]);
+                    }
+                }
+            }
         }
-        mWorkThreads.clear();
         mQueueThreadContext.shutdown();
     }
 
@@ -196,17 +263,72 @@ public class WorkQueue<T> implements Runnable {
      * @return the size of the queue.
      */
     public int size() {
-        return mPendingJobs.size();
+        List<Worker> workers = mWorkers;
+        if (workers == null) {
+            return 0;
+        }
+        int size = 0;
+        for (Worker worker : workers) {
+            for (ConcurrentLinkedDeque<Job<T>> deque : worker.mDeques) {
+                size += deque.size();
+            }
+        }
+        return size;
     }
 
+    /**
+     * Returns the next job for the given worker, or null if there are no pending jobs. Jobs are
+     * taken in order of priority; for each priority, the worker first takes the oldest job from
+     * its own deque, and then steals the oldest job from the other workers' deques, so that jobs
+     * of the same priority are started in the order they were pushed.
+     */
+    @Nullable
+    private Job<T> nextJob(@NonNull Worker worker, @NonNull List<Worker> workers) {
+        for (int priority = 0; priority < PRIORITIES.length; priority++) {
+            Job<T> job = worker.mDeques[priority].pollFirst();
+            if (job != null) {
+                return job;
+            }
+            for (int i = 1; i < workers.size(); i++) {
+                Worker victim = workers.get((worker.mIndex + i) % workers.size());
+                job = victim.mDeques[priority].pollFirst();
+                if (job != null) {
+                    verbose(
+                            "Thread(%1$s): stole %2$s from %3$s",
+                            worker.mThread.getName(),
+                            job.getJobTitle(),
+                            victim.mThread.getName());
+                    return job;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void failAllPendingJobs(@NonNull List<Worker> workers) {
+        for (Worker worker : workers) {
+            for (ConcurrentLinkedDeque<Job<T>> deque : worker.mDeques) {
+                for (Job<T> job : deque) {
+                    job.error(
+                            new RuntimeException(
+                                    "No server to serve request. Check logs for details."));
+                }
+            }
+        }
+    }
 
     /**
-     * each thread in the mWorkThreads will run this single infinite processing loop until a
-     * death action is received.
+     * each worker will run this single infinite processing loop until there are no more jobs to
+     * process once the queue is shut down.
      */
-    @Override
-    public void run() {
+    private void runWorker(@NonNull Worker worker) {
         final String threadName = Thread.currentThread().getName();
+        List<Worker> workers = mWorkers;
+        if (workers == null) {
+            // this clearly should not happen, workers are published before they are started.
+            mLogger.error(null, "Thread(%1$s): started without a workforce", threadName);
+            return;
+        }
         try {
             try {
                 verbose("Creating a new working thread %1$s", threadName);
@@ -214,12 +336,8 @@ public class WorkQueue<T> implements Runnable {
                     // Register this thread as failed and see how many failed in total.
                     int failedServers = mServerFailure.incrementAndGet();
                     // if all the threads have failed to start, pick up jobs and fail them all.
-                    if (failedServers == mWorkThreads.size()) {
-                        for (QueueTask<T> task : mPendingJobs) {
-                            task.job.error(
-                                    new RuntimeException(
-                                            "No server to serve request. Check logs for details."));
-                        }
+                    if (failedServers == workers.size()) {
+                        failAllPendingJobs(workers);
                     }
                     verbose("Thread(%1$s): Could not start slave process, exiting thread.");
                     return;
@@ -231,27 +349,23 @@ public class WorkQueue<T> implements Runnable {
                 // Register this thread as failed and see how many failed in total.
                 int failedServers = mServerFailure.incrementAndGet();
                 // if all the threads have failed to start, pick up jobs and fail them all.
-                if (failedServers == mWorkThreads.size()) {
-                    for (QueueTask<T> task : mPendingJobs) {
-                        task.job.error(
-                                new RuntimeException(
-                                        "No server to serve request. Check logs for details."));
-                    }
+                if (failedServers == workers.size()) {
+                    failAllPendingJobs(workers);
                 }
                 return;
             }
-            while(true) {
-                final QueueTask<T> queueTask = mPendingJobs.take();
-                if (queueTask.actionType== QueueTask.ActionType.Death) {
-                    verbose("Thread(%1$s): Death requested", threadName);
-                    // we are done.
-                    return;
-                }
-                final Job<T> job = queueTask.job;
-                if (job == null) {
-                    // this clearly should not happen.
-                    mLogger.error(null, "I got a null pending job out of the priority queue");
-                    return;
+            while (true) {
+                mPendingPermits.acquire();
+                Job<T> job = nextJob(worker, workers);
+                while (job == null) {
+                    if (mShuttingDown) {
+                        verbose("Thread(%1$s): Death requested", threadName);
+                        // we are done.
+                        return;
+                    }
+                    // the permit guarantees a pending job, which may not be visible yet.
+                    Thread.yield();
+                    job = nextJob(worker, workers);
                 }
                 verbose("Thread(%1$s): scheduling %2$s", threadName, job.getJobTitle());
 
@@ -266,12 +380,7 @@ public class WorkQueue<T> implements Runnable {
                 boolean result = job.await();
                 verbose("Thread(%1$s): job %2$s finished, result=%3$b",
                         threadName, job.getJobTitle(), result);
-
-                // we could potentially reduce the workforce at this point if we have little
-                // queuing comparatively to the number of worker threads but at this point, the
-                // overall process (gradle activity) is fairly short lived so skipping at this
-                // point.
-                verbose("Thread(%1$s): queue size %2$d", threadName, mPendingJobs.size());
+                verbose("Thread(%1$s): queue size %2$d", threadName, size());
             }
         } catch (InterruptedException e) {
             mLogger.error(e, "Thread(%1$s): Interrupted", threadName);
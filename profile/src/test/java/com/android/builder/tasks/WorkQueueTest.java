@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.tasks;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.annotations.NonNull;
+import com.android.utils.StdLogger;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/** Tests for the {@link WorkQueue} class. */
+public class WorkQueueTest {
+
+    /** Context that simply runs the jobs, like the proguard work queue. */
+    private static class RunningThreadContext extends QueueThreadContextAdapter<Void> {
+
+        @Override
+        public void runTask(@NonNull Job<Void> job) throws Exception {
+            job.runTask(new JobContext<>(null /* payload */));
+            job.finished();
+        }
+    }
+
+    @Test
+    public void testAllJobsProcessed() throws Exception {
+        WorkQueue<Void> queue =
+                new WorkQueue<>(
+                        new StdLogger(StdLogger.Level.WARNING),
+                        new RunningThreadContext(),
+                        "test",
+                        4);
+        List<String> processed = Collections.synchronizedList(new ArrayList<>());
+        List<SettableFuture<Void>> results = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            SettableFuture<Void> result = SettableFuture.create();
+            results.add(result);
+            queue.push(
+                    createJob(
+                            "job" + i,
+                            () -> processed.add(Thread.currentThread().getName()),
+                            result));
+        }
+        queue.shutdown();
+
+        assertThat(processed).hasSize(100);
+        for (SettableFuture<Void> result : results) {
+            assertThat(result.isDone()).isTrue();
+        }
+        assertThat(queue.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testHigherPriorityJobsFirst() throws Exception {
+        WorkQueue<Void> queue =
+                new WorkQueue<>(
+                        new StdLogger(StdLogger.Level.WARNING),
+                        new RunningThreadContext(),
+                        "test",
+                        1);
+        CountDownLatch blockingJobStarted = new CountDownLatch(1);
+        CountDownLatch releaseBlockingJob = new CountDownLatch(1);
+        List<String> processed = Collections.synchronizedList(new ArrayList<>());
+
+        // keep the only worker busy while the other jobs are pushed
+        queue.push(
+                createJob(
+                        "blocking",
+                        () -> {
+                            blockingJobStarted.countDown();
+                            try {
+                                releaseBlockingJob.await();
+                            } catch (InterruptedException e) {
+                                throw new RuntimeException(e);
+                            }
+                        },
+                        SettableFuture.create()));
+        assertThat(blockingJobStarted.await(10, TimeUnit.SECONDS)).isTrue();
+
+        queue.push(
+                createJob("low", () -> processed.add("low"), SettableFuture.create()),
+                JobPriority.LOW);
+        queue.push(createJob("normal", () -> processed.add("normal"), SettableFuture.create()));
+        queue.push(
+                createJob("high", () -> processed.add("high"), SettableFuture.create()),
+                JobPriority.HIGH);
+        assertThat(queue.size()).isEqualTo(3);
+
+        releaseBlockingJob.countDown();
+        queue.shutdown();
+
+        assertThat(processed).containsExactly("high", "normal", "low").inOrder();
+    }
+
+    @Test
+    public void testRestartAfterShutdown() throws Exception {
+        WorkQueue<Void> queue =
+                new WorkQueue<>(
+                        new StdLogger(StdLogger.Level.WARNING),
+                        new RunningThreadContext(),
+                        "test",
+                        2);
+        SettableFuture<Void> first = SettableFuture.create();
+        queue.push(createJob("first", () -> {}, first));
+        queue.shutdown();
+        assertThat(first.isDone()).isTrue();
+
+        SettableFuture<Void> second = SettableFuture.create();
+        queue.push(createJob("second", () -> {}, second));
+        queue.shutdown();
+        assertThat(second.isDone()).isTrue();
+    }
+
+    @Test
+    public void testStolenJobsInPushOrder() throws Exception {
+        WorkQueue<Void> queue =
+                new WorkQueue<>(
+                        new StdLogger(StdLogger.Level.WARNING),
+                        new RunningThreadContext(),
+                        "test",
+                        2);
+        CountDownLatch blockingJobsStarted = new CountDownLatch(2);
+        CountDownLatch releaseFirstBlockingJob = new CountDownLatch(1);
+        CountDownLatch releaseSecondBlockingJob = new CountDownLatch(1);
+        List<String> processed = Collections.synchronizedList(new ArrayList<>());
+
+        // keep both workers busy while the other jobs are pushed to the workers in turn
+        for (CountDownLatch release :
+                new CountDownLatch[] {releaseFirstBlockingJob, releaseSecondBlockingJob}) {
+            queue.push(
+                    createJob(
+                            "blocking",
+                            () -> {
+                                blockingJobsStarted.countDown();
+                                try {
+                                    release.await();
+                                } catch (InterruptedException e) {
+                                    throw new RuntimeException(e);
+                                }
+                            },
+                            SettableFuture.create()));
+        }
+        assertThat(blockingJobsStarted.await(10, TimeUnit.SECONDS)).isTrue();
+        for (int i = 1; i <= 4; i++) {
+            String title = "job" + i;
+            queue.push(createJob(title, () -> processed.add(title), SettableFuture.create()));
+        }
+
+        // the released worker runs its own jobs, then steals the jobs of the other worker, in the
+        // order they were pushed
+        releaseFirstBlockingJob.countDown();
+        while (queue.size() > 0) {
+            Thread.sleep(10);
+        }
+        releaseSecondBlockingJob.countDown();
+        queue.shutdown();
+
+        assertThat(processed)
+                .isAnyOf(
+                        Arrays.asList("job1", "job3", "job2", "job4"),
+                        Arrays.asList("job2", "job4", "job1", "job3"));
+    }
+
+    @Test
+    public void testJobsPushedDuringShutdownProcessed() throws Exception {
+        WorkQueue<Void> queue =
+                new WorkQueue<>(
+                        new StdLogger(StdLogger.Level.WARNING),
+                        new RunningThreadContext(),
+                        "test",
+                        2);
+        List<SettableFuture<Void>> results = Collections.synchronizedList(new ArrayList<>());
+        Thread pusher =
+                new Thread(
+                        () -> {
+                            try {
+                                for (int i = 0; i < 1000; i++) {
+                                    SettableFuture<Void> result = SettableFuture.create();
+                                    results.add(result);
+                                    queue.push(createJob("job" + i, () -> {}, result));
+                                }
+                            } catch (InterruptedException e) {
+                                throw new RuntimeException(e);
+                            }
+                        });
+        pusher.start();
+        for (int i = 0; i < 20; i++) {
+            queue.shutdown();
+        }
+        pusher.join();
+        // the jobs pushed after the last shutdown are processed by a new workforce
+        queue.shutdown();
+
+        assertThat(results).hasSize(1000);
+        for (SettableFuture<Void> result : results) {
+            assertThat(result.isDone()).isTrue();
+        }
+    }
+
+    @NonNull
+    private static Job<Void> createJob(
+            @NonNull String title,
+            @NonNull Runnable action,
+            @NonNull SettableFuture<Void> result) {
+        return new Job<>(
+                title,
+                new Task<Void>() {
+                    @Override
+                    public void run(@NonNull Job<Void> job, @NonNull JobContext<Void> context) {
+                        action.run();
+                    }
+
+                    @Override
+                    public void finished() {
+                        result.set(null);
+                    }
+
+                    @Override
+                    public void error(Throwable e) {
+                        result.setException(e);
+                    }
+                },
+                result);
+    }
+}